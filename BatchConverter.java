@@ -0,0 +1,312 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * raglogs ディレクトリ配下の <uuid> + <uuid>.timing をすべて探索し、並列に変換する。
+ * ディレクトリの代わりに .tar.gz / .tgz / .tar / .gz を渡すと、展開せずに SessionArchive で順に変換する。
+ * --gzip を付けると <uuid>.log.gz にブロック圧縮で出力する（BlockGzipLog）。
+ * --columnar を付けると <uuid>.log.col に列形式で出力する（ColumnarLog）。
+ * --index <dir> を付けると、変換できたログを CommandIndex に追加する（cmd / pipe のみ。変わっていないログは読み直さない）。
+ * --metrics-port <port> で変換中の指標（ConversionMetrics）を 127.0.0.1:port/metrics に公開し、
+ * --metrics-file <file> で終わったときの指標を Prometheus のテキスト形式で書き出す。
+ * - ワークスティーリングプール（スレッド数は上限付き）で実行
+ * - 大きいセッションから順に投入（最後に巨大ファイルが1本だけ残るのを防ぐ）
+ * - 1ファイルの失敗は他に影響させず、最後にまとめて報告
+ */
+public class BatchConverter {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+
+    /** 使用する変換器 */
+    public enum Mode {
+        CMD, CMD_B2, LOG,
+        /** CMD と同じ出力。1セッションを段ごとのスレッドで処理する（少数の巨大セッション向け） */
+        CMD_PIPELINED;
+
+        /** 指標（ConversionMetrics）のラベル */
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.BatchConverter <dir|archive> [--out <dir>] [--threads <n>] [--mode cmd|b2|log|pipe] [--gzip|--columnar] [--index <dir>]");
+            System.err.println("        [--metrics-port <port>] [--metrics-file <file>]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        Path outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Mode mode = Mode.CMD;
+        String ext = ".log";
+        Path indexDir = null;
+        int metricsPort = 0;
+        Path metricsFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                outDir = Paths.get(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--mode".equals(args[i]) && i + 1 < args.length) {
+                String m = args[++i];
+                mode = "b2".equals(m) ? Mode.CMD_B2 : "log".equals(m) ? Mode.LOG
+                        : "pipe".equals(m) ? Mode.CMD_PIPELINED : Mode.CMD;
+            } else if ("--gzip".equals(args[i])) {
+                ext = ".log.gz";
+            } else if ("--columnar".equals(args[i])) {
+                ext = ".log.col";
+            } else if ("--index".equals(args[i]) && i + 1 < args.length) {
+                indexDir = Paths.get(args[++i]);
+            } else if ("--metrics-port".equals(args[i]) && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if ("--metrics-file".equals(args[i]) && i + 1 < args.length) {
+                metricsFile = Paths.get(args[++i]);
+            }
+        }
+
+        Report report;
+        Closeable server = metricsPort > 0 ? ConversionMetrics.global().serve(metricsPort) : null;
+        try {
+            report = Files.isRegularFile(dir) && SessionArchive.isArchive(dir)
+                    ? SessionArchive.convertAll(dir, outDir, mode, ext)
+                    : convertAll(dir, outDir, mode, threads, ext);
+        } finally {
+            if (server != null) server.close();
+        }
+        report.print();
+        if (metricsFile != null) ConversionMetrics.global().writeTo(metricsFile);
+        if (indexDir != null) {
+            if ((mode == Mode.CMD || mode == Mode.CMD_PIPELINED) && !".log.col".equals(ext)) index(report, indexDir);
+            else System.err.println("--index は cmd / pipe のテキスト出力（.log / .log.gz）にだけ使えます");
+        }
+        if (report.failed() > 0) System.exit(1);
+    }
+
+    /** 変換できたログを CommandIndex に追加する。1本の失敗は報告して続ける */
+    static void index(Report report, Path indexDir) throws IOException {
+        int added = 0;
+        try (CommandIndex idx = CommandIndex.open(indexDir)) {
+            for (Result r : report.results) {
+                if (r.error != null) continue;
+                try {
+                    if (idx.add(r.out)) added++;
+                } catch (IOException e) {
+                    System.err.println("索引の失敗: " + r.out + " : " + e);
+                }
+            }
+        }
+        System.out.println("索引: " + added + " 件追加");
+    }
+
+    /**
+     * dir 配下のセッションをすべて変換する。outDir が null の場合は録画ファイルと同じ場所に <uuid>.log を出力。
+     */
+    public static Report convertAll(Path dir, Path outDir, Mode mode, int threads) throws IOException, InterruptedException {
+        return convertAll(dir, outDir, mode, threads, false);
+    }
+
+    /** gzip なら <uuid>.log.gz にブロック圧縮で出力する */
+    public static Report convertAll(Path dir, Path outDir, Mode mode, int threads, boolean gzip)
+            throws IOException, InterruptedException {
+        return convertAll(dir, outDir, mode, threads, gzip ? ".log.gz" : ".log");
+    }
+
+    /** 出力の拡張子（.log / .log.gz / .log.col）を指定する。形式は openSink() を参照 */
+    public static Report convertAll(Path dir, Path outDir, Mode mode, int threads, String ext)
+            throws IOException, InterruptedException {
+        List<Session> sessions = discover(dir);
+        // 大きい順：終盤に長いタスクだけが残るとコアが遊ぶため
+        sessions.sort(Comparator.comparingLong((Session s) -> s.bytes).reversed());
+
+        ExecutorService pool = Executors.newWorkStealingPool(Math.max(1, threads));
+        long t0 = System.nanoTime();
+        List<Future<Result>> futures = new ArrayList<>(sessions.size());
+        try {
+            for (Session s : sessions) {
+                Path out = resolveOut(dir, outDir, s, ext);
+                futures.add(pool.submit(() -> convertOne(s, out, mode, ext)));
+            }
+            List<Result> results = new ArrayList<>(futures.size());
+            for (Future<Result> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    // convertOne 内で捕捉済みのため通常は到達しない
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return new Report(results, System.nanoTime() - t0, threads);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** <name>.timing と <name> が揃っているものをセッションとして列挙 */
+    static List<Session> discover(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.filter(p -> p.getFileName().toString().endsWith(".timing"))
+                    .filter(Files::isRegularFile)
+                    .map(BatchConverter::toSession)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static Session toSession(Path timing) {
+        String fn = timing.getFileName().toString();
+        Path typescript = timing.resolveSibling(fn.substring(0, fn.length() - ".timing".length()));
+        if (!Files.isRegularFile(typescript)) return null;
+        long bytes;
+        try {
+            bytes = Files.size(typescript) + Files.size(timing);
+        } catch (IOException e) {
+            bytes = 0; // 読めなければ変換も失敗し、そのセッションの結果として残る
+        }
+        // 開始時刻は timing を読み切って求めるので、ワーカーで変換の直前に求める
+        return new Session(typescript, timing, bytes, null);
+    }
+
+    private static Path resolveOut(Path dir, Path outDir, Session s, String ext) {
+        String name = s.typescript.getFileName() + ext;
+        if (outDir == null) return s.typescript.resolveSibling(name);
+        Path rel = dir.relativize(s.typescript).resolveSibling(name);
+        return outDir.resolve(rel);
+    }
+
+    private static Result convertOne(Session s, Path out, Mode mode, String ext) {
+        long t0 = System.nanoTime();
+        ConversionMetrics.Recorder metrics = ConversionMetrics.begin(s.typescript.getFileName().toString(), mode.label());
+        try {
+            Instant start = s.start != null ? s.start : TimingParser.recordingStart(s.typescript, s.timing);
+            if (!".log".equals(ext)) {
+                try (InputStream data = new BufferedInputStream(Files.newInputStream(s.typescript), 1 << 16);
+                     TimingParser tr = TimingParser.open(s.timing, TimingParser.Unit.SECONDS);
+                     BufferedWriter w = new BufferedWriter(openSink(out), 1 << 16)) {
+                    convert(mode, data, tr, w, start, (int) Math.min(Files.size(s.timing) / 10, 1 << 24));
+                }
+                return new Result(s, out, System.nanoTime() - t0, null);
+            }
+            switch (mode) {
+                case CMD:
+                    CommandOnlyExtractor.extract(s.typescript, s.timing, out, true,
+                            ZonedDateTime.ofInstant(start, DEFAULT_ZONE));
+                    break;
+                case CMD_B2:
+                    CommandOnlyExtractor_b2.extract(s.typescript, s.timing, out,
+                            ZonedDateTime.ofInstant(start, DEFAULT_ZONE));
+                    break;
+                case CMD_PIPELINED:
+                    PipelinedExtractor.extract(s.typescript, s.timing, out,
+                            ZonedDateTime.ofInstant(start, DEFAULT_ZONE));
+                    break;
+                case LOG:
+                    com.demo.test01.TypescriptToLog.convert(s.typescript, s.timing, out, start, false);
+                    break;
+            }
+            return new Result(s, out, System.nanoTime() - t0, null);
+        } catch (Exception | StackOverflowError e) {
+            // 1セッションの失敗はここで閉じ込める
+            metrics.failed();
+            return new Result(s, out, System.nanoTime() - t0, e);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * 出力先の Writer。拡張子が .gz ならブロック圧縮（BlockGzipLog）、.col なら列形式（ColumnarLog）、
+     * それ以外は UTF-8 のテキスト。
+     */
+    static Writer openSink(Path out) throws IOException {
+        String fn = out.getFileName().toString();
+        if (fn.endsWith(".gz")) return BlockGzipLog.open(out);
+        if (fn.endsWith(".col")) return ColumnarLog.open(out);
+        Files.createDirectories(out.getParent() != null ? out.getParent() : Paths.get("."));
+        return Files.newBufferedWriter(out, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * ストリーム版の変換器で1セッションを変換する（SessionArchive、--gzip / --columnar で使用）。
+     * CMD_PIPELINED も CMD と同じ逐次版で処理する。
+     */
+    static void convert(Mode mode, InputStream data, TimingParser tr, BufferedWriter w, Instant start,
+                        int timingEntriesHint) throws IOException {
+        ZonedDateTime startTs = ZonedDateTime.ofInstant(start, DEFAULT_ZONE);
+        switch (mode) {
+            case CMD:
+            case CMD_PIPELINED:
+                CommandOnlyExtractor.extract(data, tr, w, startTs);
+                break;
+            case CMD_B2:
+                CommandOnlyExtractor_b2.extract(data, tr, w, startTs);
+                break;
+            case LOG:
+                com.demo.test01.TypescriptToLog.convert(data, TimingTable.read(tr, timingEntriesHint), w, start, false);
+                break;
+        }
+    }
+
+    // ====== 内部データ ======
+
+    static final class Session {
+        final Path typescript;
+        final Path timing;
+        final long bytes;
+        final Instant start; // null なら変換のときに TimingParser.recordingStart で求める
+        Session(Path typescript, Path timing, long bytes, Instant start) {
+            this.typescript = typescript; this.timing = timing; this.bytes = bytes; this.start = start;
+        }
+    }
+
+    static final class Result {
+        final Session session;
+        final Path out;
+        final long nanos;
+        final Throwable error;
+        Result(Session session, Path out, long nanos, Throwable error) {
+            this.session = session; this.out = out; this.nanos = nanos; this.error = error;
+        }
+    }
+
+    /** 全体の集計結果 */
+    public static final class Report {
+        final List<Result> results;
+        final long wallNanos;
+        final int threads;
+
+        Report(List<Result> results, long wallNanos, int threads) {
+            this.results = results; this.wallNanos = wallNanos; this.threads = threads;
+        }
+
+        public int total()  { return results.size(); }
+        public int failed() { return (int) results.stream().filter(r -> r.error != null).count(); }
+
+        public long bytes() {
+            long sum = 0;
+            for (Result r : results) if (r.error == null) sum += r.session.bytes;
+            return sum;
+        }
+
+        public void print() {
+            double sec = wallNanos / 1e9;
+            double mb = bytes() / (1024.0 * 1024.0);
+            for (Result r : results) {
+                if (r.error != null) {
+                    System.err.println("失敗: " + r.session.typescript + " : " + r.error);
+                }
+            }
+            System.out.printf(Locale.ROOT, "完了: %d 件（成功 %d / 失敗 %d）、%.1f MB、%.2f 秒、%.1f MB/s、スレッド %d%n",
+                    total(), total() - failed(), failed(), mb, sec, sec > 0 ? mb / sec : 0.0, threads);
+        }
+    }
+}
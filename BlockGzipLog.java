@@ -0,0 +1,378 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * ブロック単位で圧縮したログ（<name>.log.gz）と、そのブロックインデックス（<name>.log.gz.bidx）。
+ *
+ * 出力はおよそ 64KB ごと（行の途中では切らない）に独立した gzip メンバーとして書くので、
+ * ファイル全体は普通の gzip として zcat / zgrep で読める（BGZF と同じ考え方）。
+ * インデックスにはブロックごとに、ファイル内の位置と、含まれる行の ABS 列（2列目）の最小・最大を持つので、
+ * 時間範囲を指定すると該当するブロックだけを展開して読める。
+ * ABS は出力に書かれた現地時刻のまま yyyyMMddHHmmss の数値として扱う（区切りは '-' でも '/' でもよい）。
+ *
+ * 圧縮と書き込みは専用のスレッドで行う。変換側は文字をためてブロックを渡すだけで、
+ * 圧縮が追いつかないときだけ（キューが埋まったとき）待つ。
+ *
+ * 使い方: java com.demo.BlockGzipLog <file.log.gz> [--from "yyyy-MM-dd HH:mm:ss"] [--to "yyyy-MM-dd HH:mm:ss"]
+ */
+public final class BlockGzipLog {
+
+    // インデックス：ヘッダー（magic, version, count, pad）の後に、ブロックごとに
+    // offset(long) + length(int) + rawOffset(long) + minKey(long) + maxKey(long)
+    private static final int MAGIC   = 0x42494458; // "BIDX"
+    private static final int VERSION = 1;
+
+    private static final int BLOCK_CHARS = 64 * 1024; // 1ブロックの目安（文字数）
+    private static final int QUEUE_BLOCKS = 16;        // 圧縮待ちのブロック数の上限
+
+    private static final DateTimeFormatter KEY_FMT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private BlockGzipLog() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.BlockGzipLog <file.log.gz> [--from \"yyyy-MM-dd HH:mm:ss\"] [--to \"yyyy-MM-dd HH:mm:ss\"]");
+            System.exit(2);
+        }
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if ("--from".equals(args[i])) from = key(args[i + 1]);
+            else if ("--to".equals(args[i])) to = key(args[i + 1]);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        readRange(Paths.get(args[0]), from, to, out);
+        out.flush();
+    }
+
+    /** <file> に対応するインデックス <file>.bidx */
+    public static Path indexPathOf(Path gz) {
+        return gz.resolveSibling(gz.getFileName() + ".bidx");
+    }
+
+    /** "yyyy-MM-dd HH:mm:ss"（区切りは '-' または '/'）をインデックスのキーに */
+    public static long key(String abs) {
+        return Long.parseLong(LocalDateTime.parse(abs.trim().replace('/', '-'),
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).format(KEY_FMT));
+    }
+
+    // ====== 書き込み ======
+
+    /**
+     * ブロック圧縮して書く Writer。close() で残りを書き出し、インデックスを保存する。
+     * flush() ではブロックを切らない（小さなブロックが増えるため）。
+     */
+    public static Output open(Path gz) throws IOException {
+        Files.createDirectories(gz.getParent() != null ? gz.getParent() : Paths.get("."));
+        return new Output(gz);
+    }
+
+    public static final class Output extends Writer {
+        private static final char[] END = new char[0]; // 圧縮スレッドへの終了通知
+
+        private final Path path;
+        private final FileChannel ch;
+        private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        private final Thread compressor;
+        private volatile Throwable failure;
+
+        private final StringBuilder pending = new StringBuilder(BLOCK_CHARS + 1024);
+        private int scanned; // pending のうち改行がないと分かっている長さ
+        private boolean closed;
+        private boolean cutAny; // ブロックを1つでも渡した
+
+        // 圧縮スレッドだけが触る
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOut = new DataOutputStream(index);
+        private int blocks;
+        private long offset, rawOffset;
+
+        private Output(Path path) throws IOException {
+            this.path = path;
+            this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.compressor = new Thread(this::compressLoop, "gzip-block-" + path.getFileName());
+            this.compressor.setDaemon(true);
+            this.compressor.start();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            checkFailure();
+            pending.append(cbuf, off, len);
+            if (pending.length() >= BLOCK_CHARS) cut(false);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            checkFailure();
+            pending.append(str, off, off + len);
+            if (pending.length() >= BLOCK_CHARS) cut(false);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkFailure();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                // 空のログでも空のメンバーを1つ書く（0 バイトのファイルは gzip として読めない）
+                if (pending.length() > 0 || !cutAny) cut(true);
+                put(END);
+                compressor.join();
+            } catch (InterruptedException e) {
+                compressor.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("圧縮の完了待ちで割り込まれました");
+            } finally {
+                ch.close();
+            }
+            checkFailure();
+            writeIndex();
+        }
+
+        // 最後の改行までを1ブロックとして渡す（all なら残り全部）
+        private void cut(boolean all) throws IOException {
+            int end;
+            if (all) {
+                end = pending.length();
+            } else {
+                end = -1;
+                for (int i = pending.length() - 1; i >= scanned; i--) {
+                    if (pending.charAt(i) == '\n') { end = i + 1; break; }
+                }
+                if (end < 0) { // 1行がブロックより長い：改行が来るまでためる
+                    scanned = pending.length();
+                    return;
+                }
+            }
+            char[] block = new char[end];
+            pending.getChars(0, end, block, 0);
+            pending.delete(0, end);
+            scanned = 0;
+            put(block);
+            cutAny = true;
+        }
+
+        private void put(char[] block) throws IOException {
+            try {
+                queue.put(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("圧縮待ちで割り込まれました");
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable e = failure;
+            if (e == null) return;
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("ブロックの圧縮に失敗しました: " + path, e);
+        }
+
+        // ---- 圧縮スレッド ----
+
+        private void compressLoop() {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            CRC32 crc = new CRC32();
+            byte[] out = new byte[64 * 1024];
+            try {
+                while (true) {
+                    char[] block = queue.take();
+                    if (block == END) return;
+                    byte[] raw = new String(block).getBytes(StandardCharsets.UTF_8);
+                    long[] range = keyRange(block);
+
+                    // gzip メンバー：ヘッダー + raw deflate + CRC32/ISIZE
+                    ByteArrayOutputStream member = new ByteArrayOutputStream(raw.length / 4 + 64);
+                    member.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+                    deflater.reset();
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(out);
+                        member.write(out, 0, n);
+                    }
+                    crc.reset();
+                    crc.update(raw);
+                    writeIntLE(member, (int) crc.getValue());
+                    writeIntLE(member, raw.length);
+
+                    byte[] bytes = member.toByteArray();
+                    ByteBuffer bb = ByteBuffer.wrap(bytes);
+                    while (bb.hasRemaining()) ch.write(bb);
+
+                    indexOut.writeLong(offset);
+                    indexOut.writeInt(bytes.length);
+                    indexOut.writeLong(rawOffset);
+                    indexOut.writeLong(range[0]);
+                    indexOut.writeLong(range[1]);
+                    blocks++;
+                    offset += bytes.length;
+                    rawOffset += raw.length;
+                }
+            } catch (Throwable e) {
+                failure = e;
+                queue.clear(); // 書き込み側を待たせない
+                while (true) { // 以降は受け取って捨てる（END まで）
+                    try {
+                        if (queue.take() == END) return;
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void writeIndex() throws IOException {
+            Path idx = indexPathOf(path);
+            Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(blocks);
+                out.writeInt(0);
+                index.writeTo(out);
+            }
+            try {
+                Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    // 固定の gzip ヘッダー（deflate、フラグなし、時刻 0、OS 不明）
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static void writeIntLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    // ブロック内の各行の ABS 列から、キーの最小・最大（キーのある行がなければ {MAX, MIN}）
+    private static long[] keyRange(char[] b) {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        int ls = 0;
+        while (ls < b.length) {
+            int le = ls;
+            while (le < b.length && b[le] != '\n') le++;
+            long k = lineKey(b, ls, le);
+            if (k >= 0) {
+                if (k < min) min = k;
+                if (k > max) max = k;
+            }
+            ls = le + 1;
+        }
+        return new long[] {min, max};
+    }
+
+    // "REL,yyyy?MM?dd HH:mm:ss,..." の ABS をキーに。読めなければ -1
+    private static long lineKey(char[] b, int from, int to) {
+        int p = from;
+        while (p < to && b[p] != ',') p++;
+        p++;
+        if (p + 19 > to) return -1;
+        long k = 0;
+        for (int i = 0; i < 19; i++) {
+            if (i == 4 || i == 7 || i == 10 || i == 13 || i == 16) continue; // 区切り
+            char c = b[p + i];
+            if (c < '0' || c > '9') return -1;
+            k = k * 10 + (c - '0');
+        }
+        return k;
+    }
+
+    // ====== 読み込み ======
+
+    /**
+     * ABS が [fromKey, toKey] の行だけを out に書く。範囲と重なるブロックだけを展開する。
+     */
+    public static void readRange(Path gz, long fromKey, long toKey, Writer out) throws IOException {
+        try (FileChannel ch = FileChannel.open(gz, StandardOpenOption.READ);
+             DataInputStream idx = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPathOf(gz))))) {
+            if (idx.readInt() != MAGIC || idx.readInt() != VERSION) throw new IOException("インデックスの形式が違います: " + gz);
+            int count = idx.readInt();
+            idx.readInt();
+            for (int i = 0; i < count; i++) {
+                long off = idx.readLong();
+                int len = idx.readInt();
+                idx.readLong(); // rawOffset
+                long min = idx.readLong();
+                long max = idx.readLong();
+                if (max < fromKey || min > toKey) continue;
+
+                ByteBuffer bb = ByteBuffer.allocate(len);
+                while (bb.hasRemaining() && ch.read(bb, off + bb.position()) >= 0) { }
+                char[] text;
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bb.array(), 0, bb.position()))) {
+                    text = new String(in.readAllBytes(), StandardCharsets.UTF_8).toCharArray();
+                }
+                int ls = 0;
+                while (ls < text.length) {
+                    int le = ls;
+                    while (le < text.length && text[le] != '\n') le++;
+                    long k = lineKey(text, ls, le);
+                    if (k >= fromKey && k <= toKey) {
+                        out.write(text, ls, Math.min(text.length, le + 1) - ls);
+                    }
+                    ls = le + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * 展開後のバイト位置 rawOffset から始まる1行（改行は含まない）。その位置を含むブロックだけを展開する
+     * （ブロックは行の途中で切らないので、行は1つのブロックに収まる）。
+     */
+    public static String lineAt(Path gz, long rawOffset) throws IOException {
+        long off = -1, raw = 0;
+        int len = 0;
+        try (DataInputStream idx = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPathOf(gz))))) {
+            if (idx.readInt() != MAGIC || idx.readInt() != VERSION) throw new IOException("インデックスの形式が違います: " + gz);
+            int count = idx.readInt();
+            idx.readInt();
+            for (int i = 0; i < count; i++) {
+                long o = idx.readLong();
+                int l = idx.readInt();
+                long r = idx.readLong();
+                idx.readLong();
+                idx.readLong();
+                if (r > rawOffset) break;
+                off = o; len = l; raw = r;
+            }
+        }
+        if (off < 0) return "";
+        byte[] block;
+        try (FileChannel ch = FileChannel.open(gz, StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate(len);
+            while (bb.hasRemaining() && ch.read(bb, off + bb.position()) >= 0) { }
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bb.array(), 0, bb.position()))) {
+                block = in.readAllBytes();
+            }
+        }
+        int from = (int) Math.min(rawOffset - raw, block.length), to = from;
+        while (to < block.length && block[to] != '\n') to++;
+        return new String(block, from, to - from, StandardCharsets.UTF_8);
+    }
+}
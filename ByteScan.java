@@ -0,0 +1,34 @@
+package com.demo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * バイト配列の高速探索。8バイトずつ long として読み、SWAR で一致バイトを探す。
+ */
+public final class ByteScan {
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES  = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private ByteScan() {} // ユーティリティクラス
+
+    /** a[from, to) で b が最初に現れる位置。なければ -1 */
+    public static int indexOf(byte[] a, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long w = (long) LONGS.get(a, i) ^ pattern; // 一致したバイトが 0 になる
+            long t = (w - ONES) & ~w & HIGHS;
+            // 最下位のフラグは必ず本物の 0 バイト（誤検出はそれより上位にしか出ない）
+            if (t != 0) return i + (Long.numberOfTrailingZeros(t) >>> 3);
+        }
+        for (; i < to; i++) {
+            if (a[i] == b) return i;
+        }
+        return -1;
+    }
+}
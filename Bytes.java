@@ -0,0 +1,73 @@
+package com.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 伸びるバイト列（ビッグエンディアン、可変長整数）。ColumnarLog と CommandIndex の書き込みで使う。
+ * 可変長整数は 7 ビットずつ下位から、続きがあれば最上位ビットを立てる。符号付きの差は zigzag で正にしてから書く。
+ */
+final class Bytes {
+    byte[] b = new byte[4096];
+    int size;
+
+    private void ensure(int n) {
+        if (size + n > b.length) b = Arrays.copyOf(b, Math.max(b.length * 2, size + n));
+    }
+
+    void put(byte[] src, int off, int len) {
+        ensure(len);
+        System.arraycopy(src, off, b, size, len);
+        size += len;
+    }
+
+    void putInt(int v) {
+        ensure(4);
+        for (int s = 24; s >= 0; s -= 8) b[size++] = (byte) (v >>> s);
+    }
+
+    void putLong(long v) {
+        ensure(8);
+        for (int s = 56; s >= 0; s -= 8) b[size++] = (byte) (v >>> s);
+    }
+
+    void varLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            b[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[size++] = (byte) v;
+    }
+
+    /** position から書いて空にする。書いたバイト数を返す */
+    int writeTo(FileChannel ch, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, 0, size);
+        while (bb.hasRemaining()) ch.write(bb, position + bb.position());
+        int n = size;
+        size = 0;
+        return n;
+    }
+
+    // ====== 読み込み側 ======
+
+    /** buf の p[0] から可変長整数を1つ読み、p[0] を進める */
+    static long varLong(ByteBuffer buf, int[] p) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = buf.get(p[0]++);
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0) return v;
+        }
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
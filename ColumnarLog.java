@@ -0,0 +1,625 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * 変換結果（REL,ABS,TAG,内容 の行）を列ごとにまとめて保存する形式（<name>.log.col）と、その読み込み。
+ * テキストでは毎行くり返される時刻の文字列・タグ・プロンプトを、差分の可変長整数と辞書の番号にする。
+ *
+ * 4096 行ごとのブロックに、次の列をこの順に並べる：
+ *   ABS … 直前の行との差（zigzag 可変長整数）
+ *   REL … 同上
+ *   TAG … (タグの辞書番号 << 1) | 行末が CRLF か。番号 0 は形式どおりでない行（内容に行全体を持つ）
+ *   プロンプト … 辞書番号（0 はなし）。内容の先頭のプロンプト（PromptRecognizer）を辞書に入れる
+ *   内容 … UTF-8 のバイト数（可変長整数）+ バイト列
+ * 時刻は ABS に .SSS があればミリ秒、なければ秒を単位にする（書かれている精度以上は持たない）。
+ * 末尾に辞書と、ブロックごとの位置・各列の長さ・最初の値・ABS の最小・最大を書くので、
+ * 時間範囲を指定すると範囲と重なるブロックだけを読む。時刻の列だけが要る集計では内容の列に触れない。
+ *
+ * 書き込みでは、読み取った時刻から描画し直した文字列が元と一致する行だけを列に分ける。
+ * 一致しない行（ヘッダーなど）は番号 0 のタグで行全体を持つので、読み出したテキストは元と同じになる。
+ * ABS は出力に書かれた現地時刻のまま扱う（BlockGzipLog と同じ）。
+ *
+ * 使い方: java com.demo.ColumnarLog pack <in.log> <out.log.col>
+ *         java com.demo.ColumnarLog cat <file.log.col> [--from "yyyy-MM-dd HH:mm:ss"] [--to "yyyy-MM-dd HH:mm:ss"]
+ *         java com.demo.ColumnarLog stats <file.log.col>
+ */
+public final class ColumnarLog {
+
+    // ファイル：ヘッダー（magic, version）、ブロック…、末尾情報、末尾情報の位置(long) + magic(int)
+    private static final int MAGIC   = 0x434F4C53; // "COLS"
+    private static final int VERSION = 1;
+    private static final int HEADER  = 8;
+    private static final int TRAILER = 12;
+
+    private static final int BLOCK_ROWS    = 4096;
+    private static final int BLOCK_CONTENT = 256 * 1024; // 内容の列がこれを超えたらブロックを切る
+    private static final int MAX_DICT      = 1 << 16;    // 辞書の上限（超えたら内容に含めたまま）
+    private static final int MAX_PROMPT    = 256;        // 辞書に入れるプロンプトの最大長
+    private static final int COLUMNS       = 5;
+    private static final int ABS = 0, REL = 1, TAG = 2, PROMPT = 3, CONTENT = 4;
+
+    private static final DateTimeFormatter ABS_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private ColumnarLog() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: java com.demo.ColumnarLog pack <in.log> <out.log.col>");
+            System.err.println("      java com.demo.ColumnarLog cat <file.log.col> [--from \"yyyy-MM-dd HH:mm:ss\"] [--to \"yyyy-MM-dd HH:mm:ss\"]");
+            System.err.println("      java com.demo.ColumnarLog stats <file.log.col>");
+            System.exit(2);
+        }
+        if ("pack".equals(args[0]) && args.length >= 3) {
+            try (Reader in = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8);
+                 Writer out = open(Paths.get(args[2]))) {
+                in.transferTo(out);
+            }
+            System.out.printf(Locale.ROOT, "%d → %d バイト%n", Files.size(Paths.get(args[1])), Files.size(Paths.get(args[2])));
+        } else if ("cat".equals(args[0])) {
+            long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+            for (int i = 2; i + 1 < args.length; i += 2) {
+                if ("--from".equals(args[i])) from = nanos(args[i + 1]);
+                else if ("--to".equals(args[i])) to = nanos(args[i + 1]) + 999_999_999L;
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            try (Input in = Input.open(Paths.get(args[1]))) {
+                in.render(from, to, out);
+            }
+            out.flush();
+        } else if ("stats".equals(args[0])) {
+            try (Input in = Input.open(Paths.get(args[1]))) {
+                in.printStats(System.out);
+            }
+        } else {
+            System.err.println("不明なコマンド: " + args[0]);
+            System.exit(2);
+        }
+    }
+
+    /** "yyyy-MM-dd HH:mm:ss"（区切りは '-' または '/'）を、現地時刻のまま 1970-01-01 00:00:00 からのナノ秒に */
+    public static long nanos(String abs) {
+        return LocalDateTime.parse(abs.trim().replace('/', '-'), ABS_FMT).toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L;
+    }
+
+    // ====== 書き込み ======
+
+    /** 列形式で書く Writer。close() で残りのブロックと末尾情報を書く */
+    public static Output open(Path path) throws IOException {
+        Files.createDirectories(path.getParent() != null ? path.getParent() : Paths.get("."));
+        return new Output(path);
+    }
+
+    public static final class Output extends Writer {
+        private final FileChannel ch;
+        private final StringBuilder line = new StringBuilder(256);
+        private final PromptRecognizer prompts = new PromptRecognizer();
+        private boolean closed;
+
+        // 時刻の形式（最初に読めた行で決める）
+        private boolean formatKnown;
+        private char dateSep;
+        private boolean millis;
+
+        private final Map<String, Integer> tags = new HashMap<>(), promptIds = new HashMap<>();
+        private final List<String> tagList = new ArrayList<>(), promptList = new ArrayList<>();
+
+        // 書きかけのブロック
+        private final Bytes[] cols = new Bytes[COLUMNS];
+        private int rows;
+        private long firstAbs, firstRel, prevAbs, prevRel, minAbs = Long.MAX_VALUE, maxAbs = Long.MIN_VALUE;
+        private long position = HEADER;
+        private final Bytes index = new Bytes();
+        private int blocks;
+
+        // 行の解析結果（使い回す）
+        private final long[] ticks = new long[2];
+        private final StringBuilder check = new StringBuilder(32);
+
+        private Output(Path path) throws IOException {
+            this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            for (int i = 0; i < COLUMNS; i++) cols[i] = new Bytes();
+            Bytes head = new Bytes();
+            head.putInt(MAGIC);
+            head.putInt(VERSION);
+            head.writeTo(ch, 0);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len, s = off;
+            for (int i = off; i < end; i++) {
+                if (cbuf[i] == '\n') {
+                    line.append(cbuf, s, i - s);
+                    row();
+                    s = i + 1;
+                }
+            }
+            line.append(cbuf, s, end - s);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int end = off + len, s = off;
+            for (int i = off; i < end; i++) {
+                if (str.charAt(i) == '\n') {
+                    line.append(str, s, i);
+                    row();
+                    s = i + 1;
+                }
+            }
+            line.append(str, s, end);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (c == '\n') row();
+            else line.append((char) c);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                boolean unterminated = line.length() > 0;
+                if (unterminated) row();
+                if (rows > 0) cutBlock();
+                writeFooter(unterminated);
+            } finally {
+                ch.close();
+            }
+        }
+
+        // line（改行は除いたもの）を1行として足す
+        private void row() throws IOException {
+            int n = line.length();
+            boolean crlf = n > 0 && line.charAt(n - 1) == '\r';
+            if (crlf) line.setLength(--n);
+
+            int c1 = indexOf(line, ',', 0), c2 = indexOf(line, ',', c1 + 1), c3 = indexOf(line, ',', c2 + 1);
+            int tag = 0;
+            if (c3 > 0 && parse(c1, c2)) tag = dict(tags, tagList, line.substring(c2 + 1, c3));
+            if (tag == 0) {
+                // 形式どおりでない行：時刻は直前の行のまま
+                ticks[0] = prevAbs;
+                ticks[1] = prevRel;
+            }
+            if (rows == 0) {
+                firstAbs = prevAbs = ticks[0];
+                firstRel = prevRel = ticks[1];
+            }
+            cols[ABS].varLong(Bytes.zigzag(ticks[0] - prevAbs));
+            cols[REL].varLong(Bytes.zigzag(ticks[1] - prevRel));
+            prevAbs = ticks[0];
+            prevRel = ticks[1];
+            if (tag != 0) {
+                minAbs = Math.min(minAbs, ticks[0]);
+                maxAbs = Math.max(maxAbs, ticks[0]);
+            }
+            cols[TAG].varLong(((long) tag << 1) | (crlf ? 1 : 0));
+
+            int from = tag == 0 ? 0 : c3 + 1, prompt = 0;
+            if (tag != 0) {
+                String content = line.substring(from);
+                int k = prompts.split(content);
+                if (k > 0 && k <= MAX_PROMPT) {
+                    prompt = dict(promptIds, promptList, content.substring(0, k));
+                    if (prompt != 0) from += k;
+                }
+            }
+            cols[PROMPT].varLong(prompt);
+            byte[] b = line.substring(from).getBytes(StandardCharsets.UTF_8);
+            cols[CONTENT].varLong(b.length);
+            cols[CONTENT].put(b, 0, b.length);
+
+            line.setLength(0);
+            if (++rows >= BLOCK_ROWS || cols[CONTENT].size >= BLOCK_CONTENT) cutBlock();
+        }
+
+        // REL と ABS を ticks に読み、描画し直して元と一致すれば true
+        private boolean parse(int c1, int c2) {
+            if (c1 < 0 || c2 < 0) return false;
+            if (!formatKnown) {
+                // yyyy?MM?dd HH:mm:ss[.SSS]
+                int len = c2 - c1 - 1;
+                if (len != 19 && len != 23) return false;
+                dateSep = line.charAt(c1 + 5);
+                millis = len == 23;
+            }
+            long rel = parseRel(line, 0, c1, millis);
+            long abs = parseAbs(line, c1 + 1, c2, millis);
+            if (rel == Long.MIN_VALUE || abs == Long.MIN_VALUE) return false;
+            check.setLength(0);
+            renderRel(check, rel, millis);
+            if (!sameText(check, line, 0, c1)) return false;
+            check.setLength(0);
+            renderAbs(check, abs, dateSep, millis);
+            if (!sameText(check, line, c1 + 1, c2)) return false;
+            formatKnown = true;
+            ticks[0] = abs;
+            ticks[1] = rel;
+            return true;
+        }
+
+        private static int dict(Map<String, Integer> ids, List<String> list, String s) {
+            Integer id = ids.get(s);
+            if (id != null) return id;
+            if (list.size() >= MAX_DICT) return 0;
+            list.add(s);
+            ids.put(s, list.size());
+            return list.size();
+        }
+
+        private void cutBlock() throws IOException {
+            index.putLong(position);
+            index.putInt(rows);
+            for (Bytes c : cols) index.putInt(c.size);
+            index.putLong(firstAbs);
+            index.putLong(firstRel);
+            index.putLong(minAbs);
+            index.putLong(maxAbs);
+            for (Bytes c : cols) position += c.writeTo(ch, position);
+            blocks++;
+            rows = 0;
+            minAbs = Long.MAX_VALUE;
+            maxAbs = Long.MIN_VALUE;
+        }
+
+        private void writeFooter(boolean unterminated) throws IOException {
+            long footer = position;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.out(ch, position)))) {
+                out.writeBoolean(millis);
+                out.writeChar(formatKnown ? dateSep : '-');
+                out.writeBoolean(unterminated);
+                out.writeInt(tagList.size());
+                for (String t : tagList) writeString(out, t);
+                out.writeInt(promptList.size());
+                for (String p : promptList) writeString(out, p);
+                out.writeInt(blocks);
+                out.write(index.b, 0, index.size);
+                out.writeLong(footer);
+                out.writeInt(MAGIC);
+            }
+        }
+    }
+
+    // FileChannel の位置指定書き込みを OutputStream に（close しても channel は閉じない）
+    private static final class Channels extends OutputStream {
+        private final FileChannel ch;
+        private long pos;
+        private Channels(FileChannel ch, long pos) { this.ch = ch; this.pos = pos; }
+        static OutputStream out(FileChannel ch, long pos) { return new Channels(ch, pos); }
+        @Override public void write(int b) throws IOException { write(new byte[] {(byte) b}, 0, 1); }
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            while (bb.hasRemaining()) pos += ch.write(bb, pos);
+        }
+    }
+
+    // ====== 読み込み ======
+
+    /** 1行分の値。render で元のテキストに戻る */
+    public interface RowVisitor {
+        /** absNanos・relNanos は ABS・REL のナノ秒（ABS は現地時刻のまま）。形式どおりでない行は tag が null で、content に行全体 */
+        void row(long absNanos, long relNanos, String tag, String prompt, String content) throws IOException;
+    }
+
+    public static final class Input implements Closeable {
+        private final Path path;
+        private final FileChannel ch;
+        private final ByteBuffer whole; // 2GB 未満なら全体をマップ
+        private final boolean millis, unterminated;
+        private final char dateSep;
+        private final long tickNanos;
+        private final String[] tags, promptList;
+        private final int blocks;
+        private final long[] offset, firstAbs, firstRel, minAbs, maxAbs;
+        private final int[] rows;
+        private final int[][] colLen;
+
+        private Input(Path path) throws IOException {
+            this.path = path;
+            this.ch = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = ch.size();
+                if (size < HEADER + TRAILER) throw new IOException("列形式のログではありません: " + path);
+                ByteBuffer h = ByteBuffer.allocate(HEADER), t = ByteBuffer.allocate(TRAILER);
+                while (h.hasRemaining() && ch.read(h, h.position()) > 0) { }
+                while (t.hasRemaining() && ch.read(t, size - TRAILER + t.position()) > 0) { }
+                if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION || t.getInt(8) != MAGIC) {
+                    throw new IOException("列形式のログではありません: " + path);
+                }
+                long footer = t.getLong(0);
+                whole = size <= Integer.MAX_VALUE ? ch.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+                ByteBuffer fb = ByteBuffer.allocate((int) (size - TRAILER - footer));
+                while (fb.hasRemaining() && ch.read(fb, footer + fb.position()) > 0) { }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(fb.array()));
+                millis = in.readBoolean();
+                dateSep = in.readChar();
+                unterminated = in.readBoolean();
+                tickNanos = millis ? 1_000_000L : 1_000_000_000L;
+                tags = new String[in.readInt() + 1];
+                for (int i = 1; i < tags.length; i++) tags[i] = readString(in);
+                promptList = new String[in.readInt() + 1];
+                promptList[0] = "";
+                for (int i = 1; i < promptList.length; i++) promptList[i] = readString(in);
+                blocks = in.readInt();
+                offset = new long[blocks];
+                rows = new int[blocks];
+                colLen = new int[blocks][COLUMNS];
+                firstAbs = new long[blocks];
+                firstRel = new long[blocks];
+                minAbs = new long[blocks];
+                maxAbs = new long[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    offset[i] = in.readLong();
+                    rows[i] = in.readInt();
+                    for (int c = 0; c < COLUMNS; c++) colLen[i][c] = in.readInt();
+                    firstAbs[i] = in.readLong();
+                    firstRel[i] = in.readLong();
+                    minAbs[i] = in.readLong();
+                    maxAbs[i] = in.readLong();
+                }
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        }
+
+        public static Input open(Path path) throws IOException {
+            return new Input(path);
+        }
+
+        public long rows() {
+            long n = 0;
+            for (int r : rows) n += r;
+            return n;
+        }
+
+        // ブロック i の列 c（先頭を 0 とするバッファ）
+        private ByteBuffer column(int i, int c) throws IOException {
+            long off = offset[i];
+            for (int k = 0; k < c; k++) off += colLen[i][k];
+            int len = colLen[i][c];
+            if (whole != null) return whole.slice((int) off, len);
+            return ch.map(FileChannel.MapMode.READ_ONLY, off, len);
+        }
+
+        private boolean overlaps(int i, long fromTicks, long toTicks) {
+            return maxAbs[i] >= fromTicks && minAbs[i] <= toTicks;
+        }
+
+        /**
+         * ABS が [fromNanos, toNanos] の行の ABS（ナノ秒）だけを順に渡す。ABS の列以外は読まない。
+         */
+        public void times(long fromNanos, long toNanos, LongConsumer absNanos) throws IOException {
+            long lo = Math.floorDiv(fromNanos, tickNanos), hi = Math.floorDiv(toNanos, tickNanos);
+            for (int i = 0; i < blocks; i++) {
+                if (!overlaps(i, lo, hi)) continue;
+                ByteBuffer abs = column(i, ABS);
+                int[] p = {0};
+                long a = firstAbs[i];
+                for (int r = 0; r < rows[i]; r++) {
+                    a += Bytes.unzigzag(Bytes.varLong(abs, p));
+                    if (a >= lo && a <= hi) absNanos.accept(a * tickNanos);
+                }
+            }
+        }
+
+        /**
+         * ABS が [fromNanos, toNanos] の行を順に渡す（範囲が全体なら形式どおりでない行も含む）。
+         */
+        public void scan(long fromNanos, long toNanos, RowVisitor v) throws IOException {
+            boolean all = fromNanos == Long.MIN_VALUE && toNanos == Long.MAX_VALUE;
+            long lo = Math.floorDiv(fromNanos, tickNanos), hi = Math.floorDiv(toNanos, tickNanos);
+            for (int i = 0; i < blocks; i++) {
+                if (!all && !overlaps(i, lo, hi)) continue;
+                ByteBuffer abs = column(i, ABS), rel = column(i, REL), tag = column(i, TAG),
+                        prompt = column(i, PROMPT), content = column(i, CONTENT);
+                int[] pa = {0}, pr = {0}, pt = {0}, pp = {0}, pc = {0};
+                long a = firstAbs[i], r = firstRel[i];
+                byte[] buf = new byte[256];
+                for (int k = 0; k < rows[i]; k++) {
+                    a += Bytes.unzigzag(Bytes.varLong(abs, pa));
+                    r += Bytes.unzigzag(Bytes.varLong(rel, pr));
+                    int t = (int) (Bytes.varLong(tag, pt) >>> 1);
+                    int pid = (int) Bytes.varLong(prompt, pp);
+                    int len = (int) Bytes.varLong(content, pc);
+                    boolean in = all || (t != 0 && a >= lo && a <= hi);
+                    if (!in) {
+                        pc[0] += len;
+                        continue;
+                    }
+                    if (len > buf.length) buf = new byte[Math.max(len, buf.length * 2)];
+                    content.get(pc[0], buf, 0, len);
+                    pc[0] += len;
+                    v.row(a * tickNanos, r * tickNanos, t == 0 ? null : tags[t], promptList[pid],
+                            new String(buf, 0, len, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        /**
+         * ABS が [fromNanos, toNanos] の行を元のテキストに戻して out に書く。範囲が全体なら元のファイルと同じ内容になる。
+         */
+        public void render(long fromNanos, long toNanos, Writer out) throws IOException {
+            boolean all = fromNanos == Long.MIN_VALUE && toNanos == Long.MAX_VALUE;
+            long total = all ? rows() : -1;
+            long[] written = {0};
+            StringBuilder sb = new StringBuilder(256);
+            // CRLF は TAG 列にあるので、ここではブロックを直接読む
+            long lo = Math.floorDiv(fromNanos, tickNanos), hi = Math.floorDiv(toNanos, tickNanos);
+            for (int i = 0; i < blocks; i++) {
+                if (!all && !overlaps(i, lo, hi)) continue;
+                ByteBuffer abs = column(i, ABS), rel = column(i, REL), tag = column(i, TAG),
+                        prompt = column(i, PROMPT), content = column(i, CONTENT);
+                int[] pa = {0}, pr = {0}, pt = {0}, pp = {0}, pc = {0};
+                long a = firstAbs[i], r = firstRel[i];
+                byte[] buf = new byte[256];
+                for (int k = 0; k < rows[i]; k++) {
+                    a += Bytes.unzigzag(Bytes.varLong(abs, pa));
+                    r += Bytes.unzigzag(Bytes.varLong(rel, pr));
+                    long tv = Bytes.varLong(tag, pt);
+                    int t = (int) (tv >>> 1);
+                    int pid = (int) Bytes.varLong(prompt, pp);
+                    int len = (int) Bytes.varLong(content, pc);
+                    if (!all && (t == 0 || a < lo || a > hi)) {
+                        pc[0] += len;
+                        continue;
+                    }
+                    if (len > buf.length) buf = new byte[Math.max(len, buf.length * 2)];
+                    content.get(pc[0], buf, 0, len);
+                    pc[0] += len;
+
+                    sb.setLength(0);
+                    if (t != 0) {
+                        renderRel(sb, r, millis);
+                        sb.append(',');
+                        renderAbs(sb, a, dateSep, millis);
+                        sb.append(',').append(tags[t]).append(',').append(promptList[pid]);
+                    }
+                    sb.append(new String(buf, 0, len, StandardCharsets.UTF_8));
+                    if ((tv & 1) != 0) sb.append('\r');
+                    if (++written[0] != total || !unterminated) sb.append('\n');
+                    out.append(sb);
+                }
+            }
+        }
+
+        void printStats(PrintStream out) throws IOException {
+            long[] sum = new long[COLUMNS];
+            for (int i = 0; i < blocks; i++) for (int c = 0; c < COLUMNS; c++) sum[c] += colLen[i][c];
+            out.printf(Locale.ROOT, "%s: %d 行、%d ブロック、%d バイト（ABS %d / REL %d / TAG %d / プロンプト %d / 内容 %d）、"
+                            + "タグ %d 種、プロンプト %d 種、時刻の単位 %s%n",
+                    path, rows(), blocks, Files.size(path), sum[ABS], sum[REL], sum[TAG], sum[PROMPT], sum[CONTENT],
+                    tags.length - 1, promptList.length - 1, millis ? "ミリ秒" : "秒");
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+
+    // ====== 時刻の読み書き（単位は秒、millis ならミリ秒） ======
+
+    // H+:mm:ss[.SSS]。形式が違えば MIN_VALUE
+    private static long parseRel(CharSequence s, int from, int to, boolean millis) {
+        int end = millis ? to - 4 : to;
+        if (end - from < 8 || s.charAt(end - 3) != ':' || s.charAt(end - 6) != ':') return Long.MIN_VALUE;
+        long h = num(s, from, end - 6), m = num(s, end - 5, end - 3), sec = num(s, end - 2, end);
+        if (h < 0 || m < 0 || sec < 0) return Long.MIN_VALUE;
+        long v = h * 3600 + m * 60 + sec;
+        if (!millis) return v;
+        if (s.charAt(to - 4) != '.') return Long.MIN_VALUE;
+        long ms = num(s, to - 3, to);
+        return ms < 0 ? Long.MIN_VALUE : v * 1000 + ms;
+    }
+
+    // yyyy?MM?dd HH:mm:ss[.SSS]（現地時刻のまま 1970 年からの単位数）
+    private static long parseAbs(CharSequence s, int from, int to, boolean millis) {
+        if (to - from != (millis ? 23 : 19)) return Long.MIN_VALUE;
+        long y = num(s, from, from + 4), mo = num(s, from + 5, from + 7), d = num(s, from + 8, from + 10);
+        long h = num(s, from + 11, from + 13), mi = num(s, from + 14, from + 16), sec = num(s, from + 17, from + 19);
+        if ((y | mo | d | h | mi | sec) < 0 || mo < 1 || mo > 12 || d < 1 || d > 31) return Long.MIN_VALUE;
+        long v;
+        try {
+            v = LocalDate.of((int) y, (int) mo, (int) d).toEpochDay() * 86400L + h * 3600 + mi * 60 + sec;
+        } catch (java.time.DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+        if (!millis) return v;
+        long ms = num(s, from + 20, to);
+        return ms < 0 ? Long.MIN_VALUE : v * 1000 + ms;
+    }
+
+    private static long num(CharSequence s, int from, int to) {
+        if (from >= to) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int x = s.charAt(i) - '0';
+            if (x < 0 || x > 9) return -1;
+            v = v * 10 + x;
+        }
+        return v;
+    }
+
+    // TimestampRenderer と同じ描画（時間は2桁以上）
+    private static void renderRel(StringBuilder sb, long t, boolean millis) {
+        long sec = millis ? Math.floorDiv(t, 1000) : t;
+        long h = sec / 3600;
+        if (h < 10) sb.append('0');
+        sb.append(h).append(':');
+        pad2(sb, (sec % 3600) / 60).append(':');
+        pad2(sb, sec % 60);
+        if (millis) pad3(sb.append('.'), Math.floorMod(t, 1000));
+    }
+
+    private static void renderAbs(StringBuilder sb, long t, char sep, boolean millis) {
+        long sec = millis ? Math.floorDiv(t, 1000) : t;
+        LocalDate d = LocalDate.ofEpochDay(Math.floorDiv(sec, 86400));
+        long tod = Math.floorMod(sec, 86400);
+        int y = d.getYear();
+        if (y >= 0 && y < 1000) sb.append(y < 10 ? "000" : y < 100 ? "00" : "0");
+        sb.append(y).append(sep);
+        pad2(sb, d.getMonthValue()).append(sep);
+        pad2(sb, d.getDayOfMonth()).append(' ');
+        pad2(sb, tod / 3600).append(':');
+        pad2(sb, (tod % 3600) / 60).append(':');
+        pad2(sb, tod % 60);
+        if (millis) pad3(sb.append('.'), Math.floorMod(t, 1000));
+    }
+
+    private static StringBuilder pad2(StringBuilder sb, long v) {
+        if (v < 10) sb.append('0');
+        return sb.append(v);
+    }
+
+    private static void pad3(StringBuilder sb, long v) {
+        if (v < 100) sb.append('0');
+        if (v < 10) sb.append('0');
+        sb.append(v);
+    }
+
+    private static boolean sameText(CharSequence a, CharSequence b, int from, int to) {
+        if (a.length() != to - from) return false;
+        for (int i = 0; i < a.length(); i++) if (a.charAt(i) != b.charAt(from + i)) return false;
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        if (from < 0) return -1;
+        for (int i = from, n = s.length(); i < n; i++) if (s.charAt(i) == c) return i;
+        return -1;
+    }
+
+    // 文字列は UTF-16 のまま保存する（長さの上限なし）
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) throw new EOFException();
+        char[] c = new char[n];
+        for (int i = 0; i < n; i++) c[i] = in.readChar();
+        return new String(c);
+    }
+}
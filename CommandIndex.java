@@ -0,0 +1,878 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 変換済みログ（CommandOnlyExtractor の REL,ABS,AAAAA,<prompt><cmd>）のコマンドを横断して引く転置インデックス。
+ * 「先月どのホストで rm -rf が実行されたか」を、ログを1本ずつ grep せずに調べられる。
+ *
+ * インデックスはディレクトリ1つ：
+ *   index.meta      … セグメントの一覧とセッション表（id、ログのパス・大きさ・更新時刻）。一時ファイルから置き換える
+ *   seg-NNNNNN.cidx … 不変のセグメント。ソート済みの語の辞書と、語ごとのポスティング（ABS, セッション id, 行のバイト位置）
+ * add() したログはメモリにため、ある程度たまったときと commit()/close() でセグメントとして書き出す。
+ * セグメントが増えたら小さいものからまとめる。大きさか更新時刻が変わったログは古い id を削除扱いにして入れ直し
+ * （チェックポイントで追記されたログなど）、削除扱いの id のポスティングはまとめるときに捨てる。
+ *
+ * 語はコマンド部分（プロンプトは PromptRecognizer で外す）を空白や ; | & などで区切って小文字にしたもの。
+ * a=b は a と b も、/bin/rm は rm も語にする。検索は語の AND で、末尾に * を付けると前方一致。
+ * ポスティングは時刻順に 128 件ずつのブロックにしてあり、時間範囲の始まりを含むブロックから読む。
+ * 結果は新しい順に limit 件までなので、新しい側から時間の窓を広げながら読み、足りた時点でやめる。
+ * ABS は出力に書かれた現地時刻のまま扱う（BlockGzipLog と同じ）。.log.gz の位置は展開後のバイト位置。
+ *
+ * 使い方: java com.demo.CommandIndex <indexDir> add <log|dir>...
+ *         java com.demo.CommandIndex <indexDir> query <語|接頭辞*>... [--from "yyyy-MM-dd HH:mm:ss"] [--to "yyyy-MM-dd HH:mm:ss"] [--limit n]
+ *         java com.demo.CommandIndex <indexDir> stats
+ */
+public final class CommandIndex implements Closeable {
+
+    // セグメント：ヘッダー（magic, version, termCount, pad, skipOffset, dictOffset, 最小・最大の ABS）の後に
+    // ポスティング、スキップ表（ブロックごとに lastKey(long) + 位置(long)）、辞書（1語 ENTRY バイト）、語の UTF-8 が続く。
+    // 辞書の1語：語の位置(int) + 長さ(int) + 件数(int) + ブロック数(int) + ポスティングの位置(long)
+    //            + 最初のスキップ番号(long) + 最小の ABS(long)
+    private static final int META_MAGIC = 0x4349444D; // "CIDM"
+    private static final int SEG_MAGIC  = 0x43494458; // "CIDX"
+    private static final int VERSION    = 1;
+    private static final int HEADER     = 48;
+    private static final int ENTRY      = 40;
+    private static final int SKIP       = 16;
+    private static final int BLOCK      = 128;           // ポスティングのブロック（件数）
+
+    private static final long FLUSH_POSTINGS  = 1 << 21; // これだけたまったらセグメントに書き出す
+    private static final int  MAX_SEGMENTS    = 10;      // これを超えたらまとめる
+    private static final long MAX_MERGE_BYTES = 1L << 30; // まとめた結果がこれを超えないようにする（mmap は 2GB 未満）
+    private static final int  MAX_TERM        = 128;     // 語の最大長（文字）
+
+    private static final byte[] TAG = ",AAAAA,".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter ABS_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<SessionEntry> sessions = new ArrayList<>();       // 削除扱いも含む（meta に書く）
+    private final Map<String, SessionEntry> byPath = new HashMap<>();    // 有効なものだけ
+    private final Map<Integer, SessionEntry> byId = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private int nextSegment = 1, nextSession;
+
+    private final Map<String, Postings> pending = new HashMap<>();
+    private long pendingCount;
+    private boolean dirty;
+    private final PromptRecognizer prompts = new PromptRecognizer();
+
+    private CommandIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: java com.demo.CommandIndex <indexDir> add <log|dir>...");
+            System.err.println("      java com.demo.CommandIndex <indexDir> query <語|接頭辞*>... [--from \"yyyy-MM-dd HH:mm:ss\"] [--to \"yyyy-MM-dd HH:mm:ss\"] [--limit n]");
+            System.err.println("      java com.demo.CommandIndex <indexDir> stats");
+            System.exit(2);
+        }
+        try (CommandIndex idx = open(Paths.get(args[0]))) {
+            if ("add".equals(args[1])) {
+                int added = 0;
+                for (int i = 2; i < args.length; i++) {
+                    for (Path log : logs(Paths.get(args[i]))) {
+                        if (idx.add(log)) added++;
+                    }
+                }
+                idx.commit();
+                System.out.println("追加: " + added + " 件");
+            } else if ("query".equals(args[1])) {
+                LocalDateTime from = null, to = null;
+                int limit = 100;
+                StringBuilder q = new StringBuilder();
+                for (int i = 2; i < args.length; i++) {
+                    if ("--from".equals(args[i]) && i + 1 < args.length) from = parseAbs(args[++i]);
+                    else if ("--to".equals(args[i]) && i + 1 < args.length) to = parseAbs(args[++i]);
+                    else if ("--limit".equals(args[i]) && i + 1 < args.length) limit = Integer.parseInt(args[++i]);
+                    else q.append(args[i]).append(' ');
+                }
+                long t0 = System.nanoTime();
+                List<Hit> hits = idx.search(q.toString(), from, to, limit);
+                long t1 = System.nanoTime();
+                PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false, StandardCharsets.UTF_8);
+                for (Hit h : hits) out.println(h.log + ":" + h.offset + ": " + h.line());
+                out.flush();
+                System.err.printf(Locale.ROOT, "%d 件（検索 %.2f ms）%n", hits.size(), (t1 - t0) / 1e6);
+            } else if ("stats".equals(args[1])) {
+                idx.printStats(System.out);
+            } else {
+                System.err.println("不明なコマンド: " + args[1]);
+                System.exit(2);
+            }
+        }
+    }
+
+    // ディレクトリなら配下の .log / .log.gz
+    private static List<Path> logs(Path p) throws IOException {
+        if (!Files.isDirectory(p)) return List.of(p);
+        try (Stream<Path> walk = Files.walk(p)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(f -> f.getFileName().toString().endsWith(".log") || f.getFileName().toString().endsWith(".log.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static LocalDateTime parseAbs(String s) {
+        return LocalDateTime.parse(s.trim().replace('/', '-'), ABS_FMT);
+    }
+
+    /** インデックスを開く（なければ作る） */
+    public static CommandIndex open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        CommandIndex idx = new CommandIndex(dir);
+        idx.loadMeta();
+        return idx;
+    }
+
+    // ====== 追加 ======
+
+    /**
+     * ログを追加する。前回追加したときから大きさも更新時刻も変わっていなければ何もせず false。
+     * 変わっていれば古いポスティングを削除扱いにして入れ直す。
+     */
+    public synchronized boolean add(Path log) throws IOException {
+        Path abs = log.toAbsolutePath().normalize();
+        String key = abs.toString();
+        long size = Files.size(abs);
+        long mtime = Files.getLastModifiedTime(abs).toMillis();
+        SessionEntry old = byPath.get(key);
+        if (old != null && old.size == size && old.mtime == mtime) return false;
+        if (old != null) remove(old);
+
+        SessionEntry s = new SessionEntry(nextSession++, key, size, mtime, false);
+        sessions.add(s);
+        byPath.put(key, s);
+        byId.put(s.id, s);
+        dirty = true;
+        try {
+            indexLog(s.id, abs);
+        } catch (IOException | RuntimeException e) {
+            remove(s); // 途中までのポスティングは削除扱い
+            throw e;
+        }
+        if (pendingCount >= FLUSH_POSTINGS) commit();
+        return true;
+    }
+
+    private void remove(SessionEntry s) {
+        s.deleted = true;
+        deleted.set(s.id);
+        byPath.remove(s.path);
+        byId.remove(s.id);
+        dirty = true;
+    }
+
+    private void indexLog(int id, Path log) throws IOException {
+        try (InputStream raw = Files.newInputStream(log);
+             InputStream in = log.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(raw, 1 << 16) : raw) {
+            byte[] buf = new byte[1 << 16];
+            byte[] line = new byte[256];
+            int len = 0;
+            long pos = 0, lineStart = 0;
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b == '\n') {
+                        indexLine(id, lineStart, line, len);
+                        len = 0;
+                        lineStart = pos + i + 1;
+                    } else {
+                        if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                        line[len++] = b;
+                    }
+                }
+                pos += n;
+            }
+            if (len > 0) indexLine(id, lineStart, line, len);
+        }
+    }
+
+    // REL,ABS,AAAAA,<prompt><cmd> の行だけを拾う（最後の半行の ",AAAAA, " も同じ）
+    private void indexLine(int id, long offset, byte[] b, int len) {
+        int c = 0;
+        while (c < len && b[c] != ',') c++;
+        int t = c + 1 + 19; // ABS は "yyyy-MM-dd HH:mm:ss"
+        if (t + TAG.length > len || !Arrays.equals(b, t, t + TAG.length, TAG, 0, TAG.length)) return;
+        long key = wallSeconds(b, c + 1);
+        if (key == Long.MIN_VALUE) return;
+
+        String text = new String(b, t + TAG.length, len - t - TAG.length, StandardCharsets.UTF_8).trim();
+        int k = prompts.split(text);
+        for (String term : terms(k >= 0 ? text.substring(k) : text)) {
+            pending.computeIfAbsent(term, x -> new Postings()).add(key, id, offset);
+            pendingCount++;
+        }
+    }
+
+    // "yyyy-MM-dd HH:mm:ss"（区切りは '-' または '/'）を、現地時刻のまま 1970-01-01 00:00:00 からの秒に。形式が違えば MIN_VALUE
+    private static long wallSeconds(byte[] b, int p) {
+        int y = digits(b, p, 4), mo = digits(b, p + 5, 2), d = digits(b, p + 8, 2);
+        int h = digits(b, p + 11, 2), mi = digits(b, p + 14, 2), s = digits(b, p + 17, 2);
+        if ((y | mo | d | h | mi | s) < 0 || b[p + 10] != ' ' || b[p + 13] != ':' || b[p + 16] != ':') return Long.MIN_VALUE;
+        if (mo < 1 || mo > 12 || d < 1 || d > YearMonth.of(y, mo).lengthOfMonth() || h > 23 || mi > 59 || s > 59) {
+            return Long.MIN_VALUE;
+        }
+        return LocalDate.of(y, mo, d).toEpochDay() * 86400L + h * 3600L + mi * 60L + s;
+    }
+
+    private static int digits(byte[] b, int p, int n) {
+        int v = 0;
+        for (int i = p; i < p + n; i++) {
+            int x = b[i] - '0';
+            if (x < 0 || x > 9) return -1;
+            v = v * 10 + x;
+        }
+        return v;
+    }
+
+    /** コマンドの語（重複なし）。索引と検索で同じ正規化を使う */
+    static List<String> terms(String cmd) {
+        List<String> out = new ArrayList<>();
+        int n = cmd.length(), i = 0;
+        while (i < n) {
+            while (i < n && isSeparator(cmd.charAt(i))) i++;
+            int s = i;
+            while (i < n && !isSeparator(cmd.charAt(i))) i++;
+            if (i > s) {
+                String t = normalize(cmd.substring(s, i));
+                put(out, t);
+                int eq = t.indexOf('=');
+                if (eq > 0) {
+                    put(out, t.substring(0, eq));
+                    if (eq + 1 < t.length()) put(out, t.substring(eq + 1));
+                }
+                int slash = t.lastIndexOf('/');
+                if (slash >= 0 && slash + 1 < t.length()) put(out, t.substring(slash + 1));
+            }
+        }
+        return out;
+    }
+
+    private static boolean isSeparator(char c) {
+        return Character.isWhitespace(c) || ";|&()<>{}`'\"".indexOf(c) >= 0;
+    }
+
+    private static String normalize(String t) {
+        t = t.toLowerCase(Locale.ROOT);
+        if (t.length() > MAX_TERM) {
+            t = t.substring(0, Character.isHighSurrogate(t.charAt(MAX_TERM - 1)) ? MAX_TERM - 1 : MAX_TERM);
+        }
+        return t;
+    }
+
+    private static void put(List<String> out, String t) {
+        if (!out.contains(t)) out.add(t);
+    }
+
+    // ====== 書き出し ======
+
+    /** ためたポスティングをセグメントに書き出し、meta を保存する。セグメントが増えすぎていればまとめる */
+    public synchronized void commit() throws IOException {
+        if (!dirty) return;
+        if (pendingCount > 0) {
+            int number = nextSegment++;
+            List<String> terms = new ArrayList<>(pending.keySet());
+            Collections.sort(terms);
+            try (SegmentWriter w = new SegmentWriter(dir, number)) {
+                for (String t : terms) {
+                    Postings p = pending.get(t);
+                    p.sort();
+                    w.term(t, p);
+                }
+                w.finish();
+            }
+            segments.add(new Segment(dir, number));
+            pending.clear();
+            pendingCount = 0;
+        }
+        saveMeta();
+        dirty = false;
+        maybeMerge();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        commit();
+        segments.clear();
+    }
+
+    // 小さい順に、まとめた結果が MAX_MERGE_BYTES を超えない分だけまとめる
+    private void maybeMerge() throws IOException {
+        if (segments.size() <= MAX_SEGMENTS) return;
+        List<Segment> bySize = new ArrayList<>(segments);
+        bySize.sort(Comparator.comparingLong(s -> s.bytes));
+        List<Segment> picked = new ArrayList<>();
+        long total = 0;
+        for (Segment s : bySize) {
+            if (total + s.bytes > MAX_MERGE_BYTES) break;
+            picked.add(s);
+            total += s.bytes;
+        }
+        if (picked.size() < 2) return;
+
+        int number = nextSegment++;
+        try (SegmentWriter w = new SegmentWriter(dir, number)) {
+            PriorityQueue<Cursor> pq = new PriorityQueue<>(Comparator.comparing((Cursor c) -> c.term));
+            for (Segment s : picked) {
+                Cursor c = new Cursor(s);
+                if (c.term != null) pq.add(c);
+            }
+            Postings p = new Postings();
+            while (!pq.isEmpty()) {
+                String term = pq.peek().term;
+                p.clear();
+                while (!pq.isEmpty() && pq.peek().term.equals(term)) {
+                    Cursor c = pq.poll();
+                    c.seg.read(c.i, Long.MIN_VALUE, Long.MAX_VALUE, deleted, p);
+                    if (c.next()) pq.add(c);
+                }
+                if (p.size > 0) {
+                    p.sort();
+                    w.term(term, p);
+                }
+            }
+            w.finish();
+        }
+        boolean all = picked.size() == segments.size();
+        segments.removeAll(picked);
+        segments.add(new Segment(dir, number));
+        if (all) {
+            // どのセグメントにも残っていないので、削除扱いのセッションを表からも消す
+            sessions.removeIf(s -> s.deleted);
+            deleted.clear();
+        }
+        saveMeta();
+        for (Segment s : picked) deleteQuietly(s.path); // 開いたままのため消せない環境では、次に開いたときに消す
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            // open() で掃除する
+        }
+    }
+
+    private static final class Cursor {
+        final Segment seg;
+        int i;
+        String term;
+        Cursor(Segment seg) {
+            this.seg = seg;
+            this.term = seg.termCount > 0 ? seg.term(0) : null;
+        }
+        boolean next() {
+            if (++i >= seg.termCount) return false;
+            term = seg.term(i);
+            return true;
+        }
+    }
+
+    // ====== 検索 ======
+
+    /**
+     * 語の AND で検索し、ABS が [from, to] の行を新しい順に最大 limit 件返す。
+     * 語の末尾の * は前方一致。from / to は null なら制限なし。まだ書き出していない分も先に commit() する。
+     */
+    public synchronized List<Hit> search(String query, LocalDateTime from, LocalDateTime to, int limit) throws IOException {
+        List<String> words = new ArrayList<>();
+        for (String w : query.trim().split("\\s+")) if (!w.isEmpty()) words.add(w);
+        if (words.isEmpty()) throw new IllegalArgumentException("検索語がありません");
+        commit();
+
+        long lo = from == null ? Long.MIN_VALUE : from.toEpochSecond(ZoneOffset.UTC);
+        long hi = to == null ? Long.MAX_VALUE : to.toEpochSecond(ZoneOffset.UTC);
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (Segment seg : segments) {
+            first = Math.min(first, seg.minKey);
+            last = Math.max(last, seg.maxKey);
+        }
+        first = Math.max(first, lo);
+        last = Math.min(last, hi);
+
+        // 新しい側から、1日・4日・16日…と窓を広げる
+        List<Hit> hits = new ArrayList<>();
+        long span = 86400;
+        for (long end = last; end >= first && hits.size() < limit; end -= span, span = Math.min(span * 4, 1L << 50)) {
+            long start = Math.max(first, end - span + 1);
+            Postings found = collect(words, start, end);
+            for (int i = found.size - 1; i >= 0 && hits.size() < limit; i--) {
+                SessionEntry s = byId.get(found.sessions[i]);
+                if (s == null) continue;
+                hits.add(new Hit(Paths.get(s.path), LocalDateTime.ofEpochSecond(found.keys[i], 0, ZoneOffset.UTC), found.offsets[i]));
+            }
+            if (start == first) break;
+        }
+        return hits;
+    }
+
+    // ABS が [lo, hi] で、すべての語を含む行（並べたもの）
+    private Postings collect(List<String> words, long lo, long hi) {
+        Postings all = new Postings();
+        for (Segment seg : segments) {
+            Postings acc = null;
+            for (String w : words) {
+                Postings p = new Postings();
+                if (w.endsWith("*")) {
+                    String prefix = normalize(w.substring(0, w.length() - 1));
+                    if (prefix.isEmpty()) throw new IllegalArgumentException("接頭辞が空です: " + w);
+                    for (int i = seg.lowerBound(prefix); i < seg.termCount && seg.term(i).startsWith(prefix); i++) {
+                        seg.read(i, lo, hi, deleted, p);
+                    }
+                    p.sort();
+                    p.dedup();
+                } else {
+                    int i = seg.find(normalize(w));
+                    if (i >= 0) seg.read(i, lo, hi, deleted, p);
+                }
+                acc = acc == null ? p : acc.intersect(p);
+                if (acc.size == 0) break;
+            }
+            all.addAll(acc);
+        }
+        all.sort();
+        return all;
+    }
+
+    /** 検索結果の1行 */
+    public static final class Hit {
+        public final Path log;
+        public final LocalDateTime time; // ABS
+        public final long offset;        // 行の先頭のバイト位置（.log.gz は展開後）
+
+        Hit(Path log, LocalDateTime time, long offset) {
+            this.log = log; this.time = time; this.offset = offset;
+        }
+
+        /** ログからその行を読む（改行は含まない） */
+        public String line() throws IOException {
+            if (log.getFileName().toString().endsWith(".gz")) return BlockGzipLog.lineAt(log, offset);
+            try (FileChannel ch = FileChannel.open(log, StandardOpenOption.READ)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                ByteBuffer bb = ByteBuffer.allocate(4096);
+                long pos = offset;
+                while (ch.read(bb.clear(), pos) > 0) {
+                    bb.flip();
+                    int n = bb.limit();
+                    int e = 0;
+                    while (e < n && bb.get(e) != '\n') e++;
+                    line.write(bb.array(), 0, e);
+                    if (e < n) break;
+                    pos += n;
+                }
+                return line.toString(StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return log + ":" + offset;
+        }
+    }
+
+    void printStats(PrintStream out) {
+        long terms = 0, bytes = 0;
+        for (Segment s : segments) {
+            terms += s.termCount;
+            bytes += s.bytes;
+        }
+        out.printf(Locale.ROOT, "セッション %d 件（削除扱い %d）、セグメント %d 個、語 %d（重複含む）、%.1f MB%n",
+                byId.size(), deleted.cardinality(), segments.size(), terms, bytes / (1024.0 * 1024.0));
+    }
+
+    // ====== meta ======
+
+    private static String segmentName(int number) {
+        return String.format(Locale.ROOT, "seg-%06d.cidx", number);
+    }
+
+    private void loadMeta() throws IOException {
+        Path meta = dir.resolve("index.meta");
+        Set<String> live = new HashSet<>();
+        if (Files.isRegularFile(meta)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(meta)))) {
+                if (in.readInt() != META_MAGIC || in.readInt() != VERSION) throw new IOException("インデックスの形式が違います: " + meta);
+                nextSegment = in.readInt();
+                nextSession = in.readInt();
+                int segCount = in.readInt();
+                for (int i = 0; i < segCount; i++) {
+                    int number = in.readInt();
+                    segments.add(new Segment(dir, number));
+                    live.add(segmentName(number));
+                }
+                int sesCount = in.readInt();
+                for (int i = 0; i < sesCount; i++) {
+                    int id = in.readInt();
+                    boolean del = in.readBoolean();
+                    long size = in.readLong();
+                    long mtime = in.readLong();
+                    SessionEntry s = new SessionEntry(id, in.readUTF(), size, mtime, del);
+                    sessions.add(s);
+                    if (del) {
+                        deleted.set(id);
+                    } else {
+                        byPath.put(s.path, s);
+                        byId.put(id, s);
+                    }
+                }
+            }
+        }
+        // meta に載っていないセグメント（書き出し途中で止まった、まとめた後に消せなかった）を消す
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "seg-*")) {
+            for (Path p : ds) if (!live.contains(p.getFileName().toString())) deleteQuietly(p);
+        }
+    }
+
+    // 一時ファイルに書いてから置き換える
+    private void saveMeta() throws IOException {
+        Path meta = dir.resolve("index.meta");
+        Path tmp = dir.resolve("index.meta.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(META_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nextSegment);
+            out.writeInt(nextSession);
+            out.writeInt(segments.size());
+            for (Segment s : segments) out.writeInt(s.number);
+            out.writeInt(sessions.size());
+            for (SessionEntry s : sessions) {
+                out.writeInt(s.id);
+                out.writeBoolean(s.deleted);
+                out.writeLong(s.size);
+                out.writeLong(s.mtime);
+                out.writeUTF(s.path);
+            }
+        }
+        try {
+            Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static final class SessionEntry {
+        final int id;
+        final String path;
+        final long size;
+        final long mtime;
+        boolean deleted;
+        SessionEntry(int id, String path, long size, long mtime, boolean deleted) {
+            this.id = id; this.path = path; this.size = size; this.mtime = mtime; this.deleted = deleted;
+        }
+    }
+
+    // ====== ポスティング ======
+
+    /** (ABS, セッション id, 位置) の列 */
+    static final class Postings {
+        long[] keys = new long[4];
+        int[] sessions = new int[4];
+        long[] offsets = new long[4];
+        int size;
+
+        void add(long key, int session, long offset) {
+            if (size == keys.length) {
+                int n = size * 2;
+                keys = Arrays.copyOf(keys, n);
+                sessions = Arrays.copyOf(sessions, n);
+                offsets = Arrays.copyOf(offsets, n);
+            }
+            keys[size] = key;
+            sessions[size] = session;
+            offsets[size] = offset;
+            size++;
+        }
+
+        void addAll(Postings o) {
+            for (int i = 0; i < o.size; i++) add(o.keys[i], o.sessions[i], o.offsets[i]);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        private int compare(int i, int j) {
+            int c = Long.compare(keys[i], keys[j]);
+            if (c == 0) c = Integer.compare(sessions[i], sessions[j]);
+            if (c == 0) c = Long.compare(offsets[i], offsets[j]);
+            return c;
+        }
+
+        /** (ABS, セッション, 位置) の順に並べる。すでに並んでいれば何もしない */
+        void sort() {
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) sorted = compare(i - 1, i) <= 0;
+            if (sorted) return;
+            int[] idx = new int[size], tmp = new int[size];
+            for (int i = 0; i < size; i++) idx[i] = i;
+            mergeSort(idx, tmp, 0, size);
+            long[] k = new long[size], o = new long[size];
+            int[] s = new int[size];
+            for (int i = 0; i < size; i++) {
+                k[i] = keys[idx[i]];
+                s[i] = sessions[idx[i]];
+                o[i] = offsets[idx[i]];
+            }
+            keys = k;
+            sessions = s;
+            offsets = o;
+        }
+
+        private void mergeSort(int[] a, int[] tmp, int from, int to) {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            mergeSort(a, tmp, from, mid);
+            mergeSort(a, tmp, mid, to);
+            if (compare(a[mid - 1], a[mid]) <= 0) return;
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) a[k++] = compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+            while (i < mid) a[k++] = tmp[i++];
+            while (j < to) a[k++] = tmp[j++];
+        }
+
+        /** 並べた後の重複（同じ行）を除く */
+        void dedup() {
+            int w = 0;
+            for (int i = 0; i < size; i++) {
+                if (w > 0 && compare(w - 1, i) == 0) continue;
+                keys[w] = keys[i];
+                sessions[w] = sessions[i];
+                offsets[w] = offsets[i];
+                w++;
+            }
+            size = w;
+        }
+
+        /** どちらにもある行（どちらも並べてあること） */
+        Postings intersect(Postings o) {
+            Postings r = new Postings();
+            int i = 0, j = 0;
+            while (i < size && j < o.size) {
+                int c = Long.compare(keys[i], o.keys[j]);
+                if (c == 0) c = Integer.compare(sessions[i], o.sessions[j]);
+                if (c == 0) c = Long.compare(offsets[i], o.offsets[j]);
+                if (c < 0) i++;
+                else if (c > 0) j++;
+                else {
+                    r.add(keys[i], sessions[i], offsets[i]);
+                    i++;
+                    j++;
+                }
+            }
+            return r;
+        }
+    }
+
+    // ====== セグメント ======
+
+    /** 書き出したセグメント（読み取り専用でマップする） */
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final long bytes;
+        final ByteBuffer buf;
+        final int termCount;
+        final int skipOffset, dictOffset, blobOffset;
+        final long minKey, maxKey;
+
+        Segment(Path dir, int number) throws IOException {
+            this.number = number;
+            this.path = dir.resolve(segmentName(number));
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                bytes = ch.size();
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+            }
+            if (bytes < HEADER || buf.getInt(0) != SEG_MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException("セグメントの形式が違います: " + path);
+            }
+            termCount = buf.getInt(8);
+            skipOffset = (int) buf.getLong(16);
+            dictOffset = (int) buf.getLong(24);
+            blobOffset = dictOffset + termCount * ENTRY;
+            minKey = buf.getLong(32);
+            maxKey = buf.getLong(40);
+        }
+
+        String term(int i) {
+            int e = dictOffset + i * ENTRY;
+            byte[] b = new byte[buf.getInt(e + 4)];
+            buf.get(blobOffset + buf.getInt(e), b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /** term 以上の最初の語の番号 */
+        int lowerBound(String term) {
+            int lo = 0, hi = termCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (term(mid).compareTo(term) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        int find(String term) {
+            int i = lowerBound(term);
+            return i < termCount && term(i).equals(term) ? i : -1;
+        }
+
+        /** i 番目の語のポスティングのうち、ABS が [from, to] で削除扱いでないものを out に足す */
+        void read(int i, long from, long to, BitSet deleted, Postings out) {
+            int e = dictOffset + i * ENTRY;
+            int count = buf.getInt(e + 8), blocks = buf.getInt(e + 12);
+            int skip = skipOffset + (int) buf.getLong(e + 24) * SKIP;
+            if (buf.getLong(skip + (blocks - 1) * SKIP) < from || buf.getLong(e + 32) > to) return;
+
+            // from を含む最初のブロック
+            int lo = 0, hi = blocks - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buf.getLong(skip + mid * SKIP) < from) lo = mid + 1;
+                else hi = mid;
+            }
+            int[] p = {(int) buf.getLong(skip + lo * SKIP + 8)};
+            long key = 0, off = 0;
+            int ses = 0;
+            for (int j = lo * BLOCK; j < count; j++) {
+                if (j % BLOCK == 0) {
+                    key = varLong(p);
+                    ses = (int) varLong(p);
+                    off = varLong(p);
+                } else {
+                    long dk = varLong(p);
+                    key += dk;
+                    if (dk == 0) {
+                        int ds = (int) varLong(p);
+                        ses += ds;
+                        long v = varLong(p);
+                        off = ds == 0 ? off + v : v;
+                    } else {
+                        ses = (int) varLong(p);
+                        off = varLong(p);
+                    }
+                }
+                if (key > to) break;
+                if (key >= from && !deleted.get(ses)) out.add(key, ses, off);
+            }
+        }
+
+        private long varLong(int[] p) {
+            return Bytes.varLong(buf, p);
+        }
+    }
+
+    /**
+     * セグメントを seg-NNNNNN.cidx.tmp に書き、finish() で置き換える。語は昇順に、ポスティングは並べて渡す。
+     * ブロックの先頭は絶対値、以降は直前との差（ABS が同じならセッションも差、セッションも同じなら位置も差）。
+     */
+    private static final class SegmentWriter implements Closeable {
+        private final Path tmp, target;
+        private final FileChannel ch;
+        private final Bytes data = new Bytes(), skips = new Bytes(), dict = new Bytes(), blob = new Bytes();
+        private long pos = HEADER; // data の先頭のファイル内位置
+        private int termCount;
+        private long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+        private boolean finished;
+
+        SegmentWriter(Path dir, int number) throws IOException {
+            target = dir.resolve(segmentName(number));
+            tmp = dir.resolve(segmentName(number) + ".tmp");
+            ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void term(String term, Postings p) throws IOException {
+            byte[] tb = term.getBytes(StandardCharsets.UTF_8);
+            dict.putInt(blob.size);
+            dict.putInt(tb.length);
+            dict.putInt(p.size);
+            dict.putInt((p.size + BLOCK - 1) / BLOCK);
+            dict.putLong(pos + data.size);
+            dict.putLong(skips.size / SKIP);
+            dict.putLong(p.keys[0]);
+            blob.put(tb, 0, tb.length);
+            minKey = Math.min(minKey, p.keys[0]);
+            maxKey = Math.max(maxKey, p.keys[p.size - 1]);
+
+            long blockStart = 0;
+            for (int i = 0; i < p.size; i++) {
+                if (i % BLOCK == 0) {
+                    blockStart = pos + data.size;
+                    data.varLong(p.keys[i]);
+                    data.varLong(p.sessions[i]);
+                    data.varLong(p.offsets[i]);
+                } else {
+                    long dk = p.keys[i] - p.keys[i - 1];
+                    data.varLong(dk);
+                    if (dk == 0) {
+                        int ds = p.sessions[i] - p.sessions[i - 1];
+                        data.varLong(ds);
+                        data.varLong(ds == 0 ? p.offsets[i] - p.offsets[i - 1] : p.offsets[i]);
+                    } else {
+                        data.varLong(p.sessions[i]);
+                        data.varLong(p.offsets[i]);
+                    }
+                }
+                if (i % BLOCK == BLOCK - 1 || i == p.size - 1) {
+                    skips.putLong(p.keys[i]);
+                    skips.putLong(blockStart);
+                }
+            }
+            termCount++;
+            if (data.size >= 1 << 20) {
+                pos += data.writeTo(ch, pos);
+            }
+        }
+
+        void finish() throws IOException {
+            pos += data.writeTo(ch, pos);
+            long skipOffset = pos;
+            pos += skips.writeTo(ch, pos);
+            long dictOffset = pos;
+            pos += dict.writeTo(ch, pos);
+            pos += blob.writeTo(ch, pos);
+            if (pos > Integer.MAX_VALUE) throw new IOException("セグメントが大きすぎます: " + target);
+
+            Bytes head = new Bytes();
+            head.putInt(SEG_MAGIC);
+            head.putInt(VERSION);
+            head.putInt(termCount);
+            head.putInt(0);
+            head.putLong(skipOffset);
+            head.putLong(dictOffset);
+            head.putLong(minKey);
+            head.putLong(maxKey);
+            head.writeTo(ch, 0);
+            ch.force(true);
+            ch.close();
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            ch.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -1,17 +1,18 @@
 package com.demo;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.*;
-import java.time.format.DateTimeFormatter;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CommandOnlyExtractor {
 
-    // 絶対時間：yyyy-MM-dd HH:mm:ss
-    private static final DateTimeFormatter TS_FMT  = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private static final ZoneId DEFAULT_ZONE       = ZoneId.of("Asia/Tokyo");
+    private static final long   LEAD_IN            = 64 * 1024; // 時間範囲版で、範囲の手前から読む目安（バイト）
 
     public static void main(String[] args) throws Exception {
         Path typescript = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b");
@@ -26,198 +27,385 @@ public class CommandOnlyExtractor {
 
     /** 2列のtiming：countごとに読み込む；改行がなければバッファに追加、改行があれば分割；出力は「プロンプト+コマンド」のみ。
      *  各行の出力形式： HH:mm:ss,yyyy-MM-dd HH:mm:ss,AAAAA, <prompt><command>
+     *
+     *  変換後に <out>.ckpt（ExtractCheckpoint）を保存する。録画が追記されてから再実行すると、
+     *  ログをチェックポイントの時点まで切り詰め、続きの部分だけを変換して追記する。
+     *  再開したときの時刻は、startTs ではなくチェックポイントに記録した前回の開始時刻を基準にする。
      */
     public static void extract(Path namePath, Path timingPath, Path outPath,
                                boolean stamp, ZonedDateTime startTs) throws IOException {
         Files.createDirectories(outPath.getParent() != null ? outPath.getParent() : Paths.get("."));
 
-        try (BufferedInputStream tsIn = new BufferedInputStream(Files.newInputStream(namePath));
-             BufferedReader tr = Files.newBufferedReader(timingPath, StandardCharsets.UTF_8);
-             BufferedWriter out = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
-                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ExtractCheckpoint resume = ExtractCheckpoint.load(outPath, namePath, timingPath);
+        if (resume == null) {
+            ExtractCheckpoint.delete(outPath);
+        } else {
+            startTs = resume.start; // 既に書いた行と同じ基準で続ける
+            // 前回の最終半行など、チェックポイント以降に書いた分は捨てる
+            try (FileChannel fc = FileChannel.open(outPath, StandardOpenOption.WRITE)) {
+                fc.truncate(resume.logLength);
+            }
+        }
 
-            StringBuilder bufLine = new StringBuilder(4096);
-            byte[] buf = new byte[64 * 1024];
-            double elapsed = 0.0; // 秒（小数あり）
-
-            String currentPrompt = ""; // 最新のプロンプト（末尾の空白付き）
-
-            String line;
-            while ((line = tr.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) continue;
-
-                String[] parts = line.split("\\s+");
-                if (parts.length < 2) continue;
-
-                double delay; long count;
-                try {
-                    delay = Double.parseDouble(parts[0]);
-                    count = Long.parseLong(parts[1]);
-                } catch (NumberFormatException e) { continue; }
-
-                // 相対時間を累計
-                elapsed += delay;
-                ZonedDateTime absTs = startTs.plusNanos((long)(elapsed * 1_000_000_000L));
-                String relStr = formatRel(elapsed);
-                String absStr = TS_FMT.format(absTs);
-
-                // この区間のバイトを読み込む
-                ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream((int)Math.min(count, 1_048_576));
-                long remaining = count;
-                while (remaining > 0) {
-                    int want = (int)Math.min(buf.length, remaining);
-                    int n = tsIn.read(buf, 0, want);
-                    if (n < 0) break;
-                    remaining -= n;
-                    chunkBytes.write(buf, 0, n);
-                }
+        ExtractCheckpoint safe = null; // 次回の再開位置
+        try (InputStream tsRaw = Files.newInputStream(namePath);
+             InputStream tmRaw = Files.newInputStream(timingPath)) {
+            long tsOffset = 0;
+            if (resume != null) {
+                tsRaw.skipNBytes(resume.typescriptOffset);
+                tmRaw.skipNBytes(resume.timingOffset);
+                tsOffset = resume.typescriptOffset;
+            }
+            try (BufferedInputStream tsIn = new BufferedInputStream(tsRaw);
+                 TimingParser tr = new TimingParser(tmRaw, TimingParser.Unit.SECONDS);
+                 BufferedWriter out = resume == null
+                         ? Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+                         : Files.newBufferedWriter(outPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
 
-                String chunk = sanitize(new String(chunkBytes.toByteArray(), StandardCharsets.UTF_8));
-
-                if (chunk.indexOf('\n') < 0) {
-                    // 改行なし：バッファに追加
-                    bufLine.append(chunk);
-                } else {
-                    // 改行あり：結合＋分割
-                    String merged = bufLine.append(chunk).toString();
-                    bufLine.setLength(0);
-
-                    String[] rows = merged.split("\n", -1);
-                    for (int i = 0; i < rows.length - 1; i++) {
-                        String row = rows[i];
-                        if (row.isEmpty()) continue;
-
-                        // 1) 純粋なプロンプト：更新のみ、出力しない
-                        if (PROMPT_ONLY.matcher(row).matches()) {
-                            currentPrompt = ensureSpace(row);
-                            continue;
-                        }
+                Session session = new Session(out, startTs);
+                if (resume != null) {
+                    tr.resumeAt(resume.timingOffset, resume.timingLine);
+                    session.restore(resume);
+                }
+                byte[] chunkBytes = new byte[64 * 1024]; // 区間のバイト（使い回す）
 
-                        // 2) プロンプト+コマンド：出力（REL,ABS,AAAAA, <prompt><cmd>）
-                        java.util.regex.Matcher m = PROMPT_WITH_CMD.matcher(row);
-                        if (m.matches()) {
-                            String prompt = ensureSpace(m.group(1));
-                            String cmd    = m.group(2).trim();
-                            if (!cmd.isEmpty()) {
-                                out.write(relStr);
-                                out.write(",");
-                                out.write(absStr);
-                                out.write(",AAAAA,");
-                                out.write(prompt);
-                                out.write(cmd);
-                                out.write('\n');
-                            }
-                            currentPrompt = prompt;
-                            continue;
-                        }
+                // 改行まで書かれた timing 行だけを先に読み、書きかけの最終行は最後に通常どおり読む
+                tr.setFollow(true);
+                while (true) {
+                    long timingPos = tr.position(), timingLine = tr.lineNumber();
+                    if (!tr.next()) {
+                        if (safe == null) safe = session.checkpoint(outPath, startTs, tsOffset, timingPos, timingLine);
+                        tr.setFollow(false);
+                        if (!tr.next()) break;
+                    }
+                    long count = tr.bytes();
 
-                        // 3) その他の行は無視
+                    // この区間のバイトを読み込む
+                    if (count > chunkBytes.length) chunkBytes = new byte[(int)Math.min(count, Integer.MAX_VALUE - 8)];
+                    int filled = 0;
+                    while (filled < count && filled < chunkBytes.length) {
+                        int n = tsIn.read(chunkBytes, filled, (int)Math.min(chunkBytes.length - filled, count - filled));
+                        if (n < 0) break;
+                        filled += n;
                     }
+                    // 録画ファイルがまだ追いついていない区間からは、次回やり直す
+                    if (filled < count && safe == null) safe = session.checkpoint(outPath, startTs, tsOffset, timingPos, timingLine);
+                    tsOffset += filled;
 
-                    // 残りの半行
-                    String tail = rows[rows.length - 1];
-                    if (!tail.isEmpty()) bufLine.append(tail);
+                    session.feed(tr.delayNanos(), chunkBytes, 0, filled);
                 }
+                session.finish();
             }
+        }
+        // ログを書き終えてから保存する（途中で止まっても古いチェックポイントからやり直せる）
+        safe.save(outPath, namePath, timingPath);
+    }
+
+    /**
+     * 時間範囲版：絶対時刻が [from, to) の行だけを書く（null はセッションの先頭／末尾まで）。
+     * 範囲を timing の累積和インデックス（TimingIndex、なければ作る）でバイト位置に直し、
+     * typescript と timing をそこまで読み飛ばしてから変換する。範囲の手前 LEAD_IN バイトほどは
+     * 持ち越しの半行を得るためだけに処理し、出力しない。チェックポイントは扱わない。
+     *
+     * 範囲の中の行は全体を変換したときと同じ内容になる。ただし累計秒は読み飛ばした分をインデックスの
+     * ナノ秒の和から戻すので、全体の変換（区間ごとに秒の小数を足す）とは丸めの分だけ違うことがある。
+     */
+    public static void extract(Path namePath, Path timingPath, Path outPath,
+                               ZonedDateTime startTs, Instant from, Instant to) throws IOException {
+        Files.createDirectories(outPath.getParent() != null ? outPath.getParent() : Paths.get("."));
 
-            // 最後の半行：もう一度判定
-            if (bufLine.length() > 0) {
-                String row = bufLine.toString();
-                java.util.regex.Matcher m = PROMPT_WITH_CMD.matcher(row);
-                if (m.matches()) {
-                    String prompt = ensureSpace(m.group(1));
-                    String cmd    = m.group(2).trim();
-                    if (!cmd.isEmpty()) {
-                        // 最終的なelapsed/absTsを使用
-                        String relStr = formatRel(elapsed);
-                        String absStr = TS_FMT.format(startTs.plusNanos((long)(elapsed * 1_000_000_000L)));
-                        try (BufferedWriter out2 = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
-                            out2.write(relStr);
-                            out2.write(",");
-                            out2.write(absStr);
-                            out2.write(",AAAAA, ");
-                            out2.write(prompt);
-                            out2.write(cmd);
-                            out2.write('\n');
+        try (TimingIndex idx = TimingIndex.open(timingPath, TimingParser.Unit.SECONDS)) {
+            TimingIndex.Range range = idx.range(startTs.toInstant(), from, to, LEAD_IN);
+            try (FileChannel tsCh = FileChannel.open(namePath, StandardOpenOption.READ);
+                 FileChannel tmCh = FileChannel.open(timingPath, StandardOpenOption.READ)) {
+                tsCh.position(range.dataOffset());
+                tmCh.position(idx.timingOffsetOf(range.lead));
+                try (InputStream tsIn = new BufferedInputStream(Channels.newInputStream(tsCh));
+                     TimingParser tr = new TimingParser(Channels.newInputStream(tmCh), TimingParser.Unit.SECONDS);
+                     BufferedWriter out = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    tr.resumeAt(idx.timingOffsetOf(range.lead), idx.timingLineOf(range.lead));
+
+                    // 範囲に入るまでは出力を捨てる Session で状態だけ進める
+                    Session session = new Session(new BufferedWriter(Writer.nullWriter()), startTs,
+                            ConversionMetrics.discard());
+                    session.restore(range.startNanos() / 1e9, "", "");
+                    boolean inRange = false;
+                    byte[] chunkBytes = new byte[64 * 1024]; // 区間のバイト（使い回す）
+                    for (int i = range.lead; i < range.end && tr.next(); i++) {
+                        if (i == range.first) {
+                            session = session.redirect(out, startTs);
+                            inRange = true;
                         }
+                        long count = tr.bytes();
+                        if (count > chunkBytes.length) chunkBytes = new byte[(int)Math.min(count, Integer.MAX_VALUE - 8)];
+                        int filled = tsIn.readNBytes(chunkBytes, 0, (int)Math.min(count, chunkBytes.length));
+                        session.feed(tr.delayNanos(), chunkBytes, 0, filled);
                     }
+                    // 範囲の後にもエントリがあれば、最後の半行は範囲の外で確定するので出さない
+                    if (inRange && !range.truncated()) session.finish(); else session.flushMetrics();
                 }
             }
         }
     }
 
-    // —— 相対時間：0から開始、形式 HH:mm:ss ——
-    private static String formatRel(double elapsedSeconds) {
-        long totalSeconds = (long) elapsedSeconds;
-        long hours   = totalSeconds / 3600;
-        long minutes = (totalSeconds % 3600) / 60;
-        long seconds = totalSeconds % 60;
-        return String.format("%02d:%02d:%02d", hours, minutes, seconds);
+    /**
+     * ストリーム版（アーカイブ内のエントリなど）。チェックポイントは扱わない。
+     * ConvertEngine にコマンド出力を1つだけ登録したものと同じ。
+     */
+    public static void extract(InputStream data, TimingParser timing, BufferedWriter out,
+                               ZonedDateTime startTs) throws IOException {
+        new ConvertEngine().commands(out, startTs).run(data, timing);
+    }
+
+    /**
+     * 記録中のセッションを追従して変換する（tail -f 相当）。
+     * 追記された timing エントリとバイトをその都度処理し、行を出力するたびにフラッシュする。
+     * idleTimeout の間どちらのファイルも伸びなければ終了（null なら割り込まれるまで）。
+     */
+    public static void follow(Path namePath, Path timingPath, Path outPath,
+                              ZonedDateTime startTs, Duration idleTimeout) throws IOException, InterruptedException {
+        Files.createDirectories(outPath.getParent() != null ? outPath.getParent() : Paths.get("."));
+
+        try (TailFollower tail = new TailFollower(namePath, timingPath);
+             BufferedWriter out = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Session session = new Session(out, startTs);
+            ConversionMetrics.current().live(startTs.toInstant());
+            tail.run(new TailFollower.Listener() {
+                @Override public void entry(long delayNanos, byte[] b, int off, int len) throws IOException {
+                    session.feed(delayNanos, b, off, len);
+                }
+                @Override public void caughtUp() throws IOException {
+                    out.flush();
+                    session.flushMetrics();
+                }
+            }, idleTimeout);
+            session.finish();
+        }
     }
 
-    /* —— 「プロンプト+コマンド」または「純粋なプロンプト」のみを判定 —— */
-    private static final Pattern PROMPT_ONLY = Pattern.compile(
-        "^(.*(?:\\$|#|>|%|\\]#|(?i:PS>)|(?i:mysql>)) )$"
-    );
+    /**
+     * 1セッション分の抽出状態。timing の区間ごとに feed し、最後に finish する。
+     * 行の切り出し（LineSplitter）と、プロンプト判定・整形（RowFilter）をつないだもの。
+     * PipelinedExtractor は同じ2つを別々のスレッドで動かす。
+     */
+    static final class Session {
+        private final BufferedWriter out;
+        private final LineSplitter splitter;
+        private final RowFilter filter;
+        private final List<String> rows = new ArrayList<>();
+        private final ConversionMetrics.Probe probe;
 
-    private static final Pattern PROMPT_WITH_CMD = Pattern.compile(
-        "^(.*(?:\\$|#|>|%|\\]#|(?i:PS>)|(?i:mysql>))\\s)(\\S.*)$"
-    );
+        Session(BufferedWriter out, ZonedDateTime startTs) {
+            this(out, startTs, ConversionMetrics.current().probe(RowFilter.NOT_COMMAND));
+        }
 
-    private static String ensureSpace(String s) { return s.endsWith(" ") ? s : (s + " "); }
+        Session(BufferedWriter out, ZonedDateTime startTs, ConversionMetrics.Probe probe) {
+            this.out = out;
+            this.probe = probe;
+            this.splitter = new LineSplitter(probe);
+            this.filter = new RowFilter(startTs, probe);
+        }
+
+        /** チェックポイントから状態を戻す */
+        void restore(ExtractCheckpoint c) {
+            restore(c.elapsed, c.partialLine, c.currentPrompt);
+        }
+
+        /** 途中から始める（累計秒・持ち越しの半行・最新のプロンプト） */
+        void restore(double elapsed, String partialLine, String currentPrompt) {
+            splitter.elapsed = elapsed;
+            splitter.bufLine.setLength(0);
+            splitter.bufLine.append(partialLine);
+            filter.currentPrompt = currentPrompt;
+        }
+
+        /** 同じ状態のまま出力先だけを out に替えた Session（時間範囲版で、読み飛ばした分の出力を捨てる） */
+        Session redirect(BufferedWriter out, ZonedDateTime startTs) {
+            Session s = new Session(out, startTs);
+            s.restore(splitter.elapsed, splitter.bufLine.toString(), filter.currentPrompt);
+            return s;
+        }
+
+        /** 現時点の状態（出力はフラッシュして長さを記録する） */
+        ExtractCheckpoint checkpoint(Path outPath, ZonedDateTime startTs, long typescriptOffset, long timingOffset,
+                                     long timingLine) throws IOException {
+            out.flush();
+            return new ExtractCheckpoint(startTs, typescriptOffset, timingOffset, timingLine, Files.size(outPath),
+                    splitter.elapsed, splitter.bufLine.toString(), filter.currentPrompt);
+        }
+
+        /** timing 1エントリ分：delay を加算し、その区間のバイトを処理する */
+        void feed(long delayNanos, byte[] b, int off, int len) throws IOException {
+            rows.clear();
+            splitter.feed(delayNanos, b, off, len, rows);
+            for (int i = 0; i < rows.size(); i++) filter.row(rows.get(i), splitter.elapsed, out);
+        }
+
+        /** 最後の半行：もう一度判定 */
+        void finish() throws IOException {
+            if (splitter.bufLine.length() > 0) filter.last(splitter.bufLine.toString(), splitter.elapsed, out);
+            probe.flush();
+        }
 
-    /* —— 正規化処理（\nは保持；ANSI/OSC/CSI、バックスペース、CR上書きを削除）—— */
-    private static String sanitize(String s) {
-        // 8-bit C1
-        s = s.replaceAll("\\u009B[\\x20-\\x3F]*[\\x40-\\x7E]", "");
-        s = s.replaceAll("\\u009D[\\s\\S]*?(\\u0007|\\u009C)", "");
-        s = s.replaceAll("[\\u0090\\u009E\\u009F\\u0098][\\s\\S]*?\\u009C", "");
-        // 7-bit ESC（OSC/DCS/CSIなど）
-        s = s.replaceAll("\\u001B\\][\\s\\S]*?(\\u0007|\\u001B\\\\)", "");
-        s = s.replaceAll("\\u001B[P^_X][\\s\\S]*?\\u001B\\\\", "");
-        s = s.replaceAll("\\u001B\\[[\\x20-\\x3F]*[\\x40-\\x7E]", "");
-        s = s.replaceAll("\\u001B.", "");
-        // キャレット可視化
-        s = s.replaceAll("\\^\\[\\[[0-9;]*[A-Za-z]", "");
-        s = s.replaceAll("\\^\\[", "");
-        s = s.replaceAll("\\^M", "\n");
-        // バックスペース
-        s = applyBackspaces(s);
-        // CR上書き
-        s = applyCarriageReturns(s);
-        // \n\tは保持、それ以外のC0は削除
-        s = s.replaceAll("[\\x00-\\x08\\x0B\\x0C\\x0E-\\x1A\\x1C-\\x1F]", "");
-        return s;
+        /** 計測の途中経過を反映する（追従中の遅れ、finish しないセグメントの分） */
+        void flushMetrics() {
+            probe.flush();
+        }
     }
 
-    private static String applyBackspaces(String s) {
-        StringBuilder out = new StringBuilder(s.length());
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c == '\b') { if (out.length() > 0) out.deleteCharAt(out.length() - 1); }
-            else out.append(c);
+    /**
+     * 区間ごとのサニタイズと行の切り出し。各区間は独立にサニタイズし、改行をまたぐ半行は次の区間に持ち越す。
+     */
+    static final class LineSplitter {
+        private final TerminalSanitizer sanitizer = new TerminalSanitizer();
+        private final ConversionMetrics.Probe probe;
+        final StringBuilder bufLine = new StringBuilder(4096);
+        double elapsed = 0.0; // 秒（小数あり）
+
+        LineSplitter(ConversionMetrics.Probe probe) {
+            this.probe = probe;
+        }
+
+        /** delay を加算し、この区間で完結した行（空行を除く）を rows に追加する */
+        void feed(long delayNanos, byte[] b, int off, int len, List<String> rows) {
+            // 相対時間を累計
+            elapsed += delayNanos / 1e9;
+            probe.input(len, elapsed);
+
+            long t0 = probe.sanitizeStart();
+            String chunk = sanitizer.sanitize(b, off, len);
+            probe.sanitizeEnd(t0);
+
+            if (chunk.indexOf('\n') < 0) {
+                // 改行なし：バッファに追加
+                bufLine.append(chunk);
+            } else {
+                // 改行あり：結合＋分割
+                String merged = bufLine.append(chunk).toString();
+                bufLine.setLength(0);
+
+                String[] split = merged.split("\n", -1);
+                for (int i = 0; i < split.length - 1; i++) {
+                    if (!split[i].isEmpty()) rows.add(split[i]);
+                }
+
+                // 残りの半行
+                String tail = split[split.length - 1];
+                if (!tail.isEmpty()) bufLine.append(tail);
+            }
         }
-        return out.toString();
     }
 
-    private static String applyCarriageReturns(String s) {
-        String[] lines = s.split("\n", -1);
-        StringBuilder result = new StringBuilder(s.length());
-        for (int li = 0; li < lines.length; li++) {
-            String line = lines[li];
-            if (line.indexOf('\r') >= 0) {
-                String[] parts = line.split("\\r");
-                String rebuilt = "";
-                for (String part : parts) {
-                    if (part.length() >= rebuilt.length()) rebuilt = part;
-                    else rebuilt = part + rebuilt.substring(part.length());
+    /**
+     * 1行ごとのプロンプト判定。判定した「プロンプト＋コマンド」は CommandSink に渡す
+     * （Appendable を渡す版は REL,ABS,AAAAA, <prompt><cmd> のテキストで書く）。
+     */
+    static final class RowFilter {
+        static final String NOT_COMMAND = "not-command"; // 計測で、出力しなかった行のルール名
+
+        private final ConversionMetrics.Probe probe;
+        private final TextCommands text; // Appendable を渡す版の出力先（out は呼び出しごとに差し替える）
+        String currentPrompt = ""; // 最新のプロンプト（末尾の空白付き）
+        private final PromptRecognizer prompts = new PromptRecognizer(); // 「プロンプト+コマンド」の判定
+
+        RowFilter(ZonedDateTime startTs, ConversionMetrics.Probe probe) {
+            this.probe = probe;
+            this.text = new TextCommands(null, startTs, probe);
+        }
+
+        /** 判定だけを行う（出力は row/last に渡す CommandSink 次第。ConvertEngine 用） */
+        RowFilter(ConversionMetrics.Probe probe) {
+            this.probe = probe;
+            this.text = null;
+        }
+
+        /** 完結した1行（elapsed はその行を含む区間の累計秒） */
+        void row(String row, double elapsed, Appendable out) throws IOException {
+            text.out = out;
+            row(row, elapsed, text);
+        }
+
+        void row(String row, double elapsed, ConvertEngine.CommandSink to) throws IOException {
+            // 1) 純粋なプロンプト：更新のみ、出力しない
+            if (PromptRecognizer.isPromptOnly(row)) {
+                currentPrompt = ensureSpace(row);
+                probe.skipped();
+                return;
+            }
+
+            // 2) プロンプト+コマンド：出力（REL,ABS,AAAAA, <prompt><cmd>）
+            int k = prompts.split(row);
+            if (k >= 0) {
+                String prompt = ensureSpace(row.substring(0, k));
+                String cmd    = row.substring(k).trim();
+                if (!cmd.isEmpty()) emit(to, elapsed, false, prompt, cmd); else probe.skipped();
+                currentPrompt = prompt;
+                return;
+            }
+
+            // 3) その他の行は無視
+            probe.skipped();
+        }
+
+        /** 最後の半行：プロンプト+コマンドなら出力（最終的な elapsed を使用） */
+        void last(String row, double elapsed, Appendable out) throws IOException {
+            text.out = out;
+            last(row, elapsed, text);
+        }
+
+        void last(String row, double elapsed, ConvertEngine.CommandSink to) throws IOException {
+            int k = prompts.split(row);
+            if (k >= 0) {
+                String prompt = ensureSpace(row.substring(0, k));
+                String cmd    = row.substring(k).trim();
+                if (!cmd.isEmpty()) {
+                    emit(to, elapsed, true, prompt, cmd);
+                    return;
                 }
-                line = rebuilt;
             }
-            result.append(line);
-            if (li < lines.length - 1) result.append('\n');
+            probe.skipped();
+        }
+
+        private void emit(ConvertEngine.CommandSink to, double elapsed, boolean last, String prompt, String cmd)
+                throws IOException {
+            to.command(elapsed, last, prompt, cmd);
+            probe.emitted();
+        }
+    }
+
+    /**
+     * テキスト形式の出力： HH:mm:ss,yyyy-MM-dd HH:mm:ss,AAAAA,<prompt><cmd>
+     * （最後の半行だけは AAAAA の後に空白が1つ入る。従来の出力のまま）
+     */
+    static final class TextCommands implements ConvertEngine.CommandSink {
+        private final TimestampRenderer stamps;
+        private final Instant start;
+        private final ConversionMetrics.Probe probe;
+        Appendable out;
+
+        TextCommands(Appendable out, ZonedDateTime startTs, ConversionMetrics.Probe probe) {
+            this.out = out;
+            this.stamps = new TimestampRenderer(startTs.getZone(), '-', false);
+            this.start = startTs.toInstant();
+            this.probe = probe;
+        }
+
+        @Override public void command(double elapsed, boolean last, String prompt, String cmd) throws IOException {
+            long t0 = probe.writeStart();
+            out.append(stamps.rel(elapsed));
+            out.append(',');
+            out.append(stamps.abs(start.plusNanos((long)(elapsed * 1_000_000_000L))));
+            out.append(last ? ",AAAAA, " : ",AAAAA,");
+            out.append(prompt);
+            out.append(cmd);
+            out.append('\n');
+            probe.writeEnd(t0);
         }
-        return result.toString();
     }
+
+    private static String ensureSpace(String s) { return s.endsWith(" ") ? s : (s + " "); }
 }
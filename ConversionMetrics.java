@@ -0,0 +1,526 @@
+package com.demo;
+
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 変換の計測。セッションごとに、入力バイト数・出力行数・破棄行数（ルールごと）・サニタイズ時間・書き込み時間・
+ * 割り当てバイト数（ThreadMXBean）・MB/s を集める。
+ *
+ * <pre>
+ *   try (ConversionMetrics.Recorder m = ConversionMetrics.begin("&lt;uuid&gt;", "cmd")) {
+ *       CommandOnlyExtractor.extract(...);   // 変換器は ConversionMetrics.current() に記録する
+ *   }
+ * </pre>
+ * 変換器の各段は {@link Probe}（1スレッド用のただのカウンタ）に数え、一定の区間ごとと終わりに
+ * Recorder へまとめて足す（LineFilter の集計と同じ形）。begin していないスレッドの変換は、どこにも出ない
+ * Recorder に数えるだけなので、計測しないときの手間は区間・行ごとのカウンタと System.nanoTime() だけ。
+ *
+ * 結果の出し先：
+ * <ul>
+ *   <li>JFR：セッションごとに com.demo.Conversion、ルールごとの破棄行数に com.demo.FilterDrops
+ *       （-XX:StartFlightRecording で記録しているときだけ）</li>
+ *   <li>Prometheus のテキスト形式：{@link #serve(int)}（127.0.0.1 の /metrics）か {@link #writeTo(Path)}
+ *       （node_exporter の textfile collector 向けに、一時ファイルから置き換える）</li>
+ * </ul>
+ * セッションごとの値（MB/s、時間、割り当て、追従中の遅れ）は、直近 {@value #RECENT} 本と変換中のものだけを出す。
+ */
+public final class ConversionMetrics {
+
+    static final int RECENT = 64;           // セッションごとの値を残す本数
+    static final int FLUSH_ENTRIES = 4096;  // Probe がこの区間数ごとに Recorder へ足す
+    public static final String OTHER_RULE = "(other)"; // フィルタのルール以外で出力しなかった行
+
+    private static final ConversionMetrics GLOBAL = new ConversionMetrics();
+    private static final ThreadLocal<Recorder> CURRENT = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final Recorder DETACHED = GLOBAL.new Recorder("", "", false);
+
+    private final ConcurrentHashMap<String, Totals> totals = new ConcurrentHashMap<>();  // モードごと
+    private final ConcurrentHashMap<List<String>, LongAdder> drops = new ConcurrentHashMap<>(); // [モード, ルール]
+    private final Set<Recorder> active = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<Snapshot> recent = new ArrayDeque<>();
+
+    private ConversionMetrics() {}
+
+    /** プロセス全体の集計 */
+    public static ConversionMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * このスレッドでの1セッションの変換の計測を始める（close で終わる）。session はラベル（録画のファイル名など）、
+     * mode は変換器の種類（cmd、log など）。
+     */
+    public static Recorder begin(String session, String mode) {
+        Recorder r = GLOBAL.new Recorder(session, mode, true);
+        r.previous = CURRENT.get();
+        CURRENT.set(r);
+        GLOBAL.active.add(r);
+        return r;
+    }
+
+    /** このスレッドで計測中の Recorder。なければどこにも出ない Recorder */
+    public static Recorder current() {
+        Recorder r = CURRENT.get();
+        return r != null ? r : DETACHED;
+    }
+
+    /** どこにも出ない Probe（範囲の手前の読み飛ばしなど、数えない処理用） */
+    public static Probe discard() {
+        return DETACHED.probe(null);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        if (b instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) b;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) return t;
+        }
+        return null;
+    }
+
+    // 呼び出したスレッドがこれまでに割り当てたバイト数（測れなければ -1。仮想スレッドなど）
+    static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    // ====== 1セッション ======
+
+    /** 1セッション分の計測。数えるのは Probe 経由（複数のスレッドの Probe から足してよい） */
+    public final class Recorder implements AutoCloseable {
+        final String session, mode;
+        private final boolean registered;
+        private final long startNanos = System.nanoTime();
+        private final long allocStart = allocatedBytes();
+        private final ConversionEvent event = new ConversionEvent();
+        private Recorder previous;
+
+        final LongAdder bytesIn = new LongAdder(), linesEmitted = new LongAdder(), linesDropped = new LongAdder(),
+                sanitizeNanos = new LongAdder(), writeNanos = new LongAdder(), allocated = new LongAdder();
+        private final ConcurrentHashMap<String, LongAdder> dropsByRule = new ConcurrentHashMap<>();
+        private volatile Instant recordingStart;   // 追従中のみ（遅れの計算用）
+        private volatile double elapsed;           // 変換済みの位置（録画開始からの秒）
+        private volatile boolean failed;
+
+        private Recorder(String session, String mode, boolean registered) {
+            this.session = session;
+            this.mode = mode;
+            this.registered = registered;
+            if (registered) event.begin();
+        }
+
+        /**
+         * 変換器の1段（1スレッド）用のカウンタ。otherRule は、フィルタのルール以外の理由で出力しなかった行の
+         * ルール名（null なら {@link #OTHER_RULE}）。
+         */
+        public Probe probe(String otherRule) {
+            return new Probe(this, otherRule != null ? otherRule : OTHER_RULE);
+        }
+
+        /** 記録中のセッションを追従している（Prometheus に遅れを出す） */
+        public void live(Instant recordingStart) {
+            if (registered) this.recordingStart = recordingStart;
+        }
+
+        /** 変換が失敗した */
+        public void failed() {
+            failed = true;
+        }
+
+        void dropped(String rule, long n) {
+            if (n == 0) return;
+            dropsByRule.computeIfAbsent(rule, k -> new LongAdder()).add(n);
+            linesDropped.add(n);
+        }
+
+        /** 計測を終え、集計・JFR に反映する */
+        @Override public void close() {
+            if (!registered || !active.remove(this)) return;
+            if (CURRENT.get() == this) {
+                if (previous != null) CURRENT.set(previous); else CURRENT.remove();
+            }
+            long alloc = allocatedBytes();
+            if (allocStart >= 0 && alloc >= 0) allocated.add(alloc - allocStart);
+            long nanos = System.nanoTime() - startNanos;
+            Snapshot s = new Snapshot(this, nanos);
+
+            Totals t = totals.computeIfAbsent(mode, k -> new Totals());
+            t.sessions.increment();
+            if (failed) t.failed.increment();
+            t.bytesIn.add(s.bytesIn);
+            t.linesEmitted.add(s.linesEmitted);
+            t.sanitizeNanos.add(s.sanitizeNanos);
+            t.writeNanos.add(s.writeNanos);
+            t.allocated.add(s.allocated);
+            t.nanos.add(nanos);
+            dropsByRule.forEach((rule, n) -> drops.computeIfAbsent(List.of(mode, rule), k -> new LongAdder()).add(n.sum()));
+            synchronized (recent) {
+                if (recent.size() == RECENT) recent.removeFirst();
+                recent.addLast(s);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.session = session;
+                event.mode = mode;
+                event.bytesIn = s.bytesIn;
+                event.linesEmitted = s.linesEmitted;
+                event.linesDropped = s.linesDropped;
+                event.sanitizeTime = s.sanitizeNanos;
+                event.writeTime = s.writeNanos;
+                event.allocated = s.allocated;
+                event.throughput = s.mbPerSecond();
+                event.failed = failed;
+                event.commit();
+            }
+            dropsByRule.forEach((rule, n) -> {
+                FilterDropsEvent e = new FilterDropsEvent();
+                if (!e.shouldCommit()) return;
+                e.session = session;
+                e.mode = mode;
+                e.rule = rule;
+                e.lines = n.sum();
+                e.commit();
+            });
+        }
+    }
+
+    /**
+     * 変換器の1段が持つカウンタ（1スレッドで使う）。{@link #FLUSH_ENTRIES} 区間ごとと flush() で Recorder に足す。
+     * サニタイズの中で書き込みが起きる段（画面モデルが行を確定して出力する場合など）は、その書き込み時間を
+     * サニタイズ時間から除く。
+     */
+    public static final class Probe {
+        private Recorder recorder;
+        private final String otherRule;
+        private LineFilter.Matcher filter;
+        private long bytesIn, entries, emitted, other, sanitize, write, nested;
+        private long allocStart = -1;
+        private boolean inSanitize, sharedInput;
+        private double elapsed;
+
+        private Probe(Recorder recorder, String otherRule) {
+            this.recorder = recorder;
+            this.otherRule = otherRule;
+        }
+
+        /** ルールごとの破棄行数をこのフィルタから集める */
+        public Probe filter(LineFilter.Matcher m) {
+            this.filter = m;
+            return this;
+        }
+
+        /**
+         * Recorder を begin したのとは別のスレッドで動く段なら、そのスレッドで最初に呼ぶ
+         * （このスレッドの割り当てバイト数も数える）。
+         */
+        public Probe attach() {
+            allocStart = allocatedBytes();
+            return this;
+        }
+
+        /**
+         * 同じ入力を別の Probe がすでに数えている段（ConvertEngine の2つ目以降の出力）。
+         * 入力バイト数は足さない。
+         */
+        public Probe sharedInput() {
+            sharedInput = true;
+            return this;
+        }
+
+        /**
+         * ここまでの数を捨て、以降は r に数える（時間範囲版で、範囲の手前の読み込みを {@link #discard()} の
+         * Probe で処理し、範囲に入ったところから数える場合。段の状態は範囲をまたいで持ち越すので Probe ごと替えられない）。
+         */
+        public Probe rebind(Recorder r) {
+            flush();
+            recorder = r;
+            return this;
+        }
+
+        /** timing の1区間（len バイト、録画開始から elapsed 秒） */
+        public void input(long len, double elapsed) {
+            if (!sharedInput) bytesIn += len;
+            this.elapsed = elapsed;
+            if (++entries % FLUSH_ENTRIES == 0) flush();
+        }
+
+        public void emitted() {
+            emitted++;
+        }
+
+        /** フィルタのルール以外の理由で出力しなかった行 */
+        public void skipped() {
+            other++;
+        }
+
+        public long sanitizeStart() {
+            inSanitize = true;
+            nested = 0;
+            return System.nanoTime();
+        }
+
+        public void sanitizeEnd(long t0) {
+            inSanitize = false;
+            sanitize += System.nanoTime() - t0 - nested;
+        }
+
+        public long writeStart() {
+            return System.nanoTime();
+        }
+
+        public void writeEnd(long t0) {
+            long d = System.nanoTime() - t0;
+            write += d;
+            if (inSanitize) nested += d;
+        }
+
+        /** ここまでの数を Recorder に足す */
+        public void flush() {
+            Recorder r = recorder;
+            if (bytesIn != 0) r.bytesIn.add(bytesIn);
+            if (emitted != 0) r.linesEmitted.add(emitted);
+            if (sanitize != 0) r.sanitizeNanos.add(sanitize);
+            if (write != 0) r.writeNanos.add(write);
+            r.dropped(otherRule, other);
+            if (filter != null) filter.drainDropped(r::dropped);
+            if (allocStart >= 0) {
+                long now = allocatedBytes();
+                if (now >= allocStart) r.allocated.add(now - allocStart);
+                allocStart = now;
+            }
+            if (elapsed > r.elapsed) r.elapsed = elapsed;
+            bytesIn = emitted = other = sanitize = write = 0;
+        }
+    }
+
+    // ====== 集計 ======
+
+    private static final class Totals {
+        final LongAdder sessions = new LongAdder(), failed = new LongAdder(), bytesIn = new LongAdder(),
+                linesEmitted = new LongAdder(), sanitizeNanos = new LongAdder(), writeNanos = new LongAdder(),
+                allocated = new LongAdder(), nanos = new LongAdder();
+    }
+
+    // セッションごとの値（終わったもの、または変換中のものの今の値）
+    private static final class Snapshot {
+        final String session, mode;
+        final long bytesIn, linesEmitted, linesDropped, sanitizeNanos, writeNanos, allocated, nanos;
+        final double lagSeconds; // 追従中でなければ NaN
+
+        Snapshot(Recorder r, long nanos) {
+            session = r.session;
+            mode = r.mode;
+            bytesIn = r.bytesIn.sum();
+            linesEmitted = r.linesEmitted.sum();
+            linesDropped = r.linesDropped.sum();
+            sanitizeNanos = r.sanitizeNanos.sum();
+            writeNanos = r.writeNanos.sum();
+            allocated = r.allocated.sum();
+            this.nanos = nanos;
+            Instant start = r.recordingStart;
+            if (start == null) {
+                lagSeconds = Double.NaN;
+            } else {
+                long pos = start.getEpochSecond() * 1_000_000_000L + start.getNano() + (long) (r.elapsed * 1e9);
+                Instant now = Instant.now();
+                lagSeconds = Math.max(0, (now.getEpochSecond() * 1_000_000_000L + now.getNano() - pos) / 1e9);
+            }
+        }
+
+        double mbPerSecond() {
+            return nanos > 0 ? bytesIn / (1024.0 * 1024.0) / (nanos / 1e9) : 0.0;
+        }
+    }
+
+    // ====== Prometheus ======
+
+    /** Prometheus のテキスト形式（0.0.4）で書き出す */
+    public void writePrometheus(Appendable out) throws IOException {
+        Map<String, Totals> byMode = new TreeMap<>(totals);
+        counter(out, "typescript_sessions_total", "Converted sessions.", byMode, t -> t.sessions.sum());
+        counter(out, "typescript_sessions_failed_total", "Sessions whose conversion failed.", byMode, t -> t.failed.sum());
+        counter(out, "typescript_bytes_in_total", "Typescript bytes read.", byMode, t -> t.bytesIn.sum());
+        counter(out, "typescript_lines_emitted_total", "Lines written to the output.", byMode, t -> t.linesEmitted.sum());
+        seconds(out, "typescript_sanitize_seconds_total", "Time spent sanitizing terminal output.", byMode, t -> t.sanitizeNanos.sum());
+        seconds(out, "typescript_write_seconds_total", "Time spent formatting and writing output lines.", byMode, t -> t.writeNanos.sum());
+        seconds(out, "typescript_convert_seconds_total", "Wall-clock time of conversions.", byMode, t -> t.nanos.sum());
+        counter(out, "typescript_allocated_bytes_total", "Bytes allocated by converting threads.", byMode, t -> t.allocated.sum());
+
+        header(out, "typescript_lines_dropped_total", "Lines not written, by filter rule.", "counter");
+        Map<List<String>, LongAdder> d = new TreeMap<>(Comparator.comparing((List<String> k) -> k.get(0)).thenComparing(k -> k.get(1)));
+        d.putAll(drops);
+        for (Map.Entry<List<String>, LongAdder> e : d.entrySet()) {
+            sample(out, "typescript_lines_dropped_total", "mode", e.getKey().get(0), "rule", e.getKey().get(1), e.getValue().sum());
+        }
+
+        List<Snapshot> finished;
+        synchronized (recent) {
+            finished = new ArrayList<>(recent);
+        }
+        List<Snapshot> running = new ArrayList<>();
+        for (Recorder r : active) running.add(new Snapshot(r, System.nanoTime() - r.startNanos));
+        header(out, "typescript_active_sessions", "Sessions being converted.", "gauge");
+        out.append("typescript_active_sessions ").append(Integer.toString(running.size())).append('\n');
+        // 同じラベル（再変換、別のアーカイブの同名エントリ）が重なると Prometheus が全体を受け付けないので、
+        // ラベルごとに最新のもの（変換中のものがあればそれ）だけを残す
+        Map<List<String>, Snapshot> latest = new LinkedHashMap<>();
+        for (Snapshot s : finished) latest.put(List.of(s.session, s.mode), s);
+        for (Snapshot s : running) latest.put(List.of(s.session, s.mode), s);
+        Collection<Snapshot> sessions = latest.values();
+
+        header(out, "typescript_session_throughput_mb_per_second", "End-to-end MB/s of recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_throughput_mb_per_second", s, s.mbPerSecond());
+        header(out, "typescript_session_seconds", "Wall-clock time of recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_seconds", s, s.nanos / 1e9);
+        header(out, "typescript_session_sanitize_seconds", "Sanitizer time of recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_sanitize_seconds", s, s.sanitizeNanos / 1e9);
+        header(out, "typescript_session_write_seconds", "Write time of recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_write_seconds", s, s.writeNanos / 1e9);
+        header(out, "typescript_session_allocated_bytes", "Bytes allocated by recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_allocated_bytes", s, s.allocated);
+        header(out, "typescript_session_lines_dropped", "Lines not written by recent sessions.", "gauge");
+        for (Snapshot s : sessions) sample(out, "typescript_session_lines_dropped", s, s.linesDropped);
+        header(out, "typescript_session_lag_seconds", "How far a followed session is behind the recording.", "gauge");
+        for (Snapshot s : running) {
+            if (latest.get(List.of(s.session, s.mode)) == s && !Double.isNaN(s.lagSeconds)) {
+                sample(out, "typescript_session_lag_seconds", s, s.lagSeconds);
+            }
+        }
+    }
+
+    /** Prometheus のテキストをファイルに書く（一時ファイルに書いてから置き換える） */
+    public void writeTo(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writePrometheus(w);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** 127.0.0.1:port の /metrics で公開する。close で止める */
+    public Closeable serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", ex -> {
+            StringBuilder sb = new StringBuilder(8192);
+            writePrometheus(sb);
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        return () -> server.stop(0);
+    }
+
+    private interface Value {
+        long of(Totals t);
+    }
+
+    private static void counter(Appendable out, String name, String help, Map<String, Totals> byMode, Value v)
+            throws IOException {
+        header(out, name, help, "counter");
+        for (Map.Entry<String, Totals> e : byMode.entrySet()) {
+            out.append(name).append("{mode=\"").append(escape(e.getKey())).append("\"} ")
+               .append(Long.toString(v.of(e.getValue()))).append('\n');
+        }
+    }
+
+    private static void seconds(Appendable out, String name, String help, Map<String, Totals> byMode, Value v)
+            throws IOException {
+        header(out, name, help, "counter");
+        for (Map.Entry<String, Totals> e : byMode.entrySet()) {
+            out.append(name).append("{mode=\"").append(escape(e.getKey())).append("\"} ")
+               .append(number(v.of(e.getValue()) / 1e9)).append('\n');
+        }
+    }
+
+    private static void header(Appendable out, String name, String help, String type) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, Snapshot s, double value) throws IOException {
+        out.append(name).append("{session=\"").append(escape(s.session)).append("\",mode=\"").append(escape(s.mode))
+           .append("\"} ").append(number(value)).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String k1, String v1, String k2, String v2, long value)
+            throws IOException {
+        out.append(name).append('{').append(k1).append("=\"").append(escape(v1)).append("\",")
+           .append(k2).append("=\"").append(escape(v2)).append("\"} ").append(Long.toString(value)).append('\n');
+    }
+
+    private static String number(double v) {
+        return v == Math.rint(v) && Math.abs(v) < 1e15 ? Long.toString((long) v) : Double.toString(v);
+    }
+
+    // ラベル値のエスケープ（\ " 改行）
+    private static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // ====== JFR ======
+
+    @Name("com.demo.Conversion")
+    @Label("Typescript Conversion")
+    @Category("Typescript")
+    @Description("1セッションの変換")
+    @StackTrace(false)
+    static final class ConversionEvent extends Event {
+        @Label("Session") String session;
+        @Label("Mode") String mode;
+        @Label("Bytes In") @DataAmount long bytesIn;
+        @Label("Lines Emitted") long linesEmitted;
+        @Label("Lines Dropped") long linesDropped;
+        @Label("Sanitize Time") @Timespan long sanitizeTime;
+        @Label("Write Time") @Timespan long writeTime;
+        @Label("Allocated") @DataAmount long allocated;
+        @Label("Throughput (MB/s)") double throughput;
+        @Label("Failed") boolean failed;
+    }
+
+    @Name("com.demo.FilterDrops")
+    @Label("Typescript Filter Drops")
+    @Category("Typescript")
+    @Description("1セッションで、ルールごとに出力しなかった行数")
+    @StackTrace(false)
+    static final class FilterDropsEvent extends Event {
+        @Label("Session") String session;
+        @Label("Mode") String mode;
+        @Label("Rule") String rule;
+        @Label("Lines") long lines;
+    }
+}
@@ -0,0 +1,478 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 1回の読み込みで複数の形式に出力する変換エンジン。
+ * NAME と NAME.timing を1度だけ読み、timing の各エントリ（delay とその区間のバイト）を、登録した出力（Sink）すべてに渡す。
+ *
+ * 出力ごとに必要な段（サニタイズ・行の切り出し・フィルタ・プロンプト判定）は異なるが、同じ段を使う出力どうしは
+ * 1つを共有する。コマンド系の出力（commands / json / 任意の CommandSink）は、区間ごとのサニタイズ → 行の切り出し →
+ * プロンプト判定（CommandOnlyExtractor と同じ）を1つだけ動かし、判定結果をそれぞれの形式で書く。
+ *
+ *   log      … 全体ログ（TypescriptToLog：画面モデル → LineFilter → REL,ABS,AAAA,内容）
+ *   commands … プロンプト＋コマンドのみ（CommandOnlyExtractor：REL,ABS,AAAAA, <prompt><cmd>）
+ *   json     … commands と同じ行を1行1オブジェクトの JSON で
+ *   stamped  … 全行に [ISO 時刻] を付けたもの（Ts2Log）
+ *
+ * どの出力も、それを1つだけ登録した場合は元の変換器と同じ結果になる
+ * （CommandOnlyExtractor のストリーム版と Ts2Log はこのエンジンで動く）。
+ * 使い方：
+ * <pre>
+ *   new ConvertEngine()
+ *       .log(logOut, start, false, true)
+ *       .commands(cmdOut, start.atZone(zone))
+ *       .json(jsonOut, start.atZone(zone))
+ *       .run(data, timing);
+ * </pre>
+ */
+public final class ConvertEngine {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+
+    /** finish() に渡す、timing の範囲の後に残ったデータの最大バイト数 */
+    public static final int REST = 2;
+
+    /** 読み込みバッファの大きさ。これより長い区間は分けて渡す */
+    static final int CHUNK = 64 * 1024;
+
+    /** 出力。timing の1エントリごとに entry()、最後に finish() が呼ばれる */
+    public interface Sink {
+        /**
+         * timing の1エントリ。declared は timing に書かれたバイト数、b[off, off+len) は実際に読めたバイトの先頭
+         * （最大 {@link #CHUNK} バイト。データが先に尽きると len &lt; declared、以降のエントリは len = 0）。
+         * b は呼び出しの間だけ有効。
+         */
+        void entry(long delayNanos, long declared, byte[] b, int off, int len) throws IOException;
+
+        /**
+         * 直前の entry() のエントリの続きのバイト（区間が {@link #CHUNK} バイトより長いときだけ、順に呼ばれる）。
+         * エントリは次の entry() か finish() で終わる。b は呼び出しの間だけ有効。
+         */
+        void more(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * timing の終わり。rest[0, restLen) は timing の範囲の後に残っていたデータの先頭（最大 {@link #REST} バイト。
+         * 0 ならデータも読み切った）。未完の最終行など、残りをここで書き出す。
+         */
+        void finish(byte[] rest, int restLen) throws IOException;
+    }
+
+    /** コマンド系の出力。プロンプト判定を通った1行ごとに呼ばれる（last は改行のないまま終わった最後の行） */
+    public interface CommandSink {
+        void command(double elapsed, boolean last, String prompt, String cmd) throws IOException;
+    }
+
+    private final List<Sink> sinks = new ArrayList<>();
+    private CommandStage commandStage;
+    private boolean inputCounted;
+
+    /** 任意の出力を追加する */
+    public ConvertEngine add(Sink sink) {
+        sinks.add(sink);
+        return this;
+    }
+
+    /** コマンド系の出力を追加する（プロンプト判定は他のコマンド系の出力と共有） */
+    public ConvertEngine add(CommandSink sink) {
+        commandStage().sinks.add(sink);
+        return this;
+    }
+
+    /** 全体ログ（TypescriptToLog と同じ。screen=false は --no-screen） */
+    public ConvertEngine log(BufferedWriter out, Instant start, boolean rawMode, boolean screen) {
+        return add(com.demo.test01.TypescriptToLog.sink(out, start, rawMode, screen, probe(null)));
+    }
+
+    /** プロンプト＋コマンドのみ（CommandOnlyExtractor と同じ） */
+    public ConvertEngine commands(Appendable out, ZonedDateTime startTs) {
+        CommandStage stage = commandStage();
+        stage.sinks.add(new CommandOnlyExtractor.TextCommands(out, startTs, stage.probe));
+        return this;
+    }
+
+    /** commands と同じ行を JSON Lines で */
+    public ConvertEngine json(Appendable out, ZonedDateTime startTs) {
+        return add(new JsonCommands(out, startTs));
+    }
+
+    /** 全行に [ISO 時刻] を付けたもの（Ts2Log と同じ。start が null なら T+hh:mm:ss.mmm） */
+    public ConvertEngine stamped(Appendable out, OffsetDateTime start, boolean stripAnsi, boolean stripCr) {
+        return add(new StampedLines(out, start, stripAnsi, stripCr));
+    }
+
+    private CommandStage commandStage() {
+        if (commandStage == null) {
+            commandStage = new CommandStage(probe(CommandOnlyExtractor.RowFilter.NOT_COMMAND));
+            sinks.add(commandStage);
+        }
+        return commandStage;
+    }
+
+    // 入力バイト数は最初の段だけが数える（同じ入力を出力の数だけ数えないように）
+    private ConversionMetrics.Probe probe(String otherRule) {
+        ConversionMetrics.Probe p = ConversionMetrics.current().probe(otherRule);
+        if (inputCounted) p.sharedInput();
+        inputCounted = true;
+        return p;
+    }
+
+    /**
+     * data と timing を1度だけ読み、登録したすべての出力に渡す。
+     * 区間のバイトは固定長のバッファで読み、長い区間は entry() と more() に分けて渡す
+     * （timing の壊れた行が巨大なバイト数を書いていても、読めた分しか扱わない）。
+     */
+    public void run(InputStream data, TimingParser timing) throws IOException {
+        Sink[] all = sinks.toArray(new Sink[0]);
+        byte[] chunk = new byte[CHUNK]; // 区間のバイト（使い回す）
+        while (timing.next()) {
+            long count = timing.bytes();
+            int filled = data.readNBytes(chunk, 0, (int)Math.min(count, chunk.length));
+            long delayNanos = timing.delayNanos();
+            for (Sink s : all) s.entry(delayNanos, count, chunk, 0, filled);
+            // 続きも読み切って、次のエントリの位置を合わせる
+            for (long left = count - filled; left > 0 && filled > 0; left -= filled) {
+                filled = data.readNBytes(chunk, 0, (int)Math.min(left, chunk.length));
+                if (filled > 0) for (Sink s : all) s.more(chunk, 0, filled);
+            }
+        }
+        byte[] rest = new byte[REST];
+        int restLen = data.readNBytes(rest, 0, REST);
+        for (Sink s : all) s.finish(rest, restLen);
+    }
+
+    /** NAME と NAME.timing から変換する */
+    public void run(Path namePath, Path timingPath, TimingParser.Unit unit) throws IOException {
+        try (InputStream data = new BufferedInputStream(Files.newInputStream(namePath), 64 * 1024);
+             TimingParser timing = TimingParser.open(timingPath, unit)) {
+            run(data, timing);
+        }
+    }
+
+    // ====== コマンド系の段 ======
+
+    /**
+     * 区間ごとのサニタイズ → 行の切り出し → プロンプト判定を1回だけ行い、結果をすべての CommandSink に渡す。
+     * サニタイズは区間単位なので、分けて渡された区間は読めたバイトだけをためてからまとめて処理する。
+     */
+    private static final class CommandStage implements Sink, CommandSink {
+        final ConversionMetrics.Probe probe;
+        final CommandOnlyExtractor.LineSplitter splitter;
+        final CommandOnlyExtractor.RowFilter filter;
+        final List<CommandSink> sinks = new ArrayList<>();
+        private final List<String> rows = new ArrayList<>();
+        private CommandSink[] targets;
+        private CommandSink target; // 出力が1つならそれ自身、複数なら this（順に配る）
+        private byte[] pending = new byte[0]; // 続きが来るかもしれない区間のバイト
+        private int pendingLen;
+        private long pendingDelay;
+        private boolean hasPending;
+
+        CommandStage(ConversionMetrics.Probe probe) {
+            this.probe = probe;
+            this.splitter = new CommandOnlyExtractor.LineSplitter(probe);
+            this.filter = new CommandOnlyExtractor.RowFilter(probe);
+        }
+
+        @Override public void entry(long delayNanos, long declared, byte[] b, int off, int len) throws IOException {
+            flushPending();
+            if (len < declared) {
+                hasPending = true;
+                pendingDelay = delayNanos;
+                pendingLen = 0;
+                more(b, off, len);
+                return;
+            }
+            feed(delayNanos, b, off, len);
+        }
+
+        @Override public void more(byte[] b, int off, int len) throws IOException {
+            if (len > Integer.MAX_VALUE - 8 - pendingLen) throw new IOException("timing の区間が大きすぎます");
+            if (pendingLen + len > pending.length) {
+                pending = Arrays.copyOf(pending, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(2L * pending.length, pendingLen + len)));
+            }
+            System.arraycopy(b, off, pending, pendingLen, len);
+            pendingLen += len;
+        }
+
+        private void flushPending() throws IOException {
+            if (!hasPending) return;
+            hasPending = false;
+            feed(pendingDelay, pending, 0, pendingLen);
+            if (pending.length > CHUNK) pending = new byte[0]; // 大きな区間のバッファは持ち続けない
+        }
+
+        private void feed(long delayNanos, byte[] b, int off, int len) throws IOException {
+            rows.clear();
+            splitter.feed(delayNanos, b, off, len, rows);
+            CommandSink to = target();
+            for (int i = 0; i < rows.size(); i++) filter.row(rows.get(i), splitter.elapsed, to);
+        }
+
+        @Override public void finish(byte[] rest, int restLen) throws IOException {
+            flushPending();
+            if (splitter.bufLine.length() > 0) filter.last(splitter.bufLine.toString(), splitter.elapsed, target());
+            probe.flush();
+        }
+
+        private CommandSink target() {
+            if (target == null) {
+                targets = sinks.toArray(new CommandSink[0]);
+                target = targets.length == 1 ? targets[0] : this;
+            }
+            return target;
+        }
+
+        // 複数の出力へ
+        @Override public void command(double elapsed, boolean last, String prompt, String cmd) throws IOException {
+            for (CommandSink s : targets) s.command(elapsed, last, prompt, cmd);
+        }
+    }
+
+    /**
+     * JSON Lines 形式のコマンド出力。1行に1オブジェクト：
+     * {"time":"2024-01-01T09:00:05.123+09:00","elapsed":5.123,"prompt":"user@host:~$ ","command":"ls -la"}
+     * 改行のないまま終わった最後の行には "partial":true が付く。
+     */
+    public static final class JsonCommands implements CommandSink {
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSXXX");
+
+        private final Appendable out;
+        private final ZonedDateTime start;
+
+        public JsonCommands(Appendable out, ZonedDateTime startTs) {
+            this.out = out;
+            this.start = startTs;
+        }
+
+        @Override public void command(double elapsed, boolean last, String prompt, String cmd) throws IOException {
+            long ms = (long)(elapsed * 1000.0);
+            out.append("{\"time\":\"");
+            TIME.formatTo(start.plus(ms, ChronoUnit.MILLIS), out);
+            out.append("\",\"elapsed\":").append(Long.toString(ms / 1000)).append('.');
+            long frac = ms % 1000;
+            if (frac < 100) out.append('0');
+            if (frac < 10) out.append('0');
+            out.append(Long.toString(frac));
+            out.append(",\"prompt\":");
+            quote(prompt);
+            out.append(",\"command\":");
+            quote(cmd);
+            if (last) out.append(",\"partial\":true");
+            out.append("}\n");
+        }
+
+        private void quote(String s) throws IOException {
+            out.append('"');
+            int from = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') continue;
+                out.append(s, from, i);
+                switch (c) {
+                    case '"':  out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                }
+                from = i + 1;
+            }
+            out.append(s, from, s.length());
+            out.append('"');
+        }
+    }
+
+    // ====== 時刻付きの全行 ======
+
+    /**
+     * Ts2Log の出力：データの各行をそのまま（--strip-ansi / --strip-cr の加工のみ）、
+     * 行が終わった区間の累計時刻を付けて書く。
+     *   start あり： [2024-01-01T09:00:05.123+09:00] 行
+     *   start なし： [T+00:00:05.123] 行
+     * データが timing より先に尽きたら、そこで打ち切る。
+     */
+    public static final class StampedLines implements Sink {
+        private static final Pattern ANSI = Pattern.compile("\\u001B\\[[0-?]*[ -/]*[@-~]");
+
+        private final Appendable out;
+        private final OffsetDateTime start;
+        private final boolean stripAnsi, stripCr;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+        private double tRel = 0.0;
+        private boolean ended;
+
+        public StampedLines(Appendable out, OffsetDateTime start, boolean stripAnsi, boolean stripCr) {
+            this.out = out;
+            this.start = start;
+            this.stripAnsi = stripAnsi;
+            this.stripCr = stripCr;
+        }
+
+        @Override public void entry(long delayNanos, long declared, byte[] b, int off, int len) throws IOException {
+            if (ended) return;
+            tRel += delayNanos / 1e9;
+            if (declared > 0 && len == 0) {
+                ended = true;
+                return;
+            }
+            more(b, off, len);
+        }
+
+        @Override public void more(byte[] b, int off, int len) throws IOException {
+            if (ended) return;
+            for (int i = off, end = off + len; i < end; i++) {
+                byte c = b[i];
+                if (stripCr && c == '\r') continue;
+                if (c == '\n') emitLine();
+                else buf.write(c);
+            }
+        }
+
+        @Override public void finish(byte[] rest, int restLen) throws IOException {
+            if (buf.size() > 0) emitLine();
+        }
+
+        private void emitLine() throws IOException {
+            String line = buf.toString(StandardCharsets.UTF_8);
+            buf.reset();
+            if (stripAnsi) line = ANSI.matcher(line).replaceAll("");
+            String stamp;
+            if (start != null) {
+                long ms = Math.round(tRel * 1000.0);
+                stamp = start.plus(Duration.ofMillis(ms)).toString();        // ISO8601
+            } else {
+                int ms = (int)Math.round((tRel - Math.floor(tRel)) * 1000.0);
+                int hh = (int)Math.floor(tRel / 3600.0);
+                int mm = (int)Math.floor((tRel % 3600) / 60.0);
+                int ss = (int)Math.floor(tRel % 60.0);
+                stamp = String.format("T+%02d:%02d:%02d.%03d", hh, mm, ss, ms);
+            }
+            out.append("[").append(stamp).append("] ").append(line).append(System.lineSeparator());
+        }
+    }
+
+    // ====== コマンドライン ======
+
+    /**
+     * java com.demo.ConvertEngine <NAME> [--timing <file>] [--start <ts>] [--unit seconds|micros|auto]
+     *     [--log <out>] [--raw] [--no-screen] [--cmd <out>] [--json <out>]
+     *     [--stamped <out>] [--strip-ansi] [--strip-cr] [--metrics-file <file>]
+     * <out> に - を指定すると標準出力。出力を1つも指定しなければ --log <NAME>.log。
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.ConvertEngine <NAME> [--timing <file>] [--start <ts>] [--unit seconds|micros|auto]");
+            System.err.println("        [--log <out>] [--raw] [--no-screen] [--cmd <out>] [--json <out>]");
+            System.err.println("        [--stamped <out>] [--strip-ansi] [--strip-cr] [--metrics-file <file>]");
+            System.err.println("  <out> に - を指定すると標準出力。<ts> は ISO-8601 または yyyy/MM/dd HH:mm:ss（Asia/Tokyo）");
+            System.exit(2);
+        }
+        Path namePath = Paths.get(args[0]);
+        Path timingPath = Paths.get(args[0] + ".timing");
+        String startStr = null;
+        TimingParser.Unit unit = TimingParser.Unit.SECONDS;
+        String logOut = null, cmdOut = null, jsonOut = null, stampedOut = null;
+        boolean rawMode = false, screen = true, stripAnsi = false, stripCr = false;
+        Path metricsFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--timing".equals(args[i]) && i + 1 < args.length) {
+                timingPath = Paths.get(args[++i]);
+            } else if ("--start".equals(args[i]) && i + 1 < args.length) {
+                startStr = args[++i];
+            } else if ("--unit".equals(args[i]) && i + 1 < args.length) {
+                String u = args[++i];
+                unit = "micros".equals(u) ? TimingParser.Unit.MICROS
+                        : "auto".equals(u) ? TimingParser.Unit.AUTO : TimingParser.Unit.SECONDS;
+            } else if ("--log".equals(args[i]) && i + 1 < args.length) {
+                logOut = args[++i];
+            } else if ("--raw".equals(args[i])) {
+                rawMode = true;
+            } else if ("--no-screen".equals(args[i])) {
+                screen = false;
+            } else if ("--cmd".equals(args[i]) && i + 1 < args.length) {
+                cmdOut = args[++i];
+            } else if ("--json".equals(args[i]) && i + 1 < args.length) {
+                jsonOut = args[++i];
+            } else if ("--stamped".equals(args[i]) && i + 1 < args.length) {
+                stampedOut = args[++i];
+            } else if ("--strip-ansi".equals(args[i])) {
+                stripAnsi = true;
+            } else if ("--strip-cr".equals(args[i])) {
+                stripCr = true;
+            } else if ("--metrics-file".equals(args[i]) && i + 1 < args.length) {
+                metricsFile = Paths.get(args[++i]);
+            }
+        }
+        if (logOut == null && cmdOut == null && jsonOut == null && stampedOut == null) logOut = args[0] + ".log";
+
+        // 時刻付きの全行は、--start がなければ Ts2Log と同じく T+ の相対時刻
+        OffsetDateTime stampedStart = startStr == null ? null : parseStart(startStr);
+        ZonedDateTime start = startStr == null ? ZonedDateTime.now(DEFAULT_ZONE) : stampedStart.atZoneSameInstant(DEFAULT_ZONE);
+
+        List<Closeable> opened = new ArrayList<>();
+        BufferedWriter[] stdout = new BufferedWriter[1];
+        try (ConversionMetrics.Recorder metrics = ConversionMetrics.begin(namePath.getFileName().toString(), "engine")) {
+            try {
+                ConvertEngine engine = new ConvertEngine();
+                if (logOut != null) engine.log(open(logOut, opened, stdout), start.toInstant(), rawMode, screen);
+                if (cmdOut != null) engine.commands(open(cmdOut, opened, stdout), start);
+                if (jsonOut != null) engine.json(open(jsonOut, opened, stdout), start);
+                if (stampedOut != null) engine.stamped(open(stampedOut, opened, stdout), stampedStart, stripAnsi, stripCr);
+                engine.run(namePath, timingPath, unit);
+            } catch (IOException | RuntimeException e) {
+                metrics.failed();
+                throw e;
+            } finally {
+                IOException closeError = null;
+                for (Closeable c : opened) {
+                    try {
+                        c.close();
+                    } catch (IOException e) {
+                        if (closeError == null) closeError = e;
+                    }
+                }
+                if (stdout[0] != null) stdout[0].flush();
+                if (closeError != null) throw closeError;
+            }
+        }
+        if (metricsFile != null) ConversionMetrics.global().writeTo(metricsFile);
+    }
+
+    // - は標準出力（複数の出力で - を指定しても1つの Writer を共有する）
+    private static BufferedWriter open(String out, List<Closeable> opened, BufferedWriter[] stdout) throws IOException {
+        if ("-".equals(out)) {
+            if (stdout[0] == null) stdout[0] = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            return stdout[0];
+        }
+        Path p = Paths.get(out);
+        Files.createDirectories(p.getParent() != null ? p.getParent() : Paths.get("."));
+        BufferedWriter w = Files.newBufferedWriter(p, StandardCharsets.UTF_8);
+        opened.add(w);
+        return w;
+    }
+
+    // ISO-8601（オフセット付き、または Z）か yyyy/MM/dd HH:mm:ss（Asia/Tokyo）
+    static OffsetDateTime parseStart(String str) {
+        try {
+            return OffsetDateTime.parse(str);
+        } catch (Exception ignore) {}
+        try {
+            return LocalDateTime.parse(str, DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss")).atZone(DEFAULT_ZONE).toOffsetDateTime();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("--start の時刻を解析できません: " + str);
+        }
+    }
+}
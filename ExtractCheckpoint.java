@@ -0,0 +1,143 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.zip.CRC32;
+
+/**
+ * CommandOnlyExtractor の再開用チェックポイント（<出力>.ckpt）。
+ * 録画ファイル・timing をどこまで処理したか、その時点のログの長さと抽出状態
+ * （累計経過時間、持ち越し中の半行、最新のプロンプト）を記録する。
+ * 録画が追記されたあとの再実行では、ログをこの長さに切り詰めて続きから変換する。
+ *
+ * TerminalSanitizer は区間ごとに状態を初期化するので、区間の境目で保存すべき状態はない。
+ * 録画ファイル・timing の先頭（最大 4KB）の CRC が一致しなければ使わない。
+ * 開始時刻はチェックポイントに記録したものを使い続ける。呼び出し側の開始時刻（現在時刻や
+ * TimingParser.recordingStart の推定値）は実行のたびに少しずつ変わるので、一致は求めない。
+ */
+final class ExtractCheckpoint {
+
+    private static final int MAGIC   = 0x434B5054; // "CKPT"
+    private static final int VERSION = 1;
+    private static final int HEAD    = 4096;       // 同一ファイルか確かめるために CRC を取る先頭のバイト数
+
+    final ZonedDateTime start;    // ログの時刻の基準（前回の実行で使ったもの）
+    final long typescriptOffset;  // 処理済みの録画バイト数
+    final long timingOffset;      // 次に読む timing 行の位置（バイト）
+    final long timingLine;        // そこまでの行数
+    final long logLength;         // その時点のログの長さ（バイト）
+    final double elapsed;         // 累計経過時間（秒、変換中と同じ double のまま保存）
+    final String partialLine;     // 改行待ちの半行
+    final String currentPrompt;
+
+    ExtractCheckpoint(ZonedDateTime start, long typescriptOffset, long timingOffset, long timingLine, long logLength,
+                      double elapsed, String partialLine, String currentPrompt) {
+        this.start = start;
+        this.typescriptOffset = typescriptOffset;
+        this.timingOffset = timingOffset;
+        this.timingLine = timingLine;
+        this.logLength = logLength;
+        this.elapsed = elapsed;
+        this.partialLine = partialLine;
+        this.currentPrompt = currentPrompt;
+    }
+
+    /** 出力 <out> に対応する <out>.ckpt */
+    static Path pathOf(Path outPath) {
+        return outPath.resolveSibling(outPath.getFileName() + ".ckpt");
+    }
+
+    /**
+     * チェックポイントを読む。存在しない・壊れている・入力が変わっている場合は null（最初から変換する）。
+     */
+    static ExtractCheckpoint load(Path outPath, Path namePath, Path timingPath) throws IOException {
+        Path ckpt = pathOf(outPath);
+        if (!Files.isRegularFile(ckpt) || !Files.isRegularFile(outPath)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ckpt)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            long startSec = in.readLong();
+            int startNano = in.readInt();
+            String zone = readString(in);
+            long tsOff = in.readLong();
+            long tsCrc = in.readLong();
+            long tmOff = in.readLong();
+            long tmLine = in.readLong();
+            long tmCrc = in.readLong();
+            long logLen = in.readLong();
+            double elapsed = in.readDouble();
+            String partial = readString(in);
+            String prompt = readString(in);
+
+            ZonedDateTime start;
+            try {
+                start = Instant.ofEpochSecond(startSec, startNano).atZone(ZoneId.of(zone));
+            } catch (DateTimeException e) {
+                return null;
+            }
+            // 入力が差し替えられていない（先頭が同じで、記録位置まで伸びている）こと
+            if (Files.size(namePath) < tsOff || Files.size(timingPath) < tmOff
+                    || Files.size(outPath) < logLen) return null;
+            if (headCrc(namePath, tsOff) != tsCrc || headCrc(timingPath, tmOff) != tmCrc) return null;
+            return new ExtractCheckpoint(start, tsOff, tmOff, tmLine, logLen, elapsed, partial, prompt);
+        } catch (EOFException e) {
+            return null; // 書きかけ
+        }
+    }
+
+    /** 保存する（一時ファイルに書いてから置き換える） */
+    void save(Path outPath, Path namePath, Path timingPath) throws IOException {
+        Path ckpt = pathOf(outPath);
+        Path tmp = ckpt.resolveSibling(ckpt.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start.toEpochSecond());
+            out.writeInt(start.getNano());
+            writeString(out, start.getZone().getId());
+            out.writeLong(typescriptOffset);
+            out.writeLong(headCrc(namePath, typescriptOffset));
+            out.writeLong(timingOffset);
+            out.writeLong(timingLine);
+            out.writeLong(headCrc(timingPath, timingOffset));
+            out.writeLong(logLength);
+            out.writeDouble(elapsed);
+            writeString(out, partialLine);
+            writeString(out, currentPrompt);
+        }
+        try {
+            Files.move(tmp, ckpt, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, ckpt, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void delete(Path outPath) throws IOException {
+        Files.deleteIfExists(pathOf(outPath));
+    }
+
+    // 先頭 min(limit, HEAD) バイトの CRC
+    private static long headCrc(Path p, long limit) throws IOException {
+        byte[] b = new byte[(int) Math.min(limit, HEAD)];
+        try (InputStream in = Files.newInputStream(p)) {
+            int n = in.readNBytes(b, 0, b.length);
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, n);
+            return crc.getValue();
+        }
+    }
+
+    // 文字列は UTF-16 のまま保存する（バックスペースで分断されたサロゲートもそのまま戻す）
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) throw new EOFException();
+        char[] c = new char[n];
+        for (int i = 0; i < n; i++) c[i] = in.readChar();
+        return new String(c);
+    }
+}
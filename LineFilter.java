@@ -0,0 +1,578 @@
+package com.demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 行単位の破棄／保持ルール（ウェルカムメッセージ、Vim の画面、罫線の多い行など）をまとめて判定するフィルタ。
+ *
+ * ルールは上から順に評価し、最初に一致したルールの drop/keep で決まる（どれにも一致しなければ保持）。
+ * 判定は前後の空白（0x20 以下）を除いた範囲に対して行うが、文字列のコピーは作らない。
+ * <ul>
+ *   <li>リテラル（prefix/contains/equals）と regex のヒントは Aho-Corasick のオートマトン1個にまとめ、
+ *       行を1回走査して一致を集める。大文字小文字を区別しないもの（ci）は別のオートマトンを同じ走査で回す。</li>
+ *   <li>regex はヒントが見つかった行でだけ実行する（ヒントのない regex は毎行実行）。</li>
+ *   <li>ratio（文字クラスの割合）も同じ走査で数える。</li>
+ * </ul>
+ *
+ * ルールの書式（1行1ルール、# 以降はコメント）：
+ * <pre>
+ *   &lt;drop|keep&gt; &lt;名前&gt; &lt;種類&gt; [ci] [hint=文字列 | hint=^文字列]... &lt;引数&gt;
+ *
+ *   drop blank        blank
+ *   drop vim.mode     regex hint=-- (?:^|\s)--\s(?:INSERT|VISUAL|REPLACE)\s--
+ *   drop motd.login   prefix ci Last login:
+ *   drop box.drawing  ratio 2500-257F,2580-259F &gt; 0.3
+ * </pre>
+ * 種類：blank（空行）、prefix/contains/equals（リテラル）、regex（find）、ratio（範囲,範囲 &gt;|&gt;= 割合）。
+ * hint=^… は行頭でだけ一致するヒント。ci はリテラルとヒントの大文字小文字を区別しない（regex 自体は (?i) で指定）。
+ *
+ * ルールごとに判定回数・一致数・所要時間を数える。回数は正確、時間は 1/{@value #SAMPLE} の行だけ測った推定値。
+ * フィルタ本体はスレッド間で共有できる。判定は matcher() で作る Matcher（スレッドセーフではない）で行う。
+ */
+public final class LineFilter {
+
+    /** ルールファイルを指定するシステムプロパティ（指定があれば既定のルールの代わりに使う） */
+    public static final String RULES_PROPERTY = "typescript.filter";
+
+    /** ログイン時の見出し・MOTD・typescript の開始/終了マーク */
+    public static final String WELCOME_RULES = String.join("\n",
+            "drop welcome regex ci hint=^[begin hint=^begin hint=^[end hint=^end hint=^welcome hint=^debian"
+                    + " hint=^documentation: hint=^last hint=^the hint=^*"
+                    + " (?i)^(?:\\[?BEGIN\\s+TYPESCRIPT\\]?|\\[?END\\s+TYPESCRIPT\\]?|welcome\\s+to\\s+ubuntu"
+                    + "|debian\\s+gnu/linux|documentation:|last\\s+login:"
+                    + "|the\\s+programs\\s+included\\s+with\\s+the\\s+debian|\\*\\s+.+)",
+            "");
+
+    /**
+     * 空行、Vim の状態行・空行（~）、罫線が密集した行。
+     * vim.mode は旧 shouldDropLineStrict の \s--\s… より広く、行頭の「-- INSERT --」（前に空白がない）も落とす。
+     */
+    public static final String SCREEN_RULES = String.join("\n",
+            "drop blank blank",
+            "drop vim.mode regex hint=-- (?:^|\\s)--\\s(?:INSERT|VISUAL|REPLACE)\\s--",
+            "drop vim.file.new regex hint=[New ^\\s*\"[^\"]+\"\\s*\\[(?:New File|New)\\]\\s*$",
+            "drop vim.file.stats regex hint=^\" ^\\s*\"[^\"]+\"\\s*\\d+L,\\s*\\d+B\\s*$",
+            "drop tilde regex hint=^~ ^[\\s~]+$",
+            "drop box.drawing ratio 2500-257F,2580-259F > 0.3",
+            "");
+
+    static final int SAMPLE = 16;             // 時間はこの行数に1回だけ測る
+    private static final int FLUSH_LINES = 4096;
+
+    private enum Kind { BLANK, PREFIX, CONTAINS, EQUALS, REGEX, RATIO }
+
+    private static final class Rule {
+        final String name;
+        final boolean drop;
+        final Kind kind;
+        final Pattern pattern;    // REGEX
+        final int[] ranges;       // RATIO：[from, to] の組
+        final double threshold;
+        final boolean inclusive;  // RATIO：>= なら true
+        final boolean always;     // ヒントのない REGEX
+        final LongAdder tested = new LongAdder(), hits = new LongAdder(), nanos = new LongAdder();
+
+        Rule(String name, boolean drop, Kind kind, Pattern pattern, int[] ranges, double threshold,
+             boolean inclusive, boolean always) {
+            this.name = name;
+            this.drop = drop;
+            this.kind = kind;
+            this.pattern = pattern;
+            this.ranges = ranges;
+            this.threshold = threshold;
+            this.inclusive = inclusive;
+            this.always = always;
+        }
+    }
+
+    private static volatile LineFilter standard, standardNoWelcome;
+
+    private final Rule[] rules;
+    private final Automaton exact, folded;  // 大文字小文字を区別する／しないリテラル
+    private final int[] ratioRules;         // RATIO ルールの番号
+    private final int ratioMin;             // RATIO の範囲の最小の文字（これより小さい文字は数えない）
+    private final LongAdder lines = new LongAdder(), scanNanos = new LongAdder();
+
+    private LineFilter(Rule[] rules, Automaton exact, Automaton folded) {
+        this.rules = rules;
+        this.exact = exact;
+        this.folded = folded;
+        int n = 0, min = Integer.MAX_VALUE;
+        for (Rule r : rules) {
+            if (r.kind != Kind.RATIO) continue;
+            n++;
+            for (int i = 0; i < r.ranges.length; i += 2) min = Math.min(min, r.ranges[i]);
+        }
+        ratioRules = new int[n];
+        for (int i = 0, k = 0; i < rules.length; i++) if (rules[i].kind == Kind.RATIO) ratioRules[k++] = i;
+        ratioMin = min;
+    }
+
+    /**
+     * 変換で使うフィルタ。-Dtypescript.filter=&lt;ファイル&gt; があればそのルール、なければ既定のルール
+     * （welcome=true なら WELCOME_RULES + SCREEN_RULES、false なら SCREEN_RULES）。
+     */
+    public static LineFilter standard(boolean welcome) {
+        LineFilter f = welcome ? standard : standardNoWelcome;
+        if (f != null) return f;
+        synchronized (LineFilter.class) {
+            f = welcome ? standard : standardNoWelcome;
+            if (f != null) return f;
+            String file = System.getProperty(RULES_PROPERTY);
+            try {
+                if (file != null && !file.isEmpty()) f = load(Paths.get(file));
+                else f = compile(welcome ? WELCOME_RULES + SCREEN_RULES : SCREEN_RULES);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("フィルタのルールを読めません: " + file, e);
+            }
+            if (welcome) standard = f; else standardNoWelcome = f;
+            return f;
+        }
+    }
+
+    public static LineFilter load(Path rulesFile) throws IOException {
+        return compile(new String(Files.readAllBytes(rulesFile), StandardCharsets.UTF_8));
+    }
+
+    /** ルールの文字列をコンパイルする（書式の誤りは IllegalArgumentException） */
+    public static LineFilter compile(String rulesText) {
+        List<Rule> rules = new ArrayList<>();
+        Automaton.Builder exact = new Automaton.Builder(false), folded = new Automaton.Builder(true);
+        String[] lines = rulesText.split("\r?\n", -1);
+        for (int no = 0; no < lines.length; no++) {
+            String line = lines[no].strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try {
+                rules.add(parse(line, rules.size(), exact, folded));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("フィルタのルール " + (no + 1) + " 行目: " + e.getMessage(), e);
+            }
+        }
+        return new LineFilter(rules.toArray(new Rule[0]), exact.build(), folded.build());
+    }
+
+    private static Rule parse(String line, int index, Automaton.Builder exact, Automaton.Builder folded) {
+        String[] head = line.split("\\s+", 4);
+        if (head.length < 3) throw new IllegalArgumentException("<drop|keep> <名前> <種類> が必要です");
+        boolean drop;
+        if ("drop".equals(head[0])) drop = true;
+        else if ("keep".equals(head[0])) drop = false;
+        else throw new IllegalArgumentException("drop か keep ではありません: " + head[0]);
+        String name = head[1];
+        Kind kind;
+        try {
+            kind = Kind.valueOf(head[2].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("不明な種類: " + head[2]);
+        }
+
+        // オプション（ci、hint=…）と引数
+        String rest = head.length > 3 ? head[3] : "";
+        boolean ci = false;
+        List<String> hints = new ArrayList<>();
+        while (!rest.isEmpty()) {
+            int sp = rest.indexOf(' ');
+            String tok = sp < 0 ? rest : rest.substring(0, sp);
+            if ("ci".equals(tok)) ci = true;
+            else if (tok.startsWith("hint=") && tok.length() > 5) hints.add(tok.substring(5));
+            else break;
+            rest = sp < 0 ? "" : rest.substring(sp + 1).stripLeading();
+        }
+        Automaton.Builder lits = ci ? folded : exact;
+
+        switch (kind) {
+            case BLANK:
+                return new Rule(name, drop, kind, null, null, 0, false, false);
+            case PREFIX: case CONTAINS: case EQUALS:
+                if (rest.isEmpty()) throw new IllegalArgumentException("リテラルがありません");
+                lits.add(rest, index, kind == Kind.PREFIX ? Automaton.PREFIX
+                        : kind == Kind.EQUALS ? Automaton.WHOLE : Automaton.ANYWHERE);
+                return new Rule(name, drop, kind, null, null, 0, false, false);
+            case REGEX: {
+                if (rest.isEmpty()) throw new IllegalArgumentException("正規表現がありません");
+                Pattern p;
+                try {
+                    p = Pattern.compile(rest);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("正規表現の誤り: " + e.getDescription());
+                }
+                for (String h : hints) {
+                    boolean anchored = h.startsWith("^") && h.length() > 1;
+                    lits.add(anchored ? h.substring(1) : h, index, anchored ? Automaton.PREFIX : Automaton.ANYWHERE);
+                }
+                return new Rule(name, drop, kind, p, null, 0, false, hints.isEmpty());
+            }
+            default: { // RATIO
+                String[] a = rest.split("\\s+");
+                if (a.length != 3 || !(">".equals(a[1]) || ">=".equals(a[1])))
+                    throw new IllegalArgumentException("ratio は <範囲,...> <>|>=> <割合> の形式です");
+                String[] parts = a[0].split(",");
+                int[] ranges = new int[parts.length * 2];
+                for (int i = 0; i < parts.length; i++) {
+                    String[] fromTo = parts[i].split("-", 2);
+                    ranges[i * 2] = hex(fromTo[0]);
+                    ranges[i * 2 + 1] = fromTo.length > 1 ? hex(fromTo[1]) : ranges[i * 2];
+                }
+                double t;
+                try {
+                    t = Double.parseDouble(a[2]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("割合が数値ではありません: " + a[2]);
+                }
+                return new Rule(name, drop, kind, null, ranges, t, ">=".equals(a[1]), false);
+            }
+        }
+    }
+
+    private static int hex(String s) {
+        if (s.startsWith("U+") || s.startsWith("u+")) s = s.substring(2);
+        try {
+            return Integer.parseInt(s, 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("16進の文字コードではありません: " + s);
+        }
+    }
+
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    /** ルールごとの集計（判定回数、一致数、推定時間）を書き出す */
+    public void report(Appendable out) throws IOException {
+        long n = lines.sum();
+        out.append(String.format("lines=%d  scan≈%.1fms%n", n, scanNanos.sum() * (double) SAMPLE / 1e6));
+        for (Rule r : rules) {
+            out.append(String.format("  %-4s %-20s %-8s tested=%-10d hits=%-10d time≈%.1fms%n",
+                    r.drop ? "drop" : "keep", r.name, r.kind.name().toLowerCase(Locale.ROOT),
+                    r.tested.sum(), r.hits.sum(), r.nanos.sum() * (double) SAMPLE / 1e6));
+        }
+    }
+
+    /**
+     * ルールの調整用：ファイルの各行を判定し、集計を表示する。
+     * 使い方: java com.demo.LineFilter [--rules <file>] [--dropped] <file>...
+     */
+    public static void main(String[] args) throws IOException {
+        LineFilter filter = null;
+        boolean printDropped = false;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--rules".equals(args[i]) && i + 1 < args.length) filter = load(Paths.get(args[++i]));
+            else if ("--dropped".equals(args[i])) printDropped = true;
+            else files.add(Paths.get(args[i]));
+        }
+        if (files.isEmpty()) {
+            System.err.println("用法: java com.demo.LineFilter [--rules <file>] [--dropped] <file>...");
+            System.exit(2);
+        }
+        if (filter == null) filter = standard(true);
+        Matcher m = filter.matcher();
+        for (Path f : files) {
+            try (BufferedReader in = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    if (m.drop(line) && printDropped) System.out.println(line);
+                }
+            }
+        }
+        m.flush();
+        filter.report(System.err);
+    }
+
+    /** 1本の変換の中で使う判定器（一致の印や正規表現の Matcher を使い回す） */
+    public final class Matcher {
+        private final java.util.regex.Matcher[] regex = new java.util.regex.Matcher[rules.length];
+        private final int[] mark = new int[rules.length];  // mark[r] == gen ならリテラル／ヒントが一致
+        private int gen;
+        private final int[] ratioCount = new int[ratioRules.length];
+        private final long[] tested = new long[rules.length], hits = new long[rules.length],
+                nanos = new long[rules.length];
+        private final long[] dropped = new long[rules.length]; // drainDropped() で渡すまでの破棄行数
+        private long lineCount, scan;
+
+        private Matcher() {
+            for (int i = 0; i < rules.length; i++) {
+                if (rules[i].pattern != null) regex[i] = rules[i].pattern.matcher("");
+            }
+        }
+
+        /** 破棄する行なら true */
+        public boolean drop(CharSequence s) {
+            if (s == null) return true;
+            int from = 0, to = s.length();
+            while (from < to && s.charAt(from) <= ' ') from++;
+            while (to > from && s.charAt(to - 1) <= ' ') to--;
+
+            boolean timed = lineCount++ % SAMPLE == 0;
+            long t0 = timed ? System.nanoTime() : 0;
+            if (++gen == 0) {
+                Arrays.fill(mark, 0);
+                gen = 1;
+            }
+            scanLine(s, from, to);
+            if (timed) scan += System.nanoTime() - t0;
+
+            boolean result = false;
+            for (int r = 0; r < rules.length; r++) {
+                if (match(r, s, from, to, timed)) {
+                    hits[r]++;
+                    result = rules[r].drop;
+                    if (result) dropped[r]++;
+                    break;
+                }
+            }
+            if (lineCount == FLUSH_LINES) flush();
+            return result;
+        }
+
+        /** 集計をフィルタ本体へ反映する（変換の終わりに呼ぶ。途中でも一定行ごとに反映される） */
+        public void flush() {
+            lines.add(lineCount);
+            lineCount = 0;
+            scanNanos.add(scan);
+            scan = 0;
+            for (int r = 0; r < rules.length; r++) {
+                if (tested[r] != 0) rules[r].tested.add(tested[r]);
+                if (hits[r] != 0) rules[r].hits.add(hits[r]);
+                if (nanos[r] != 0) rules[r].nanos.add(nanos[r]);
+                tested[r] = hits[r] = nanos[r] = 0;
+            }
+        }
+
+        /** 前回からの破棄行数をルール名ごとに渡す（ConversionMetrics のセッションごとの集計用） */
+        public void drainDropped(ObjLongConsumer<String> to) {
+            for (int r = 0; r < rules.length; r++) {
+                if (dropped[r] == 0) continue;
+                to.accept(rules[r].name, dropped[r]);
+                dropped[r] = 0;
+            }
+        }
+
+        // 1回の走査で、リテラル・ヒントの一致と ratio の文字数を集める
+        private void scanLine(CharSequence s, int from, int to) {
+            Arrays.fill(ratioCount, 0);
+            boolean hasExact = !exact.empty(), hasFolded = !folded.empty(), hasRatio = ratioRules.length > 0;
+            int se = 0, sf = 0;
+            int len = to - from;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                int pos = i - from;
+                if (hasExact) {
+                    se = exact.step(se, c);
+                    if (exact.hasOutput(se)) exact.collect(se, pos, len, mark, gen);
+                }
+                if (hasFolded) {
+                    sf = folded.step(sf, Automaton.fold(c));
+                    if (folded.hasOutput(sf)) folded.collect(sf, pos, len, mark, gen);
+                }
+                if (hasRatio && c >= ratioMin) {
+                    for (int k = 0; k < ratioRules.length; k++) {
+                        int[] rg = rules[ratioRules[k]].ranges;
+                        for (int j = 0; j < rg.length; j += 2) {
+                            if (c >= rg[j] && c <= rg[j + 1]) {
+                                ratioCount[k]++;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean match(int r, CharSequence s, int from, int to, boolean timed) {
+            Rule rule = rules[r];
+            switch (rule.kind) {
+                case BLANK:
+                    tested[r]++;
+                    return from == to;
+                case PREFIX: case CONTAINS: case EQUALS:
+                    tested[r]++;
+                    return mark[r] == gen;
+                case REGEX: {
+                    if (!rule.always && mark[r] != gen) return false;
+                    tested[r]++;
+                    long t0 = timed ? System.nanoTime() : 0;
+                    java.util.regex.Matcher m = regex[r].reset(s);
+                    m.region(from, to);
+                    boolean found = m.find();
+                    if (timed) nanos[r] += System.nanoTime() - t0;
+                    return found;
+                }
+                default: { // RATIO
+                    tested[r]++;
+                    int k = Arrays.binarySearch(ratioRules, r);
+                    int count = ratioCount[k];
+                    if (count == 0) return false;
+                    double ratio = (double) count / Math.max(1, to - from);
+                    return rule.inclusive ? ratio >= rule.threshold : ratio > rule.threshold;
+                }
+            }
+        }
+    }
+
+    // ====== Aho-Corasick ======
+
+    /**
+     * リテラルの集合を1回の走査で探すオートマトン。ASCII は状態×128 の遷移表、それ以外は
+     * 状態ごとの疎な表（失敗リンクをたどる）で持つ。
+     */
+    static final class Automaton {
+        static final int ANYWHERE = 0, PREFIX = 1, WHOLE = 2;
+
+        private final int[] ascii;         // ascii[state * 128 + c]：失敗リンクを解決済みの遷移
+        private final Map<Long, Integer> other;  // (state << 32 | c) -> 次の状態（非 ASCII、失敗リンクは未解決）
+        private final int[] fail;
+        private final int[][] outputs;     // 状態ごとの一致（失敗リンク先の分も含む）：リテラルの番号
+        private final int[] litRule, litLen, litAnchor;
+
+        private Automaton(int[] ascii, Map<Long, Integer> other, int[] fail, int[][] outputs,
+                          int[] litRule, int[] litLen, int[] litAnchor) {
+            this.ascii = ascii;
+            this.other = other;
+            this.fail = fail;
+            this.outputs = outputs;
+            this.litRule = litRule;
+            this.litLen = litLen;
+            this.litAnchor = litAnchor;
+        }
+
+        boolean empty() {
+            return litRule.length == 0;
+        }
+
+        static char fold(char c) {
+            if (c < 0x80) return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+            return Character.toLowerCase(c);
+        }
+
+        int step(int state, char c) {
+            if (c < 128) return ascii[state * 128 + c];
+            if (other.isEmpty()) return 0;
+            while (true) {
+                Integer next = other.get(((long) state << 32) | c);
+                if (next != null) return next;
+                if (state == 0) return 0;
+                state = fail[state];
+            }
+        }
+
+        boolean hasOutput(int state) {
+            return outputs[state] != null;
+        }
+
+        // end は一致の最後の文字の位置（行の先頭からの距離）、len は行の長さ
+        void collect(int state, int end, int len, int[] mark, int gen) {
+            for (int lit : outputs[state]) {
+                int start = end - litLen[lit] + 1;
+                int anchor = litAnchor[lit];
+                if (anchor == PREFIX && start != 0) continue;
+                if (anchor == WHOLE && (start != 0 || end != len - 1)) continue;
+                mark[litRule[lit]] = gen;
+            }
+        }
+
+        static final class Builder {
+            private final boolean folded;
+            private final List<Map<Character, Integer>> gotoFn = new ArrayList<>();
+            private final List<List<Integer>> out = new ArrayList<>();
+            private final List<int[]> lits = new ArrayList<>();  // {rule, len, anchor}
+
+            Builder(boolean folded) {
+                this.folded = folded;
+                newState();
+            }
+
+            private int newState() {
+                gotoFn.add(new HashMap<>());
+                out.add(null);
+                return gotoFn.size() - 1;
+            }
+
+            void add(String literal, int rule, int anchor) {
+                int s = 0;
+                for (int i = 0; i < literal.length(); i++) {
+                    char c = folded ? fold(literal.charAt(i)) : literal.charAt(i);
+                    Integer next = gotoFn.get(s).get(c);
+                    if (next == null) {
+                        next = newState();
+                        gotoFn.get(s).put(c, next);
+                    }
+                    s = next;
+                }
+                if (out.get(s) == null) out.set(s, new ArrayList<>());
+                out.get(s).add(lits.size());
+                lits.add(new int[] {rule, literal.length(), anchor});
+            }
+
+            Automaton build() {
+                int n = gotoFn.size();
+                int[] fail = new int[n];
+                int[] ascii = new int[n * 128];
+                Map<Long, Integer> other = new HashMap<>();
+                List<List<Integer>> outs = new ArrayList<>(out);
+
+                // 幅優先で失敗リンクを決め、ASCII の遷移表を埋める
+                ArrayDeque<Integer> queue = new ArrayDeque<>();
+                for (Map.Entry<Character, Integer> e : gotoFn.get(0).entrySet()) queue.add(e.getValue());
+                for (int c = 0; c < 128; c++) {
+                    Integer next = gotoFn.get(0).get((char) c);
+                    ascii[c] = next == null ? 0 : next;
+                }
+                while (!queue.isEmpty()) {
+                    int s = queue.poll();
+                    List<Integer> inherited = outs.get(fail[s]);
+                    if (inherited != null) {
+                        List<Integer> merged = outs.get(s) == null ? new ArrayList<>() : new ArrayList<>(outs.get(s));
+                        merged.addAll(inherited);
+                        outs.set(s, merged);
+                    }
+                    for (int c = 0; c < 128; c++) {
+                        Integer next = gotoFn.get(s).get((char) c);
+                        ascii[s * 128 + c] = next == null ? ascii[fail[s] * 128 + c] : next;
+                    }
+                    for (Map.Entry<Character, Integer> e : gotoFn.get(s).entrySet()) {
+                        char c = e.getKey();
+                        int t = e.getValue();
+                        int f = fail[s];
+                        if (c < 128) {
+                            fail[t] = s == 0 ? 0 : ascii[f * 128 + c];
+                        } else {
+                            Integer g = null;
+                            while (true) {
+                                g = gotoFn.get(f).get(c);
+                                if (g != null || f == 0) break;
+                                f = fail[f];
+                            }
+                            fail[t] = s == 0 || g == null || g == t ? 0 : g;
+                        }
+                        queue.add(t);
+                    }
+                }
+                for (int s = 0; s < n; s++) {
+                    for (Map.Entry<Character, Integer> e : gotoFn.get(s).entrySet()) {
+                        if (e.getKey() >= 128) other.put(((long) s << 32) | e.getKey(), e.getValue());
+                    }
+                }
+                int[][] outputs = new int[n][];
+                for (int s = 0; s < n; s++) {
+                    List<Integer> o = outs.get(s);
+                    if (o != null) outputs[s] = o.stream().mapToInt(Integer::intValue).toArray();
+                }
+                int[] litRule = new int[lits.size()], litLen = new int[lits.size()], litAnchor = new int[lits.size()];
+                for (int i = 0; i < lits.size(); i++) {
+                    litRule[i] = lits.get(i)[0];
+                    litLen[i] = lits.get(i)[1];
+                    litAnchor[i] = lits.get(i)[2];
+                }
+                return new Automaton(ascii, other, fail, outputs, litRule, litLen, litAnchor);
+            }
+        }
+    }
+}
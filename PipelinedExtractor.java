@@ -0,0 +1,292 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * CommandOnlyExtractor.extract のパイプライン版（出力は同一）。
+ * 1本の大きなセッションを次の4段に分けて別スレッドで動かし、ディスク読み込みと CPU 処理を重ねる。
+ * <ol>
+ *   <li>読み込み：timing とバイトを読み、エントリをまとめてバッチにする</li>
+ *   <li>サニタイズ・行分割（CommandOnlyExtractor.LineSplitter）</li>
+ *   <li>プロンプト判定・整形（CommandOnlyExtractor.RowFilter）</li>
+ *   <li>書き込み</li>
+ * </ol>
+ * 段の間は長さ固定のキュー（ArrayBlockingQueue＝配列のリングバッファ）でつなぎ、要素はバッチ単位。
+ * 後段が詰まれば put で待つので、読み込みが先走ってメモリを使い切ることはない。
+ * 読み込みバッチは使い回す（サニタイズ段が返却し、読み込み段は空きが出るまで待つ）。
+ *
+ * スレッドは ThreadFactory で差し替えられる（既定は使えれば仮想スレッド、なければ通常のデーモンスレッド）。
+ * チェックポイント（ExtractCheckpoint）は扱わない。毎回最初から変換する。
+ *
+ * 使い方: java com.demo.PipelinedExtractor <NAME> [--out <file>] [--start <ts>] [--platform]
+ */
+public final class PipelinedExtractor {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+
+    private static final int QUEUE_BATCHES = 8;           // 段間キューの長さ（バッチ数）
+    private static final int BATCH_BYTES   = 256 * 1024;  // 読み込みバッチ1個のバイト数の目安
+    private static final int BATCH_ENTRIES = 4096;        // 読み込みバッチ1個のエントリ数の上限
+
+    private PipelinedExtractor() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.PipelinedExtractor <NAME> [--out <file>] [--start <ts>] [--platform]");
+            System.exit(2);
+        }
+        Path ts = Paths.get(args[0]);
+        Path timing = ts.resolveSibling(ts.getFileName() + ".timing");
+        Path out = ts.resolveSibling(ts.getFileName() + ".log");
+        String startStr = null;
+        ThreadFactory threads = defaultThreads();
+        for (int i = 1; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                out = Paths.get(args[++i]);
+            } else if ("--start".equals(args[i]) && i + 1 < args.length) {
+                startStr = args[++i];
+            } else if ("--platform".equals(args[i])) {
+                threads = platformThreads();
+            }
+        }
+        Instant start = startStr != null ? ConvertEngine.parseStart(startStr).toInstant()
+                : TimingParser.recordingStart(ts, timing);
+        extract(ts, timing, out, ZonedDateTime.ofInstant(start, DEFAULT_ZONE), threads);
+        System.out.println("完了: " + out.toAbsolutePath());
+    }
+
+    /** 仮想スレッド（Java 21 以降）。使えなければ platformThreads() */
+    public static ThreadFactory defaultThreads() {
+        try {
+            // Java 17 でもコンパイルできるようにリフレクションで Thread.ofVirtual().factory() を呼ぶ
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return platformThreads();
+        }
+    }
+
+    /** 通常のデーモンスレッド */
+    public static ThreadFactory platformThreads() {
+        return r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static void extract(Path namePath, Path timingPath, Path outPath, ZonedDateTime startTs)
+            throws IOException, InterruptedException {
+        extract(namePath, timingPath, outPath, startTs, defaultThreads());
+    }
+
+    /**
+     * 4段のパイプラインで変換する。どこかの段が失敗したら残りの段を止め、その例外を投げる。
+     */
+    public static void extract(Path namePath, Path timingPath, Path outPath, ZonedDateTime startTs,
+                               ThreadFactory threads) throws IOException, InterruptedException {
+        Files.createDirectories(outPath.getParent() != null ? outPath.getParent() : Paths.get("."));
+
+        BlockingQueue<Entries> free = new ArrayBlockingQueue<>(QUEUE_BATCHES + 2);
+        BlockingQueue<Entries> entries = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Rows> rows = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Text> text = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        for (int i = 0; i < QUEUE_BATCHES + 2; i++) free.add(new Entries());
+
+        try (BufferedWriter out = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // 各段は別のスレッドで動くので、呼び出し元の計測に段ごとの Probe で数える
+            ConversionMetrics.Recorder metrics = ConversionMetrics.current();
+            Stages stages = new Stages(threads);
+            stages.start("read", () -> read(namePath, timingPath, free, entries));
+            stages.start("split", () -> split(entries, free, rows, metrics.probe(null)));
+            stages.start("format", () -> format(rows, text, startTs, metrics.probe(CommandOnlyExtractor.RowFilter.NOT_COMMAND)));
+            stages.start("write", () -> write(text, out));
+            stages.await();
+        }
+    }
+
+    // ====== 各段 ======
+
+    // 1) timing とバイトを読み、エントリをバッチにまとめる
+    private static void read(Path namePath, Path timingPath, BlockingQueue<Entries> free,
+                             BlockingQueue<Entries> next) throws IOException, InterruptedException {
+        try (InputStream tsIn = Files.newInputStream(namePath);
+             TimingParser tr = TimingParser.open(timingPath, TimingParser.Unit.SECONDS)) {
+            Entries b = free.take();
+            b.clear();
+            while (tr.next()) {
+                long count = tr.bytes();
+                if (b.count == BATCH_ENTRIES || (b.len > 0 && b.len + count > BATCH_BYTES)) {
+                    next.put(b);
+                    b = free.take();
+                    b.clear();
+                }
+                int want = (int) Math.min(count, Integer.MAX_VALUE - 8 - b.len);
+                b.ensure(want);
+                int filled = tsIn.readNBytes(b.data, b.len, want);
+                b.delays[b.count] = tr.delayNanos();
+                b.len += filled;
+                b.ends[b.count++] = b.len;
+            }
+            b.last = true;
+            next.put(b);
+        }
+    }
+
+    // 2) サニタイズと行分割（バッチは読み込み段に返す）
+    private static void split(BlockingQueue<Entries> in, BlockingQueue<Entries> free,
+                              BlockingQueue<Rows> next, ConversionMetrics.Probe probe) throws InterruptedException {
+        probe.attach();
+        CommandOnlyExtractor.LineSplitter splitter = new CommandOnlyExtractor.LineSplitter(probe);
+        List<String> found = new ArrayList<>();
+        while (true) {
+            Entries b = in.take();
+            Rows r = new Rows();
+            int from = 0;
+            for (int i = 0; i < b.count; i++) {
+                found.clear();
+                splitter.feed(b.delays[i], b.data, from, b.ends[i] - from, found);
+                for (int k = 0; k < found.size(); k++) r.add(found.get(k), splitter.elapsed);
+                from = b.ends[i];
+            }
+            boolean last = b.last;
+            free.put(b);
+            if (last) {
+                if (splitter.bufLine.length() > 0) {
+                    r.lastRow = splitter.bufLine.toString();
+                    r.lastElapsed = splitter.elapsed;
+                }
+                r.last = true;
+                probe.flush();
+                next.put(r);
+                return;
+            }
+            if (r.count > 0) next.put(r);
+        }
+    }
+
+    // 3) プロンプト判定と整形
+    private static void format(BlockingQueue<Rows> in, BlockingQueue<Text> next, ZonedDateTime startTs,
+                               ConversionMetrics.Probe probe) throws IOException, InterruptedException {
+        probe.attach();
+        CommandOnlyExtractor.RowFilter filter = new CommandOnlyExtractor.RowFilter(startTs, probe);
+        while (true) {
+            Rows r = in.take();
+            Text t = new Text();
+            for (int i = 0; i < r.count; i++) filter.row(r.rows[i], r.elapsed[i], t.sb);
+            if (r.lastRow != null) filter.last(r.lastRow, r.lastElapsed, t.sb);
+            t.last = r.last;
+            if (t.last) probe.flush();
+            if (t.sb.length() > 0 || t.last) next.put(t);
+            if (t.last) return;
+        }
+    }
+
+    // 4) 書き込み
+    private static void write(BlockingQueue<Text> in, BufferedWriter out) throws IOException, InterruptedException {
+        while (true) {
+            Text t = in.take();
+            out.append(t.sb);
+            if (t.last) return;
+        }
+    }
+
+    // ====== バッチ ======
+
+    // 読み込み段の出力：エントリ i のバイトは data[ends[i-1], ends[i])
+    private static final class Entries {
+        final long[] delays = new long[BATCH_ENTRIES];
+        final int[] ends = new int[BATCH_ENTRIES];
+        byte[] data = new byte[BATCH_BYTES];
+        int count, len;
+        boolean last;
+
+        void clear() {
+            count = 0;
+            len = 0;
+            last = false;
+        }
+
+        void ensure(int more) {
+            if (len + more > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, len + more));
+        }
+    }
+
+    // 行分割段の出力：完結した行とその時点の累計秒。最後のバッチには最終の半行が付く
+    private static final class Rows {
+        String[] rows = new String[256];
+        double[] elapsed = new double[256];
+        int count;
+        String lastRow;
+        double lastElapsed;
+        boolean last;
+
+        void add(String row, double e) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+                elapsed = Arrays.copyOf(elapsed, count * 2);
+            }
+            rows[count] = row;
+            elapsed[count++] = e;
+        }
+    }
+
+    // 整形段の出力
+    private static final class Text {
+        final StringBuilder sb = new StringBuilder(8192);
+        boolean last;
+    }
+
+    // ====== スレッド管理 ======
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // 段のスレッドを起動し、最初の失敗を記録して他の段を割り込みで止める
+    private static final class Stages {
+        private final ThreadFactory factory;
+        private final List<Thread> threads = new CopyOnWriteArrayList<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Stages(ThreadFactory factory) { this.factory = factory; }
+
+        void start(String name, Stage stage) {
+            Thread t = factory.newThread(() -> {
+                try {
+                    stage.run();
+                } catch (Throwable e) {
+                    if (failure.compareAndSet(null, e)) threads.forEach(Thread::interrupt);
+                }
+            });
+            t.setName("pipeline-" + name);
+            threads.add(t);
+            t.start();
+            if (failure.get() != null) t.interrupt(); // 先に起動した段がもう失敗している
+        }
+
+        void await() throws IOException, InterruptedException {
+            try {
+                for (Thread t : threads) t.join();
+            } catch (InterruptedException e) {
+                threads.forEach(Thread::interrupt);
+                throw e;
+            }
+            Throwable e = failure.get();
+            if (e == null) return;
+            if (e instanceof IOException) throw (IOException) e;
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            if (e instanceof Error) throw (Error) e;
+            throw new IOException("パイプラインの段が失敗しました", e);
+        }
+    }
+}
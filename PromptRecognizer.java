@@ -0,0 +1,144 @@
+package com.demo;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * シェル等のプロンプトを見分け、行を「プロンプト」と「コマンド」に分ける。どの判定も行の長さに対して線形。
+ *
+ * <ol>
+ *   <li>ディストリビューションごとのプロンプトの形（11111.txt の一覧、mysql&gt;、PS&gt; など）を行頭で照合する。
+ *       行頭の {@value #MAX_PROMPT} 文字までしか見ないので、長い出力行でも一定の手間で済む。</li>
+ *   <li>どの形にも合わなければ、従来の規則（最後の「$ # &gt; % のどれか＋空白＋空白以外」で分ける）を
+ *       後ろからの1回の走査で判定する。</li>
+ * </ol>
+ * 一致したプロンプトの文字列はセッションのプロンプトとして覚え、次からは行頭のリテラル比較（startsWith）で
+ * 判定する。覚えるのは、その文字列の後ろに何が続いても照合結果が変わらないと確かめられたもの
+ * （Matcher.hitEnd() が false）だけなので、結果は覚えているかどうかに左右されない
+ * （チェックポイントからの再開やセグメント並列の変換でも、逐次変換と同じ出力になる）。
+ * 状態を持つので、インスタンスはスレッドセーフではない（変換1本につき1個）。
+ */
+final class PromptRecognizer {
+
+    static final int MAX_PROMPT = 256;   // 形の照合で見る行頭の文字数
+    private static final int LEARNED = 8; // 覚えておくプロンプトの数
+
+    /** プロンプトの形（名前と正規表現）。上から順に試す。どれも「区切り文字＋空白1文字」で終わる */
+    static final String[][] PROFILES = {
+        // CentOS/RHEL/Fedora/Arch：[user@host ~]$ 、[root@host]#
+        {"rhel",       "\\[[\\w.-]++@[\\w.-]++(?:\\s[^\\]]*+)?+\\][$#]\\s"},
+        // Ubuntu/Debian/Alpine：user@host:~$ 、openSUSE：user@host:~>
+        {"debian",     "[\\w.-]++@[\\w.-]++:[^\\s$#>%]*+[$#>]\\s"},
+        // bash-5.2$
+        {"shell",      "(?:bash|sh|zsh|ksh)-\\d++(?:\\.\\d++)*+[$#]\\s"},
+        // ~/project $
+        {"path",       "[~/][^\\s$#>%]*+\\s[$#]\\s"},
+        // mysql> 、MariaDB [(none)]>
+        {"mysql",      "(?i:mysql|mariadb)(?:\\s\\[[^\\]]*+\\])?+>\\s"},
+        // PS> 、PS C:\Users\me>
+        {"powershell", "(?i:PS)(?:\\s[^>]*+)?+>\\s"},
+        // $ 、#
+        {"minimal",    "[$#%]\\s"},
+    };
+
+    // 行頭の仮想環境名 (venv) などは、どの形の前にも付いてよい
+    private static final Pattern PROFILE;
+    static {
+        StringBuilder sb = new StringBuilder("(?:\\([^()\\s]++\\)\\s++)?+(?:");
+        for (int i = 0; i < PROFILES.length; i++) {
+            if (i > 0) sb.append('|');
+            sb.append("(?:").append(PROFILES[i][1]).append(')');
+        }
+        PROFILE = Pattern.compile(sb.append(')').toString());
+    }
+
+    private final Matcher matcher = PROFILE.matcher("");
+    private final String[] learned = new String[LEARNED];
+    private int learnedCount, nextSlot;
+
+    /**
+     * 純粋なプロンプト（「区切り文字＋空白」で終わる行）か。従来の PROMPT_ONLY と同じ判定。
+     */
+    static boolean isPromptOnly(String row) {
+        int n = row.length();
+        if (n < 2 || row.charAt(n - 1) != ' ' || !isDelimiter(row.charAt(n - 2))) return false;
+        return !hasLineTerminator(row, 0, n);
+    }
+
+    /**
+     * プロンプト＋コマンドの行なら、プロンプトの終わり（コマンドの先頭）の位置を返す。そうでなければ -1。
+     * コマンドは空白以外の文字で始まる。
+     */
+    int split(String row) {
+        int n = row.length();
+
+        // 覚えたプロンプト
+        for (int i = 0; i < learnedCount; i++) {
+            String lit = learned[i];
+            if (row.startsWith(lit)) {
+                int k = lit.length();
+                if (k < n && !isSpace(row.charAt(k)) && !hasLineTerminator(row, k, n)) return k;
+                // 形の照合も同じ k で一致して同じく失敗する（覚えるときに確かめた）ので省き、従来の規則へ
+                return splitGeneric(row);
+            }
+        }
+
+        // ディストリビューションごとの形
+        int k = matchProfile(row, Math.min(n, MAX_PROMPT));
+        if (k > 0 && k < n && !isSpace(row.charAt(k)) && !hasLineTerminator(row, k, n)) {
+            learn(row, k);
+            return k;
+        }
+
+        return splitGeneric(row);
+    }
+
+    private int matchProfile(String row, int limit) {
+        matcher.reset(row);
+        matcher.region(0, limit);
+        return matcher.lookingAt() ? matcher.end() : -1;
+    }
+
+    // row[0, k) を、後ろに何が続いても同じく一致すると確かめられたときだけ覚える
+    private void learn(String row, int k) {
+        for (int i = 0; i < learnedCount; i++) {
+            if (learned[i].length() == k && row.startsWith(learned[i])) return;
+        }
+        matcher.reset(row);
+        matcher.region(0, k);
+        if (!matcher.lookingAt() || matcher.end() != k || matcher.hitEnd()) return;
+        learned[nextSlot] = row.substring(0, k);
+        nextSlot = (nextSlot + 1) % LEARNED;
+        if (learnedCount < LEARNED) learnedCount++;
+    }
+
+    /**
+     * 従来の PROMPT_WITH_CMD（^(.*[$#>%]\s)(\S.*)$）と同じ分け方：条件を満たす最後の区切り文字で分ける。
+     */
+    static int splitGeneric(String row) {
+        int n = row.length();
+        if (hasLineTerminator(row, 0, n)) return -1;
+        for (int p = n - 3; p >= 0; p--) {
+            if (isDelimiter(row.charAt(p)) && isSpace(row.charAt(p + 1)) && !isSpace(row.charAt(p + 2))) return p + 2;
+        }
+        return -1;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == '$' || c == '#' || c == '>' || c == '%';
+    }
+
+    // 正規表現の \s
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    // 正規表現の . が一致しない文字
+    private static boolean hasLineTerminator(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+        }
+        return false;
+    }
+}
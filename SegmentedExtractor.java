@@ -0,0 +1,219 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 1本の巨大な録画を timing の区切りでバイト区間（セグメント）に分け、並列に変換してから順に連結する。
+ * 出力は CommandOnlyExtractor.extract と同一。
+ *
+ * 各セグメントの開始状態は、最初に timing を1回だけ順に読む前処理で決める：
+ * - 累計経過時間：delay を逐次変換と同じ順に double で足した値
+ * - 持ち越しの半行：切れ目の直前のエントリをサニタイズし、最後の改行より後ろの部分
+ *   （改行を含まないエントリの直後では切らないので、それより前のエントリには依存しない）
+ * エスケープシーケンスや CR の途中状態は持ち越さない（サニタイズはエントリごとに独立している）。
+ * 最新のプロンプトは出力に影響しないので、各セグメントは空から始める。
+ *
+ * 使い方: java com.demo.SegmentedExtractor <NAME> [--out <file>] [--start <ts>] [--threads <n>]
+ */
+public final class SegmentedExtractor {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+
+    private static final long MIN_SEGMENT_BYTES = 16L << 20;  // これより小さいセグメントは作らない
+    private static final int SEGMENTS_PER_THREAD = 4;         // 負荷の偏りをならすため、スレッド数より多めに切る
+    private static final long MAX_CUT_ENTRY_BYTES = 1 << 20;  // 切れ目の判定でサニタイズするエントリの上限
+
+    private SegmentedExtractor() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.SegmentedExtractor <NAME> [--out <file>] [--start <ts>] [--threads <n>]");
+            System.exit(2);
+        }
+        Path ts = Paths.get(args[0]);
+        Path timing = ts.resolveSibling(ts.getFileName() + ".timing");
+        Path out = ts.resolveSibling(ts.getFileName() + ".log");
+        String startStr = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                out = Paths.get(args[++i]);
+            } else if ("--start".equals(args[i]) && i + 1 < args.length) {
+                startStr = args[++i];
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+        }
+        Instant start = startStr != null ? ConvertEngine.parseStart(startStr).toInstant()
+                : TimingParser.recordingStart(ts, timing);
+        extract(ts, timing, out, ZonedDateTime.ofInstant(start, DEFAULT_ZONE), threads);
+        System.out.println("完了: " + out.toAbsolutePath());
+    }
+
+    /**
+     * threads 本で並列に変換する。小さい録画はセグメントが1つになり、逐次変換と同じになる。
+     */
+    public static void extract(Path namePath, Path timingPath, Path outPath, ZonedDateTime startTs, int threads)
+            throws IOException, InterruptedException {
+        long dataSize = Files.size(namePath);
+        int wanted = Math.max(1, threads) * SEGMENTS_PER_THREAD;
+        extract(namePath, timingPath, outPath, startTs, threads, Math.max(MIN_SEGMENT_BYTES, dataSize / wanted));
+    }
+
+    /** セグメントの大きさ（バイトの目安）を指定して変換する */
+    static void extract(Path namePath, Path timingPath, Path outPath, ZonedDateTime startTs, int threads,
+                        long target) throws IOException, InterruptedException {
+        Files.createDirectories(outPath.getParent() != null ? outPath.getParent() : Paths.get("."));
+
+        long dataSize = Files.size(namePath);
+        List<Segment> segments = plan(namePath, timingPath, dataSize, target);
+
+        ExecutorService pool = Executors.newWorkStealingPool(Math.max(1, threads));
+        List<Path> parts = new ArrayList<>(segments.size());
+        ConversionMetrics.Recorder metrics = ConversionMetrics.current(); // 各セグメントはプールのスレッドで数える
+        try {
+            List<Future<Path>> futures = new ArrayList<>(segments.size());
+            for (int i = 0; i < segments.size(); i++) {
+                Segment seg = segments.get(i);
+                Path part = outPath.resolveSibling(outPath.getFileName() + ".part" + i);
+                parts.add(part);
+                boolean last = i == segments.size() - 1;
+                futures.add(pool.submit(() -> {
+                    convert(namePath, timingPath, part, startTs, seg, last, metrics);
+                    return part;
+                }));
+            }
+            for (Future<Path> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Throwable c = e.getCause();
+                    if (c instanceof IOException) throw (IOException) c;
+                    if (c instanceof RuntimeException) throw (RuntimeException) c;
+                    if (c instanceof Error) throw (Error) c;
+                    throw new IOException(c);
+                }
+            }
+            stitch(parts, outPath);
+        } finally {
+            pool.shutdownNow();
+            for (Path p : parts) Files.deleteIfExists(p);
+        }
+    }
+
+    // ====== 前処理：切れ目と開始状態 ======
+
+    /** セグメントの開始状態（timingOffset の行から entries エントリ分を受け持つ） */
+    static final class Segment {
+        final long timingOffset;   // 最初の timing 行の位置（バイト）
+        final long timingLine;     // それより前の行数
+        final long dataOffset;     // 最初のエントリのバイト位置
+        final long entries;        // エントリ数（最後のセグメントは Long.MAX_VALUE）
+        final double elapsed;      // 開始時点の累計秒
+        final String partialLine;  // 持ち越しの半行
+
+        Segment(long timingOffset, long timingLine, long dataOffset, long entries, double elapsed, String partialLine) {
+            this.timingOffset = timingOffset;
+            this.timingLine = timingLine;
+            this.dataOffset = dataOffset;
+            this.entries = entries;
+            this.elapsed = elapsed;
+            this.partialLine = partialLine;
+        }
+    }
+
+    // timing を1回読み、およそ target バイトごとに切れ目を決める
+    static List<Segment> plan(Path namePath, Path timingPath, long dataSize, long target) throws IOException {
+        List<Segment> out = new ArrayList<>();
+        TerminalSanitizer sanitizer = new TerminalSanitizer();
+        try (TimingParser tr = TimingParser.open(timingPath, TimingParser.Unit.SECONDS);
+             FileChannel data = FileChannel.open(namePath, StandardOpenOption.READ)) {
+            long segTimingOffset = 0, segTimingLine = 0, segDataOffset = 0, segEntries = 0;
+            double segElapsed = 0.0;
+            String segPartial = "";
+
+            long offset = 0;       // 次のエントリのバイト位置（録画ファイルの長さで頭打ち）
+            double elapsed = 0.0;  // LineSplitter と同じ順序・同じ型で累計する
+            byte[] buf = new byte[8192];
+            while (tr.next()) {
+                long count = tr.bytes();
+                long from = offset;
+                offset = Math.min(dataSize, offset + count);
+                elapsed += tr.delayNanos() / 1e9;
+                segEntries++;
+
+                if (offset - segDataOffset < target || offset >= dataSize) continue;
+                int n = (int) (offset - from);
+                if (n == 0 || n > MAX_CUT_ENTRY_BYTES) continue;
+                if (n > buf.length) buf = new byte[n];
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                while (bb.hasRemaining() && data.read(bb, from + bb.position()) >= 0) { }
+                String chunk = sanitizer.sanitize(buf, 0, bb.position());
+                int nl = chunk.lastIndexOf('\n');
+                if (nl < 0) continue; // 半行が前のエントリにまたがるので、ここでは切らない
+
+                out.add(new Segment(segTimingOffset, segTimingLine, segDataOffset, segEntries, segElapsed, segPartial));
+                segTimingOffset = tr.position();
+                segTimingLine = tr.lineNumber();
+                segDataOffset = offset;
+                segEntries = 0;
+                segElapsed = elapsed;
+                segPartial = chunk.substring(nl + 1);
+            }
+            out.add(new Segment(segTimingOffset, segTimingLine, segDataOffset, Long.MAX_VALUE, segElapsed, segPartial));
+        }
+        return out;
+    }
+
+    // ====== 各セグメントの変換 ======
+
+    private static void convert(Path namePath, Path timingPath, Path partPath, ZonedDateTime startTs,
+                                Segment seg, boolean last, ConversionMetrics.Recorder metrics) throws IOException {
+        try (FileChannel dataCh = FileChannel.open(namePath, StandardOpenOption.READ);
+             InputStream tmRaw = Files.newInputStream(timingPath)) {
+            dataCh.position(seg.dataOffset);
+            tmRaw.skipNBytes(seg.timingOffset);
+            try (BufferedInputStream tsIn = new BufferedInputStream(Channels.newInputStream(dataCh), 1 << 16);
+                 TimingParser tr = new TimingParser(tmRaw, TimingParser.Unit.SECONDS);
+                 BufferedWriter out = Files.newBufferedWriter(partPath, StandardCharsets.UTF_8,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                tr.resumeAt(seg.timingOffset, seg.timingLine);
+
+                CommandOnlyExtractor.Session session = new CommandOnlyExtractor.Session(out, startTs,
+                        metrics.probe(CommandOnlyExtractor.RowFilter.NOT_COMMAND).attach());
+                session.restore(seg.elapsed, seg.partialLine, "");
+                byte[] chunkBytes = new byte[64 * 1024];
+                for (long i = 0; i < seg.entries && tr.next(); i++) {
+                    long count = tr.bytes();
+                    if (count > chunkBytes.length) chunkBytes = new byte[(int) Math.min(count, Integer.MAX_VALUE - 8)];
+                    int filled = tsIn.readNBytes(chunkBytes, 0, (int) Math.min(count, chunkBytes.length));
+                    session.feed(tr.delayNanos(), chunkBytes, 0, filled);
+                }
+                // 半行は次のセグメントが持ち越しとして受け取る。最後のセグメントだけが出力する
+                if (last) session.finish(); else session.flushMetrics();
+            }
+        }
+    }
+
+    // セグメントの出力を順に連結する
+    private static void stitch(List<Path> parts, Path outPath) throws IOException {
+        try (FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path p : parts) {
+                try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                    long pos = 0, size = in.size();
+                    while (pos < size) pos += in.transferTo(pos, size - pos, out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 圧縮されたまま録画を変換する（ディスクに展開しない）。
+ * - <uuid>.tar.gz / .tgz / .tar：getlog 系スクリプトがまとめた束。中の <uuid> と <uuid>.timing を組にする
+ * - <uuid>.gz：gzip した録画ファイル1本。timing は隣の <uuid>.timing または <uuid>.timing.gz
+ *
+ * tar は先頭から順にしか読めないので、timing（録画より十分小さい）だけをメモリに保持し、
+ * 録画のエントリはアーカイブから直接ストリームで変換する。
+ * 録画が timing より先に並んでいた組だけは、1周目の最後で timing が揃ってから、アーカイブをもう1回読んで変換する。
+ *
+ * gzip を指定すると <uuid>.log.gz にブロック圧縮で出力する（BlockGzipLog）。拡張子 .log.col なら列形式（ColumnarLog）。
+ *
+ * セッション開始時刻は、ディレクトリから変換するときと同じく TimingParser.recordingStart で
+ * 「録画ファイルの更新時刻 − timing の delay の合計」とする（更新時刻はアーカイブ内のもの）。
+ */
+public final class SessionArchive {
+
+    private SessionArchive() {}
+
+    /** アーカイブとして扱うファイル名か */
+    public static boolean isArchive(Path p) {
+        String fn = p.getFileName().toString();
+        return isTar(fn) || fn.endsWith(".gz");
+    }
+
+    private static boolean isTar(String fn) {
+        return fn.endsWith(".tar.gz") || fn.endsWith(".tgz") || fn.endsWith(".tar");
+    }
+
+    /**
+     * アーカイブ内のセッションをすべて変換する。
+     * outDir が null なら、tar はアーカイブと同じ場所の <アーカイブ名> ディレクトリに、.gz は隣に <uuid>.log を出力。
+     */
+    public static BatchConverter.Report convertAll(Path archive, Path outDir, BatchConverter.Mode mode) throws IOException {
+        return convertAll(archive, outDir, mode, false);
+    }
+
+    public static BatchConverter.Report convertAll(Path archive, Path outDir, BatchConverter.Mode mode, boolean gzip)
+            throws IOException {
+        return convertAll(archive, outDir, mode, gzip ? ".log.gz" : ".log");
+    }
+
+    /** 出力の拡張子（.log / .log.gz / .log.col）を指定する */
+    public static BatchConverter.Report convertAll(Path archive, Path outDir, BatchConverter.Mode mode, String ext)
+            throws IOException {
+        long t0 = System.nanoTime();
+        String fn = archive.getFileName().toString();
+        List<BatchConverter.Result> results = new ArrayList<>();
+        if (isTar(fn)) {
+            if (outDir == null) outDir = archive.resolveSibling(stripArchiveSuffix(fn));
+            convertTar(archive, outDir, ext, mode, results);
+        } else {
+            String base = fn.substring(0, fn.length() - ".gz".length());
+            Path out = outDir == null ? archive.resolveSibling(base + ext) : outDir.resolve(base + ext);
+            convertGz(archive, base, out, mode, results);
+        }
+        return new BatchConverter.Report(results, System.nanoTime() - t0, 1);
+    }
+
+    // ====== tar ======
+
+    private static void convertTar(Path archive, Path outDir, String ext, BatchConverter.Mode mode,
+                                   List<BatchConverter.Result> results) throws IOException {
+        Map<String, byte[]> timings = new HashMap<>();       // 録画がまだ来ていない timing（名前は .timing を除いたもの）
+        Set<String> deferred = new LinkedHashSet<>();         // timing より先に来た録画候補
+
+        // 1周目：timing を溜め、組が揃った録画はその場で変換する
+        try (TarInput tar = TarInput.open(archive)) {
+            TarInput.Entry e;
+            while ((e = tar.next()) != null) {
+                if (e.name.endsWith(".timing")) {
+                    String base = e.name.substring(0, e.name.length() - ".timing".length());
+                    timings.put(base, tar.readAll(e));
+                } else if (timings.containsKey(e.name)) {
+                    byte[] timing = timings.remove(e.name);
+                    results.add(convertEntry(archive, e, tar, timing, outDir, ext, mode));
+                } else {
+                    deferred.add(e.name);
+                }
+            }
+        }
+
+        // 2周目：timing が後ろにあった組だけ
+        deferred.retainAll(timings.keySet());
+        if (deferred.isEmpty()) return;
+        try (TarInput tar = TarInput.open(archive)) {
+            TarInput.Entry e;
+            while (!deferred.isEmpty() && (e = tar.next()) != null) {
+                if (!deferred.remove(e.name)) continue;
+                results.add(convertEntry(archive, e, tar, timings.remove(e.name), outDir, ext, mode));
+            }
+        }
+    }
+
+    /**
+     * tar の1エントリを outDir/<エントリ名><ext> に変換する。
+     * エントリ名が outDir の外を指すもの（../ を含む、絶対パス）は書かずに失敗として記録する。
+     */
+    private static BatchConverter.Result convertEntry(Path archive, TarInput.Entry e, InputStream data, byte[] timing,
+                                                      Path outDir, String ext, BatchConverter.Mode mode) {
+        Path root = outDir.toAbsolutePath().normalize();
+        Path out = root.resolve(e.name + ext).normalize();
+        if (!out.startsWith(root)) {
+            BatchConverter.Session s = new BatchConverter.Session(archive.resolve(e.name), archive,
+                    e.size + timing.length, Instant.ofEpochMilli(e.mtime));
+            return new BatchConverter.Result(s, out, 0,
+                    new IOException("エントリ名が出力先の外を指しています: " + e.name));
+        }
+        return convertOne(archive, e.name, data, e.size, e.mtime, timing, out, mode);
+    }
+
+    // ====== 単体の .gz ======
+
+    private static void convertGz(Path archive, String base, Path out, BatchConverter.Mode mode,
+                                  List<BatchConverter.Result> results) throws IOException {
+        Path timingPath = archive.resolveSibling(base + ".timing");
+        Path timingGz = archive.resolveSibling(base + ".timing.gz");
+        byte[] timing;
+        if (Files.isRegularFile(timingPath)) {
+            timing = Files.readAllBytes(timingPath);
+        } else if (Files.isRegularFile(timingGz)) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(timingGz), 1 << 16)) {
+                timing = in.readAllBytes();
+            }
+        } else {
+            throw new NoSuchFileException(timingPath.toString(), null, "timing がありません");
+        }
+        long mtime = Files.getLastModifiedTime(archive).toMillis();
+        try (CountingInput in = new CountingInput(
+                new BufferedInputStream(new GZIPInputStream(Files.newInputStream(archive), 1 << 16), 1 << 16))) {
+            BatchConverter.Result r = convertOne(archive, base, in, 0, mtime, timing, out, mode);
+            // 展開後の大きさは読み終わるまでわからないので、実際に読んだバイト数で記録し直す
+            BatchConverter.Session s = new BatchConverter.Session(r.session.typescript, r.session.timing,
+                    in.count + timing.length, r.session.start);
+            results.add(new BatchConverter.Result(s, r.out, r.nanos, r.error));
+        }
+    }
+
+    /** 読んだバイト数を数える */
+    private static final class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) { super(in); }
+
+        @Override public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long k = in.skip(n);
+            count += k;
+            return k;
+        }
+    }
+
+    // ====== 1セッションの変換 ======
+
+    // 失敗はこのセッションの結果に閉じ込める（アーカイブ自体の読み込みエラーは次の next() で表に出る）
+    private static BatchConverter.Result convertOne(Path archive, String name, InputStream data, long bytes,
+                                                    long mtimeMillis, byte[] timing, Path out,
+                                                    BatchConverter.Mode mode) {
+        long t0 = System.nanoTime();
+        Instant start = Instant.ofEpochMilli(mtimeMillis);
+        BatchConverter.Session s = new BatchConverter.Session(archive.resolve(name), archive, bytes + timing.length, start);
+        ConversionMetrics.Recorder metrics = ConversionMetrics.begin(name, mode.label());
+        try {
+            start = TimingParser.recordingStart(start, timing);
+            Files.createDirectories(out.getParent() != null ? out.getParent() : Paths.get("."));
+            try (BufferedWriter w = new BufferedWriter(BatchConverter.openSink(out), 1 << 16);
+                 TimingParser tr = new TimingParser(new ByteArrayInputStream(timing), TimingParser.Unit.SECONDS)) {
+                BatchConverter.convert(mode, data, tr, w, start, timing.length / 10);
+            }
+            return new BatchConverter.Result(s, out, System.nanoTime() - t0, null);
+        } catch (Exception | StackOverflowError e) {
+            metrics.failed();
+            return new BatchConverter.Result(s, out, System.nanoTime() - t0, e);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    private static String stripArchiveSuffix(String fn) {
+        for (String ext : new String[] {".tar.gz", ".tgz", ".tar"}) {
+            if (fn.endsWith(ext)) return fn.substring(0, fn.length() - ext.length());
+        }
+        return fn;
+    }
+
+    // ====== tar の読み込み ======
+
+    /**
+     * 最小限の tar リーダー（ustar と、GNU の長いファイル名 'L'、pax の path/size に対応）。
+     * 通常ファイルだけを返す。エントリの本体は next() の後にこのストリーム自体から読む（途中まででもよい）。
+     */
+    static final class TarInput extends InputStream {
+        private static final int BLOCK = 512;
+
+        static final class Entry {
+            final String name;
+            final long size;
+            final long mtime; // ミリ秒
+            Entry(String name, long size, long mtime) { this.name = name; this.size = size; this.mtime = mtime; }
+        }
+
+        private final InputStream in;
+        private final byte[] header = new byte[BLOCK];
+        private long remaining; // 現在のエントリの残りバイト数
+        private long padding;   // その後ろの詰め物
+
+        private TarInput(InputStream in) { this.in = in; }
+
+        static TarInput open(Path archive) throws IOException {
+            InputStream raw = Files.newInputStream(archive);
+            try {
+                InputStream in = archive.getFileName().toString().endsWith(".tar")
+                        ? raw : new GZIPInputStream(raw, 1 << 16);
+                return new TarInput(new BufferedInputStream(in, 1 << 16));
+            } catch (IOException | RuntimeException e) {
+                raw.close();
+                throw e;
+            }
+        }
+
+        /** 次の通常ファイル。終端なら null */
+        Entry next() throws IOException {
+            String longName = null;
+            long paxSize = -1;
+            while (true) {
+                in.skipNBytes(remaining + padding);
+                remaining = padding = 0;
+                if (in.readNBytes(header, 0, BLOCK) < BLOCK || isZero(header)) return null;
+
+                long size = number(header, 124, 12);
+                long mtime = number(header, 136, 12) * 1000;
+                byte type = header[156];
+                remaining = size;
+                padding = (BLOCK - size % BLOCK) % BLOCK;
+
+                if (type == 'L') { // GNU：次のエントリの長い名前
+                    longName = cString(readBody(size), 0, (int) size);
+                    continue;
+                }
+                if (type == 'x') { // pax：次のエントリの属性
+                    byte[] pax = readBody(size);
+                    String path = paxValue(pax, "path");
+                    if (path != null) longName = path;
+                    String sz = paxValue(pax, "size");
+                    if (sz != null) paxSize = Long.parseLong(sz);
+                    continue;
+                }
+                if (type != '0' && type != 0 && type != '7') { // ディレクトリ・リンク・pax グローバルなど
+                    longName = null;
+                    paxSize = -1;
+                    continue;
+                }
+
+                String name = longName;
+                if (name == null) {
+                    name = cString(header, 0, 100);
+                    if (isUstar(header)) {
+                        String prefix = cString(header, 345, 155);
+                        if (!prefix.isEmpty()) name = prefix + "/" + name;
+                    }
+                }
+                if (paxSize >= 0) {
+                    size = paxSize;
+                    remaining = size;
+                    padding = (BLOCK - size % BLOCK) % BLOCK;
+                }
+                while (name.startsWith("./")) name = name.substring(2);
+                return new Entry(name, size, mtime);
+            }
+        }
+
+        /** 現在のエントリの本体をすべて読む */
+        byte[] readAll(Entry e) throws IOException {
+            if (e.size > Integer.MAX_VALUE - 8) throw new IOException("エントリが大きすぎます: " + e.name);
+            return readBody(e.size);
+        }
+
+        private byte[] readBody(long size) throws IOException {
+            byte[] b = in.readNBytes((int) size);
+            if (b.length < size) throw new EOFException("tar が途中で終わっています");
+            remaining -= b.length;
+            return b;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int c = in.read();
+            if (c >= 0) remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private static boolean isZero(byte[] b) {
+            for (byte x : b) if (x != 0) return false;
+            return true;
+        }
+
+        private static boolean isUstar(byte[] h) {
+            return h[257] == 'u' && h[258] == 's' && h[259] == 't' && h[260] == 'a' && h[261] == 'r';
+        }
+
+        // 8進数（先頭ビットが立っていれば GNU の base-256）
+        private static long number(byte[] h, int off, int len) {
+            if ((h[off] & 0x80) != 0) {
+                long v = h[off] & 0x7F;
+                for (int i = 1; i < len; i++) v = (v << 8) | (h[off + i] & 0xFF);
+                return v;
+            }
+            long v = 0;
+            for (int i = off; i < off + len; i++) {
+                byte c = h[i];
+                if (c == 0 || c == ' ') {
+                    if (v != 0) break;
+                    continue;
+                }
+                if (c < '0' || c > '7') break;
+                v = (v << 3) + (c - '0');
+            }
+            return v;
+        }
+
+        private static String cString(byte[] b, int off, int len) {
+            int end = off;
+            while (end < off + len && b[end] != 0) end++;
+            return new String(b, off, end - off, StandardCharsets.UTF_8);
+        }
+
+        // pax のレコード「<長さ> <キー>=<値>\n」から値を探す
+        private static String paxValue(byte[] pax, String key) {
+            int p = 0;
+            while (p < pax.length) {
+                int sp = p;
+                while (sp < pax.length && pax[sp] != ' ') sp++;
+                if (sp >= pax.length) return null;
+                int len;
+                try {
+                    len = Integer.parseInt(new String(pax, p, sp - p, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (len <= 0 || p + len > pax.length) return null;
+                String rec = new String(pax, sp + 1, p + len - sp - 2, StandardCharsets.UTF_8); // 末尾の \n を除く
+                int eq = rec.indexOf('=');
+                if (eq > 0 && rec.substring(0, eq).equals(key)) return rec.substring(eq + 1);
+                p += len;
+            }
+            return null;
+        }
+    }
+}
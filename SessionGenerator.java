@@ -0,0 +1,712 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * 負荷試験用の合成セッション（script 互換の NAME と NAME.timing）を seed から決定的に作る。
+ * seed と設定が同じなら、何度作っても同じバイト列になる。
+ *
+ * 生成しながら CMD 形式の期待出力（CommandOnlyExtractor と同じ「REL,ABS,AAAAA,&lt;prompt&gt;&lt;cmd&gt;」）も書ける。
+ * 期待出力は変換器を通さず、生成した「プロンプト＋コマンド」と、その Enter の区間までの累計時間から作る。
+ * そのため次の約束で生成する：
+ * <ul>
+ *   <li>コマンドの出力（ls、ログ、表、進捗、vim の画面など）には $ # &gt; % を使わない（プロンプトと誤認されないように）</li>
+ *   <li>打ち間違いとその取り消し（x\b ESC[K）は1つの区間に入れる（変換器は区間ごとに正規化する）</li>
+ *   <li>プロンプトは1つの区間で出し、コマンドのマルチバイト文字は区間で割らない</li>
+ * </ul>
+ * 出力はストリームで書くので、大きさ（--size）は MB から数十 GB まで、ほぼディスクの速度で作れる。
+ */
+public final class SessionGenerator {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+    private static final String FIXED_TAG = "AAAAA";
+
+    /** プロンプトの形（PromptRecognizer.PROFILES のどれかに当たるもの） */
+    public static final String[] PROMPT_STYLES = {
+        "rhel", "debian", "color", "shell", "venv", "mysql", "powershell", "minimal",
+    };
+
+    /** 生成の設定 */
+    public static final class Options {
+        /** 乱数の種 */
+        public long seed = 1;
+        /** NAME の大きさの目安（バイト）。超えたところで exit して終わる */
+        public long size = 64L << 20;
+        /** 出力を区間に分けるときの最大バイト数（大きいほど一度に届く量が多い） */
+        public int burst = 4096;
+        /** コマンドを打ち始めるまでの平均秒数 */
+        public double think = 2.0;
+        /** 出力の行に色（SGR）を付ける割合 */
+        public double ansi = 0.3;
+        /** 出力の途中にウィンドウタイトルなどの OSC を挟む割合 */
+        public double osc = 0.1;
+        /** コマンドが vim（代替画面）になる割合 */
+        public double vim = 0.05;
+        /** コマンドが CR で上書きする進捗表示になる割合 */
+        public double progress = 0.1;
+        /** clear とその後の同じコマンドを2回繰り返す割合（画面消去の後に同じ行が書かれる場合） */
+        public double clear = 0.02;
+        /** 出力の行・コマンドの引数を日本語にする割合 */
+        public double japanese = 0.2;
+        /** 使うプロンプトの形（PROMPT_STYLES の名前） */
+        public String[] prompts = PROMPT_STYLES;
+
+        public Options() {}
+        public Options seed(long v)        { this.seed = v; return this; }
+        public Options size(long v)        { this.size = v; return this; }
+        public Options burst(int v)        { this.burst = v; return this; }
+        public Options think(double v)     { this.think = v; return this; }
+        public Options ansi(double v)      { this.ansi = v; return this; }
+        public Options osc(double v)       { this.osc = v; return this; }
+        public Options vim(double v)       { this.vim = v; return this; }
+        public Options progress(double v)  { this.progress = v; return this; }
+        public Options clear(double v)     { this.clear = v; return this; }
+        public Options japanese(double v)  { this.japanese = v; return this; }
+        public Options prompts(String... v) { this.prompts = v; return this; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.SessionGenerator <NAME> [--seed <n>] [--size <bytes|64M|10G>] [--count <n>]");
+            System.err.println("        [--burst <bytes>] [--think <秒>] [--ansi <0-1>] [--osc <0-1>] [--vim <0-1>] [--progress <0-1>]");
+            System.err.println("        [--clear <0-1>]");
+            System.err.println("        [--japanese <0-1>] [--prompts rhel,debian,...] [--start <ts>] [--no-expected] [--verify]");
+            System.exit(2);
+        }
+        Path name = Paths.get(args[0]);
+        Options opt = new Options();
+        ZonedDateTime start = ZonedDateTime.of(2024, 1, 1, 9, 0, 0, 0, DEFAULT_ZONE);
+        int count = 1;
+        boolean expected = true, verify = false;
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if ("--no-expected".equals(a)) { expected = false; continue; }
+            if ("--verify".equals(a)) { verify = true; continue; }
+            if (i + 1 >= args.length) break;
+            String v = args[++i];
+            switch (a) {
+                case "--seed":     opt.seed = Long.parseLong(v); break;
+                case "--size":     opt.size = parseSize(v); break;
+                case "--count":    count = Integer.parseInt(v); break;
+                case "--burst":    opt.burst = Math.max(1, Integer.parseInt(v)); break;
+                case "--think":    opt.think = Double.parseDouble(v); break;
+                case "--ansi":     opt.ansi = Double.parseDouble(v); break;
+                case "--osc":      opt.osc = Double.parseDouble(v); break;
+                case "--vim":      opt.vim = Double.parseDouble(v); break;
+                case "--progress": opt.progress = Double.parseDouble(v); break;
+                case "--clear":    opt.clear = Double.parseDouble(v); break;
+                case "--japanese": opt.japanese = Double.parseDouble(v); break;
+                case "--prompts":  opt.prompts = v.split(","); break;
+                case "--start":
+                    start = LocalDateTime.parse(v, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).atZone(DEFAULT_ZONE);
+                    break;
+                default: System.err.println("不明なオプション: " + a);
+            }
+        }
+        if (verify) expected = true;
+
+        int failed = 0;
+        for (int k = 0; k < count; k++) {
+            // 複数本なら NAME-0001 … とし、seed も1ずつずらす
+            Path ts = count == 1 ? name : name.resolveSibling(name.getFileName() + String.format("-%04d", k + 1));
+            long seed = opt.seed;
+            opt.seed = seed + k;
+            long t0 = System.nanoTime();
+            long bytes = generate(opt, ts, start, expected);
+            opt.seed = seed;
+            double sec = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("%s: %,d バイト（%.1f 秒、%.0f MB/s）%n", ts, bytes, sec, bytes / 1e6 / sec);
+            if (verify && !verify(ts, start)) failed++;
+        }
+        if (failed > 0) System.exit(1);
+    }
+
+    /** NAME、NAME.timing、expected なら NAME.expected（CMD の期待出力）を書き、NAME のバイト数を返す */
+    public static long generate(Options opt, Path typescript, ZonedDateTime start, boolean expected) throws IOException {
+        Path parent = typescript.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try (OutputStream data = Files.newOutputStream(typescript);
+             OutputStream timing = Files.newOutputStream(timingPathOf(typescript));
+             Writer exp = expected
+                     ? Files.newBufferedWriter(expectedPathOf(typescript), StandardCharsets.UTF_8)
+                     : null) {
+            return generate(opt, data, timing, exp, start);
+        }
+    }
+
+    /** ストリーム版。expected が null なら期待出力は書かない */
+    public static long generate(Options opt, OutputStream data, OutputStream timing, Writer expected,
+                                ZonedDateTime start) throws IOException {
+        Generator g = new Generator(opt, data, timing, expected, start);
+        g.run();
+        return g.dataBytes;
+    }
+
+    public static Path timingPathOf(Path typescript) {
+        return typescript.resolveSibling(typescript.getFileName() + ".timing");
+    }
+
+    public static Path expectedPathOf(Path typescript) {
+        return typescript.resolveSibling(typescript.getFileName() + ".expected");
+    }
+
+    /**
+     * CMD の各変換器（逐次・パイプライン・セグメント並列）で変換し、期待出力と比べる。結果は標準出力に書く。
+     * 全体ログ（TypescriptToLog の画面モデル）は形式が違うので、期待出力の「プロンプト＋コマンド」の行が
+     * すべて（同じ回数だけ）残っていることだけを確かめる。
+     */
+    public static boolean verify(Path typescript, ZonedDateTime start) throws IOException, InterruptedException {
+        Path timing = timingPathOf(typescript);
+        byte[] want = Files.readAllBytes(expectedPathOf(typescript));
+        Path out = Files.createTempFile("generator-verify", ".log");
+        boolean ok = true;
+        try {
+            for (String v : new String[] {"cmd", "pipe", "segmented"}) {
+                switch (v) {
+                    case "cmd":
+                        try (InputStream in = new BufferedInputStream(Files.newInputStream(typescript));
+                             TimingParser tr = TimingParser.open(timing, TimingParser.Unit.SECONDS);
+                             BufferedWriter w = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+                            CommandOnlyExtractor.extract(in, tr, w, start);
+                        }
+                        break;
+                    case "pipe":
+                        PipelinedExtractor.extract(typescript, timing, out, start);
+                        break;
+                    default:
+                        SegmentedExtractor.extract(typescript, timing, out, start, Runtime.getRuntime().availableProcessors());
+                        break;
+                }
+                long diff = Files.mismatch(out, expectedPathOf(typescript));
+                if (diff < 0) {
+                    System.out.println("  " + v + ": 一致（" + want.length + " バイト）");
+                } else {
+                    ok = false;
+                    System.out.println("  " + v + ": 不一致（" + diff + " バイト目から）");
+                }
+            }
+
+            com.demo.test01.TypescriptToLog.convert(typescript, timing, out, start.toInstant(), false);
+            Map<String, Integer> missing = new HashMap<>();
+            for (String l : Files.readAllLines(expectedPathOf(typescript), StandardCharsets.UTF_8)) {
+                missing.merge(content(l), 1, Integer::sum);
+            }
+            for (String l : Files.readAllLines(out, StandardCharsets.UTF_8)) {
+                missing.computeIfPresent(content(l), (k, n) -> n == 1 ? null : n - 1);
+            }
+            if (missing.isEmpty()) {
+                System.out.println("  log: プロンプト＋コマンドの行がすべてある");
+            } else {
+                ok = false;
+                int n = missing.values().stream().mapToInt(Integer::intValue).sum();
+                System.out.println("  log: " + n + " 行が見つからない（例: " + missing.keySet().iterator().next() + "）");
+            }
+        } finally {
+            Files.deleteIfExists(out);
+        }
+        return ok;
+    }
+
+    // REL,ABS,タグ,内容 の内容
+    private static String content(String line) {
+        int p = line.indexOf(',');
+        p = line.indexOf(',', p + 1);
+        return line.substring(line.indexOf(',', p + 1) + 1);
+    }
+
+    static long parseSize(String s) {
+        char u = Character.toUpperCase(s.charAt(s.length() - 1));
+        long mul = u == 'K' ? 1L << 10 : u == 'M' ? 1L << 20 : u == 'G' ? 1L << 30 : 1;
+        return Long.parseLong(mul == 1 ? s : s.substring(0, s.length() - 1)) * mul;
+    }
+
+    // ====== 生成 ======
+
+    private static final String[] USERS = {"root", "admin", "deploy", "user", "oracle"};
+    private static final String[] HOSTS = {"web01", "db-02", "app-03.prod", "build", "host"};
+    private static final String[] DIRS  = {"~", "/var/log", "/etc/nginx", "~/src", "/opt/app/releases"};
+    private static final String[] FILES = {"app.conf", "nginx.conf", "messages", "run.sh", "README.md"};
+    private static final String[] SVCS  = {"sshd", "nginx", "mysqld", "crond", "docker"};
+    private static final String[] SHELL_CMDS = {
+        "ls -l {dir}", "cd {dir}", "tail -n {n} /var/log/messages", "grep -r ERROR {dir}", "systemctl status {svc}",
+        "ps aux | grep {svc}", "cat {file}", "echo {jp}", "find {dir} -name '*.log' -mtime +{n}",
+        "tar czf backup-{n}.tar.gz {dir}", "echo hi > out.txt", "cp {file} {file}.bak", "journalctl -u {svc} --since today",
+    };
+    private static final String[] SQL_CMDS = {
+        "select * from users where id = {n};", "show tables;", "update orders set status = 'done' where id = {n};",
+        "select count(*) from logs where msg like '%{jp}%';",
+    };
+    private static final String[] PS_CMDS = {
+        "Get-ChildItem C:\\logs", "Get-Process | Where-Object CPU -gt {n}", "Get-Content app.log -Tail {n}",
+    };
+    private static final String[] JP_WORDS = {"テスト", "完了", "設定ファイル", "バックアップ", "障害対応", "日本語の出力"};
+    private static final String[] JP_LINES = {
+        "処理が完了しました（{n}件）", "設定を読み込みました：{file}", "接続を確認しています…",
+        "警告：ディスク使用量が多くなっています", "バックアップを作成しました",
+    };
+    private static final String MOTD =
+        "Welcome to Ubuntu 22.04.3 LTS (GNU/Linux 5.15.0-86-generic x86_64)\r\n\r\n"
+        + " * Documentation:  https://help.ubuntu.com\r\n"
+        + " * Management:     https://landscape.canonical.com\r\n\r\n"
+        + "Last login: Mon Jan  1 08:59:12 2024 from 10.0.0.12\r\n";
+
+    private static final class Generator {
+        final Options opt;
+        final OutputStream data, timing;
+        final Writer expected;
+        final SplittableRandom rnd;
+        final TimestampRenderer stamps;
+        final Instant start;
+        final byte[] line = new byte[32];
+        final Bytes sb = new Bytes(1 << 16);   // 出力のまとまり
+        final Bytes tmp = new Bytes(256);      // 1区間ぶん
+        // BufferedOutputStream は呼び出しごとにロックを取るので、区間の多い timing では自前で貯める
+        final byte[] dataBuf = new byte[1 << 20], timingBuf = new byte[1 << 18];
+        int dataLen, timingLen;
+
+        long dataBytes;
+        double elapsed; // CommandOnlyExtractor と同じく、区間ごとに秒を足していく
+        String style, user, host, dir;
+
+        Generator(Options opt, OutputStream data, OutputStream timing, Writer expected, ZonedDateTime start) {
+            this.opt = opt;
+            this.data = data;
+            this.timing = timing;
+            this.expected = expected;
+            this.rnd = new SplittableRandom(opt.seed);
+            this.stamps = new TimestampRenderer(start.getZone(), '-', false);
+            this.start = start.toInstant();
+        }
+
+        void run() throws IOException {
+            output(MOTD, 300_000);
+            switchShell();
+            while (dataBytes < opt.size) {
+                if (rnd.nextInt(20) == 0) switchShell();
+                String prompt = promptText();
+                entry(promptBytes(), thinkMicros());
+                if (rnd.nextInt(25) == 0) {
+                    entry("\r\n", 150_000); // 空の Enter：プロンプトだけの行（出力されない）
+                    continue;
+                }
+                double kind = rnd.nextDouble();
+                String cmd;
+                if (kind >= opt.vim + opt.progress && kind < opt.vim + opt.progress + opt.clear && isShell()) {
+                    clearAndRepeat(prompt);
+                    continue;
+                }
+                if (kind < opt.vim && isShell()) {
+                    cmd = "vim " + pick(FILES);
+                } else if (kind < opt.vim + opt.progress && isShell()) {
+                    cmd = rnd.nextBoolean() ? "yum update -y" : "curl -O https://example.com/pkg-" + rnd.nextInt(100) + ".rpm";
+                } else {
+                    cmd = command();
+                }
+                type(cmd);
+                entry("\r\n", 20_000 + rnd.nextInt(200_000));
+                expect(prompt, cmd);
+
+                if (cmd.startsWith("vim ")) vim(cmd.substring(4));
+                else if (cmd.startsWith("yum ") || cmd.startsWith("curl ")) progress();
+                else if ("mysql".equals(style)) table();
+                else outputFor(cmd);
+            }
+            String prompt = promptText();
+            entry(promptBytes(), thinkMicros());
+            type("exit");
+            entry("\r\n", 100_000);
+            expect(prompt, "exit");
+            output("logout\r\n", 50_000);
+            flush();
+        }
+
+        // ---- プロンプト ----
+
+        void switchShell() {
+            style = opt.prompts[rnd.nextInt(opt.prompts.length)];
+            user = pick(USERS);
+            host = pick(HOSTS);
+            dir = pick(DIRS);
+        }
+
+        boolean isShell() {
+            return !"mysql".equals(style) && !"powershell".equals(style);
+        }
+
+        // 変換器が正規化した後のプロンプト
+        String promptText() {
+            String mark = "root".equals(user) ? "# " : "$ ";
+            switch (style) {
+                case "rhel":       return "[" + user + "@" + host + " " + lastDir() + "]" + mark;
+                case "shell":      return "bash-5.2" + mark;
+                case "venv":       return "(venv) " + user + "@" + host + ":" + dir + mark;
+                case "mysql":      return "mysql> ";
+                case "powershell": return "PS C:\\Users\\" + user + "> ";
+                case "minimal":    return mark;
+                default:           return user + "@" + host + ":" + dir + mark; // debian / color
+            }
+        }
+
+        String promptBytes() {
+            if (!"color".equals(style)) return promptText();
+            String mark = "root".equals(user) ? "# " : "$ ";
+            return "\u001B]0;" + user + "@" + host + ": " + dir + "\u0007\u001B[01;32m" + user + "@" + host
+                    + "\u001B[00m:\u001B[01;34m" + dir + "\u001B[00m" + mark;
+        }
+
+        String lastDir() {
+            int p = dir.lastIndexOf('/');
+            return p < 0 || dir.length() == 1 ? dir : dir.substring(p + 1);
+        }
+
+        // ---- コマンド ----
+
+        String command() {
+            String[] pool = "mysql".equals(style) ? SQL_CMDS : "powershell".equals(style) ? PS_CMDS : SHELL_CMDS;
+            String t = pool[rnd.nextInt(pool.length)];
+            String c = fill(t);
+            if (c.startsWith("cd ")) dir = c.substring(3);
+            return c;
+        }
+
+        // {dir} {file} {svc} {n} {jp} を埋める
+        String fill(String t) {
+            int q = t.indexOf('{');
+            if (q < 0) return t;
+            StringBuilder b = new StringBuilder(t.length() + 32);
+            int p = 0;
+            for (; q >= 0; q = t.indexOf('{', p)) {
+                int e = t.indexOf('}', q);
+                b.append(t, p, q);
+                switch (t.substring(q + 1, e)) {
+                    case "dir":  b.append(pick(DIRS)); break;
+                    case "file": b.append(pick(FILES)); break;
+                    case "svc":  b.append(pick(SVCS)); break;
+                    case "n":    b.append(1 + rnd.nextInt(500)); break;
+                    default:     b.append(rnd.nextDouble() < opt.japanese ? pick(JP_WORDS) : "test"); break;
+                }
+                p = e + 1;
+            }
+            return b.append(t, p, t.length()).toString();
+        }
+
+        // 1文字ずつのエコー。ときどき打ち間違い（同じ区間で取り消す）や Tab 補完（残りを1区間で）を混ぜる
+        void type(String cmd) throws IOException {
+            int complete = cmd.length() > 4 && rnd.nextInt(5) == 0 ? 2 + rnd.nextInt(cmd.length() - 3) : -1;
+            int i = 0;
+            while (i < cmd.length()) {
+                if (i == complete) {
+                    int end = cmd.indexOf(' ', i);
+                    if (end < 0) end = cmd.length();
+                    if (end > i) {
+                        entry(cmd.substring(i, end), 300_000 + rnd.nextInt(300_000));
+                        i = end;
+                        continue;
+                    }
+                }
+                int n = Character.charCount(cmd.codePointAt(i));
+                String ch = cmd.substring(i, i + n);
+                if (rnd.nextInt(15) == 0) ch = (char) ('a' + rnd.nextInt(26)) + "\b\u001B[K" + ch;
+                entry(ch, 50_000 + rnd.nextInt(250_000));
+                i += n;
+            }
+        }
+
+        // clear → echo → clear → 同じ echo。2回目の echo は、消える前と同じ行に同じ内容で書かれる
+        // clear の出力は ncurses の版で ESC[3J（スクロールバックの消去）が付くものと付かないものがある
+        void clearAndRepeat(String prompt) throws IOException {
+            String cmd = "echo " + fill("{jp}");
+            String clear = rnd.nextBoolean() ? "\u001B[H\u001B[2J" : "\u001B[H\u001B[2J\u001B[3J";
+            for (int k = 0; k < 2; k++) {
+                if (k > 0) {
+                    prompt = promptText();
+                    entry(promptBytes(), thinkMicros());
+                }
+                type("clear");
+                entry("\r\n", 20_000 + rnd.nextInt(200_000));
+                expect(prompt, "clear");
+                entry(clear, 2_000 + rnd.nextInt(20_000));
+
+                prompt = promptText();
+                entry(promptBytes(), thinkMicros());
+                type(cmd);
+                entry("\r\n", 20_000 + rnd.nextInt(200_000));
+                expect(prompt, cmd);
+                entry(cmd.substring(5) + "\r\n", 2_000 + rnd.nextInt(20_000));
+            }
+        }
+
+        // ---- コマンドの出力（$ # > % を含めない） ----
+
+        void outputFor(String cmd) throws IOException {
+            // ウィンドウタイトルなどの OSC は1つの区間で出す（割れた残りは次の行に残るため）
+            if (rnd.nextDouble() < opt.osc) entry("\u001B]0;" + user + "@" + host + ": " + cmd + "\u0007", rnd.nextInt(5_000));
+            sb.setLength(0);
+            if (cmd.startsWith("ls ") || cmd.startsWith("Get-ChildItem")) {
+                listing();
+            } else if (cmd.startsWith("cd ") || cmd.startsWith("cp ") || cmd.startsWith("echo hi")) {
+                // 出力なし
+            } else if (cmd.startsWith("echo ")) {
+                sb.append(cmd, 5, cmd.length()).append("\r\n");
+            } else if (cmd.startsWith("cat ") && rnd.nextInt(4) == 0) {
+                longLines();
+            } else {
+                logLines();
+            }
+            if (sb.length() > 0) output(sb, 2_000 + rnd.nextInt(50_000));
+            if (rnd.nextDouble() < opt.osc) {
+                entry("\u001B]7;file://" + host + (dir.startsWith("~") ? "/home/" + user : dir) + "\u0007", rnd.nextInt(5_000));
+            }
+        }
+
+        void listing() {
+            int n = 3 + rnd.nextInt(40);
+            sb.append("total ").append(n * 4).append("\r\n");
+            for (int i = 0; i < n; i++) {
+                boolean d = rnd.nextInt(4) == 0;
+                boolean color = d && rnd.nextDouble() < opt.ansi;
+                sb.append(d ? "drwxr-xr-x 2 " : "-rw-r--r-- 1 ").append(user).append(' ').append(user).append(' ');
+                String size = Integer.toString(rnd.nextInt(1 << 20));
+                for (int k = size.length(); k < 8; k++) sb.append(' ');
+                sb.append(size).append(" Jan  1 09:").append(10 + rnd.nextInt(50)).append(' ');
+                if (color) sb.append("\u001B[01;34m");
+                if (rnd.nextDouble() < opt.japanese) sb.append(pick(JP_WORDS)); else sb.append("file").append(rnd.nextInt(1000));
+                if (color) sb.append("\u001B[0m");
+                if (!d) sb.append(".log");
+                sb.append("\r\n");
+            }
+        }
+
+        void logLines() {
+            int n = 1 + rnd.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                sb.append("2024-01-01 09:").append(10 + rnd.nextInt(50)).append(':').append(10 + rnd.nextInt(50)).append(' ');
+                boolean error = rnd.nextInt(5) == 0;
+                boolean color = rnd.nextDouble() < opt.ansi;
+                if (color) sb.append(error ? "\u001B[31m" : "\u001B[32m");
+                sb.append(error ? "ERROR" : "INFO");
+                if (color) sb.append("\u001B[0m");
+                sb.append(" [main] ");
+                if (rnd.nextDouble() < opt.japanese) {
+                    sb.append(fill(pick(JP_LINES)));
+                } else {
+                    sb.append("request ").append(rnd.nextInt(100000)).append(" finished in ").append(rnd.nextInt(500)).append(" ms");
+                }
+                sb.append("\r\n");
+            }
+        }
+
+        void longLines() {
+            int n = 1 + rnd.nextInt(3);
+            for (int i = 0; i < n; i++) {
+                int words = 200 + rnd.nextInt(800);
+                boolean jp = rnd.nextDouble() < opt.japanese;
+                for (int k = 0; k < words; k++) {
+                    if (jp) sb.append("値").append(k).append('　'); else sb.append("value").append(k).append(' ');
+                }
+                sb.append("\r\n");
+            }
+        }
+
+        void table() throws IOException {
+            sb.setLength(0);
+            sb.append("+----+----------+---------------------+\r\n| id | name     | created             |\r\n")
+              .append("+----+----------+---------------------+\r\n");
+            int n = 1 + rnd.nextInt(20);
+            for (int i = 0; i < n; i++) {
+                String name = rnd.nextDouble() < opt.japanese ? pick(JP_WORDS) : "user" + rnd.nextInt(100);
+                sb.append("| ").append(i < 10 ? " " : "").append(i).append(" | ").append(name).append(" | 2024-01-01 09:")
+                  .append(10 + rnd.nextInt(50)).append(':').append(10 + rnd.nextInt(50)).append(" |\r\n");
+            }
+            sb.append("+----+----------+---------------------+\r\n").append(n).append(" rows in set (0.00 sec)\r\n\r\n");
+            output(sb, 5_000 + rnd.nextInt(100_000));
+        }
+
+        // CR で同じ行を上書きする進捗表示（1回ごとに1区間）
+        void progress() throws IOException {
+            output("Resolving dependencies\r\n", 300_000);
+            int step = 1 + rnd.nextInt(10);
+            for (int p = 0; p <= 100; p += step) {
+                int bar = p / 5;
+                sb.setLength(0);
+                sb.append("\r Downloading  [");
+                for (int k = 0; k < 20; k++) sb.append(k < bar ? '=' : ' ');
+                sb.append("]  ").append(p).append("/100");
+                write(sb.buf, 0, sb.length(), 20_000 + rnd.nextInt(200_000));
+            }
+            entry("\r\nComplete!\r\n", 100_000);
+        }
+
+        // 代替画面に入って編集し、保存して戻る
+        void vim(String file) throws IOException {
+            sb.setLength(0);
+            sb.append("\u001B[?1049h\u001B[22;0;0t\u001B[H\u001B[2J");
+            int lines = 5 + rnd.nextInt(15);
+            for (int r = 1; r <= 23; r++) {
+                sb.append("\u001B[").append(r).append(";1H");
+                if (r > lines) sb.append('~');
+                else if (rnd.nextDouble() < opt.japanese) sb.append("コメント ").append(r);
+                else sb.append("server_name example").append(r).append(".com;");
+            }
+            sb.append("\u001B[24;1H\"").append(file).append("\" ").append(lines).append("L, ").append(lines * 24).append("B");
+            output(sb, 50_000);
+            entry("\u001B[24;1H\u001B[K-- INSERT --\u001B[" + (1 + rnd.nextInt(lines)) + ";1H", 1_000_000 + rnd.nextInt(2_000_000));
+            for (char c : "listen 8080;".toCharArray()) entry("\u001B[@" + c, 80_000 + rnd.nextInt(200_000));
+            entry("\u001B[24;1H\u001B[K:wq\r", 1_000_000);
+            entry("\u001B[?1049l\u001B[23;0;0t\"" + file + "\" " + lines + "L written\r\n", 200_000);
+        }
+
+        // ---- 書き出し ----
+
+        // s を 1〜burst バイトの区間に分けて書く（マルチバイト文字の途中でも切る）
+        void output(Bytes b, long firstDelayMicros) throws IOException {
+            long delay = firstDelayMicros;
+            for (int p = 0; p < b.length(); ) {
+                int n = Math.min(b.length() - p, 1 + rnd.nextInt(opt.burst));
+                write(b.buf, p, n, delay);
+                p += n;
+                delay = rnd.nextInt(20_000);
+            }
+        }
+
+        void output(String s, long firstDelayMicros) throws IOException {
+            sb.setLength(0);
+            output(sb.append(s), firstDelayMicros);
+        }
+
+        void entry(String s, long delayMicros) throws IOException {
+            tmp.setLength(0);
+            tmp.append(s);
+            write(tmp.buf, 0, tmp.length(), delayMicros);
+        }
+
+        // timing の1行（秒.マイクロ秒 バイト数）と、その区間のバイト
+        void write(byte[] b, int off, int len, long delayMicros) throws IOException {
+            if (dataLen + len > dataBuf.length) {
+                data.write(dataBuf, 0, dataLen);
+                dataLen = 0;
+                if (len > dataBuf.length) data.write(b, off, len);
+            }
+            if (len <= dataBuf.length) {
+                System.arraycopy(b, off, dataBuf, dataLen, len);
+                dataLen += len;
+            }
+            dataBytes += len;
+            elapsed += delayMicros * 1000L / 1e9;
+
+            int p = line.length;
+            line[--p] = '\n';
+            for (int v = len; ; v /= 10) { line[--p] = (byte) ('0' + v % 10); if (v < 10) break; }
+            line[--p] = ' ';
+            long frac = delayMicros % 1_000_000;
+            for (int k = 0; k < 6; k++, frac /= 10) line[--p] = (byte) ('0' + frac % 10);
+            line[--p] = '.';
+            for (long v = delayMicros / 1_000_000; ; v /= 10) { line[--p] = (byte) ('0' + v % 10); if (v < 10) break; }
+            int n = line.length - p;
+            if (timingLen + n > timingBuf.length) {
+                timing.write(timingBuf, 0, timingLen);
+                timingLen = 0;
+            }
+            System.arraycopy(line, p, timingBuf, timingLen, n);
+            timingLen += n;
+        }
+
+        void flush() throws IOException {
+            data.write(dataBuf, 0, dataLen);
+            timing.write(timingBuf, 0, timingLen);
+            dataLen = timingLen = 0;
+            data.flush();
+            timing.flush();
+        }
+
+        // CommandOnlyExtractor と同じ形式の1行
+        void expect(String prompt, String cmd) throws IOException {
+            if (expected == null) return;
+            stamps.writeRel(expected, elapsed);
+            expected.write(',');
+            stamps.writeAbs(expected, start.plusNanos((long) (elapsed * 1_000_000_000L)));
+            expected.write(',');
+            expected.write(FIXED_TAG);
+            expected.write(',');
+            expected.write(prompt);
+            expected.write(cmd);
+            expected.write('\n');
+        }
+
+        long thinkMicros() {
+            double t = -Math.log(1 - rnd.nextDouble()) * opt.think;
+            return (long) (Math.min(t, 60.0) * 1_000_000);
+        }
+
+        String pick(String[] a) {
+            return a[rnd.nextInt(a.length)];
+        }
+    }
+
+    /** UTF-8 で貯めるバイト列（StringBuilder の代わり。出力は大半が ASCII なのでそのまま詰める） */
+    private static final class Bytes {
+        byte[] buf;
+        private int len;
+
+        Bytes(int capacity) { buf = new byte[capacity]; }
+
+        int length() { return len; }
+        void setLength(int n) { len = n; }
+
+        Bytes append(String s) { return append(s, 0, s.length()); }
+
+        Bytes append(CharSequence s, int from, int to) {
+            ensure(len + (to - from) * 3);
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[len++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[len++] = (byte) (0xC0 | c >> 6);
+                    buf[len++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < to) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | cp >> 18);
+                    buf[len++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[len++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[len++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    buf[len++] = (byte) (0xE0 | c >> 12);
+                    buf[len++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[len++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return this;
+        }
+
+        Bytes append(char c) {
+            if (c < 0x80) {
+                ensure(len + 1);
+                buf[len++] = (byte) c;
+                return this;
+            }
+            return append(String.valueOf(c));
+        }
+
+        Bytes append(int v) {
+            ensure(len + 11);
+            if (v < 0) { buf[len++] = '-'; v = -v; }
+            int start = len;
+            do { buf[len++] = (byte) ('0' + v % 10); v /= 10; } while (v > 0);
+            for (int i = start, j = len - 1; i < j; i++, j--) { byte t = buf[i]; buf[i] = buf[j]; buf[j] = t; }
+            return this;
+        }
+
+        private void ensure(int n) {
+            if (n > buf.length) buf = Arrays.copyOf(buf, Math.max(n, buf.length * 2));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 記録中のセッション（<uuid> と <uuid>.timing が追記され続けている状態）を追従して読む。
+ * WatchService で更新を待ち、timing と録画ファイルそれぞれの読み取り位置を保持して、
+ * 追記された timing エントリとそのバイトだけを Listener に渡す。
+ *
+ * - 改行まで書かれていない timing 行は、完成するまで解析しない
+ * - エントリのバイトが録画ファイルにまだ揃っていなければ、揃うまで待つ
+ *   （エントリ単位で渡すので、途中で切れた UTF-8 は後処理から見えない）
+ * - 一定時間どちらのファイルも伸びなければ終了とみなし、残りを一括変換と同じ規則で渡す
+ *
+ * 使い方: java com.demo.TailFollower <NAME> [--mode cmd|log] [--out <file>] [--start <ts>] [--idle <秒>]
+ */
+public final class TailFollower implements Closeable {
+
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
+    private static final long POLL_MILLIS = 100; // WatchService が通知しない環境向けの再確認間隔
+
+    /** 追従中に渡されるイベント */
+    public interface Listener {
+        /** timing 1エントリ分。b[off, off+len) はそのエントリのバイト（終了時のみ不足することがある） */
+        void entry(long delayNanos, byte[] b, int off, int len) throws IOException;
+
+        /** 追記分をすべて処理し終えた（出力をフラッシュする契機） */
+        default void caughtUp() throws IOException { }
+    }
+
+    private final Path typescript;
+    private final FileChannel data;
+    private final TimingParser timing;
+    private final WatchService watcher;
+
+    private long dataPos;          // 録画ファイルの読み取り位置
+    private boolean pending;       // 次のエントリの解析済み・バイト待ち
+    private long pendingDelay;
+    private long pendingBytes;
+    private byte[] entryBuf = new byte[64 * 1024];
+
+    public TailFollower(Path typescript, Path timingPath) throws IOException {
+        this.typescript = typescript;
+        this.data = FileChannel.open(typescript, StandardOpenOption.READ);
+        FileChannel t = FileChannel.open(timingPath, StandardOpenOption.READ);
+        this.timing = new TimingParser(Channels.newInputStream(t), TimingParser.Unit.SECONDS);
+        this.timing.setFollow(true);
+        this.watcher = typescript.getFileSystem().newWatchService();
+        Path dir = typescript.toAbsolutePath().getParent();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        Path tdir = timingPath.toAbsolutePath().getParent();
+        if (!tdir.equals(dir)) {
+            tdir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.TailFollower <NAME> [--mode cmd|log] [--out <file>] [--start <ts>] [--idle <秒>]");
+            System.exit(2);
+        }
+        Path ts = Paths.get(args[0]);
+        Path timingPath = ts.resolveSibling(ts.getFileName() + ".timing");
+        Path out = ts.resolveSibling(ts.getFileName() + ".log");
+        String startStr = null;
+        boolean logMode = false;
+        Duration idle = null; // 指定なしなら中断されるまで追従
+        for (int i = 1; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) {
+                out = Paths.get(args[++i]);
+            } else if ("--start".equals(args[i]) && i + 1 < args.length) {
+                startStr = args[++i];
+            } else if ("--mode".equals(args[i]) && i + 1 < args.length) {
+                logMode = "log".equals(args[++i]);
+            } else if ("--idle".equals(args[i]) && i + 1 < args.length) {
+                idle = Duration.ofMillis((long) (Double.parseDouble(args[++i]) * 1000));
+            }
+        }
+        Instant start = startStr != null ? ConvertEngine.parseStart(startStr).toInstant()
+                : TimingParser.recordingStart(ts, timingPath);
+        if (logMode) {
+            com.demo.test01.TypescriptToLog.follow(ts, timingPath, out, start, false, idle);
+        } else {
+            CommandOnlyExtractor.follow(ts, timingPath, out, ZonedDateTime.ofInstant(start, DEFAULT_ZONE), idle);
+        }
+        System.out.println("完了: " + out.toAbsolutePath());
+    }
+
+    /**
+     * 追従する。idleTimeout の間どちらのファイルも伸びなければ戻る（null なら割り込まれるまで続ける）。
+     * 戻る前に、保留中の最終行と、バイトが足りないエントリも Listener に渡す。
+     */
+    public void run(Listener l, Duration idleTimeout) throws IOException, InterruptedException {
+        long idleNanos = idleTimeout == null ? Long.MAX_VALUE : idleTimeout.toNanos();
+        long lastProgress = System.nanoTime();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (drain(l, false)) {
+                    l.caughtUp();
+                    lastProgress = System.nanoTime();
+                } else if (System.nanoTime() - lastProgress >= idleNanos) {
+                    break;
+                }
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } finally {
+            // 終了：ここから先は一括変換と同じ（最終行も解析し、足りないバイトはあるだけ渡す）
+            timing.setFollow(false);
+            drain(l, true);
+            l.caughtUp();
+        }
+    }
+
+    /** timing の総バイト数を超えて録画ファイルにバイトが残っているか（run の後に使う） */
+    public boolean dataRemains() throws IOException {
+        return data.size() > dataPos;
+    }
+
+    /** timing の範囲外に残ったバイトを最大 len バイト読む（run の後に使う）。読んだバイト数を返す */
+    public int readRemaining(byte[] b, int off, int len) throws IOException {
+        int n = Math.max(0, data.read(ByteBuffer.wrap(b, off, len), dataPos));
+        dataPos += n;
+        return n;
+    }
+
+    // 処理できるだけ処理する。何か渡したら true
+    private boolean drain(Listener l, boolean last) throws IOException {
+        boolean progressed = false;
+        while (true) {
+            if (!pending) {
+                if (!timing.next()) return progressed;
+                pending = true;
+                pendingDelay = timing.delayNanos();
+                pendingBytes = timing.bytes();
+            }
+            long size = data.size();
+            if (size < dataPos) throw new IOException("録画ファイルが切り詰められました: " + typescript);
+            long avail = size - dataPos;
+            if (avail < pendingBytes && !last) return progressed; // バイトが揃うまで待つ
+
+            int n = (int) Math.min(pendingBytes, Math.min(avail, Integer.MAX_VALUE - 8));
+            if (n > entryBuf.length) entryBuf = new byte[n];
+            ByteBuffer bb = ByteBuffer.wrap(entryBuf, 0, n);
+            while (bb.hasRemaining()) {
+                int r = data.read(bb, dataPos + bb.position());
+                if (r < 0) break;
+            }
+            n = bb.position();
+            dataPos += n;
+            pending = false;
+            l.entry(pendingDelay, entryBuf, 0, n);
+            progressed = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // すべて閉じる。最初の例外を投げ、残りは suppressed に付ける
+        IOException error = null;
+        for (Closeable c : new Closeable[] {watcher, timing, data}) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,371 @@
+package com.demo;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 正規化処理（\nは保持；ANSI/OSC/CSI、バックスペース、CR上書きを削除）を1回の走査で行うステートマシン。
+ *
+ * 従来の sanitize は次の置換を順番に適用していた（結果はこれと完全に同一）：
+ * <ol>
+ *   <li>8-bit C1：CSI（U+009B）、OSC（U+009D … BEL|ST）、DCS/PM/APC/SOS（… ST）</li>
+ *   <li>7-bit ESC：OSC（ESC ] … BEL|ESC \）、DCS/PM/APC/SOS（ESC [P^_X] … ESC \）、CSI、その他の ESC+1文字</li>
+ *   <li>キャレット可視化：^[[…x、^[、^M → \n</li>
+ *   <li>バックスペース、CR上書き、\n\t 以外の C0 削除</li>
+ * </ol>
+ * 各置換を小さな状態機械（s1〜s10）として直列につなぎ、1文字ずつ流す。前段の除去で隣接した文字列が後段で
+ * 一致する（例：C1 CSI を除いた結果 ESC [ が並ぶ）ケースも、段ごとの順序を保つので従来と同じになる。
+ * 終端のない OSC などは正規表現と同様に一致しなかったものとして、そのまま次段へ流す。
+ *
+ * バックスペースは直前の1文字（UTF-16 単位）を消すため、デコード済みの文字に対して処理する。
+ * バイト列はチャンクごとに1回だけデコードし、中間の String は作らない。
+ * 状態とバッファを使い回すので、インスタンスはスレッドセーフではない（変換1本につき1個）。
+ */
+public final class TerminalSanitizer {
+
+    private static final char ESC = '\u001B';
+    private static final char BEL = '\u0007';
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer decoded = CharBuffer.allocate(8192);
+
+    // バックスペース適用後の文字列（CR上書き前）
+    private char[] work = new char[8192];
+    private int wlen;
+    // CR上書き用の1行バッファ
+    private char[] line = new char[256];
+    private final StringBuilder out = new StringBuilder(8192);
+
+    // 各段の状態（0 = 待機中）と、一致するか未確定の間に保留している文字
+    private int st1, st2, st3, st4, st5, st6, st7, st8, st9, st10;
+    private char open3, open5;
+    private final StringBuilder p1 = new StringBuilder(), b2 = new StringBuilder(), b3 = new StringBuilder(),
+            b4 = new StringBuilder(), b5 = new StringBuilder(), p6 = new StringBuilder(), p8 = new StringBuilder();
+
+    /** UTF-8 のバイト列をデコードしてから正規化する */
+    public String sanitize(byte[] b, int off, int len) {
+        ByteBuffer in = ByteBuffer.wrap(b, off, len);
+        int need = (int) Math.min(Integer.MAX_VALUE - 8L, (long) len + 16);
+        if (decoded.capacity() < need) decoded = CharBuffer.allocate(need);
+        decoded.clear();
+        decoder.reset();
+        decoder.decode(in, decoded, true);
+        decoder.flush(decoded);
+        decoded.flip();
+        return run(decoded.array(), decoded.arrayOffset(), decoded.limit());
+    }
+
+    public String sanitize(String s) {
+        char[] a = s.toCharArray();
+        return run(a, 0, a.length);
+    }
+
+    private String run(char[] in, int off, int len) {
+        reset();
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            if (idle()) {
+                // どの段も保留がなければ、特殊文字までをまとめてコピー
+                int j = i;
+                while (j < end && inert(in[j])) j++;
+                if (j > i) {
+                    ensureWork(j - i);
+                    System.arraycopy(in, i, work, wlen, j - i);
+                    wlen += j - i;
+                    i = j;
+                    if (i == end) break;
+                }
+            }
+            s1(in[i++]);
+        }
+        finish();
+        return carriageReturns();
+    }
+
+    private void reset() {
+        st1 = st2 = st3 = st4 = st5 = st6 = st7 = st8 = st9 = st10 = 0;
+        wlen = 0;
+    }
+
+    private boolean idle() {
+        return (st1 | st2 | st3 | st4 | st5 | st6 | st7 | st8 | st9 | st10) == 0;
+    }
+
+    /** 待機中のどの段でも素通りする文字か */
+    private static boolean inert(char c) {
+        if (c == ESC || c == '^' || c == '\b') return false;
+        return c < '\u0090' || c > '\u009F'
+                || (c != '\u0090' && c != '\u0098' && c != '\u009B' && c != '\u009D' && c != '\u009E' && c != '\u009F');
+    }
+
+    // —— 1) U+009B [\x20-\x3F]* [\x40-\x7E] ——
+    private void s1(char c) {
+        if (st1 == 0) {
+            if (c == '\u009B') { st1 = 1; p1.setLength(0); } else s2(c);
+            return;
+        }
+        if (c >= 0x20 && c <= 0x3F) { p1.append(c); return; }
+        st1 = 0;
+        if (c >= 0x40 && c <= 0x7E) return; // 一致：除去
+        s2('\u009B'); feed2(p1);
+        s1(c);
+    }
+
+    // —— 2) U+009D [\s\S]*? (BEL|U+009C) ——
+    private void s2(char c) {
+        if (st2 == 0) {
+            if (c == '\u009D') { st2 = 1; b2.setLength(0); } else s3(c);
+            return;
+        }
+        if (c == BEL || c == '\u009C') st2 = 0; else b2.append(c);
+    }
+
+    // —— 3) (U+0090|U+0098|U+009E|U+009F) [\s\S]*? U+009C ——
+    private void s3(char c) {
+        if (st3 == 0) {
+            if (c == '\u0090' || c == '\u009E' || c == '\u009F' || c == '\u0098') {
+                st3 = 1; open3 = c; b3.setLength(0);
+            } else s4(c);
+            return;
+        }
+        if (c == '\u009C') st3 = 0; else b3.append(c);
+    }
+
+    // —— 4) ESC ] [\s\S]*? (BEL | ESC \) ——
+    private void s4(char c) {
+        switch (st4) {
+            case 0:
+                if (c == ESC) st4 = 1; else s5(c);
+                return;
+            case 1:
+                if (c == ']') { st4 = 2; b4.setLength(0); return; }
+                st4 = 0; s5(ESC); s4(c);
+                return;
+            case 2:
+                if (c == BEL) st4 = 0;
+                else if (c == ESC) st4 = 3;
+                else b4.append(c);
+                return;
+            default: // 本体中の ESC の直後
+                if (c == '\\' || c == BEL) { st4 = 0; return; }
+                b4.append(ESC);
+                if (c != ESC) { b4.append(c); st4 = 2; }
+        }
+    }
+
+    // —— 5) ESC [P^_X] [\s\S]*? ESC \ ——
+    private void s5(char c) {
+        switch (st5) {
+            case 0:
+                if (c == ESC) st5 = 1; else s6(c);
+                return;
+            case 1:
+                if (c == 'P' || c == '^' || c == '_' || c == 'X') { st5 = 2; open5 = c; b5.setLength(0); return; }
+                st5 = 0; s6(ESC); s5(c);
+                return;
+            case 2:
+                if (c == ESC) st5 = 3; else b5.append(c);
+                return;
+            default:
+                if (c == '\\') { st5 = 0; return; }
+                b5.append(ESC);
+                if (c != ESC) { b5.append(c); st5 = 2; }
+        }
+    }
+
+    // —— 6) ESC [ [\x20-\x3F]* [\x40-\x7E] ——
+    private void s6(char c) {
+        switch (st6) {
+            case 0:
+                if (c == ESC) st6 = 1; else s7(c);
+                return;
+            case 1:
+                if (c == '[') { st6 = 2; p6.setLength(0); return; }
+                st6 = 0; s7(ESC); s6(c);
+                return;
+            default:
+                if (c >= 0x20 && c <= 0x3F) { p6.append(c); return; }
+                st6 = 0;
+                if (c >= 0x40 && c <= 0x7E) return;
+                s7(ESC); s7('['); feed7(p6);
+                s6(c);
+        }
+    }
+
+    // —— 7) ESC .（. は行終端以外の1コードポイント） ——
+    private void s7(char c) {
+        switch (st7) {
+            case 0:
+                if (c == ESC) st7 = 1; else s8(c);
+                return;
+            case 1:
+                if (isLineTerminator(c)) { st7 = 0; s8(ESC); s8(c); }
+                else if (Character.isHighSurrogate(c)) st7 = 2;
+                else st7 = 0;
+                return;
+            default: // ESC + 上位サロゲート：下位が続けばペアごと除去
+                st7 = 0;
+                if (!Character.isLowSurrogate(c)) s7(c);
+        }
+    }
+
+    // —— 8) ^[[ [0-9;]* [A-Za-z] ——
+    private void s8(char c) {
+        switch (st8) {
+            case 0:
+                if (c == '^') st8 = 1; else s9(c);
+                return;
+            case 1:
+                if (c == '[') { st8 = 2; return; }
+                st8 = 0; s9('^'); s8(c);
+                return;
+            case 2:
+                if (c == '[') { st8 = 3; p8.setLength(0); return; }
+                st8 = 0; s9('^'); s9('['); s8(c);
+                return;
+            default:
+                if ((c >= '0' && c <= '9') || c == ';') { p8.append(c); return; }
+                st8 = 0;
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) return;
+                s9('^'); s9('['); s9('['); feed9(p8);
+                s8(c);
+        }
+    }
+
+    // —— 9) ^[ → 削除 ——
+    private void s9(char c) {
+        if (st9 == 0) {
+            if (c == '^') st9 = 1; else s10(c);
+            return;
+        }
+        st9 = 0;
+        if (c == '[') return;
+        s10('^');
+        s9(c);
+    }
+
+    // —— 10) ^M → \n ——
+    private void s10(char c) {
+        if (st10 == 0) {
+            if (c == '^') st10 = 1; else backspace(c);
+            return;
+        }
+        st10 = 0;
+        if (c == 'M') { backspace('\n'); return; }
+        backspace('^');
+        s10(c);
+    }
+
+    // —— 11) バックスペース：直前の1文字を消す ——
+    private void backspace(char c) {
+        if (c == '\b') {
+            if (wlen > 0) wlen--;
+            return;
+        }
+        ensureWork(1);
+        work[wlen++] = c;
+    }
+
+    /** 入力終端：一致しなかった保留分を前段から順に次段へ流す */
+    private void finish() {
+        if (st1 != 0) { st1 = 0; s2('\u009B'); feed2(p1); }
+        if (st2 != 0) { st2 = 0; s3('\u009D'); for (int i = 0; i < b2.length(); i++) s3(b2.charAt(i)); }
+        if (st3 != 0) { st3 = 0; s4(open3); for (int i = 0; i < b3.length(); i++) s4(b3.charAt(i)); }
+        if (st4 != 0) {
+            int st = st4; st4 = 0;
+            s5(ESC);
+            if (st >= 2) { s5(']'); for (int i = 0; i < b4.length(); i++) s5(b4.charAt(i)); }
+            if (st == 3) s5(ESC);
+        }
+        if (st5 != 0) {
+            int st = st5; st5 = 0;
+            s6(ESC);
+            if (st >= 2) { s6(open5); for (int i = 0; i < b5.length(); i++) s6(b5.charAt(i)); }
+            if (st == 3) s6(ESC);
+        }
+        if (st6 != 0) {
+            int st = st6; st6 = 0;
+            s7(ESC);
+            if (st == 2) { s7('['); feed7(p6); }
+        }
+        if (st7 != 0) {
+            // ESC 単独は残す。ESC + 上位サロゲートは . に一致するので除去
+            if (st7 == 1) s8(ESC);
+            st7 = 0;
+        }
+        if (st8 != 0) {
+            int st = st8; st8 = 0;
+            s9('^');
+            if (st >= 2) s9('[');
+            if (st == 3) { s9('['); feed9(p8); }
+        }
+        if (st9 != 0) { st9 = 0; s10('^'); }
+        if (st10 != 0) { st10 = 0; backspace('^'); }
+    }
+
+    private void feed2(CharSequence s) { for (int i = 0; i < s.length(); i++) s2(s.charAt(i)); }
+    private void feed7(CharSequence s) { for (int i = 0; i < s.length(); i++) s7(s.charAt(i)); }
+    private void feed9(CharSequence s) { for (int i = 0; i < s.length(); i++) s9(s.charAt(i)); }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /** CR上書き（行ごとに最後の \r 以降で先頭から上書き）と、\n\t 以外の C0 削除 */
+    private String carriageReturns() {
+        out.setLength(0);
+        int ls = 0;
+        while (ls <= wlen) {
+            int le = ls;
+            boolean hasCr = false;
+            while (le < wlen && work[le] != '\n') {
+                if (work[le] == '\r') hasCr = true;
+                le++;
+            }
+            if (hasCr) {
+                int len = 0, col = 0;
+                for (int i = ls; i < le; i++) {
+                    char c = work[i];
+                    if (c == '\r') { col = 0; continue; }
+                    if (col < len) line[col] = c;
+                    else {
+                        if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                        line[len++] = c;
+                    }
+                    col++;
+                }
+                appendVisible(line, 0, len);
+            } else {
+                appendVisible(work, ls, le);
+            }
+            if (le < wlen) out.append('\n');
+            ls = le + 1;
+        }
+        return out.toString();
+    }
+
+    private void appendVisible(char[] a, int from, int to) {
+        int runStart = from;
+        for (int i = from; i < to; i++) {
+            char c = a[i];
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != ESC) {
+                out.append(a, runStart, i - runStart);
+                runStart = i + 1;
+            }
+        }
+        out.append(a, runStart, to - runStart);
+    }
+
+    private void ensureWork(int extra) {
+        if (wlen + extra > work.length) {
+            work = Arrays.copyOf(work, Math.max(work.length * 2, wlen + extra));
+        }
+    }
+}
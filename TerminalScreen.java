@@ -0,0 +1,685 @@
+package com.demo;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * VT100/xterm の画面モデル。端末出力（UTF-8 のバイト列）をセルの格子に適用し、確定した行を Sink に渡す。
+ *
+ * 対応するもの：
+ * <ul>
+ *   <li>カーソル移動（CUU/CUD/CUF/CUB/CNL/CPL/CHA/CUP/HVP/VPA、ESC 7/8、CSI s/u）</li>
+ *   <li>消去（ED/EL/ECH）、挿入・削除（ICH/DCH/IL/DL）、スクロール（SU/SD/IND/RI/NEL、DECSTBM のスクロール領域）</li>
+ *   <li>代替画面（?1049/?1047/?47）</li>
+ *   <li>BS（非破壊の左移動）、CR、LF/VT/FF（通常画面では行頭にも戻す）、TAB（8桁ごと）、全角文字（2セル）</li>
+ * </ul>
+ * SGR などの属性、OSC/DCS/PM/APC/SOS、文字集合の指定は読み捨てる。
+ *
+ * 行を出すタイミング：
+ * <ul>
+ *   <li>通常画面：LF でカーソル行を出す（従来の「改行で1行」と同じ時刻）。カーソルを戻して書き換えた行は、
+ *       次にその行で LF したとき、画面外へスクロールするとき、画面消去の前、finish のいずれかで出す。</li>
+ *   <li>代替画面（vim/less/top など）：画面が落ち着いたとき（settleSeconds 以上書き込みがない、画面消去、
+ *       代替画面から戻る、finish）に、前回出したときから内容が変わった行だけを上から順に出す。</li>
+ * </ul>
+ * 行の内容は画面上の見た目のとおり（CR で戻って上書きした部分は上書き後、消去された部分は消える）。
+ * 書き込んだ空白はそのまま残し、行末の未書き込み部分だけを落とす。
+ *
+ * 録画からは端末の大きさが分からないので、行は右に伸び（自動折り返しはしない）、
+ * 画面の高さは既定 24 行から絶対位置指定・スクロール領域に合わせて広げる。
+ * 結合文字などの幅 0 の文字も1セルとして扱う（文字の並びは保たれる）。
+ * 状態を持つので、インスタンスはスレッドセーフではない（変換1本につき1個）。
+ */
+public final class TerminalScreen {
+
+    /** 出力する行の受け取り先 */
+    public interface Sink {
+        void row(String text, double elapsed) throws IOException;
+    }
+
+    /** 代替画面で、これだけ書き込みがなければ落ち着いたとみなす（秒） */
+    public static final double DEFAULT_SETTLE_SECONDS = 1.0;
+
+    private static final int EMPTY = 0;       // 未書き込み・消去済み（行の途中なら空白として出す）
+    private static final int WIDE_TAIL = -1;  // 全角文字の右半分
+    private static final int TAB_FILL = -2;   // TAB で飛ばしたセル（'\t' を置いたセルの後ろ）
+
+    private static final int DEFAULT_ROWS = 24;
+    private static final int MAX_ROWS = 1000;
+    private static final int MAX_COLS = 1 << 16;
+    private static final int MAX_PARAMS = 16;
+
+    // パーサの状態
+    private static final int GROUND = 0, ESCAPE = 1, ESC_SKIP = 2, CSI = 3, OSC = 4, STRING = 5, STRING_ESC = 6;
+
+    private final Sink sink;
+    private final double settleSeconds;
+
+    private Row[] main = newRows(DEFAULT_ROWS);
+    private Row[] alt;
+    private Row[] rows = main;
+    private boolean altActive;
+    private int cx, cy;
+    private int regionTop, regionBottom = -1;  // スクロール領域（-1 は画面の最下行）
+    private int savedX, savedY, altSavedX, altSavedY;
+
+    private double now;         // 処理中の区間の累計秒
+    private double lastChange;  // 最後に画面が変わった時刻
+    private boolean altDirty;   // 代替画面に未出力の変更がある
+    private int lastChar = ' '; // REP 用
+
+    private int state = GROUND;
+    private int utfNeed, utfCp, utfMin;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean paramStarted, intermediate;
+    private char marker;  // CSI の私用マーカー（'?' '>' など）、なければ 0
+
+    private final StringBuilder render = new StringBuilder(256);
+
+    public TerminalScreen(Sink sink) {
+        this(sink, DEFAULT_SETTLE_SECONDS);
+    }
+
+    public TerminalScreen(Sink sink, double settleSeconds) {
+        this.sink = sink;
+        this.settleSeconds = settleSeconds;
+    }
+
+    /**
+     * b[off, off+len) を累計 elapsed 秒の時点の出力として適用する（elapsed は単調増加）。
+     * UTF-8 やエスケープシーケンスが区間をまたいでもよい。
+     */
+    public void feed(byte[] b, int off, int len, double elapsed) throws IOException {
+        if (altDirty && elapsed - lastChange >= settleSeconds) settle(lastChange, false);
+        now = elapsed;
+        int i = off, end = off + len;
+        while (i < end) {
+            int c = b[i] & 0xFF;
+            if (utfNeed > 0) {
+                i++;
+                if ((c & 0xC0) == 0x80) {
+                    utfCp = (utfCp << 6) | (c & 0x3F);
+                    if (--utfNeed == 0) {
+                        int cp = utfCp;
+                        if (cp < utfMin || (cp >= 0xD800 && cp <= 0xDFFF) || cp > 0x10FFFF) cp = 0xFFFD;
+                        process(cp);
+                    }
+                } else {
+                    utfNeed = 0;
+                    process(0xFFFD);
+                    i--; // この1バイトは新しい文字として読み直す
+                }
+                continue;
+            }
+            if (c < 0x80) {
+                if (state == GROUND && c >= 0x20 && c < 0x7F) {
+                    // ASCII の印字文字はまとめて書く
+                    int j = i + 1;
+                    while (j < end && b[j] >= 0x20 && b[j] < 0x7F) j++;
+                    putAscii(b, i, j);
+                    i = j;
+                } else {
+                    process(c);
+                    i++;
+                }
+                continue;
+            }
+            i++;
+            if (c >= 0xC2 && c <= 0xDF) { utfNeed = 1; utfCp = c & 0x1F; utfMin = 0x80; }
+            else if (c >= 0xE0 && c <= 0xEF) { utfNeed = 2; utfCp = c & 0x0F; utfMin = 0x800; }
+            else if (c >= 0xF0 && c <= 0xF4) { utfNeed = 3; utfCp = c & 0x07; utfMin = 0x10000; }
+            else process(0xFFFD);
+        }
+    }
+
+    /** データの終わり：未出力の行をすべて出す */
+    public void finish(double elapsed) throws IOException {
+        if (utfNeed > 0) {
+            utfNeed = 0;
+            process(0xFFFD);
+        }
+        settle(elapsed, true);
+    }
+
+    // ====== パーサ ======
+
+    private void process(int c) throws IOException {
+        switch (state) {
+            case GROUND:
+                if (c < 0x20 || c == 0x7F) control(c);
+                else if (c >= 0x80 && c < 0xA0) c1(c);
+                else put(c);
+                return;
+            case ESCAPE:
+                escape(c);
+                return;
+            case ESC_SKIP: // ESC ( B などの文字集合指定：1文字読み捨てる
+                state = c == 0x1B ? ESCAPE : GROUND;
+                return;
+            case CSI:
+                csi(c);
+                return;
+            case OSC:
+                if (c == 0x07 || c == 0x9C) state = GROUND;
+                else if (c == 0x1B) state = STRING_ESC;
+                return;
+            case STRING:
+                if (c == 0x9C) state = GROUND;
+                else if (c == 0x1B) state = STRING_ESC;
+                return;
+            default: // STRING_ESC：ESC \ で終わり。ほかの ESC は新しいシーケンスの始まり
+                if (c == '\\') state = GROUND;
+                else {
+                    state = ESCAPE;
+                    escape(c);
+                }
+        }
+    }
+
+    private void control(int c) throws IOException {
+        switch (c) {
+            case '\n': case 0x0B: case 0x0C:
+                if (!altActive) cx = 0; // 通常画面は改行モード（script が書く見出し行などの素の LF も行頭に戻す）
+                lineFeed();
+                break;
+            case '\r':
+                cx = 0;
+                break;
+            case '\b':
+                if (cx > 0) cx--;
+                break;
+            case '\t':
+                tab();
+                break;
+            case 0x1B:
+                state = ESCAPE;
+                break;
+            default: // BEL、SO/SI、DEL など：画面は変わらない
+        }
+    }
+
+    private void c1(int c) throws IOException {
+        switch (c) {
+            case 0x84: index(); break;                   // IND
+            case 0x85: cx = 0; lineFeed(); break;        // NEL
+            case 0x8D: reverseIndex(); break;            // RI
+            case 0x9B: startCsi(); break;                // CSI
+            case 0x9D: state = OSC; break;               // OSC
+            case 0x90: case 0x98: case 0x9E: case 0x9F:  // DCS/SOS/PM/APC
+                state = STRING;
+                break;
+            default:
+        }
+    }
+
+    private void escape(int c) throws IOException {
+        state = GROUND;
+        switch (c) {
+            case '[': startCsi(); break;
+            case ']': state = OSC; break;
+            case 'P': case 'X': case '^': case '_': state = STRING; break;
+            case '(': case ')': case '*': case '+': case '-': case '.': case '/':
+            case '#': case '%': case ' ':
+                state = ESC_SKIP;
+                break;
+            case '7': savedX = cx; savedY = cy; break;
+            case '8': moveTo(savedX, savedY); break;
+            case 'D': index(); break;
+            case 'E': cx = 0; lineFeed(); break;
+            case 'M': reverseIndex(); break;
+            case 'c': reset(); break;
+            case 0x1B: state = ESCAPE; break;
+            default:
+                if (c < 0x20) control(c); // ESC の直後の制御文字はそのまま実行する
+        }
+    }
+
+    private void startCsi() {
+        state = CSI;
+        paramCount = 0;
+        params[0] = 0;
+        paramStarted = false;
+        intermediate = false;
+        marker = 0;
+    }
+
+    private void csi(int c) throws IOException {
+        if (c >= '0' && c <= '9') {
+            if (paramCount < MAX_PARAMS) {
+                params[paramCount] = Math.min(params[paramCount] * 10 + (c - '0'), 99999);
+                paramStarted = true;
+            }
+            return;
+        }
+        if (c == ';' || c == ':') {
+            if (paramCount < MAX_PARAMS) paramCount++;
+            if (paramCount < MAX_PARAMS) params[paramCount] = 0;
+            paramStarted = false;
+            return;
+        }
+        if (c >= 0x3C && c <= 0x3F) {
+            if (paramCount == 0 && !paramStarted) marker = (char) c;
+            return;
+        }
+        if (c >= 0x20 && c <= 0x2F) {
+            intermediate = true;
+            return;
+        }
+        if (c >= 0x40 && c <= 0x7E) {
+            state = GROUND;
+            if (paramStarted || paramCount > 0) paramCount = Math.min(paramCount + 1, MAX_PARAMS);
+            if (!intermediate) dispatch((char) c);
+            return;
+        }
+        if (c == 0x18 || c == 0x1A) { state = GROUND; return; } // CAN/SUB：中断
+        if (c == 0x1B) { state = ESCAPE; return; }
+        if (c < 0x20) control(c); // シーケンスの途中の制御文字も実行する
+        else state = GROUND;      // 不正な文字：シーケンスを捨てる
+    }
+
+    private int param(int i, int def) {
+        return i < paramCount && params[i] != 0 ? params[i] : def;
+    }
+
+    private void dispatch(char f) throws IOException {
+        if (marker == '?' && (f == 'h' || f == 'l')) {
+            for (int i = 0; i < Math.max(1, paramCount); i++) privateMode(param(i, 0), f == 'h');
+            return;
+        }
+        if (marker != 0 && !(marker == '?' && (f == 'J' || f == 'K'))) return; // DECSED/DECSEL は ED/EL と同じに扱う
+        int n = param(0, 1);
+        switch (f) {
+            case 'A': moveTo(cx, Math.max(cy - n, cy >= regionTop ? regionTop : 0)); break;
+            case 'B': case 'e': moveTo(cx, Math.min(cy + n, cy <= bottom() ? bottom() : rows.length - 1)); break;
+            case 'C': case 'a': moveTo(cx + n, cy); break;
+            case 'D': moveTo(cx - n, cy); break;
+            case 'E': moveTo(0, Math.min(cy + n, cy <= bottom() ? bottom() : rows.length - 1)); break;
+            case 'F': moveTo(0, Math.max(cy - n, cy >= regionTop ? regionTop : 0)); break;
+            case 'G': case '`': moveTo(n - 1, cy); break;
+            case 'H': case 'f':
+                growTo(param(0, 1) - 1);
+                moveTo(param(1, 1) - 1, param(0, 1) - 1);
+                break;
+            case 'd':
+                growTo(n - 1);
+                moveTo(cx, n - 1);
+                break;
+            case 'J': eraseDisplay(param(0, 0)); break;
+            case 'K': eraseLine(param(0, 0)); break;
+            case 'X': erase(rows[cy], cx, cx + n); break;
+            case '@': insertChars(n); break;
+            case 'P': deleteChars(n); break;
+            case 'L': if (inRegion()) scrollDown(cy, bottom(), n); break;
+            case 'M': if (inRegion()) scrollUp(cy, bottom(), n); break;
+            case 'S': scrollUp(regionTop, bottom(), n); break;
+            case 'T': if (paramCount <= 1) scrollDown(regionTop, bottom(), n); break;
+            case 'b': for (int i = 0; i < Math.min(n, MAX_COLS); i++) put(lastChar); break;
+            case 'r': setRegion(); break;
+            case 's': if (paramCount == 0) { savedX = cx; savedY = cy; } break;
+            case 'u': moveTo(savedX, savedY); break;
+            default: // SGR（m）などは画面の文字に影響しない
+        }
+    }
+
+    private void privateMode(int mode, boolean set) throws IOException {
+        switch (mode) {
+            case 1049:
+                if (set) {
+                    altSavedX = cx;
+                    altSavedY = cy;
+                    enterAlt(true);
+                } else if (altActive) {
+                    leaveAlt();
+                    moveTo(altSavedX, altSavedY);
+                }
+                break;
+            case 1047: case 47:
+                if (set) enterAlt(mode == 1047);
+                else if (altActive) leaveAlt();
+                break;
+            case 1048:
+                if (set) { savedX = cx; savedY = cy; } else moveTo(savedX, savedY);
+                break;
+            default:
+        }
+    }
+
+    // ====== 画面操作 ======
+
+    private void putAscii(byte[] b, int from, int to) {
+        Row r = rows[cy];
+        int n = Math.min(to - from, MAX_COLS - cx);
+        if (n <= 0) {
+            cx = MAX_COLS - 1;
+            put(b[to - 1]);
+            return;
+        }
+        r.ensure(cx + n + 1);
+        if (r.marks) {
+            r.breakAt(cx);
+            r.breakAt(cx + n);
+        }
+        int[] cells = r.cells;
+        for (int k = 0; k < n; k++) cells[cx + k] = b[from + k];
+        cx += n;
+        if (cx > r.len) r.len = cx;
+        lastChar = b[to - 1];
+        changed(r);
+    }
+
+    private void put(int c) {
+        int w = wide(c) ? 2 : 1;
+        if (cx + w > MAX_COLS) cx = MAX_COLS - w;
+        Row r = rows[cy];
+        r.ensure(cx + w + 1);
+        if (r.marks) {
+            r.breakAt(cx);
+            r.breakAt(cx + w);
+        }
+        r.cells[cx] = c;
+        if (w == 2) {
+            r.cells[cx + 1] = WIDE_TAIL;
+            r.marks = true;
+        }
+        cx += w;
+        if (cx > r.len) r.len = cx;
+        lastChar = c;
+        changed(r);
+    }
+
+    // 行の右端より先へ進む TAB は '\t' として残す（従来の出力と同じくタブ文字で出る）。途中ならカーソル移動のみ
+    private void tab() {
+        int stop = Math.min((cx / 8 + 1) * 8, MAX_COLS - 1);
+        Row r = rows[cy];
+        if (cx >= r.len && stop > cx) {
+            r.ensure(stop + 1);
+            r.cells[cx] = '\t';
+            for (int x = cx + 1; x < stop; x++) r.cells[x] = TAB_FILL;
+            r.len = stop;
+            r.marks = true;
+            changed(r);
+        }
+        cx = stop;
+    }
+
+    private void lineFeed() throws IOException {
+        if (!altActive) emit(rows[cy], now);
+        index();
+    }
+
+    private void index() throws IOException {
+        int bottom = bottom();
+        if (cy == bottom) scrollUp(regionTop, bottom, 1);
+        else if (cy < rows.length - 1) cy++;
+    }
+
+    private void reverseIndex() throws IOException {
+        if (cy == regionTop) scrollDown(regionTop, bottom(), 1);
+        else if (cy > 0) cy--;
+    }
+
+    private void moveTo(int x, int y) {
+        cx = Math.max(0, Math.min(x, MAX_COLS - 1));
+        cy = Math.max(0, Math.min(y, rows.length - 1));
+    }
+
+    private int bottom() {
+        return regionBottom < 0 || regionBottom >= rows.length ? rows.length - 1 : regionBottom;
+    }
+
+    private boolean inRegion() {
+        return cy >= regionTop && cy <= bottom();
+    }
+
+    private void setRegion() {
+        int t = param(0, 1) - 1;
+        int b = paramCount >= 2 && params[1] != 0 ? params[1] - 1 : -1;
+        growTo(Math.max(t, b));
+        if (b >= 0 && b <= t) return;
+        regionTop = Math.max(0, Math.min(t, rows.length - 1));
+        regionBottom = b;
+        moveTo(0, 0);
+    }
+
+    // 画面の行数を y+1 まで広げる
+    private void growTo(int y) {
+        int want = Math.min(y + 1, MAX_ROWS);
+        if (want <= rows.length) return;
+        Row[] grown = Arrays.copyOf(rows, want);
+        for (int i = rows.length; i < want; i++) grown[i] = new Row();
+        if (rows == main) main = grown; else alt = grown;
+        rows = grown;
+    }
+
+    // rows[top..bottom] を n 行上へ。上端から押し出される行は、未出力の変更があれば先に出す
+    private void scrollUp(int top, int bottom, int n) throws IOException {
+        if (top > bottom) return;
+        n = Math.min(n, bottom - top + 1);
+        for (int i = top; i < top + n; i++) emit(rows[i], now);
+        Row[] out = Arrays.copyOfRange(rows, top, top + n);
+        System.arraycopy(rows, top + n, rows, top, bottom - top + 1 - n);
+        for (int i = 0; i < n; i++) {
+            out[i].clear();
+            rows[bottom - n + 1 + i] = out[i];
+        }
+        for (int i = bottom - n + 1; i <= bottom; i++) changed(rows[i]);
+    }
+
+    // rows[top..bottom] を n 行下へ。下端から押し出される行は、未出力の変更があれば先に出す
+    private void scrollDown(int top, int bottom, int n) throws IOException {
+        if (top > bottom) return;
+        n = Math.min(n, bottom - top + 1);
+        for (int i = bottom - n + 1; i <= bottom; i++) emit(rows[i], now);
+        Row[] out = Arrays.copyOfRange(rows, bottom - n + 1, bottom + 1);
+        System.arraycopy(rows, top, rows, top + n, bottom - top + 1 - n);
+        for (int i = 0; i < n; i++) {
+            out[i].clear();
+            rows[top + i] = out[i];
+        }
+        for (int i = top; i < top + n; i++) changed(rows[i]);
+    }
+
+    private void eraseDisplay(int mode) throws IOException {
+        switch (mode) {
+            case 0:
+                eraseLine(0);
+                for (int y = cy + 1; y < rows.length; y++) eraseRow(rows[y]);
+                break;
+            case 1:
+                for (int y = 0; y < cy; y++) eraseRow(rows[y]);
+                eraseLine(1);
+                break;
+            default: // 2、3：画面全体。消える前に、変わった行を出す
+                settle(now, true);
+                for (Row r : rows) eraseRow(r);
+        }
+    }
+
+    /**
+     * 画面消去で1行を消す。通常画面では「前回出した内容」も忘れる
+     * （clear の後に同じ行がまた書かれたら、それも出す）。
+     * 代替画面は落ち着くたびに変わった行だけを出すので、そのまま残す。
+     */
+    private void eraseRow(Row r) {
+        erase(r, 0, MAX_COLS);
+        if (!altActive) r.emitted = null;
+    }
+
+    private void eraseLine(int mode) {
+        Row r = rows[cy];
+        if (mode == 0) erase(r, cx, MAX_COLS);
+        else if (mode == 1) erase(r, 0, cx + 1);
+        else erase(r, 0, MAX_COLS);
+    }
+
+    private void erase(Row r, int from, int to) {
+        to = Math.min(to, r.len);
+        if (from >= to) return;
+        if (r.marks) {
+            r.breakAt(from);
+            r.breakAt(to);
+        }
+        Arrays.fill(r.cells, from, to, EMPTY);
+        if (to == r.len) r.len = from;
+        changed(r);
+    }
+
+    private void insertChars(int n) {
+        Row r = rows[cy];
+        if (cx >= r.len) return;
+        n = Math.min(n, MAX_COLS - r.len);
+        if (n <= 0) return;
+        r.ensure(r.len + n + 1);
+        if (r.marks) r.breakAt(cx);
+        System.arraycopy(r.cells, cx, r.cells, cx + n, r.len - cx);
+        Arrays.fill(r.cells, cx, cx + n, ' ');
+        r.len += n;
+        changed(r);
+    }
+
+    private void deleteChars(int n) {
+        Row r = rows[cy];
+        if (cx >= r.len) return;
+        n = Math.min(n, r.len - cx);
+        if (r.marks) {
+            r.breakAt(cx);
+            r.breakAt(cx + n);
+        }
+        System.arraycopy(r.cells, cx + n, r.cells, cx, r.len - cx - n);
+        Arrays.fill(r.cells, r.len - n, r.len, EMPTY);
+        r.len -= n;
+        changed(r);
+    }
+
+    private void enterAlt(boolean clear) throws IOException {
+        if (altActive) return;
+        if (alt == null || alt.length != main.length) {
+            alt = newRows(main.length);
+            clear = true;
+        }
+        if (clear) {
+            // 消した代替画面は「前回出した内容」を空とみなす（空のまま残る行は出さない）
+            for (Row r : alt) {
+                r.clear();
+                r.emitted = "";
+            }
+        }
+        rows = alt;
+        altActive = true;
+        altDirty = false;
+    }
+
+    private void leaveAlt() throws IOException {
+        settle(now, true);
+        rows = main;
+        altActive = false;
+        cy = Math.min(cy, rows.length - 1);
+    }
+
+    private void reset() throws IOException {
+        if (altActive) leaveAlt();
+        settle(now, true);
+        for (Row r : main) r.clear();
+        cx = cy = 0;
+        regionTop = 0;
+        regionBottom = -1;
+        savedX = savedY = 0;
+    }
+
+    // ====== 出力 ======
+
+    private void changed(Row r) {
+        r.dirty = true;
+        lastChange = now;
+        if (altActive) altDirty = true;
+    }
+
+    /**
+     * 変わった行を上から順に出す。通常画面のカーソル行は入力中のことが多いので、
+     * all でなければ残す（LF か finish で出る）。
+     */
+    private void settle(double elapsed, boolean all) throws IOException {
+        for (int y = 0; y < rows.length; y++) {
+            if (!all && !altActive && y == cy) continue;
+            emit(rows[y], elapsed);
+        }
+        if (altActive) altDirty = false;
+    }
+
+    private void emit(Row r, double elapsed) throws IOException {
+        if (!r.dirty) return;
+        r.dirty = false;
+        String s = r.render(render);
+        if (s.equals(r.emitted)) return;
+        r.emitted = s;
+        if (!s.isEmpty()) sink.row(s, elapsed);
+    }
+
+    private static Row[] newRows(int n) {
+        Row[] a = new Row[n];
+        for (int i = 0; i < n; i++) a[i] = new Row();
+        return a;
+    }
+
+    // 全角（East Asian Wide/Fullwidth）の主な範囲
+    private static boolean wide(int c) {
+        if (c < 0x1100) return false;
+        return c <= 0x115F
+                || (c >= 0x2E80 && c <= 0x303E) || (c >= 0x3041 && c <= 0x33FF)
+                || (c >= 0x3400 && c <= 0x4DBF) || (c >= 0x4E00 && c <= 0x9FFF)
+                || (c >= 0xA000 && c <= 0xA4CF) || (c >= 0xAC00 && c <= 0xD7A3)
+                || (c >= 0xF900 && c <= 0xFAFF) || (c >= 0xFE30 && c <= 0xFE4F)
+                || (c >= 0xFF00 && c <= 0xFF60) || (c >= 0xFFE0 && c <= 0xFFE6)
+                || (c >= 0x1F300 && c <= 0x1F64F) || (c >= 0x1F900 && c <= 0x1F9FF)
+                || (c >= 0x20000 && c <= 0x3FFFD);
+    }
+
+    // 1行分のセル
+    private static final class Row {
+        int[] cells = new int[128];
+        int len;         // この位置から先は EMPTY
+        boolean marks;   // WIDE_TAIL / TAB_FILL を含むことがある
+        boolean dirty;   // 前回出してから書き換えられた
+        String emitted;  // 前回出した内容
+
+        void ensure(int n) {
+            if (n > cells.length) cells = Arrays.copyOf(cells, Math.max(cells.length * 2, n));
+        }
+
+        void clear() {
+            Arrays.fill(cells, 0, len, EMPTY);
+            len = 0;
+            marks = false;
+            dirty = false;
+            emitted = null;
+        }
+
+        // x が全角文字の途中や TAB で飛ばした範囲の途中なら、その文字を空白に置き換えて切れ目を作る
+        void breakAt(int x) {
+            if (x >= len) return;
+            int c = cells[x];
+            if (c == WIDE_TAIL) {
+                cells[x - 1] = ' ';
+                cells[x] = ' ';
+            } else if (c == TAB_FILL || (c == '\t' && x + 1 < len && cells[x + 1] == TAB_FILL)) {
+                int s = x;
+                while (s > 0 && cells[s] == TAB_FILL) s--;
+                cells[s] = ' ';
+                for (int i = s + 1; i < len && cells[i] == TAB_FILL; i++) cells[i] = ' ';
+            }
+        }
+
+        String render(StringBuilder sb) {
+            sb.setLength(0);
+            int end = len;
+            while (end > 0 && cells[end - 1] == EMPTY) end--;
+            for (int i = 0; i < end; i++) {
+                int c = cells[i];
+                if (c > 0) sb.appendCodePoint(c);
+                else if (c == EMPTY) sb.append(' ');
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.demo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+
+/**
+ * REL（HH:mm:ss）と ABS（yyyy-MM-dd HH:mm:ss）列の描画。
+ * 同じ秒に属する行が続くことが多いので、秒ごとに描画結果をキャッシュし、
+ * 秒が変わったときだけ数字を再生成する（タイムゾーン規則の参照もそのときだけ）。
+ * 数字は使い回しの char[] に直接書き込む。ミリ秒（.SSS）の付加も選べる。
+ *
+ * 1つの変換（1スレッド）につき1インスタンスで使うこと。
+ */
+public final class TimestampRenderer {
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+
+    private final ZoneRules rules;
+    private final char dateSep;
+    private final boolean millis;
+    private final int suffix;                 // .SSS の長さ（0 または 4）
+    private final DateTimeFormatter wideYear; // 4桁に収まらない年だけで使う
+
+    // REL：HH:mm:ss[.SSS]（時間は2桁以上）
+    private final char[] relBuf = new char[32];
+    private int relLen; // 秒までの長さ
+    private long relSec = Long.MIN_VALUE;
+    private String relStr;
+
+    // ABS：yyyy-MM-dd HH:mm:ss[.SSS]
+    private final char[] absBuf = new char[32];
+    private int absLen; // 秒までの長さ
+    private long absSec = Long.MIN_VALUE;
+    private String absStr;
+
+    /**
+     * @param zone    ABS 列のタイムゾーン
+     * @param dateSep 日付の区切り（'-' または '/'）
+     * @param millis  秒の後ろに .SSS を付けるか
+     */
+    public TimestampRenderer(ZoneId zone, char dateSep, boolean millis) {
+        this.rules = zone.getRules();
+        this.dateSep = dateSep;
+        this.millis = millis;
+        this.suffix = millis ? 4 : 0;
+        this.wideYear = DateTimeFormatter.ofPattern("yyyy" + dateSep + "MM" + dateSep + "dd HH:mm:ss").withZone(zone);
+    }
+
+    // ====== REL ======
+
+    /** 経過秒（小数）を HH:mm:ss[.SSS] に。秒は切り捨て */
+    public String rel(double elapsedSec) {
+        long sec = (long) Math.floor(elapsedSec);
+        return rel(sec, millis ? millisOf(elapsedSec, sec) : 0);
+    }
+
+    /** 経過ナノ秒を HH:mm:ss[.SSS] に */
+    public String rel(long elapsedNanos) {
+        long sec = Math.floorDiv(elapsedNanos, NANOS_PER_SEC);
+        return rel(sec, (int) (Math.floorMod(elapsedNanos, NANOS_PER_SEC) / 1_000_000));
+    }
+
+    public void writeRel(Writer out, double elapsedSec) throws IOException {
+        long sec = (long) Math.floor(elapsedSec);
+        renderRel(sec, millis ? millisOf(elapsedSec, sec) : 0);
+        out.write(relBuf, 0, relLen + suffix);
+    }
+
+    public void writeRel(Writer out, long elapsedNanos) throws IOException {
+        renderRel(Math.floorDiv(elapsedNanos, NANOS_PER_SEC), (int) (Math.floorMod(elapsedNanos, NANOS_PER_SEC) / 1_000_000));
+        out.write(relBuf, 0, relLen + suffix);
+    }
+
+    private String rel(long sec, int ms) {
+        if (!millis && sec == relSec && relStr != null) return relStr;
+        renderRel(sec, ms);
+        relStr = new String(relBuf, 0, relLen + suffix);
+        return relStr;
+    }
+
+    private void renderRel(long sec, int ms) {
+        if (sec != relSec) {
+            relSec = sec;
+            relStr = null;
+            long h = sec / 3600;
+            int p = 0;
+            if (h < 100) {
+                p = put2(relBuf, p, (int) h);
+            } else {
+                String hs = Long.toString(h);
+                hs.getChars(0, hs.length(), relBuf, 0);
+                p = hs.length();
+            }
+            relBuf[p++] = ':';
+            p = put2(relBuf, p, (int) ((sec % 3600) / 60));
+            relBuf[p++] = ':';
+            p = put2(relBuf, p, (int) (sec % 60));
+            relLen = p;
+        }
+        if (millis) putMillis(relBuf, relLen, ms);
+    }
+
+    // ====== ABS ======
+
+    /** 時刻を yyyy-MM-dd HH:mm:ss[.SSS]（コンストラクタで指定したゾーン）に */
+    public String abs(Instant t) {
+        if (!millis && t.getEpochSecond() == absSec && absStr != null) return absStr;
+        renderAbs(t);
+        absStr = new String(absBuf, 0, absLen + suffix);
+        return absStr;
+    }
+
+    public void writeAbs(Writer out, Instant t) throws IOException {
+        renderAbs(t);
+        out.write(absBuf, 0, absLen + suffix);
+    }
+
+    private void renderAbs(Instant t) {
+        long sec = t.getEpochSecond();
+        if (sec != absSec) {
+            absSec = sec;
+            absStr = null;
+            // ゾーン規則の参照は秒が変わったときだけ
+            ZoneOffset off = rules.getOffset(t);
+            LocalDateTime ldt = LocalDateTime.ofEpochSecond(sec, 0, off);
+            int year = ldt.getYear();
+            if (year < 0 || year > 9999) {
+                String s = wideYear.format(Instant.ofEpochSecond(sec));
+                s.getChars(0, s.length(), absBuf, 0);
+                absLen = s.length();
+            } else {
+                int p = put2(absBuf, 0, year / 100);
+                p = put2(absBuf, p, year % 100);
+                absBuf[p++] = dateSep;
+                p = put2(absBuf, p, ldt.getMonthValue());
+                absBuf[p++] = dateSep;
+                p = put2(absBuf, p, ldt.getDayOfMonth());
+                absBuf[p++] = ' ';
+                p = put2(absBuf, p, ldt.getHour());
+                absBuf[p++] = ':';
+                p = put2(absBuf, p, ldt.getMinute());
+                absBuf[p++] = ':';
+                p = put2(absBuf, p, ldt.getSecond());
+                absLen = p;
+            }
+        }
+        if (millis) putMillis(absBuf, absLen, t.getNano() / 1_000_000);
+    }
+
+    // ====== 数字の書き込み ======
+
+    private static int millisOf(double elapsedSec, long sec) {
+        long ms = (long) Math.floor(elapsedSec * 1000.0) - sec * 1000;
+        return (int) Math.max(0, Math.min(999, ms));
+    }
+
+    private static int put2(char[] b, int p, int v) {
+        b[p] = (char) ('0' + v / 10);
+        b[p + 1] = (char) ('0' + v % 10);
+        return p + 2;
+    }
+
+    // 秒の後ろ（len の位置）に .SSS を書く
+    private static void putMillis(char[] b, int len, int ms) {
+        b[len] = '.';
+        b[len + 1] = (char) ('0' + ms / 100);
+        b[len + 2] = (char) ('0' + ms / 10 % 10);
+        b[len + 3] = (char) ('0' + ms % 10);
+    }
+}
@@ -0,0 +1,302 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * timing の累積和インデックス（<uuid>.tidx）。
+ * エントリ i ごとに「開始バイト位置」と「累積経過時間（ナノ秒）」を固定長レコードで持ち、
+ * 「バイト N の時刻」「時刻 T のバイト位置」を二分探索で求める。
+ *
+ * 経過時間の規則は各変換器と同じ：エントリに入るときに delay を加算し、そのエントリの bytes を消費する。
+ * ファイルはマップして参照するので、開くコストはエントリ数によらない。
+ * timing のサイズと更新時刻、delay の単位をヘッダーに記録し、食い違えば作り直す。
+ * 各レコードには timing 上の位置（バイト・行番号）も持たせ、任意のエントリから timing を読み始められるようにする
+ * （時間範囲だけを変換する {@link #range}）。
+ */
+public final class TimingIndex implements Closeable {
+
+    private static final int MAGIC   = 0x54494458; // "TIDX"
+    private static final int VERSION = 3;
+    private static final int HEADER  = 32;         // magic, version, timingSize, timingMtime, count, unit
+    private static final int REC     = 32;         // offset, elapsedNanos, timingPos, timingLine（すべて long）
+    private static final int RECS_PER_WINDOW = (1 << 30) / REC;
+
+    private final FileChannel ch;
+    private final MappedByteBuffer[] windows;
+    private final int count;
+
+    private TimingIndex(FileChannel ch, int count) throws IOException {
+        this.ch = ch;
+        this.count = count;
+        // 末尾に番兵レコード（総バイト数, 最終経過時間, timing の終端）がある
+        long recs = count + 1L;
+        int n = (int) ((recs + RECS_PER_WINDOW - 1) / RECS_PER_WINDOW);
+        this.windows = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long first = (long) i * RECS_PER_WINDOW;
+            long len = Math.min(RECS_PER_WINDOW, recs - first) * REC;
+            windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + first * REC, len);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: java com.demo.TimingIndex <NAME.timing> [--unit seconds|micros|auto] [--byte <offset>] [--time <seconds>]");
+            System.exit(2);
+        }
+        TimingParser.Unit unit = TimingParser.Unit.AUTO;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if ("--unit".equals(args[i])) unit = TimingParser.Unit.valueOf(args[i + 1].toUpperCase(java.util.Locale.ROOT));
+        }
+        try (TimingIndex idx = open(Paths.get(args[0]), unit)) {
+            System.out.println("エントリ数: " + idx.size() + "、総バイト数: " + idx.totalBytes()
+                    + "、経過時間: " + idx.totalNanos() / 1e9 + " 秒");
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                if ("--byte".equals(args[i])) {
+                    long off = Long.parseLong(args[i + 1]);
+                    System.out.println("byte " + off + " -> " + idx.nanosAtByte(off) / 1e9 + " 秒");
+                } else if ("--time".equals(args[i])) {
+                    long nanos = (long) (Double.parseDouble(args[i + 1]) * 1_000_000_000L);
+                    System.out.println(args[i + 1] + " 秒 -> byte " + idx.byteAtNanos(nanos));
+                }
+            }
+        }
+    }
+
+    /** <uuid>.timing に対応する <uuid>.tidx */
+    public static Path indexPathOf(Path timingPath) {
+        String fn = timingPath.getFileName().toString();
+        String base = fn.endsWith(".timing") ? fn.substring(0, fn.length() - ".timing".length()) : fn;
+        return timingPath.resolveSibling(base + ".tidx");
+    }
+
+    /** インデックスを開く（delay の単位は自動判定） */
+    public static TimingIndex open(Path timingPath) throws IOException {
+        return open(timingPath, TimingParser.Unit.AUTO);
+    }
+
+    /**
+     * インデックスを開く。存在しないか古いか、unit が違えば timing から作り直す。
+     * 変換器と合わせて使うときは、変換器が timing を読むのと同じ unit を渡す。
+     */
+    public static TimingIndex open(Path timingPath, TimingParser.Unit unit) throws IOException {
+        Path idxPath = indexPathOf(timingPath);
+        long size = Files.size(timingPath);
+        long mtime = Files.getLastModifiedTime(timingPath).toMillis();
+        if (Files.isRegularFile(idxPath)) {
+            TimingIndex idx = tryOpen(idxPath, size, mtime, unit);
+            if (idx != null) return idx;
+        }
+        build(timingPath, idxPath, size, mtime, unit);
+        TimingIndex idx = tryOpen(idxPath, size, mtime, unit);
+        if (idx == null) throw new IOException("インデックスを作成できません: " + idxPath);
+        return idx;
+    }
+
+    private static TimingIndex tryOpen(Path idxPath, long size, long mtime, TimingParser.Unit unit) throws IOException {
+        FileChannel ch = FileChannel.open(idxPath, StandardOpenOption.READ);
+        try {
+            ByteBuffer h = ByteBuffer.allocate(HEADER);
+            while (h.hasRemaining() && ch.read(h) >= 0) { }
+            h.flip();
+            if (h.remaining() < HEADER || h.getInt() != MAGIC || h.getInt() != VERSION
+                    || h.getLong() != size || h.getLong() != mtime) {
+                ch.close();
+                return null; // 古い/壊れている
+            }
+            int count = h.getInt();
+            if (h.getInt() != unit.ordinal() || count < 0 || ch.size() != HEADER + (count + 1L) * REC) {
+                ch.close();
+                return null;
+            }
+            return new TimingIndex(ch, count);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // timing を1回読んで累積和を書き出す（同じインデックスを同時に作っても混ざらないよう、
+    // 実行ごとに別の一時ファイルに書いてから置き換える）
+    private static void build(Path timingPath, Path idxPath, long size, long mtime, TimingParser.Unit unit)
+            throws IOException {
+        Path tmp = Files.createTempFile(idxPath.toAbsolutePath().getParent(), idxPath.getFileName() + ".", ".tmp");
+        try {
+            write(timingPath, tmp, size, mtime, unit);
+            try {
+                Files.move(tmp, idxPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, idxPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void write(Path timingPath, Path tmp, long size, long mtime, TimingParser.Unit unit)
+            throws IOException {
+        int count = 0;
+        long offset = 0, elapsed = 0;
+        try (TimingParser tr = TimingParser.open(timingPath, unit);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(mtime);
+            out.writeInt(0); // count（後で書き戻す）
+            out.writeInt(unit.ordinal());
+
+            long timingPos = tr.position(), timingLine = tr.lineNumber();
+            while (tr.next()) {
+                long delay = tr.delayNanos();
+                long bytes = tr.bytes();
+
+                elapsed += delay;
+                out.writeLong(offset);
+                out.writeLong(elapsed);
+                out.writeLong(timingPos);
+                out.writeLong(timingLine);
+                offset += bytes;
+                // エントリ番号は int なので、それを超える timing は扱えない（番兵の分を残す）
+                if (count == Integer.MAX_VALUE - 1) {
+                    throw new IOException("timing のエントリが多すぎます（" + (Integer.MAX_VALUE - 1) + " 件まで）: " + timingPath);
+                }
+                count++;
+                timingPos = tr.position();
+                timingLine = tr.lineNumber();
+            }
+            // 番兵
+            out.writeLong(offset);
+            out.writeLong(elapsed);
+            out.writeLong(timingPos);
+            out.writeLong(timingLine);
+        }
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ByteBuffer c = ByteBuffer.allocate(4).putInt(count);
+            c.flip();
+            fc.write(c, 24);
+        }
+    }
+
+    // ====== 参照 ======
+
+    /** timing のエントリ数 */
+    public int size() { return count; }
+
+    /** エントリ i の先頭バイト位置（i == size() なら総バイト数） */
+    public long offsetOf(int i) {
+        return window(i).getLong(slot(i));
+    }
+
+    /** エントリ i に入った時点の累積経過時間（ナノ秒）。i == size() なら最終値 */
+    public long elapsedNanosOf(int i) {
+        return window(i).getLong(slot(i) + 8);
+    }
+
+    /**
+     * エントリ i を読み始める timing 上のバイト位置（直前の有効行の次の行の先頭）。
+     * ここまで読み飛ばし、{@link TimingParser#resumeAt} に {@link #timingLineOf} と合わせて渡す
+     */
+    public long timingOffsetOf(int i) {
+        return window(i).getLong(slot(i) + 16);
+    }
+
+    /** timingOffsetOf(i) までに読んだ行数 */
+    public long timingLineOf(int i) {
+        return window(i).getLong(slot(i) + 24);
+    }
+
+    public long totalBytes() { return offsetOf(count); }
+    public long totalNanos() { return elapsedNanosOf(count); }
+
+    /** バイト位置 offset を含むエントリ（offset >= totalBytes なら size()） */
+    public int entryAtByte(long offset) {
+        // offsetOf(i) <= offset となる最大の i（0バイトのエントリは次のエントリに吸収される）
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsetOf(mid) <= offset) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** 累積経過時間が nanos 以上になる最初のエントリ（なければ size()） */
+    public int entryAtNanos(long nanos) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (elapsedNanosOf(mid) >= nanos) hi = mid; else lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /** バイト位置 offset が出力された時点の経過時間 */
+    public long nanosAtByte(long offset) {
+        return elapsedNanosOf(entryAtByte(offset));
+    }
+
+    /** 経過時間 nanos 以降に出力された最初のバイト位置 */
+    public long byteAtNanos(long nanos) {
+        return offsetOf(entryAtNanos(nanos));
+    }
+
+    /**
+     * 絶対時刻の範囲 [from, to) に出力されたエントリの範囲を求める（null はセッションの先頭／末尾）。
+     * start はセッションの開始時刻。leadInBytes は変換状態（持ち越しの半行・プロンプト・画面）を
+     * 温めるために、範囲の手前から余分に読むバイト数の目安。
+     */
+    public Range range(Instant start, Instant from, Instant to, long leadInBytes) {
+        int first = from == null ? 0 : entryAtNanos(nanosSince(start, from));
+        int end = to == null ? count : Math.max(first, entryAtNanos(nanosSince(start, to)));
+        int lead = first;
+        if (leadInBytes > 0) {
+            lead = Math.min(first, entryAtByte(Math.max(0, offsetOf(first) - leadInBytes)));
+        }
+        return new Range(lead, first, end);
+    }
+
+    // start から t までのナノ秒（long に収まらない分は飽和させる）
+    private static long nanosSince(Instant start, Instant t) {
+        try {
+            return Duration.between(start, t).toNanos();
+        } catch (ArithmeticException e) {
+            return t.isBefore(start) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 時間範囲に対応するエントリ：[lead, first) は状態を温めるだけで出力しない区間、[first, end) が出力する区間。
+     */
+    public final class Range {
+        public final int lead, first, end;
+
+        Range(int lead, int first, int end) {
+            this.lead = lead;
+            this.first = first;
+            this.end = end;
+        }
+
+        /** lead に入る直前の累積経過時間（ナノ秒） */
+        public long startNanos() { return lead == 0 ? 0 : elapsedNanosOf(lead - 1); }
+
+        /** 読み始める typescript 上のバイト位置 */
+        public long dataOffset() { return offsetOf(lead); }
+
+        /** 出力区間の後にもエントリが残っている（最後の半行は確定させない） */
+        public boolean truncated() { return end < count; }
+    }
+
+    private MappedByteBuffer window(int i) { return windows[i / RECS_PER_WINDOW]; }
+    private static int slot(int i) { return (i % RECS_PER_WINDOW) * REC; }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+}
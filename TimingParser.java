@@ -0,0 +1,275 @@
+package com.demo;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * timing ファイル（<delay> <bytes> の2列）のストリーミングパーサー。
+ * バイトバッファ上で直接解析し、1行ごとに String・配列・ボックス化オブジェクトを作らない。
+ * delay は10進固定小数点として読み、long のナノ秒に変換する（小数10桁目で四捨五入）。
+ *
+ * 使い方：
+ * <pre>
+ *   try (TimingParser p = TimingParser.open(timing, TimingParser.Unit.AUTO)) {
+ *       while (p.next()) { p.delayNanos(); p.bytes(); }
+ *   }
+ * </pre>
+ * 空行と # で始まる行は読み飛ばす。解釈できない行は行番号付きで ErrorHandler に渡す（既定は読み飛ばし）。
+ * 追従モード（setFollow(true)）では、書き込み途中の改行のない最終行は解析せずに保持し、
+ * 追記されてから次の next() で読む。
+ */
+public final class TimingParser implements Closeable {
+
+    /** 1列目の単位（AUTO は全体を1回走査して判定する） */
+    public enum Unit { SECONDS, MICROS, AUTO }
+
+    /** 不正な行の通知先 */
+    public interface ErrorHandler {
+        void malformed(long lineNumber, String reason) throws IOException;
+    }
+
+    /** 不正な行は黙って読み飛ばす（従来の各変換器と同じ） */
+    public static final ErrorHandler SKIP = (lineNumber, reason) -> { };
+
+    /** 不正な行があれば IOException */
+    public static final ErrorHandler STRICT = (lineNumber, reason) -> {
+        throw new IOException("timing " + lineNumber + " 行目が不正です: " + reason);
+    };
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private static final long MAX_INT_PART  = Long.MAX_VALUE / NANOS_PER_SEC - 1;
+
+    private final InputStream in;
+    private final Unit unit;
+    private final ErrorHandler errors;
+
+    private byte[] buf = new byte[64 * 1024];
+    private int pos, lim;
+    private long base;       // buf[0] のストリーム上の位置
+    private boolean eof;
+    private boolean follow;
+    private long lineNumber;
+
+    // 直近の行の解析結果
+    private long delayNanos;
+    private long bytes;
+    // delay の解析途中の値（整数部と、小数部をナノ単位に揃えたもの）
+    private long intPart;
+    private long fracNanos;
+    private boolean whole;
+
+    public TimingParser(InputStream in, Unit unit, ErrorHandler errors) {
+        if (unit == Unit.AUTO) throw new IllegalArgumentException("AUTO は open(Path, ...) でのみ使用できます");
+        this.in = in;
+        this.unit = unit;
+        this.errors = errors;
+    }
+
+    public TimingParser(InputStream in, Unit unit) {
+        this(in, unit, SKIP);
+    }
+
+    public static TimingParser open(Path timing, Unit unit) throws IOException {
+        return open(timing, unit, SKIP);
+    }
+
+    public static TimingParser open(Path timing, Unit unit, ErrorHandler errors) throws IOException {
+        if (unit == Unit.AUTO) unit = detectUnit(timing);
+        return new TimingParser(Files.newInputStream(timing), unit, errors);
+    }
+
+    /**
+     * 単位の自動判定（Ts2Log.detectUnit と同じ規則）：
+     * 8割以上の delay が「1000 以上の整数」ならマイクロ秒、それ以外は秒。
+     */
+    public static Unit detectUnit(Path timing) throws IOException {
+        return detectUnit(Files.newInputStream(timing));
+    }
+
+    /** detectUnit(Path) と同じ判定を、ストリームを最後まで読んで行う（閉じる） */
+    public static Unit detectUnit(InputStream timing) throws IOException {
+        long total = 0, microLike = 0;
+        try (TimingParser p = new TimingParser(timing, Unit.SECONDS)) {
+            while (p.next()) {
+                total++;
+                if (p.whole && p.intPart >= 1000) microLike++;
+            }
+        }
+        return (total > 0 && microLike >= 0.8 * total) ? Unit.MICROS : Unit.SECONDS;
+    }
+
+    /**
+     * --start の指定がないときに使う、録画の開始時刻の推定値。
+     * script は録画の終わりまで typescript に書き足すので、その最終更新時刻は録画の「終わり」にあたる。
+     * そこから timing の delay の合計を引いたものを開始時刻とする（録画中なら、その時点までの合計を引く）。
+     * ファイルの作成時刻は使わない：Linux の JDK では取れないことが多く、代わりに最終更新時刻が返る。
+     */
+    public static java.time.Instant recordingStart(Path typescript, Path timing) throws IOException {
+        java.time.Instant end = Files.getLastModifiedTime(typescript).toInstant();
+        try (TimingParser p = open(timing, Unit.AUTO)) {
+            return end.minusNanos(p.totalNanos());
+        }
+    }
+
+    /** recordingStart(Path, Path) と同じ推定を、録画の更新時刻とメモリ上の timing（アーカイブのエントリなど）で行う */
+    public static java.time.Instant recordingStart(java.time.Instant lastModified, byte[] timing) throws IOException {
+        Unit unit = detectUnit(new ByteArrayInputStream(timing));
+        try (TimingParser p = new TimingParser(new ByteArrayInputStream(timing), unit)) {
+            return lastModified.minusNanos(p.totalNanos());
+        }
+    }
+
+    /** 残りの行を読み切り、delay の合計（ナノ秒）を返す */
+    public long totalNanos() throws IOException {
+        long sum = 0;
+        while (next()) sum += delayNanos;
+        return sum;
+    }
+
+    /**
+     * 追従モードの切り替え。true の間は終端に達しても確定せず、改行のない最終行も保留する。
+     * false に戻すと、保留していた最終行も含めて通常どおり読み切る。
+     */
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+        if (follow) eof = false;
+    }
+
+    /**
+     * ストリームを途中（position バイト目、それまでに lineNumber 行）から読む場合に、
+     * position() と lineNumber() の起点を合わせる。最初の next() より前に呼ぶこと。
+     */
+    public void resumeAt(long position, long lineNumber) {
+        this.base = position - pos;
+        this.lineNumber = lineNumber;
+    }
+
+    /** 次の有効な行へ進む。終端なら false（追従モードでは「今は完全な行がない」） */
+    public boolean next() throws IOException {
+        while (true) {
+            int nl = ByteScan.indexOf(buf, pos, lim, (byte) '\n');
+            if (nl < 0) {
+                if (!eof) {
+                    if (fill() < 0 && follow) {
+                        eof = false; // 追記を待つ
+                        return false;
+                    }
+                    continue;
+                }
+                if (pos == lim) return false;
+                nl = lim; // 改行なしの最終行
+            }
+            int from = pos, to = nl;
+            pos = nl < lim ? nl + 1 : lim;
+            lineNumber++;
+            if (parseLine(from, to)) return true;
+        }
+    }
+
+    /** 直近の行の delay（ナノ秒） */
+    public long delayNanos() { return delayNanos; }
+
+    /** 直近の行のバイト数 */
+    public long bytes() { return bytes; }
+
+    /** 直近の行の行番号（1始まり、空行・コメントも数える） */
+    public long lineNumber() { return lineNumber; }
+
+    /** 読み終えた位置（バイト）。直近の行の次の行の先頭 */
+    public long position() { return base + pos; }
+
+    public Unit unit() { return unit; }
+
+    // ====== 解析 ======
+
+    private boolean parseLine(int from, int to) throws IOException {
+        while (from < to && isBlank(buf[from])) from++;
+        while (to > from && isBlank(buf[to - 1])) to--;
+        if (from == to || buf[from] == '#') return false;
+
+        int p = parseDelay(from, to);
+        if (p < 0) return malformed("delay が数値ではありません");
+        if (p == to || !isBlank(buf[p])) return malformed("2列目がありません");
+        while (p < to && isBlank(buf[p])) p++;
+
+        // バイト数：整数（小数は不正な行として扱う）
+        long n = 0;
+        int start = p;
+        while (p < to && buf[p] >= '0' && buf[p] <= '9') {
+            if (n > (Long.MAX_VALUE - 9) / 10) return malformed("バイト数が大きすぎます");
+            n = n * 10 + (buf[p++] - '0');
+        }
+        if (p == start || p < to && !isBlank(buf[p])) return malformed("バイト数が整数ではありません");
+        // 3列目以降は無視する
+
+        bytes = n;
+        if (unit == Unit.MICROS) {
+            // intPart はマイクロ秒。小数部（ナノ単位に揃えた値）はマイクロ秒の端数なので 1e6 で割って丸める
+            delayNanos = intPart * 1000 + (fracNanos + 500_000) / 1_000_000;
+        } else {
+            delayNanos = intPart * NANOS_PER_SEC + fracNanos;
+        }
+        return true;
+    }
+
+    // [0-9]*(.[0-9]*)? を読み、intPart/fracNanos/whole を設定して次の位置を返す。数字がなければ -1
+    private int parseDelay(int p, int to) {
+        long ip = 0, frac = 0;
+        int digits = 0, fracDigits = 0;
+        boolean roundUp = false, nonZeroFrac = false;
+        while (p < to && buf[p] >= '0' && buf[p] <= '9') {
+            if (ip > MAX_INT_PART) return -1;
+            ip = ip * 10 + (buf[p++] - '0');
+            digits++;
+        }
+        if (p < to && buf[p] == '.') {
+            p++;
+            while (p < to && buf[p] >= '0' && buf[p] <= '9') {
+                int d = buf[p++] - '0';
+                if (d != 0) nonZeroFrac = true;
+                if (fracDigits < 9) frac = frac * 10 + d;
+                else if (fracDigits == 9) roundUp = d >= 5;
+                fracDigits++;
+                digits++;
+            }
+        }
+        if (digits == 0) return -1;
+        for (int i = fracDigits; i < 9; i++) frac *= 10;
+        if (roundUp) frac++;
+        if (frac == NANOS_PER_SEC) { ip++; frac = 0; }
+        intPart = ip;
+        fracNanos = frac;
+        whole = !nonZeroFrac;
+        return p;
+    }
+
+    // String.trim() と同じく、0x20 以下を空白とみなす（0x80 以上のバイトは空白ではない）
+    private static boolean isBlank(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+
+    private boolean malformed(String reason) throws IOException {
+        errors.malformed(lineNumber, reason);
+        return false;
+    }
+
+    // 未処理の部分を先頭に詰めてから読み足す（1行がバッファより長ければ拡張）。読んだバイト数を返す
+    private int fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            base += pos;
+            pos = 0;
+        }
+        if (lim == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+        int n = in.read(buf, lim, buf.length - lim);
+        if (n < 0) eof = true; else lim += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
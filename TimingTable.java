@@ -0,0 +1,98 @@
+package com.demo;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * timing 全体を保持する列指向テーブル。
+ * delay（ナノ秒）を long[]、バイト数を int[] に並べて持ち、1エントリあたり 12 バイトで済ませる
+ * （エントリごとにオブジェクトを作る Deque/List だと 1 件あたり 40 バイト以上になる）。
+ * 走査は Cursor で行う。
+ */
+public final class TimingTable {
+
+    private long[] delays;
+    private int[] bytes;
+    private int size;
+
+    public TimingTable(int initialCapacity) {
+        int cap = Math.max(16, initialCapacity);
+        delays = new long[cap];
+        bytes = new int[cap];
+    }
+
+    public TimingTable() {
+        this(1024);
+    }
+
+    /** timing ファイルをすべて読み込む */
+    public static TimingTable load(Path timing, TimingParser.Unit unit) throws IOException {
+        // 1行はおよそ 10 バイト前後なので、サイズから件数を見積もって拡張の回数を減らす
+        long estimate = Files.size(timing) / 10;
+        try (TimingParser p = TimingParser.open(timing, unit)) {
+            return read(p, (int) Math.min(estimate, 1 << 24));
+        }
+    }
+
+    /** パーサーの残りの行をすべて読み込む（閉じるのは呼び出し側） */
+    public static TimingTable read(TimingParser p, int initialCapacity) throws IOException {
+        TimingTable t = new TimingTable(initialCapacity);
+        while (p.next()) {
+            if (p.bytes() > Integer.MAX_VALUE) {
+                throw new IOException("timing " + p.lineNumber() + " 行目のバイト数が大きすぎます: " + p.bytes());
+            }
+            t.add(p.delayNanos(), (int) p.bytes());
+        }
+        return t;
+    }
+
+    public void add(long delayNanos, int n) {
+        if (size == delays.length) {
+            int cap = size + (size >> 1);
+            delays = Arrays.copyOf(delays, cap);
+            bytes = Arrays.copyOf(bytes, cap);
+        }
+        delays[size] = delayNanos;
+        bytes[size] = n;
+        size++;
+    }
+
+    public int size() { return size; }
+
+    public long delayNanos(int i) { return delays[i]; }
+
+    public int bytes(int i) { return bytes[i]; }
+
+    public Cursor cursor() { return new Cursor(); }
+
+    /**
+     * 先頭から順にエントリをたどる。next() でエントリに入った時点で、その delay が経過時間に加算される。
+     */
+    public final class Cursor {
+        private int index = -1;
+        private long elapsedNanos;
+
+        private Cursor() {}
+
+        public boolean hasNext() { return index + 1 < size; }
+
+        /** 次のエントリに入る。なければ false */
+        public boolean next() {
+            if (index + 1 >= size) return false;
+            index++;
+            elapsedNanos += delays[index];
+            return true;
+        }
+
+        /** 現在のエントリ番号（next() 前は -1） */
+        public int index() { return index; }
+
+        public long delayNanos() { return delays[index]; }
+
+        public int bytes() { return bytes[index]; }
+
+        /** 現在のエントリまでの delay の合計 */
+        public long elapsedNanos() { return elapsedNanos; }
+    }
+}
@@ -1,3 +1,7 @@
+import com.demo.TimestampRenderer;
+import com.demo.TimingParser;
+import com.demo.TimingTable;
+
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -29,9 +33,6 @@ public final class TypescriptToLog {
         public Options charset(Charset cs)      { this.charset = cs; return this; }
     }
 
-    private static final java.time.format.DateTimeFormatter ABS_FMT =
-            java.time.format.DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-
     private TypescriptToLog() {} // 工具类，禁止实例化
 
     /** 将 NAME.timing + NAME 转为“[绝对时间] 行文本”的列表（小文件/一次性结果适用） */
@@ -39,31 +40,32 @@ public final class TypescriptToLog {
         Objects.requireNonNull(timingFile, "timingFile");
         Objects.requireNonNull(dataFile, "dataFile");
         Objects.requireNonNull(opt, "options");
-        List<TimingPair> pairs = readTiming(timingFile);
-        double factor = computeFactor(pairs, opt.unit);
+        TimingTable timing = TimingTable.load(timingFile.toPath(), TimingParser.Unit.valueOf(opt.unit.name()));
         Pattern ansi = opt.stripAnsi ? ansiPattern() : null;
 
         List<String> out = new ArrayList<>();
         OffsetDateTime base = (opt.start != null) ? opt.start : OffsetDateTime.now();
+        TimestampRenderer stamps = new TimestampRenderer(base.getOffset(), '/', false);
 
         try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile))) {
             double tRel = 0.0;
             ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
-            for (TimingPair p : pairs) {
-                tRel += p.delay * factor;
-                byte[] chunk = readExact(in, p.nbytes);
+            TimingTable.Cursor c = timing.cursor();
+            while (c.next()) {
+                tRel += c.delayNanos() / 1e9;
+                byte[] chunk = readExact(in, c.bytes());
                 if (chunk == null) break;
                 for (byte b : chunk) {
                     if (opt.stripCr && b == '\r') continue;
                     if (b == '\n') {
-                        out.add(formatLine(buf, tRel, base, ansi, opt.charset));
+                        out.add(formatLine(buf, tRel, base, stamps, ansi, opt.charset));
                     } else {
                         buf.write(b);
                     }
                 }
             }
             if (buf.size() > 0) {
-                out.add(formatLine(buf, tRel, base, ansi, opt.charset));
+                out.add(formatLine(buf, tRel, base, stamps, ansi, opt.charset));
             }
         }
         return out;
@@ -76,23 +78,24 @@ public final class TypescriptToLog {
         Objects.requireNonNull(opt, "options");
         Objects.requireNonNull(writer, "writer");
 
-        List<TimingPair> pairs = readTiming(timingFile);
-        double factor = computeFactor(pairs, opt.unit);
+        TimingTable timing = TimingTable.load(timingFile.toPath(), TimingParser.Unit.valueOf(opt.unit.name()));
         Pattern ansi = opt.stripAnsi ? ansiPattern() : null;
 
         OffsetDateTime base = (opt.start != null) ? opt.start : OffsetDateTime.now();
+        TimestampRenderer stamps = new TimestampRenderer(base.getOffset(), '/', false);
 
         try (InputStream in = new BufferedInputStream(new FileInputStream(dataFile))) {
             double tRel = 0.0;
             ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
-            for (TimingPair p : pairs) {
-                tRel += p.delay * factor;
-                byte[] chunk = readExact(in, p.nbytes);
+            TimingTable.Cursor c = timing.cursor();
+            while (c.next()) {
+                tRel += c.delayNanos() / 1e9;
+                byte[] chunk = readExact(in, c.bytes());
                 if (chunk == null) break;
                 for (byte b : chunk) {
                     if (opt.stripCr && b == '\r') continue;
                     if (b == '\n') {
-                        writer.write(formatLine(buf, tRel, base, ansi, opt.charset));
+                        writer.write(formatLine(buf, tRel, base, stamps, ansi, opt.charset));
                         writer.write(System.lineSeparator());
                     } else {
                         buf.write(b);
@@ -100,7 +103,7 @@ public final class TypescriptToLog {
                 }
             }
             if (buf.size() > 0) {
-                writer.write(formatLine(buf, tRel, base, ansi, opt.charset));
+                writer.write(formatLine(buf, tRel, base, stamps, ansi, opt.charset));
                 writer.write(System.lineSeparator());
             }
             writer.flush();
@@ -109,43 +112,6 @@ public final class TypescriptToLog {
 
     // ---------- 内部实现 ----------
 
-    private static final class TimingPair {
-        final double delay;  // 原始 delay 值（单位未归一）
-        final int nbytes;
-        TimingPair(double d, int n) { this.delay = d; this.nbytes = n; }
-    }
-
-    private static List<TimingPair> readTiming(File path) throws IOException {
-        List<TimingPair> out = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
-            String ln;
-            while ((ln = br.readLine()) != null) {
-                ln = ln.trim();
-                if (ln.isEmpty() || ln.startsWith("#")) continue;
-                String[] p = ln.split("\\s+");
-                if (p.length < 2) continue;
-                try {
-                    double d = Double.parseDouble(p[0]);
-                    int n = (int) Double.parseDouble(p[1]); // 少数实现写成浮点
-                    if (n >= 0) out.add(new TimingPair(d, n));
-                } catch (NumberFormatException ignored) {}
-            }
-        }
-        return out;
-    }
-
-    private static double computeFactor(List<TimingPair> pairs, Unit unit) {
-        if (unit == Unit.SECONDS) return 1.0;
-        if (unit == Unit.MICROS)  return 1e-6;
-        // AUTO：经验规则——大多数 delay 为“≥1000 且整数”，判为微秒
-        int tall = 0, microLike = 0;
-        for (TimingPair p : pairs) {
-            tall++;
-            if (p.delay >= 1000 && Math.floor(p.delay) == p.delay) microLike++;
-        }
-        return (tall > 0 && microLike >= 0.8 * tall) ? 1e-6 : 1.0;
-    }
-
     private static Pattern ansiPattern() {
         // 仅清除常见 CSI（ESC [ ...）序列；足够用于“转日志”
         return Pattern.compile("\\u001B\\[[0-?]*[ -/]*[@-~]");
@@ -164,15 +130,14 @@ public final class TypescriptToLog {
         return (rTot == n) ? buf : Arrays.copyOf(buf, rTot);
     }
 
-    private static String formatLine(ByteArrayOutputStream buf, double tRelSec,
-                                     OffsetDateTime base, Pattern ansi, Charset cs) {
+    private static String formatLine(ByteArrayOutputStream buf, double tRelSec, OffsetDateTime base,
+                                     TimestampRenderer stamps, Pattern ansi, Charset cs) {
         String line = buf.toString(cs);
         buf.reset();
         if (ansi != null) line = ansi.matcher(line).replaceAll("");
 
         long ms = Math.round(tRelSec * 1000.0);
-        OffsetDateTime ts = base.plus(java.time.Duration.ofMillis(ms));
-        String stamp = ts.format(ABS_FMT);     // yyyy/MM/dd HH:mm:ss
+        String stamp = stamps.abs(base.toInstant().plusMillis(ms));     // yyyy/MM/dd HH:mm:ss
         return "[" + stamp + "] " + line;
     }
 }
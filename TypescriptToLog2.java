@@ -1,21 +1,33 @@
 package com.demo.test01;
+import com.demo.ByteScan;
+import com.demo.ConversionMetrics;
+import com.demo.ConvertEngine;
+import com.demo.LineFilter;
+import com.demo.TailFollower;
+import com.demo.TerminalScreen;
+import com.demo.TimestampRenderer;
+import com.demo.TimingIndex;
+import com.demo.TimingParser;
+import com.demo.TimingTable;
+
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * TypescriptToLog
  * 输入：NAME（原始字节流, UTF-8） + NAME.timing（两列：<delaySeconds> <bytes>）
  * 输出：按 NAME 的“行”输出日志：HH:mm:ss,yyyy/MM/dd HH:mm:ss,AAAA,内容
  * 处理：
- *   - 退格(\b)与回车覆盖(\r)
- *   - 去 ANSI 转义
+ *   - 默认经 TerminalScreen（终端画面模型）还原：光标移动/擦除/滚动区域按终端语义生效，
+ *     vim/less/top 等全屏程序（备用画面）在画面稳定后只输出有变化的行
+ *   - --no-screen：旧的逐行处理（退格(\b)删除前一字符、回车(\r)只保留最后一段、去 ANSI 转义）
  *   - 欢迎语/MOTD、Vim 屏幕/状态行、框线密集、空白行过滤
  *   - ⚠ 保留原始的左侧缩进与空格间隔（不 trim、不压缩空格）
  */
@@ -24,76 +36,112 @@ public class TypescriptToLog {
     // 固定标签
     private static final String FIXED_TAG = "AAAA";
 
-    // 输出时间格式与时区
-    private static final DateTimeFormatter ABS_FMT =
-            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    // 输出时区
     private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
 
-    // timing 行解析：<seconds(double)> <bytes(int)>
-    private static final Pattern TIMING_LINE =
-            Pattern.compile("^\\s*([0-9]+(?:\\.[0-9]+)?)\\s+(\\d+)\\s*$");
-
-    // 欢迎语/标记（常见 MOTD / 登录横幅 / typescript 标记）
-    private static final Pattern WELCOME_PAT = Pattern.compile(
-            "(?i)^(?:\\[?BEGIN\\s+TYPESCRIPT\\]?|\\[?END\\s+TYPESCRIPT\\]?|welcome\\s+to\\s+ubuntu|debian\\s+gnu/linux|documentation:|last\\s+login:|the\\s+programs\\s+included\\s+with\\s+the\\s+debian|\\*\\s+.+)"
-    );
-
-    // Vim 状态/屏幕特征
-    private static final Pattern VIM_MODE = Pattern.compile("\\s--\\s(?:INSERT|VISUAL|REPLACE)\\s--");
-    private static final Pattern VIM_FILE_NEW = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\[(?:New File|New)\\]\\s*$");
-    private static final Pattern VIM_FILE_STATS = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\d+L,\\s*\\d+B\\s*$");
-    private static final Pattern TILDE_LINE = Pattern.compile("^[\\s~]+$");
-    private static final Pattern BOX_DRAW = Pattern.compile("[\\u2500-\\u257F\\u2580-\\u259F]+"); // 框线/方块
+    // 时间范围转换时，范围之前用于预热的字节数（大约）
+    private static final long LEAD_IN = 64 * 1024;
 
     public static void main(String[] args) throws Exception {
-//        if (args.length < 3) {
-//            System.err.println("用法: java TypescriptToLog <NAME> <NAME.timing> <output.log> [--start <ts>] [--raw]");
-//            System.err.println("  <ts> 支持 ISO-8601 (例: 2025-09-03T21:34:01+09:00) 或 yyyy/MM/dd HH:mm:ss");
-//            System.exit(1);
-//        }
-//
-//        Path namePath   = Paths.get(args[0]);
-//        Path timingPath = Paths.get(args[1]);
-//        Path outPath    = Paths.get(args[2]);
+        // 未指定时使用的默认路径；指定时三个路径必须一起给出
         Path namePath = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b");
         Path timingPath     = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b.timing");
         Path outPath        = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b.log");
 
         String startStr = null;
         boolean rawMode = false; // --raw 仅影响“清理控制字符”的强度，但不会压缩/修剪空格
-        for (int i = 3; i < args.length; i++) {
+        boolean screen = true;   // --no-screen 关闭画面模型，按旧方式逐行处理
+        boolean filterStats = false; // --filter-stats 结束后输出各过滤规则的命中数与耗时
+        String fromStr = null, toStr = null; // --from/--to 只转换该时间范围内的行
+        Path metricsFile = null; // --metrics-file 结束后以 Prometheus 文本格式写出本次转换的指标
+        List<String> paths = new ArrayList<>(); // 选项之外的参数按顺序视为 <NAME> <NAME.timing> <output.log>
+        for (int i = 0; i < args.length; i++) {
             if ("--start".equals(args[i]) && i + 1 < args.length) {
                 startStr = args[++i];
             } else if ("--raw".equals(args[i])) {
                 rawMode = true;
+            } else if ("--no-screen".equals(args[i])) {
+                screen = false;
+            } else if ("--filter-stats".equals(args[i])) {
+                filterStats = true;
+            } else if ("--from".equals(args[i]) && i + 1 < args.length) {
+                fromStr = args[++i];
+            } else if ("--to".equals(args[i]) && i + 1 < args.length) {
+                toStr = args[++i];
+            } else if ("--metrics-file".equals(args[i]) && i + 1 < args.length) {
+                metricsFile = Paths.get(args[++i]);
+            } else if (args[i].startsWith("--")) {
+                usage("未知的选项或缺少参数值: " + args[i]);
+            } else {
+                paths.add(args[i]);
             }
         }
+        if (paths.size() == 3) {
+            namePath = Paths.get(paths.get(0));
+            timingPath = Paths.get(paths.get(1));
+            outPath = Paths.get(paths.get(2));
+        } else if (!paths.isEmpty()) {
+            usage("路径参数必须是 0 个或 3 个: " + paths);
+        }
 
         Instant startInstant = resolveStartInstant(startStr);
-        convert(namePath, timingPath, outPath, startInstant, rawMode);
+        ConversionMetrics.Recorder metrics = ConversionMetrics.begin(namePath.getFileName().toString(),
+                screen ? "log" : "log-noscreen");
+        try {
+            if (fromStr != null || toStr != null) {
+                Instant from = fromStr == null ? null : parseInstant(fromStr, "--from");
+                Instant to = toStr == null ? null : parseInstant(toStr, "--to");
+                convert(namePath, timingPath, outPath, startInstant, rawMode, screen, from, to);
+            } else {
+                convert(namePath, timingPath, outPath, startInstant, rawMode, screen);
+            }
+        } finally {
+            metrics.close();
+        }
+        if (filterStats) LineFilter.standard(true).report(System.err);
+        if (metricsFile != null) ConversionMetrics.global().writeTo(metricsFile);
         System.out.println("完成: " + outPath.toAbsolutePath());
     }
 
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("用法: java TypescriptToLog [<NAME> <NAME.timing> <output.log>] [选项...]");
+        System.err.println("  选项可以放在任意位置；省略三个路径时使用内置的默认路径");
+        System.err.println("  --start <ts>          起点时间，支持 ISO-8601 (例: 2025-09-03T21:34:01+09:00) 或 yyyy/MM/dd HH:mm:ss");
+        System.err.println("  --raw                 减弱控制字符的清理");
+        System.err.println("  --no-screen           关闭画面模型，按旧方式逐行处理");
+        System.err.println("  --filter-stats        结束后输出各过滤规则的命中数与耗时");
+        System.err.println("  --from <ts> --to <ts> 只转换该时间范围内的行");
+        System.err.println("  --metrics-file <path> 结束后以 Prometheus 文本格式写出指标");
+        System.exit(1);
+    }
+
     // 解析绝对起点时间
     private static Instant resolveStartInstant(String startStr) {
         if (startStr == null || startStr.isEmpty()) {
             return ZonedDateTime.now(DEFAULT_ZONE).toInstant();
         }
+        return parseInstant(startStr, "--start");
+    }
+
+    // 解析 ISO-8601 或 yyyy/MM/dd HH:mm:ss（后者按 DEFAULT_ZONE）
+    private static Instant parseInstant(String str, String option) {
         try { // ISO-8601
-            return Instant.parse(startStr);
+            return Instant.parse(str);
         } catch (Exception ignore) {}
         try { // yyyy/MM/dd HH:mm:ss
             DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-            LocalDateTime ldt = LocalDateTime.parse(startStr, fmt);
+            LocalDateTime ldt = LocalDateTime.parse(str, fmt);
             return ldt.atZone(DEFAULT_ZONE).toInstant();
         } catch (Exception e) {
-            throw new IllegalArgumentException("无法解析 --start 时间: " + startStr);
+            throw new IllegalArgumentException("无法解析 " + option + " 时间: " + str);
         }
     }
 
     /**
      * 按 NAME 的“行”为单位输出：
-     * - 逐字节推进 timing；每消费 1 字节推进一次游标
+     * - 以 timing 条目（区间）为单位批量读取字节，仅在区间边界推进游标
+     * - 区间内用 ByteScan 按字（8 字节）查找 '\n'
      * - 行尾（读到 '\n' 或文件末尾）时的累计时间即为该行相对时间
      */
     public static void convert(Path namePath,
@@ -101,135 +149,482 @@ public class TypescriptToLog {
                                Path outPath,
                                Instant absoluteStart,
                                boolean rawMode) throws IOException {
+        convert(namePath, timingPath, outPath, absoluteStart, rawMode, true);
+    }
+
+    /** screen=false 时不使用画面模型（旧的逐行处理） */
+    public static void convert(Path namePath,
+                               Path timingPath,
+                               Path outPath,
+                               Instant absoluteStart,
+                               boolean rawMode,
+                               boolean screen) throws IOException {
 
-        Deque<TimingEntry> timing = loadTiming(timingPath);
-        TimingCursor cursor = new TimingCursor(timing);
+        TimingTable timing = TimingTable.load(timingPath, TimingParser.Unit.SECONDS);
 
         Files.createDirectories(outPath.getParent() == null ? Paths.get(".") : outPath.getParent());
-        try (InputStream dataIn = new BufferedInputStream(Files.newInputStream(namePath));
+        try (InputStream dataIn = Files.newInputStream(namePath);
              BufferedWriter writer = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
                      StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            convert(dataIn, timing, writer, absoluteStart, rawMode, screen);
+        }
+    }
 
-            ByteArrayOutputStream lineBuf = new ByteArrayOutputStream(4096);
-            double elapsedAtLineEnd = 0.0;
+    /**
+     * 时间范围版本：只输出绝对时间在 [from, to) 内的行（null 表示会话开头/结尾）。
+     * 用 TimingIndex（timing 的累计和索引，没有时自动生成）把时间换算成条目与字节位置，
+     * NAME 与 timing 都直接跳到该处；范围前约 LEAD_IN 字节只用于预热（未换行的部分、画面、过滤规则），不输出。
+     * 计时规则与 convert 相同；跳过部分的累计时间由索引的纳秒和恢复，与完整转换相比可能有舍入误差。
+     * 画面模型下，范围开始后才确定输出的行会照常输出。
+     */
+    public static void convert(Path namePath,
+                               Path timingPath,
+                               Path outPath,
+                               Instant absoluteStart,
+                               boolean rawMode,
+                               boolean screen,
+                               Instant from,
+                               Instant to) throws IOException {
 
-            while (true) {
-                int bi = dataIn.read();
-                if (bi == -1) {
-                    // 文件结束，若缓冲内有未换行的最后一行，也要输出
-                    if (lineBuf.size() > 0) {
-                        elapsedAtLineEnd = cursor.consumeBytes(0);
-                        emitLine(writer, lineBuf.toByteArray(), elapsedAtLineEnd, absoluteStart, rawMode);
-                        lineBuf.reset();
+        Files.createDirectories(outPath.getParent() == null ? Paths.get(".") : outPath.getParent());
+        try (TimingIndex idx = TimingIndex.open(timingPath, TimingParser.Unit.SECONDS);
+             FileChannel dataCh = FileChannel.open(namePath, StandardOpenOption.READ);
+             FileChannel timingCh = FileChannel.open(timingPath, StandardOpenOption.READ)) {
+            TimingIndex.Range range = idx.range(absoluteStart, from, to, LEAD_IN);
+            long dataEnd = dataCh.size();
+            long dataPos = range.dataOffset();
+            dataCh.position(dataPos);
+            timingCh.position(idx.timingOffsetOf(range.lead));
+
+            try (InputStream dataIn = new BufferedInputStream(Channels.newInputStream(dataCh));
+                 TimingParser tr = new TimingParser(Channels.newInputStream(timingCh), TimingParser.Unit.SECONDS);
+                 BufferedWriter writer = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                tr.resumeAt(idx.timingOffsetOf(range.lead), idx.timingLineOf(range.lead));
+
+                Gate gate = new Gate(writer);
+                BufferedWriter gated = new BufferedWriter(gate);
+                // 预热期间不计入指标（被丢弃的行与字节），进入范围后改为计入本次转换
+                ConversionMetrics.Probe probe = ConversionMetrics.discard();
+                Lines lines = lines(gated, absoluteStart, rawMode, screen, probe);
+                FollowClock clock = new FollowClock();
+                clock.elapsed = range.startNanos() / 1e9;
+                byte[] buf = new byte[64 * 1024];
+
+                for (int i = range.lead; i < range.end && tr.next(); i++) {
+                    if (i == range.first) {
+                        gated.flush(); // 预热期间的输出丢弃
+                        gate.open = true;
+                        probe.rebind(ConversionMetrics.current());
+                    }
+                    long count = tr.bytes();
+                    if (count == 0) {
+                        clock.defer(tr.delayNanos());
+                        continue;
+                    }
+                    // 与 convert 相同：NAME 读完时不再进入新的条目
+                    if (dataPos >= dataEnd) break;
+                    double elapsed = clock.enter(tr.delayNanos());
+                    while (count > 0) {
+                        int n = dataIn.readNBytes(buf, 0, (int) Math.min(count, buf.length));
+                        if (n == 0) break;
+                        lines.span(buf, 0, n, elapsed);
+                        dataPos += n;
+                        count -= n;
                     }
-                    break;
                 }
 
-                // 如果 timing 已枯竭，则无法再精确计时，直接结束
-                if (!cursor.hasMore() && cursor.bytesRemaining == 0) break;
+                // 范围一直到 timing 末尾：以 0 字节条目结尾时，与 convert 相同按累加后的时间再消费 1 个字节
+                if (!range.truncated() && clock.deferredCount > 0 && dataPos < dataEnd) {
+                    int n = dataIn.read(buf, 0, 1);
+                    if (n > 0) {
+                        lines.span(buf, 0, n, clock.enter(0));
+                        dataPos += n;
+                    }
+                }
+                // NAME 已读完：输出未换行的最后一行（范围内才输出）
+                if (gate.open && dataPos >= dataEnd) lines.finish(clock.elapsed); else lines.flushMetrics();
+                gated.flush();
+            }
+        }
+    }
+
+    // 预热期间丢弃写入内容的 Writer
+    private static final class Gate extends Writer {
+        final Writer target;
+        boolean open;
+
+        Gate(Writer target) { this.target = target; }
+
+        @Override public void write(char[] cbuf, int off, int len) throws IOException {
+            if (open) target.write(cbuf, off, len);
+        }
+
+        @Override public void write(String str, int off, int len) throws IOException {
+            if (open) target.write(str, off, len);
+        }
+
+        @Override public void flush() throws IOException {
+            if (open) target.flush();
+        }
 
-                elapsedAtLineEnd = cursor.consumeBytes(1);
-                lineBuf.write(bi);
+        @Override public void close() { }
+    }
 
-                if (bi == '\n') {
-                    byte[] rawLine = stripTrailingCR(lineBuf.toByteArray());
-                    emitLine(writer, rawLine, elapsedAtLineEnd, absoluteStart, rawMode);
-                    lineBuf.reset();
+    /**
+     * 流式版本（例如压缩包中的条目）：从 dataIn 读取 NAME 的内容，按 timing 输出到 writer。
+     */
+    public static void convert(InputStream dataIn,
+                               TimingTable timing,
+                               BufferedWriter writer,
+                               Instant absoluteStart,
+                               boolean rawMode) throws IOException {
+        convert(dataIn, timing, writer, absoluteStart, rawMode, true);
+    }
+
+    public static void convert(InputStream dataIn,
+                               TimingTable timing,
+                               BufferedWriter writer,
+                               Instant absoluteStart,
+                               boolean rawMode,
+                               boolean screen) throws IOException {
+        TimingCursor cursor = new TimingCursor(timing.cursor());
+        byte[] buf = new byte[64 * 1024];
+        int pos = 0, lim = 0;
+        long spanLeft = 0; // 当前区间剩余字节数
+        Lines lines = lines(writer, absoluteStart, rawMode, screen);
+
+        while (true) {
+            if (pos == lim) {
+                lim = Math.max(0, dataIn.read(buf, 0, buf.length));
+                pos = 0;
+                if (lim == 0) {
+                    // 文件结束，若缓冲内有未换行的最后一行，也要输出
+                    lines.finish(cursor.elapsed);
+                    break;
                 }
             }
+
+            if (spanLeft == 0) {
+                // 如果 timing 已枯竭，则无法再精确计时，直接结束
+                if (!cursor.hasMore()) break;
+                spanLeft = cursor.nextSpan();
+                // 剩下的全是 0 字节条目：与逐字节推进时相同，仍按当前时间消费这 1 个字节
+                if (spanLeft == 0) spanLeft = 1;
+            }
+
+            int n = (int) Math.min(spanLeft, lim - pos);
+            lines.span(buf, pos, n, cursor.elapsed);
+            spanLeft -= n;
+            pos += n;
         }
     }
 
-    // 读取 timing 文件为队列
-    private static Deque<TimingEntry> loadTiming(Path timingPath) throws IOException {
-        Deque<TimingEntry> q = new ArrayDeque<>();
-        try (BufferedReader br = Files.newBufferedReader(timingPath, StandardCharsets.UTF_8)) {
-            String ln;
-            while ((ln = br.readLine()) != null) {
-                ln = ln.trim();
-                if (ln.isEmpty() || ln.startsWith("#")) continue;
-                Matcher m = TIMING_LINE.matcher(ln);
-                if (!m.matches()) continue;
-                double delay = Double.parseDouble(m.group(1));
-                int bytes = Integer.parseInt(m.group(2));
-                q.addLast(new TimingEntry(delay, bytes));
+    /**
+     * 跟随模式：会话仍在录制（NAME 与 NAME.timing 持续追加）时增量转换，每处理完追加部分就刷新输出。
+     * idleTimeout 内两个文件都没有增长则结束（null 表示直到被中断）。
+     * 时间规则与 convert 相同：0 字节条目的 delay 在下一个有字节的条目到来时才累加。
+     */
+    public static void follow(Path namePath,
+                              Path timingPath,
+                              Path outPath,
+                              Instant absoluteStart,
+                              boolean rawMode,
+                              Duration idleTimeout) throws IOException, InterruptedException {
+        follow(namePath, timingPath, outPath, absoluteStart, rawMode, true, idleTimeout);
+    }
+
+    public static void follow(Path namePath,
+                              Path timingPath,
+                              Path outPath,
+                              Instant absoluteStart,
+                              boolean rawMode,
+                              boolean screen,
+                              Duration idleTimeout) throws IOException, InterruptedException {
+
+        Files.createDirectories(outPath.getParent() == null ? Paths.get(".") : outPath.getParent());
+        try (TailFollower tail = new TailFollower(namePath, timingPath);
+             BufferedWriter writer = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Lines lines = lines(writer, absoluteStart, rawMode, screen);
+            FollowClock clock = new FollowClock();
+            ConversionMetrics.current().live(absoluteStart);
+            tail.run(new TailFollower.Listener() {
+                @Override public void entry(long delayNanos, byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        clock.defer(delayNanos);
+                        return;
+                    }
+                    lines.span(b, off, len, clock.enter(delayNanos));
+                }
+                @Override public void caughtUp() throws IOException {
+                    writer.flush();
+                    lines.flushMetrics();
+                }
+            }, idleTimeout);
+
+            // 与 convert 相同：timing 以 0 字节条目结尾时，按累加后的时间再消费 1 个字节
+            if (clock.deferredCount > 0 && tail.dataRemains()) {
+                byte[] one = new byte[1];
+                lines.span(one, 0, tail.readRemaining(one, 0, 1), clock.enter(0));
             }
+            // timing 之外还有数据 = timing 已枯竭，与 convert 相同，丢弃未换行的部分
+            if (!tail.dataRemains()) lines.finish(clock.elapsed);
         }
-        return q;
     }
 
-    // timing 条目与游标
-    private static final class TimingEntry {
-        final double delay;
-        final int bytes;
-        TimingEntry(double delay, int bytes) { this.delay = delay; this.bytes = bytes; }
-    }
+    // timing 游标（在列式表上推进，累计时间仍按条目逐个以 double 相加）
     private static final class TimingCursor {
-        final Deque<TimingEntry> q;
+        final TimingTable.Cursor c;
         double elapsed = 0.0;
-        int bytesRemaining = 0;
 
-        TimingCursor(Deque<TimingEntry> q) { this.q = q; }
-        boolean hasMore() { return !q.isEmpty(); }
+        TimingCursor(TimingTable.Cursor c) { this.c = c; }
+        boolean hasMore() { return c.hasNext(); }
 
-        // 消费 n 个字节，返回当前累计相对时间
+        // 进入下一个有字节的区间，返回其字节数（0 字节条目只累加 delay）
         // 规则：进入新块时先加 delay，再消费该块 bytes
-        double consumeBytes(int n) {
-            int left = n;
-            while (left > 0) {
-                if (bytesRemaining == 0) {
-                    if (q.isEmpty()) break;
-                    TimingEntry e = q.removeFirst();
-                    elapsed += e.delay;
-                    bytesRemaining = e.bytes;
-                }
-                int step = Math.min(bytesRemaining, left);
-                bytesRemaining -= step;
-                left -= step;
+        long nextSpan() {
+            long n = 0;
+            while (n == 0 && c.next()) {
+                elapsed += c.delayNanos() / 1e9;
+                n = c.bytes();
             }
+            return n;
+        }
+    }
+
+    // 跟随模式的计时：0 字节条目先记下，等到有字节的条目时按顺序逐个累加（与 TimingCursor 结果一致）
+    private static final class FollowClock {
+        double elapsed = 0.0;
+        long[] deferred = new long[16];
+        int deferredCount;
+
+        void defer(long delayNanos) {
+            if (deferredCount == deferred.length) deferred = Arrays.copyOf(deferred, deferredCount * 2);
+            deferred[deferredCount++] = delayNanos;
+        }
+
+        double enter(long delayNanos) {
+            for (int i = 0; i < deferredCount; i++) elapsed += deferred[i] / 1e9;
+            deferredCount = 0;
+            elapsed += delayNanos / 1e9;
             return elapsed;
         }
     }
 
-    // 行尾 CRLF -> 去掉 CR
-    private static byte[] stripTrailingCR(byte[] arr) {
-        if (arr.length >= 2 && arr[arr.length - 2] == '\r' && arr[arr.length - 1] == '\n') {
-            return Arrays.copyOf(arr, arr.length - 2);
+    // 把各区间的字节转成日志行
+    private interface Lines {
+        // buf[off, off+len) 的字节都属于累计时间为 elapsed 的区间
+        void span(byte[] buf, int off, int len, double elapsed) throws IOException;
+
+        // 数据结束：输出尚未输出的部分
+        void finish(double elapsed) throws IOException;
+
+        // 把指标（ConversionMetrics）的中间结果提交上去（跟随模式追上时）
+        void flushMetrics();
+    }
+
+    private static Lines lines(BufferedWriter writer, Instant start, boolean rawMode, boolean screen) {
+        return lines(writer, start, rawMode, screen, ConversionMetrics.current().probe(null));
+    }
+
+    private static Lines lines(BufferedWriter writer, Instant start, boolean rawMode, boolean screen,
+                               ConversionMetrics.Probe probe) {
+        return screen ? new ScreenSession(writer, start, rawMode, probe) : new LineSession(writer, start, rawMode, probe);
+    }
+
+    /**
+     * 作为 ConvertEngine 的输出（全量日志）：与 convert 的结果相同。
+     * 计时规则与 follow 相同（0 字节条目的 delay 在下一个有字节的条目到来时才累加）。
+     */
+    public static ConvertEngine.Sink sink(BufferedWriter writer,
+                                          Instant absoluteStart,
+                                          boolean rawMode,
+                                          boolean screen,
+                                          ConversionMetrics.Probe probe) {
+        Lines lines = lines(writer, absoluteStart, rawMode, screen, probe);
+        FollowClock clock = new FollowClock();
+        return new ConvertEngine.Sink() {
+            @Override public void entry(long delayNanos, long declared, byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    clock.defer(delayNanos);
+                    return;
+                }
+                lines.span(b, off, len, clock.enter(delayNanos));
+            }
+            @Override public void more(byte[] b, int off, int len) throws IOException {
+                lines.span(b, off, len, clock.elapsed);
+            }
+            @Override public void finish(byte[] rest, int restLen) throws IOException {
+                // 与 convert 相同：timing 以 0 字节条目结尾时，按累加后的时间再消费 1 个字节
+                if (clock.deferredCount > 0 && restLen > 0) {
+                    lines.span(rest, 0, 1, clock.enter(0));
+                    restLen--;
+                }
+                // timing 之外还有数据 = timing 已枯竭，丢弃未换行的部分
+                if (restLen == 0) lines.finish(clock.elapsed);
+            }
+        };
+    }
+
+    // 经画面模型还原后输出（行的内容即终端上显示的样子）
+    private static final class ScreenSession implements Lines {
+        final TerminalScreen screen;
+        final LineFilter.Matcher filter;
+        final ConversionMetrics.Probe probe;
+
+        ScreenSession(BufferedWriter writer, Instant start, boolean rawMode, ConversionMetrics.Probe probe) {
+            TimestampRenderer stamps = new TimestampRenderer(DEFAULT_ZONE, '/', false);
+            filter = LineFilter.standard(true).matcher();
+            this.probe = probe.filter(filter);
+            screen = new TerminalScreen((row, elapsed) -> emitRow(writer, row, elapsed, start, stamps, filter, rawMode, probe));
+        }
+
+        // 画面模型的处理计入清理时间（其中确定行后的写出时间除外）
+        @Override public void span(byte[] buf, int off, int len, double elapsed) throws IOException {
+            probe.input(len, elapsed);
+            long t0 = probe.sanitizeStart();
+            screen.feed(buf, off, len, elapsed);
+            probe.sanitizeEnd(t0);
+        }
+
+        @Override public void finish(double elapsed) throws IOException {
+            screen.finish(elapsed);
+            filter.flush();
+            probe.flush();
+        }
+
+        @Override public void flushMetrics() {
+            probe.flush();
+        }
+    }
+
+    // 按行切分并输出（未换行的部分跨区间保留）
+    private static final class LineSession implements Lines {
+        final BufferedWriter writer;
+        final Instant start;
+        final boolean rawMode;
+        final TimestampRenderer stamps = new TimestampRenderer(DEFAULT_ZONE, '/', false);
+        final LineFilter.Matcher filter = LineFilter.standard(true).matcher();
+        final ConversionMetrics.Probe probe;
+        final LineBuffer lineBuf = new LineBuffer(4096);
+
+        LineSession(BufferedWriter writer, Instant start, boolean rawMode, ConversionMetrics.Probe probe) {
+            this.writer = writer;
+            this.start = start;
+            this.rawMode = rawMode;
+            this.probe = probe.filter(filter);
+        }
+
+        @Override public void span(byte[] buf, int off, int len, double elapsed) throws IOException {
+            probe.input(len, elapsed);
+            int p = off, end = off + len;
+            while (p < end) {
+                int nl = ByteScan.indexOf(buf, p, end, (byte) '\n');
+                if (nl < 0) {
+                    lineBuf.append(buf, p, end - p);
+                    break;
+                }
+                if (lineBuf.len == 0) {
+                    emitLine(writer, buf, p, stripTrailingCR(buf, p, nl + 1 - p), elapsed, start, stamps, filter, rawMode, probe);
+                } else {
+                    lineBuf.append(buf, p, nl + 1 - p);
+                    emitLine(writer, lineBuf.data, 0, stripTrailingCR(lineBuf.data, 0, lineBuf.len),
+                            elapsed, start, stamps, filter, rawMode, probe);
+                    lineBuf.len = 0;
+                }
+                p = nl + 1;
+            }
+        }
+
+        @Override public void finish(double elapsed) throws IOException {
+            if (lineBuf.len > 0) {
+                emitLine(writer, lineBuf.data, 0, lineBuf.len, elapsed, start, stamps, filter, rawMode, probe);
+                lineBuf.len = 0;
+            }
+            filter.flush();
+            probe.flush();
+        }
+
+        @Override public void flushMetrics() {
+            probe.flush();
+        }
+    }
+
+    // 未换行的行缓冲（可直接访问底层数组）
+    private static final class LineBuffer {
+        byte[] data;
+        int len;
+
+        LineBuffer(int cap) { data = new byte[cap]; }
+
+        void append(byte[] src, int off, int n) {
+            if (len + n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, len + n));
+            System.arraycopy(src, off, data, len, n);
+            len += n;
         }
-        return arr;
+    }
+
+    // 行尾 CRLF -> 去掉 CR（返回去掉后的长度）
+    private static int stripTrailingCR(byte[] arr, int off, int len) {
+        if (len >= 2 && arr[off + len - 2] == '\r' && arr[off + len - 1] == '\n') {
+            return len - 2;
+        }
+        return len;
     }
 
     // 输出一行：处理→过滤→格式化→写入
     private static void emitLine(BufferedWriter writer,
-                                 byte[] rawLine,
+                                 byte[] rawLine, int off, int len,
                                  double elapsedAtEnd,
                                  Instant start,
-                                 boolean rawMode) throws IOException {
+                                 TimestampRenderer stamps,
+                                 LineFilter.Matcher filter,
+                                 boolean rawMode,
+                                 ConversionMetrics.Probe probe) throws IOException {
 
-        if (rawLine.length == 0) return;
-        String s = new String(rawLine, StandardCharsets.UTF_8);
+        if (len == 0) return;
+        long t0 = probe.sanitizeStart();
+        String s = new String(rawLine, off, len, StandardCharsets.UTF_8);
 
         // 退格/回车覆盖优先：保留覆盖结果
         s = applyBackspaceAndCR(s);
         // 去 ANSI
         s = stripAnsi(s);
+        probe.sanitizeEnd(t0);
+        emitRow(writer, s, elapsedAtEnd, start, stamps, filter, rawMode, probe);
+    }
 
-        // 行级过滤：欢迎语/Vim 屏幕/框线密集/空白
-        if (shouldDropLineStrict(s)) return;
+    // 过滤→格式化→写入（s 为已还原的一行）
+    private static void emitRow(BufferedWriter writer,
+                                String s,
+                                double elapsedAtEnd,
+                                Instant start,
+                                TimestampRenderer stamps,
+                                LineFilter.Matcher filter,
+                                boolean rawMode,
+                                ConversionMetrics.Probe probe) throws IOException {
+
+        // 行级过滤：欢迎语/Vim 屏幕/框线密集/空白（规则见 LineFilter，可用 -Dtypescript.filter=<规则文件> 替换）
+        if (filter.drop(s)) return;
 
         // 单行化（不 trim、不压缩空格；仅把 \r/\n 变成空格以保持一行）
         String content = rawMode ? toOneLinePreserveSpacesRaw(s) : sanitizeToOneLinePreserveSpaces(s);
-        if (content.length() == 0) return;
+        if (content.length() == 0) {
+            probe.skipped();
+            return;
+        }
 
         // 时间列
-        String rel = formatRelHMS(elapsedAtEnd);
-        String abs = formatAbs(start, elapsedAtEnd);
-
-        writer.write(rel); writer.write(',');
-        writer.write(abs); writer.write(',');
+        long t0 = probe.writeStart();
+        stamps.writeRel(writer, elapsedAtEnd); writer.write(',');
+        stamps.writeAbs(writer, start.plus((long)(elapsedAtEnd * 1000.0), ChronoUnit.MILLIS)); writer.write(',');
         writer.write(FIXED_TAG); writer.write(',');
         writer.write(content);
         writer.write(System.lineSeparator());
+        probe.writeEnd(t0);
+        probe.emitted();
     }
 
     // ====== 内容处理/过滤 ======
@@ -284,44 +679,4 @@ public class TypescriptToLog {
         String noCtl = s.replaceAll("[\\p{Cntrl}&&[^\\n\\r\\t]]", "");
         return noCtl.replace('\r', ' ').replace('\n', ' ');
     }
-
-    // 行级严格过滤：欢迎语/Vim/框线密集/空白
-    private static boolean shouldDropLineStrict(String s) {
-        if (s == null) return true;
-        // 用于判断的临时变量可以 trim，但不影响实际输出（我们对内容不 trim）
-        String t = s.trim();
-        if (t.isEmpty()) return true;
-
-        if (WELCOME_PAT.matcher(t).find()) return true;
-        if (VIM_MODE.matcher(t).find()) return true;
-        if (VIM_FILE_NEW.matcher(t).find()) return true;
-        if (VIM_FILE_STATS.matcher(t).find()) return true;
-        if (TILDE_LINE.matcher(t).matches()) return true;
-
-        int boxChars = countMatches(BOX_DRAW, t);
-        if (boxChars > 0 && (double) boxChars / Math.max(1, t.length()) > 0.3) return true;
-
-        return false;
-    }
-
-    private static int countMatches(Pattern p, String s) {
-        int c = 0;
-        Matcher m = p.matcher(s);
-        while (m.find()) c += m.group().length();
-        return c;
-    }
-
-    // ====== 时间格式化 ======
-    private static String formatRelHMS(double elapsedSec) {
-        long total = (long)Math.floor(elapsedSec);
-        long h = total / 3600;
-        long m = (total % 3600) / 60;
-        long s = total % 60;
-        return String.format("%02d:%02d:%02d", h, m, s);
-    }
-    private static String formatAbs(Instant start, double elapsedSec) {
-        Instant ts = start.plus((long)(elapsedSec * 1000.0), ChronoUnit.MILLIS);
-        return ABS_FMT.format(ZonedDateTime.ofInstant(ts, DEFAULT_ZONE));
-    }
 }
-
@@ -0,0 +1,143 @@
+package com.demo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 実際の録画をベンチマークに使うための匿名化。文字単位の置き換えでバイト長を変えないので、timing はそのまま使える。
+ * <ul>
+ *   <li>英数字の語は、フィルタ規則（LineFilter）に出てくる語とよく使うコマンド名を残し、ほかは同じ長さの
+ *       別の綴り（英字は同じ大小の英字、数字は数字）に置き換える。同じ語は毎回同じ綴りになるので、
+ *       プロンプトの繰り返しは保たれる。制御シーケンスの引数は変えない</li>
+ *   <li>マルチバイト文字は同じバイト長の固定の文字に置き換える。罫線・記号（U+2000〜U+2BFF）は残す</li>
+ *   <li>ESC の制御シーケンスは形を保ち、OSC（ウィンドウタイトル）の中身だけ置き換える</li>
+ * </ul>
+ */
+final class Anonymizer {
+
+    private static final String[] KEEP_WORDS = {
+        "root", "admin", "user", "bash", "sh", "zsh", "sudo", "su", "ls", "cd", "cat", "less", "more", "tail", "head",
+        "grep", "vi", "vim", "top", "ps", "df", "du", "echo", "exit", "mysql", "MariaDB", "PS", "yum", "apt", "dnf",
+        "systemctl", "total", "INSERT", "VISUAL", "REPLACE", "Last", "login", "from", "Welcome", "to",
+    };
+    private static final byte[] WIDE2 = "é".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WIDE3 = "あ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WIDE4 = "😀".getBytes(StandardCharsets.UTF_8);
+
+    private final Set<String> keep = new HashSet<>();
+    private final long key;
+
+    Anonymizer(long key) {
+        this.key = key;
+        for (String w : KEEP_WORDS) keep.add(w);
+        for (String rules : new String[] {LineFilter.WELCOME_RULES, LineFilter.SCREEN_RULES}) {
+            for (String w : rules.split("[^A-Za-z]+")) {
+                if (w.length() > 1) keep.add(w);
+            }
+        }
+    }
+
+    /** 匿名化して書き出す：java com.demo.Anonymizer <NAME> <出力先 NAME>（timing もコピーする） */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("用法: java com.demo.Anonymizer <NAME> <出力先 NAME>");
+            System.exit(2);
+        }
+        Path in = Paths.get(args[0]), out = Paths.get(args[1]);
+        Files.write(out, new Anonymizer(0).anonymize(Files.readAllBytes(in)));
+        Files.copy(in.resolveSibling(in.getFileName() + ".timing"), out.resolveSibling(out.getFileName() + ".timing"));
+    }
+
+    byte[] anonymize(byte[] src) {
+        byte[] dst = src.clone();
+        int n = src.length;
+        int i = 0;
+        while (i < n) {
+            int c = src[i] & 0xFF;
+            if (c == 0x1B && i + 1 < n) {
+                i = escape(src, dst, i);
+            } else if (isWordChar(c)) {
+                int j = i;
+                while (j < n && isWordChar(src[j] & 0xFF)) j++;
+                word(src, dst, i, j);
+                i = j;
+            } else if (c >= 0xC0) {
+                i = wide(src, dst, i);
+            } else {
+                i++;
+            }
+        }
+        return dst;
+    }
+
+    // ESC で始まるシーケンス。CSI はそのまま、OSC は終端（BEL / ESC \）まで中身を置き換える
+    private int escape(byte[] src, byte[] dst, int i) {
+        int n = src.length;
+        int k = src[i + 1] & 0xFF;
+        if (k == '[') {
+            int j = i + 2;
+            while (j < n && ((src[j] & 0xFF) < 0x40 || (src[j] & 0xFF) > 0x7E)) j++;
+            return Math.min(n, j + 1);
+        }
+        if (k == ']') {
+            int j = i + 2;
+            while (j < n && src[j] >= '0' && src[j] <= '9') j++; // 0; などの番号は残す
+            int from = j;
+            while (j < n && src[j] != 0x07 && src[j] != 0x1B) j++;
+            int p = from;
+            while (p < j) {
+                int c = src[p] & 0xFF;
+                if (isWordChar(c)) {
+                    int q = p;
+                    while (q < j && isWordChar(src[q] & 0xFF)) q++;
+                    word(src, dst, p, q);
+                    p = q;
+                } else if (c >= 0xC0) {
+                    p = Math.min(j, wide(src, dst, p));
+                } else {
+                    p++;
+                }
+            }
+            return j;
+        }
+        return i + 2;
+    }
+
+    private void word(byte[] src, byte[] dst, int from, int to) {
+        String w = new String(src, from, to - from, StandardCharsets.US_ASCII);
+        if (keep.contains(w) || keep.contains(w.toLowerCase(Locale.ROOT))) return;
+        long h = w.hashCode() ^ key;
+        for (int p = from; p < to; p++) {
+            h = h * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+            int r = (int) (h >>> 33);
+            int c = src[p];
+            dst[p] = (byte) (c <= '9' ? '0' + r % 10 : (c >= 'a' ? 'a' : 'A') + r % 26);
+        }
+    }
+
+    // UTF-8 の1文字。記号・罫線は残し、そのほかは同じ長さの固定の文字にする
+    private static int wide(byte[] src, byte[] dst, int i) {
+        int c = src[i] & 0xFF;
+        int len = c >= 0xF0 ? 4 : c >= 0xE0 ? 3 : 2;
+        if (i + len > src.length) return i + 1;
+        for (int k = 1; k < len; k++) {
+            if ((src[i + k] & 0xC0) != 0x80) return i + 1; // 不正な並びは触らない
+        }
+        if (len == 3) {
+            int cp = ((c & 0x0F) << 12) | ((src[i + 1] & 0x3F) << 6) | (src[i + 2] & 0x3F);
+            if (cp >= 0x2000 && cp < 0x2C00) return i + 3;
+        }
+        System.arraycopy(len == 2 ? WIDE2 : len == 3 ? WIDE3 : WIDE4, 0, dst, i, len);
+        return i + len;
+    }
+
+    private static boolean isWordChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
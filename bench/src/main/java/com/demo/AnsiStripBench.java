@@ -0,0 +1,55 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 制御シーケンスの除去。どの方式も入力全体を、その変換器が実際に渡す単位（行または timing の区間）で処理する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnsiStripBench {
+
+    /** TypescriptToLog / Ts2Log：CSI の正規表現1本、行ごと */
+    @Benchmark
+    public void regexCsi(BenchInput in, Blackhole bh) {
+        java.util.regex.Matcher m = LegacyStages.CSI.matcher("");
+        for (String s : in.rawLines) bh.consume(m.reset(s).replaceAll(""));
+    }
+
+    /** TypescriptToLog2 の stripAnsi：正規表現3回、行ごと */
+    @Benchmark
+    public void stripAnsi(BenchInput in, Blackhole bh) throws Throwable {
+        for (String s : in.rawLines) bh.consume((String) LegacyStages.STRIP_ANSI.invokeExact(s));
+    }
+
+    /** jp-1 版の AnsiStripper：デコード済みの区間ごと（状態は区間をまたぐ） */
+    @Benchmark
+    public void ansiStripperString(BenchInput in, Blackhole bh) throws Throwable {
+        Object stripper = (Object) LegacyStages.JP1_STRIPPER_NEW.invokeExact();
+        for (String s : in.chunks) bh.consume((String) LegacyStages.JP1_STRIPPER_PROCESS.invokeExact(stripper, s));
+    }
+
+    /** jp 版の AnsiStripper：バイトのまま除去してからデコード、区間ごと */
+    @Benchmark
+    public void ansiStripperBytes(BenchInput in, Blackhole bh) throws Throwable {
+        Object stripper = (Object) LegacyStages.JP_STRIPPER_NEW.invokeExact(true);
+        for (int i = 0; i < in.chunkOff.length; i++) {
+            int n = (int) LegacyStages.JP_STRIPPER_PROCESS.invokeExact(stripper, in.data, in.chunkOff[i], in.chunkLen[i]);
+            bh.consume(n);
+        }
+        bh.consume((char[]) LegacyStages.JP_STRIPPER_CHARS.invokeExact(stripper));
+    }
+
+    /** CommandOnlyExtractor の TerminalSanitizer：デコードと除去（バックスペース・CR も含む）を1回の走査で、区間ごと */
+    @Benchmark
+    public void sanitize(BenchInput in, Blackhole bh) {
+        TerminalSanitizer sanitizer = new TerminalSanitizer();
+        for (int i = 0; i < in.chunkOff.length; i++) bh.consume(sanitizer.sanitize(in.data, in.chunkOff[i], in.chunkLen[i]));
+    }
+}
@@ -0,0 +1,42 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * バックスペースと CR 上書きの適用。行ごとの文字列処理と、画面モデル（TerminalScreen）で全体を再生する場合。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackspaceCrBench {
+
+    /** TypescriptToLog2 の applyBackspaceAndCR（--no-screen） */
+    @Benchmark
+    public void applyBackspaceAndCR(BenchInput in, Blackhole bh) throws Throwable {
+        for (String s : in.rawLines) bh.consume((String) LegacyStages.APPLY_BACKSPACE_CR.invokeExact(s));
+    }
+
+    /** TerminalSanitizer.sanitize(String)：制御シーケンスの除去も同じ走査で行う */
+    @Benchmark
+    public void sanitizer(BenchInput in, Blackhole bh) {
+        TerminalSanitizer sanitizer = new TerminalSanitizer();
+        for (String s : in.rawLines) bh.consume(sanitizer.sanitize(s));
+    }
+
+    /** TypescriptToLog2 の既定：TerminalScreen に timing の区間ごとに流す */
+    @Benchmark
+    public void screen(BenchInput in, Blackhole bh) throws Exception {
+        TerminalScreen screen = new TerminalScreen((row, elapsed) -> bh.consume(row));
+        double elapsed = 0;
+        for (int i = 0; i < in.chunkOff.length; i++) {
+            elapsed += in.delayNanos[i] / 1e9;
+            screen.feed(in.data, in.chunkOff[i], in.chunkLen[i], elapsed);
+        }
+        screen.finish(elapsed);
+    }
+}
@@ -0,0 +1,36 @@
+package com.demo;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar の入口。JMH の引数はそのまま使える（-p input=..., -f, -wi など）。
+ * -prof を指定しなければ GC の profiler（割り当て量 gc.alloc.rate.norm と GC 回数）を付け、
+ * -rf／-rff を指定しなければ結果を target/jmh-result.json に書く。
+ */
+public final class Bench {
+
+    private Bench() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        if (cli.shouldList()) {
+            new Runner(cli).list();
+            return;
+        }
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cli);
+        if (cli.getProfilers().isEmpty()) opts.addProfiler(GCProfiler.class);
+        if (!cli.getResultFormat().hasValue() && !cli.getResult().hasValue()) {
+            opts.resultFormat(ResultFormatType.JSON).result("target/jmh-result.json");
+        }
+        new Runner(opts.build()).run();
+    }
+}
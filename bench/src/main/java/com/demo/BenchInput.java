@@ -0,0 +1,95 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ベンチマークの入力。input=synthetic（既定）なら SessionGenerator で作り、それ以外は typescript のパスとみなして
+ * 隣の .timing と一緒に読み、Anonymizer を通してから使う（-p input=/path/to/NAME）。
+ * 各段が受け取る形（timing の区間、区間ごとの文字列、行）は Setup で切り出しておき、計測には含めない。
+ */
+@State(Scope.Benchmark)
+public class BenchInput {
+
+    @Param({"synthetic"})
+    public String input;
+
+    byte[] data;
+    byte[] timing;
+    int[] chunkOff, chunkLen; // timing の各区間が data のどこか
+    long[] delayNanos;
+    String[] chunks;          // 区間ごとに UTF-8 でデコードしたもの（制御シーケンスを含む）
+    String[] rawLines;        // '\n' で分けた行（末尾の CR、制御シーケンスを含む）
+    String[] cleanLines;      // TerminalSanitizer を通した空でない行
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        if ("synthetic".equals(input)) {
+            ByteArrayOutputStream d = new ByteArrayOutputStream(5 << 20), t = new ByteArrayOutputStream(1 << 20);
+            SessionGenerator.generate(new SessionGenerator.Options().seed(42).size(4 << 20), d, t, null,
+                    ZonedDateTime.of(2024, 1, 1, 9, 0, 0, 0, ZoneId.of("Asia/Tokyo")));
+            data = d.toByteArray();
+            timing = t.toByteArray();
+        } else {
+            Path ts = Paths.get(input);
+            data = new Anonymizer(0).anonymize(Files.readAllBytes(ts));
+            timing = Files.readAllBytes(ts.resolveSibling(ts.getFileName() + ".timing"));
+        }
+        slice();
+    }
+
+    private void slice() throws IOException {
+        TimingTable t = TimingTable.read(timingParser(), 1 << 16);
+        int n = t.size();
+        chunkOff = new int[n];
+        chunkLen = new int[n];
+        delayNanos = new long[n];
+        chunks = new String[n];
+        int off = 0;
+        for (int i = 0; i < n; i++) {
+            int len = Math.min(t.bytes(i), data.length - off);
+            chunkOff[i] = off;
+            chunkLen[i] = len;
+            delayNanos[i] = t.delayNanos(i);
+            chunks[i] = new String(data, off, len, StandardCharsets.UTF_8);
+            off += len;
+        }
+
+        List<String> raw = new ArrayList<>();
+        List<String> clean = new ArrayList<>();
+        TerminalSanitizer sanitizer = new TerminalSanitizer();
+        int from = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == '\n') {
+                if (i > from) {
+                    String line = new String(data, from, i - from, StandardCharsets.UTF_8);
+                    raw.add(line);
+                    String s = sanitizer.sanitize(line);
+                    if (!s.isBlank()) clean.add(s);
+                }
+                from = i + 1;
+            }
+        }
+        rawLines = raw.toArray(new String[0]);
+        cleanLines = clean.toArray(new String[0]);
+    }
+
+    TimingParser timingParser() {
+        return new TimingParser(new ByteArrayInputStream(timing), TimingParser.Unit.SECONDS);
+    }
+}
@@ -0,0 +1,107 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 変換器ごとの全体（timing の解析から書き込みまで）。出力は捨てる（書き込み先の違いは WriterBench）。
+ * ストリーム版のあるものはメモリ上の入力から、Path 版しかないものは一時ファイル（ページキャッシュに載った状態）から読む。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertBench {
+
+    @Param({"cmd", "cmdB2", "ts2", "ts2NoScreen", "legacy", "ts2log", "jp", "jp1"})
+    public String variant;
+
+    private static final ZoneId ZONE = ZoneId.of("Asia/Tokyo");
+    private static final ZonedDateTime START = ZonedDateTime.of(2024, 1, 1, 9, 0, 0, 0, ZONE);
+
+    private Path dir, data, timing;
+    private MethodHandle legacyConvert, ts2logMain;
+    private Object legacyOptions;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup(BenchInput in) throws Throwable {
+        dir = Files.createTempDirectory("bench-convert");
+        data = Files.write(dir.resolve("session"), in.data);
+        timing = Files.write(dir.resolve("session.timing"), in.timing);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        // デフォルトパッケージのクラスは名前で引く
+        Class<?> legacy = Class.forName("TypescriptToLog");
+        Class<?> options = Class.forName("TypescriptToLog$Options");
+        Class<?> unit = Class.forName("TypescriptToLog$Unit");
+        legacyConvert = lookup.findStatic(legacy, "convertToWriter",
+                MethodType.methodType(void.class, File.class, File.class, options, Writer.class));
+        legacyOptions = options.getConstructor().newInstance();
+        options.getField("start").set(legacyOptions, START.toOffsetDateTime());
+        options.getField("stripAnsi").set(legacyOptions, true);
+        options.getField("stripCr").set(legacyOptions, true);
+        options.getField("unit").set(legacyOptions, unit.getField("SECONDS").get(null));
+        ts2logMain = lookup.findStatic(Class.forName("Ts2Log"), "main", MethodType.methodType(void.class, String[].class));
+
+        // Ts2Log は標準出力に書くので捨てる
+        stdout = System.out;
+        if ("ts2log".equals(variant)) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public void convert(BenchInput in) throws Throwable {
+        try (BufferedWriter out = new BufferedWriter(Writer.nullWriter(), 1 << 16)) {
+            switch (variant) {
+                case "cmd":
+                    CommandOnlyExtractor.extract(new ByteArrayInputStream(in.data), in.timingParser(), out, START);
+                    break;
+                case "cmdB2":
+                    CommandOnlyExtractor_b2.extract(new ByteArrayInputStream(in.data), in.timingParser(), out, START);
+                    break;
+                case "ts2":
+                case "ts2NoScreen":
+                    com.demo.test01.TypescriptToLog.convert(new ByteArrayInputStream(in.data),
+                            TimingTable.read(in.timingParser(), in.timing.length / 10), out,
+                            START.toInstant(), false, "ts2".equals(variant));
+                    break;
+                case "legacy":
+                    legacyConvert.invoke(timing.toFile(), data.toFile(), legacyOptions, (Writer) out);
+                    break;
+                case "ts2log":
+                    ts2logMain.invoke((Object) new String[] {"--unit", "seconds", "--strip-ansi", "--strip-cr",
+                            "--start", START.toOffsetDateTime().toString(), timing.toString(), data.toString()});
+                    break;
+                case "jp":
+                    com.demo.test04.TypescriptToLog.convert(data, timing, out, ZONE, START.toInstant(), "AAAA", true);
+                    break;
+                case "jp1":
+                    com.demo.test04b.TypescriptToLog.convert(data, timing, out, ZONE, START.toInstant(), "AAAA", true);
+                    break;
+                default:
+                    throw new IllegalArgumentException(variant);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        System.setOut(stdout);
+        try (var files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
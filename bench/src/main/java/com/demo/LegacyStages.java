@@ -0,0 +1,58 @@
+package com.demo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.regex.Pattern;
+
+/**
+ * 各変換器の中に private で閉じている段を、そのまま呼べるようにしたもの（MethodHandle）。
+ * 本体を書き換えずに、実際に使われているコードを測るため。
+ */
+final class LegacyStages {
+
+    private LegacyStages() {}
+
+    /** TypescriptToLog2（com.demo.test01）の stripAnsi：正規表現3回の置換 */
+    static final MethodHandle STRIP_ANSI;
+    /** TypescriptToLog2 の applyBackspaceAndCR */
+    static final MethodHandle APPLY_BACKSPACE_CR;
+    /** send/TypescriptToLog -jp-1 の AnsiStripper：new AnsiStripper()、process(String) */
+    static final MethodHandle JP1_STRIPPER_NEW, JP1_STRIPPER_PROCESS;
+    /** send/TypescriptToLog -jp の AnsiStripper：new AnsiStripper(boolean)、process(byte[], int, int)、chars() */
+    static final MethodHandle JP_STRIPPER_NEW, JP_STRIPPER_PROCESS, JP_STRIPPER_CHARS;
+    /** TypescriptToLog（デフォルトパッケージ）と Ts2Log が使う CSI の正規表現 */
+    static final Pattern CSI;
+
+    static {
+        try {
+            Class<?> ts2 = com.demo.test01.TypescriptToLog.class;
+            MethodHandles.Lookup l2 = MethodHandles.privateLookupIn(ts2, MethodHandles.lookup());
+            STRIP_ANSI = l2.findStatic(ts2, "stripAnsi", MethodType.methodType(String.class, String.class));
+            APPLY_BACKSPACE_CR = l2.findStatic(ts2, "applyBackspaceAndCR", MethodType.methodType(String.class, String.class));
+
+            Class<?> jp1 = Class.forName("com.demo.test04b.TypescriptToLog$AnsiStripper");
+            MethodHandles.Lookup l1 = MethodHandles.privateLookupIn(jp1, MethodHandles.lookup());
+            JP1_STRIPPER_NEW = l1.findConstructor(jp1, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            JP1_STRIPPER_PROCESS = l1.findVirtual(jp1, "process", MethodType.methodType(String.class, String.class))
+                    .asType(MethodType.methodType(String.class, Object.class, String.class));
+
+            Class<?> jp = Class.forName("com.demo.test04.TypescriptToLog$AnsiStripper");
+            MethodHandles.Lookup l0 = MethodHandles.privateLookupIn(jp, MethodHandles.lookup());
+            JP_STRIPPER_NEW = l0.findConstructor(jp, MethodType.methodType(void.class, boolean.class))
+                    .asType(MethodType.methodType(Object.class, boolean.class));
+            JP_STRIPPER_PROCESS = l0.findVirtual(jp, "process", MethodType.methodType(int.class, byte[].class, int.class, int.class))
+                    .asType(MethodType.methodType(int.class, Object.class, byte[].class, int.class, int.class));
+            JP_STRIPPER_CHARS = l0.findVirtual(jp, "chars", MethodType.methodType(char[].class))
+                    .asType(MethodType.methodType(char[].class, Object.class));
+
+            Class<?> legacy = Class.forName("TypescriptToLog");
+            MethodHandle ansi = MethodHandles.privateLookupIn(legacy, MethodHandles.lookup())
+                    .findStatic(legacy, "ansiPattern", MethodType.methodType(Pattern.class));
+            CSI = (Pattern) ansi.invoke();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 行の破棄判定（旧 shouldDropLineStrict。今は全変換器が LineFilter の規則を共有する）。
+ * 判定器は変換1本につき1個なので、呼び出しごとに作る。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineFilterBench {
+
+    @Param({"true", "false"})
+    public boolean welcome; // MOTD の規則を含めるか（TypescriptToLog2 は true、jp 版は false）
+
+    @Benchmark
+    public int drop(BenchInput in) {
+        LineFilter.Matcher filter = LineFilter.standard(welcome).matcher();
+        int dropped = 0;
+        for (String s : in.cleanLines) {
+            if (filter.drop(s)) dropped++;
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,51 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * プロンプトとコマンドの切り分け（CommandOnlyExtractor の RowFilter が行ごとに呼ぶ）。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PromptBench {
+
+    /** PromptRecognizer 以前の PROMPT_WITH_CMD（比較用） */
+    private static final Pattern PROMPT_WITH_CMD = Pattern.compile("^(.*[$#>%]\\s)(\\S.*)$");
+
+    /** PromptRecognizer：形の照合と、覚えたプロンプトのリテラル比較 */
+    @Benchmark
+    public int recognizer(BenchInput in) {
+        PromptRecognizer prompts = new PromptRecognizer();
+        int hits = 0;
+        for (String s : in.cleanLines) {
+            if (prompts.split(s) >= 0) hits++;
+        }
+        return hits;
+    }
+
+    /** 形の照合なしで、後ろからの走査だけ */
+    @Benchmark
+    public int generic(BenchInput in) {
+        int hits = 0;
+        for (String s : in.cleanLines) {
+            if (PromptRecognizer.splitGeneric(s) >= 0) hits++;
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int legacyRegex(BenchInput in) {
+        java.util.regex.Matcher m = PROMPT_WITH_CMD.matcher("");
+        int hits = 0;
+        for (String s : in.cleanLines) {
+            if (m.reset(s).matches()) hits++;
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,57 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 行頭の時刻（REL,ABS）の整形。timing の各区間の累計時刻を1つずつ整形する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampBench {
+
+    private static final ZoneId ZONE = ZoneId.of("Asia/Tokyo");
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+    private static final DateTimeFormatter ABS = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZONE);
+
+    /** TimestampRenderer：秒が変わったときだけ整形し、あとはキャッシュから書く */
+    @Benchmark
+    public int renderer(BenchInput in) throws IOException {
+        TimestampRenderer stamps = new TimestampRenderer(ZONE, '/', false);
+        CharArrayWriter out = new CharArrayWriter(64);
+        double elapsed = 0;
+        int n = 0;
+        for (long d : in.delayNanos) {
+            elapsed += d / 1e9;
+            out.reset();
+            stamps.writeRel(out, elapsed);
+            stamps.writeAbs(out, START.plusNanos((long) (elapsed * 1_000_000_000L)));
+            n += out.size();
+        }
+        return n;
+    }
+
+    /** 比較用：毎回 String.format と DateTimeFormatter で整形する */
+    @Benchmark
+    public int formatter(BenchInput in) {
+        double elapsed = 0;
+        int n = 0;
+        for (long d : in.delayNanos) {
+            elapsed += d / 1e9;
+            long sec = (long) elapsed;
+            String rel = String.format("%02d:%02d:%02d", sec / 3600, (sec / 60) % 60, sec % 60);
+            String abs = ABS.format(START.plusNanos((long) (elapsed * 1_000_000_000L)));
+            n += rel.length() + abs.length();
+        }
+        return n;
+    }
+}
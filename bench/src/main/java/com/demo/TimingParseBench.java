@@ -0,0 +1,35 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * timing の解析。1回の呼び出しで入力の timing 全体を読む。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimingParseBench {
+
+    /** TimingParser で1行ずつ（CommandOnlyExtractor、jp 版など） */
+    @Benchmark
+    public long parser(BenchInput in) throws IOException {
+        long sum = 0;
+        try (TimingParser p = in.timingParser()) {
+            while (p.next()) sum += p.delayNanos() + p.bytes();
+        }
+        return sum;
+    }
+
+    /** 列形式の表に読み込む（TypescriptToLog2、Ts2Log など） */
+    @Benchmark
+    public TimingTable table(BenchInput in) throws IOException {
+        try (TimingParser p = in.timingParser()) {
+            return TimingTable.read(p, in.timing.length / 10);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 出力の書き込み。CMD 形式に整形済みの行を、BatchConverter.openSink の各形式で一時ファイルに書く。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterBench {
+
+    @Param({"log", "log.gz", "log.col"})
+    public String sink;
+
+    private String[] lines;
+    private Path dir, out;
+
+    @Setup(Level.Trial)
+    public void setup(BenchInput in) throws IOException {
+        TimestampRenderer stamps = new TimestampRenderer(ZoneId.of("Asia/Tokyo"), '-', false);
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        List<String> rendered = new ArrayList<>(in.cleanLines.length);
+        double elapsed = 0;
+        for (String s : in.cleanLines) {
+            elapsed += 0.25;
+            rendered.add(stamps.rel(elapsed) + ',' + stamps.abs(start.plusMillis((long) (elapsed * 1000))) + ",AAAAA," + s + '\n');
+        }
+        lines = rendered.toArray(new String[0]);
+        dir = Files.createTempDirectory("bench-writer");
+        out = dir.resolve("out." + sink);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        try (BufferedWriter w = new BufferedWriter(BatchConverter.openSink(out), 1 << 16)) {
+            for (String s : lines) w.write(s);
+        }
+        return Files.size(out);
+    }
+
+    /** 比較用：書き込み先を捨てる（整形済みの文字列を BufferedWriter に通すだけの手間） */
+    @Benchmark
+    public void discard() throws IOException {
+        try (Writer w = new BufferedWriter(Writer.nullWriter(), 1 << 16)) {
+            for (String s : lines) w.write(s);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        // 形式によっては索引などの付属ファイルもできる
+        try (var files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
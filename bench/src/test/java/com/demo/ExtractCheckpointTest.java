@@ -0,0 +1,75 @@
+package com.demo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CommandOnlyExtractor のチェックポイントからの再開。
+ */
+class ExtractCheckpointTest {
+
+    private static final ZonedDateTime T0 = ZonedDateTime.of(2026, 1, 1, 9, 0, 0, 0, ZoneId.of("Asia/Tokyo"));
+
+    /** 追記後の再実行で開始時刻が数十マイクロ秒ずれていても、前回の開始時刻のまま続きから変換する */
+    @Test
+    void resumesWithShiftedStart() throws IOException {
+        Path dir = Files.createTempDirectory("ckpt");
+        Path ts = dir.resolve("s"), timing = dir.resolve("s.timing"), out = dir.resolve("s.log");
+        append(ts, timing, 0, 20);
+        CommandOnlyExtractor.extract(ts, timing, out, true, T0);
+        assertNotNull(ExtractCheckpoint.load(out, ts, timing));
+
+        // 再開したことがわかるように、ログの先頭の1文字を同じ長さの印に替えておく
+        byte[] log = Files.readAllBytes(out);
+        log[0] = '#';
+        Files.write(out, log);
+
+        append(ts, timing, 20, 40);
+        ZonedDateTime shifted = T0.plusNanos(37_000);
+        ExtractCheckpoint resume = ExtractCheckpoint.load(out, ts, timing);
+        assertNotNull(resume);
+        assertEquals(T0.toInstant(), resume.start.toInstant());
+        CommandOnlyExtractor.extract(ts, timing, out, true, shifted);
+
+        Path full = dir.resolve("full.log");
+        CommandOnlyExtractor.extract(ts, timing, full, true, T0);
+        byte[] expected = Files.readAllBytes(full);
+        expected[0] = '#';
+        assertArrayEquals(expected, Files.readAllBytes(out));
+        // 開始時刻は最初の実行のものを引き継ぐ
+        assertEquals(T0.toInstant(), ExtractCheckpoint.load(out, ts, timing).start.toInstant());
+    }
+
+    /** 録画の先頭が変わっていれば使わない */
+    @Test
+    void ignoresReplacedInput() throws IOException {
+        Path dir = Files.createTempDirectory("ckpt");
+        Path ts = dir.resolve("s"), timing = dir.resolve("s.timing"), out = dir.resolve("s.log");
+        append(ts, timing, 0, 20);
+        CommandOnlyExtractor.extract(ts, timing, out, true, T0);
+        byte[] data = Files.readAllBytes(ts);
+        data[0] ^= 1;
+        Files.write(ts, data);
+        assertNull(ExtractCheckpoint.load(out, ts, timing));
+    }
+
+    // コマンド from..to-1 を1行ずつ、1.5 秒間隔で追記する
+    private static void append(Path ts, Path timing, int from, int to) throws IOException {
+        StringBuilder data = new StringBuilder(), tm = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            String line = "[root@host ~]# echo " + i + "\r\n" + i + "\r\n";
+            data.append(line);
+            tm.append("1.5 ").append(line.getBytes(StandardCharsets.UTF_8).length).append('\n');
+        }
+        Files.write(ts, data.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Files.write(timing, tm.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,48 @@
+package com.demo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * LineFilter の既定のルール：Vim の状態行のうち、どれを落とすか。
+ */
+class LineFilterTest {
+
+    /** LineFilter 以前の send/ 版と最初の TypescriptToLog が使っていた VIM_MODE（trim した行に find） */
+    private static final Pattern OLD_VIM_MODE = Pattern.compile("\\s--\\s(?:INSERT|VISUAL|REPLACE)\\s--");
+
+    // 行、今落とすか、以前落としていたか
+    private static final Object[][] MODE_LINES = {
+        {"-- INSERT --",                         true,  false}, // 行頭（vim.mode で広げた分）
+        {"   -- VISUAL --   ",                   true,  false}, // trim すると行頭
+        {"-- REPLACE --recording @q",            true,  false},
+        {"\"a.txt\" 3L, 20B -- INSERT --",        true,  true},
+        {"echo x -- VISUAL -- y",                true,  true},
+        {"-- VISUAL LINE --",                    false, false}, // モード名の後ろに別の語
+        {"--INSERT--",                           false, false},
+        {"-- insert --",                         false, false}, // 大文字小文字は区別する
+        {"git commit -m 'x' -- INSERT",          false, false},
+    };
+
+    @Test
+    void vimModeLines() {
+        LineFilter.Matcher m = LineFilter.standard(false).matcher();
+        for (Object[] c : MODE_LINES) {
+            String line = (String) c[0];
+            assertEquals(c[1], m.drop(line), "今: " + line);
+            assertEquals(c[2], OLD_VIM_MODE.matcher(line.trim()).find(), "以前: " + line);
+        }
+    }
+
+    @Test
+    void blankAndTilde() {
+        LineFilter.Matcher m = LineFilter.standard(false).matcher();
+        assertTrue(m.drop("   "));
+        assertTrue(m.drop("~"));
+        assertTrue(m.drop(" ~  ~"));
+        assertFalse(m.drop("~/src $ ls"));
+    }
+}
@@ -0,0 +1,43 @@
+package com.demo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PromptRecognizer：覚えたプロンプトを使っても使わなくても結果が同じこと。
+ */
+class PromptRecognizerTest {
+
+    @Test
+    void learnedPrompt() {
+        PromptRecognizer prompts = new PromptRecognizer();
+        assertEquals(15, prompts.split("[root@host ~]# ls -la"));
+        assertEquals(15, prompts.split("[root@host ~]# cd /etc")); // 覚えたリテラルで一致
+    }
+
+    /** 覚えたプロンプトの後ろがコマンドでなければ、形の照合は省いて従来の規則で分ける */
+    @Test
+    void learnedPromptMissFallsBackToGeneric() {
+        String[] rows = {
+            "[root@host ~]#  ls",          // プロンプトの後ろが空白
+            "[root@host ~]# ",              // コマンドなし
+            "[root@host ~]# \tgrep a # b", // 空白の後ろの最後の区切り文字で分ける
+            "[root@host ~]#  echo $ x",
+        };
+        for (String row : rows) {
+            PromptRecognizer learned = new PromptRecognizer();
+            assertEquals(15, learned.split("[root@host ~]# ls"));
+            int expected = PromptRecognizer.splitGeneric(row);
+            assertEquals(expected, learned.split(row), row);
+            assertEquals(expected, new PromptRecognizer().split(row), row);
+        }
+    }
+
+    @Test
+    void genericRule() {
+        assertEquals(-1, PromptRecognizer.splitGeneric("no prompt here"));
+        assertEquals(2, PromptRecognizer.splitGeneric("$ ls"));
+        assertEquals(-1, PromptRecognizer.splitGeneric("$ ls\r"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.demo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * TimingParser：正しい行と、不正な行として読み飛ばす行。
+ */
+class TimingParserTest {
+
+    @Test
+    void parsesDelayAndBytes() throws IOException {
+        List<String> bad = new ArrayList<>();
+        try (TimingParser p = parser("0.5 12\n  1.25\t3  extra\n# comment\n\n", bad)) {
+            assertTrue(p.next());
+            assertEquals(500_000_000L, p.delayNanos());
+            assertEquals(12, p.bytes());
+            assertTrue(p.next());
+            assertEquals(1_250_000_000L, p.delayNanos());
+            assertEquals(3, p.bytes());
+            assertFalse(p.next());
+        }
+        assertTrue(bad.isEmpty(), bad.toString());
+    }
+
+    /** 小数のバイト数と、0x80 以上のバイト（ここでは UTF-8 の NBSP と é）を含む行は不正な行 */
+    @Test
+    void rejectsFractionalBytesAndNonAscii() throws IOException {
+        List<String> bad = new ArrayList<>();
+        try (TimingParser p = parser("0.5 12.7\n0.5\u00a012\n\u00a00.5 12\n0.5 12\u00e9\n0.1 4\n", bad)) {
+            assertTrue(p.next());
+            assertEquals(4, p.bytes());
+            assertEquals(5, p.lineNumber());
+            assertFalse(p.next());
+        }
+        assertEquals(4, bad.size(), bad.toString());
+    }
+
+    private static TimingParser parser(String text, List<String> bad) {
+        return new TimingParser(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)),
+                TimingParser.Unit.SECONDS, (line, reason) -> bad.add(line + ": " + reason));
+    }
+}
@@ -1,28 +1,19 @@
 package com.demo.test04;
 
+import com.demo.LineFilter;
+import com.demo.TimestampRenderer;
+import com.demo.TimingParser;
+
 import java.io.*;
-import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class TypescriptToLog {
 
-    private static final DateTimeFormatter ABS_FMT =
-            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss", Locale.ROOT);
     private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
     private static final String FIXED_TAG = "AAAA";
-    private static final BigDecimal BD_1E9 = new BigDecimal("1000000000"); // 秒→ナノ秒
-    // Vim の状態/画面の特徴
-    private static final Pattern VIM_MODE = Pattern.compile("\\s--\\s(?:INSERT|VISUAL|REPLACE)\\s--");
-    private static final Pattern VIM_FILE_NEW = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\[(?:New File|New)\\]\\s*$");
-    private static final Pattern VIM_FILE_STATS = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\d+L,\\s*\\d+B\\s*$");
-    private static final Pattern TILDE_LINE = Pattern.compile("^[\\s~]+$");
-    private static final Pattern BOX_DRAW = Pattern.compile("[\\u2500-\\u257F\\u2580-\\u259F]+"); // 罫線/ブロック
 
     public static void main(String[] args) throws Exception {
         Path namePath = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b");
@@ -72,9 +63,9 @@ public class TypescriptToLog {
         boolean skipHeader = new String(filtered, StandardCharsets.UTF_8).contains("Last login:");
 
         try (BufferedInputStream tsIn = new BufferedInputStream(new ByteArrayInputStream(filtered));
-             BufferedReader timingReader = Files.newBufferedReader(timing, StandardCharsets.UTF_8)) {
+             TimingParser timingReader = TimingParser.open(timing, TimingParser.Unit.SECONDS)) {
 
-            BigDecimal relSecAccum = BigDecimal.ZERO;
+            long relNanos = 0; // 累積経過時間（ナノ秒）
             StringBuilder lineBuf = new StringBuilder();
             byte[] chunkBuf = new byte[64 * 1024];
 
@@ -82,23 +73,13 @@ public class TypescriptToLog {
             boolean crPendingClear = false;
 
             AnsiStripper stripper = new AnsiStripper();
+            TimestampRenderer stamps = new TimestampRenderer(zone, '/', false);
+            // 行単位の厳格フィルタ（Vim/罫線が密集/空白）。ルールは LineFilter、-Dtypescript.filter=<ファイル> で差し替え可
+            LineFilter.Matcher filter = LineFilter.standard(false).matcher();
 
-            String tline;
-            while (!reachedEnd && (tline = timingReader.readLine()) != null) {
-                if (tline.isEmpty()) continue;
-                String[] cols = tline.split("\\s+");
-                if (cols.length < 2) continue;
-
-                BigDecimal delaySec;
-                long bytes;
-                try {
-                    delaySec = new BigDecimal(cols[0]);
-                    bytes    = Long.parseLong(cols[1]);
-                } catch (NumberFormatException e) {
-                    continue;
-                }
-
-                relSecAccum = relSecAccum.add(delaySec);
+            while (!reachedEnd && timingReader.next()) {
+                long bytes = timingReader.bytes();
+                relNanos += timingReader.delayNanos();
 
                 long remaining = bytes;
                 while (!reachedEnd && remaining > 0) {
@@ -121,7 +102,7 @@ public class TypescriptToLog {
                         if (ch == '\r') { crPendingClear = true; continue; }
                         if (crPendingClear) {
                             if (ch == '\n') {
-                                skipHeader = flushOneLine(lineBuf.toString(), out, relSecAccum, start, zone, tag, skipHeader);
+                                skipHeader = flushOneLine(lineBuf.toString(), out, relNanos, start, stamps, filter, tag, skipHeader);
                                 lineBuf.setLength(0);
                                 crPendingClear = false;
                                 continue;
@@ -144,7 +125,7 @@ public class TypescriptToLog {
                                 break;
                             }
 
-                            skipHeader = flushOneLine(oneLine, out, relSecAccum, start, zone, tag, skipHeader);
+                            skipHeader = flushOneLine(oneLine, out, relNanos, start, stamps, filter, tag, skipHeader);
                         }
                     }
                 }
@@ -153,39 +134,16 @@ public class TypescriptToLog {
             if (!reachedEnd && lineBuf.length() > 0) {
                 String tail = lineBuf.toString();
                 if (!tail.contains("[END TYPESCRIPT]")) {
-                    flushOneLine(tail, out, relSecAccum, start, zone, tag, skipHeader);
+                    flushOneLine(tail, out, relNanos, start, stamps, filter, tag, skipHeader);
                 }
             }
+            filter.flush();
         }
     }
-    // 行単位の厳格フィルタ：ウェルカムメッセージ/Vim/罫線が密集/空白
-    private static boolean shouldDropLineStrict(String s) {
-        if (s == null) return true;
-        // 判定用の一時変数は trim して良いが、実際の出力には影響しない（内容自体は trim しない）
-        String t = s.trim();
-        if (t.isEmpty()) return true;
-
-        if (VIM_MODE.matcher(t).find()) return true;
-        if (VIM_FILE_NEW.matcher(t).find()) return true;
-        if (VIM_FILE_STATS.matcher(t).find()) return true;
-        if (TILDE_LINE.matcher(t).matches()) return true;
-
-        int boxChars = countMatches(BOX_DRAW, t);
-        if (boxChars > 0 && (double) boxChars / Math.max(1, t.length()) > 0.3) return true;
-
-        return false;
-    }
-    private static int countMatches(Pattern p, String s) {
-        int c = 0;
-        Matcher m = p.matcher(s);
-        while (m.find()) c += m.group().length();
-        return c;
-    }
-
     /** 1行を処理し、更新後の skipHeader 状態を返す */
     private static boolean flushOneLine(String oneLine, Writer out,
-                                        BigDecimal relSecAccum, Instant start, ZoneId zone, String tag,
-                                        boolean skipHeader) throws IOException {
+                                        long relNanos, Instant start, TimestampRenderer stamps,
+                                        LineFilter.Matcher filter, String tag, boolean skipHeader) throws IOException {
         String s = oneLine.replace("\r", "").replace("\n", "");
         if (skipHeader) {
             if (s.contains("Last login:")) {
@@ -196,9 +154,8 @@ public class TypescriptToLog {
 
         String cleaned = s.strip();
         if (!cleaned.isEmpty()) {
-            long relNanos = relSecAccum.multiply(BD_1E9).setScale(0, BigDecimal.ROUND_HALF_UP).longValue();
             Instant absInstant = start.plusNanos(relNanos);
-            emit(out, relNanos, absInstant, zone, tag, cleaned);
+            emit(out, relNanos, absInstant, stamps, filter, tag, cleaned);
         }
         return false;
     }
@@ -232,23 +189,15 @@ public class TypescriptToLog {
         return "~!@#$%^&*()_+`-={}[]|\\:;\"'<>,.?/".indexOf(ch) >= 0;
     }
 
-    private static void emit(Writer out, long relNanos, Instant absInstant, ZoneId zone,
-                             String tag, String content) throws IOException {
-    	if (shouldDropLineStrict(content)) return;
-        String rel = formatRel(relNanos);
-        String abs = ABS_FMT.format(ZonedDateTime.ofInstant(absInstant, zone));
+    private static void emit(Writer out, long relNanos, Instant absInstant, TimestampRenderer stamps,
+                             LineFilter.Matcher filter, String tag, String content) throws IOException {
+    	if (filter.drop(content)) return;
+        String rel = stamps.rel(relNanos);
+        String abs = stamps.abs(absInstant);
         out.write(rel); out.write(','); out.write(abs); out.write(','); out.write(tag); out.write(','); out.write(content);
         out.write(System.lineSeparator());
     }
 
-    private static String formatRel(long relNanos) {
-        long totalSec = relNanos / 1_000_000_000L;
-        long h = totalSec / 3600;
-        long m = (totalSec % 3600) / 60;
-        long s = (totalSec % 60);
-        return String.format(Locale.ROOT, "%02d:%02d:%02d", h, m, s);
-    }
-
     /**
      * ブロックをまたぐ制御シーケンス除去器：CSI/OSC/DCS/PM/APC/DEC プライベートモード
      */
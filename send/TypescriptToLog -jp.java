@@ -1,29 +1,29 @@
 package com.demo.test04;
 
+import com.demo.LineFilter;
+import com.demo.TimestampRenderer;
+import com.demo.TimingParser;
+
 import java.io.*;
-import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class TypescriptToLog {
 
-    private static final DateTimeFormatter ABS_FMT =
-            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss", Locale.ROOT);
     private static final ZoneId DEFAULT_ZONE = ZoneId.of("Asia/Tokyo");
     private static final String FIXED_TAG = "AAAA";
-    private static final BigDecimal BD_1E9 = new BigDecimal("1000000000"); // 秒→ナノ秒
-    // Vim の状態/画面の特徴
-    private static final Pattern VIM_MODE = Pattern.compile("\\s--\\s(?:INSERT|VISUAL|REPLACE)\\s--");
-    private static final Pattern VIM_FILE_NEW = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\[(?:New File|New)\\]\\s*$");
-    private static final Pattern VIM_FILE_STATS = Pattern.compile("^\\s*\"[^\"]+\"\\s*\\d+L,\\s*\\d+B\\s*$");
-    private static final Pattern TILDE_LINE = Pattern.compile("^[\\s~]+$");
-    private static final Pattern BOX_DRAW = Pattern.compile("[\\u2500-\\u257F\\u2580-\\u259F]+"); // 罫線/ブロック
     private static long lastRelSec = -1; // 直前に出力した相対秒を記録
+    private static final byte[] BEGIN_MARK = "[BEGIN TYPESCRIPT]".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MARK   = "[END TYPESCRIPT]".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_LOGIN = "Last login:".getBytes(StandardCharsets.US_ASCII);
 
     public static void main(String[] args) throws Exception {
         Path namePath = Paths.get("C:\\Users\\Administrator\\Downloads\\raglogs\\raglogs\\5eeffdd9-afb4-320f-91ef-0c082d5a7c8b");
@@ -46,60 +46,47 @@ public class TypescriptToLog {
                                ZoneId zone, Instant start, String tag, boolean stripAnsi) throws IOException {
 
         // ===== NAME の前処理：先頭行 [BEGIN TYPESCRIPT] と末尾行 [END TYPESCRIPT] を取り除く =====
-        byte[] raw = Files.readAllBytes(typescript);
-
-        int firstLineEnd = indexOfNewline(raw, 0);
-        int startOffset = 0;
-        if (firstLineEnd > 0) {
-            String firstLine = decodeTrim(raw, 0, firstLineEnd);
-            if ("[BEGIN TYPESCRIPT]".equals(firstLine)) {
-                startOffset = firstLineEnd;
+        // ファイル全体をヒープに読まず、マップしたまま走査する（サイズに関係なくヒープ使用量は一定）
+        try (MappedTypescript raw = MappedTypescript.open(typescript);
+             TimingParser timingReader = TimingParser.open(timing, TimingParser.Unit.SECONDS)) {
+
+            long firstLineEnd = indexOfNewline(raw, 0);
+            long startOffset = 0;
+            if (firstLineEnd > 0) {
+                if (trimmedEquals(raw, 0, firstLineEnd, BEGIN_MARK)) {
+                    startOffset = firstLineEnd;
+                }
             }
-        }
 
-        int lastLineStart = lastIndexOfNewline(raw, raw.length);
-        if (lastLineStart < 0) lastLineStart = 0;
-        String lastLine = decodeTrim(raw, lastLineStart, raw.length);
-        int endOffset = raw.length;
-        if ("[END TYPESCRIPT]".equals(lastLine)) {
-            endOffset = lastLineStart;
-        }
+            long lastLineStart = lastIndexOfNewline(raw, raw.size());
+            if (lastLineStart < 0) lastLineStart = 0;
+            long endOffset = raw.size();
+            if (trimmedEquals(raw, lastLineStart, raw.size(), END_MARK)) {
+                endOffset = lastLineStart;
+            }
 
-        if (startOffset < 0 || startOffset > endOffset) startOffset = 0;
-        byte[] filtered = new byte[endOffset - startOffset];
-        System.arraycopy(raw, startOffset, filtered, 0, filtered.length);
+            if (startOffset < 0 || startOffset > endOffset) startOffset = 0;
 
-        // ヘッダーをスキップする必要があるか
-        boolean skipHeader = new String(filtered, StandardCharsets.UTF_8).contains("Last login:");
+            // ヘッダーをスキップする必要があるか（ASCII なのでバイト列のまま検索して同じ結果になる）
+            boolean skipHeader = raw.indexOf(LAST_LOGIN, startOffset, endOffset) >= 0;
 
-        try (BufferedInputStream tsIn = new BufferedInputStream(new ByteArrayInputStream(filtered));
-             BufferedReader timingReader = Files.newBufferedReader(timing, StandardCharsets.UTF_8)) {
+            InputStream tsIn = raw.stream(startOffset, endOffset);
 
-            BigDecimal relSecAccum = BigDecimal.ZERO;
+            long relNanos = 0; // 累積経過時間（ナノ秒）
             StringBuilder lineBuf = new StringBuilder();
             byte[] chunkBuf = new byte[64 * 1024];
 
             boolean reachedEnd = false;
             boolean crPendingClear = false;
 
-            AnsiStripper stripper = new AnsiStripper();
-
-            String tline;
-            while (!reachedEnd && (tline = timingReader.readLine()) != null) {
-                if (tline.isEmpty()) continue;
-                String[] cols = tline.split("\\s+");
-                if (cols.length < 2) continue;
-
-                BigDecimal delaySec;
-                long bytes;
-                try {
-                    delaySec = new BigDecimal(cols[0]);
-                    bytes    = Long.parseLong(cols[1]);
-                } catch (NumberFormatException e) {
-                    continue;
-                }
+            AnsiStripper stripper = new AnsiStripper(stripAnsi);
+            TimestampRenderer stamps = new TimestampRenderer(zone, '/', false);
+            // 行単位の厳格フィルタ（Vim/罫線が密集/空白）。ルールは LineFilter、-Dtypescript.filter=<ファイル> で差し替え可
+            LineFilter.Matcher filter = LineFilter.standard(false).matcher();
 
-                relSecAccum = relSecAccum.add(delaySec);
+            while (!reachedEnd && timingReader.next()) {
+                long bytes = timingReader.bytes();
+                relNanos += timingReader.delayNanos();
 
                 long remaining = bytes;
                 while (!reachedEnd && remaining > 0) {
@@ -108,11 +95,12 @@ public class TypescriptToLog {
                     if (n < 0) { remaining = 0; break; }
                     remaining -= n;
 
-                    String piece = new String(chunkBuf, 0, n, StandardCharsets.UTF_8);
-                    String cleaned = stripAnsi ? stripper.process(piece) : piece;
+                    // バイトのまま除去・デコード（読み込み境界で割れた文字は次の読み込みに持ち越す）
+                    int cleanedLen = stripper.process(chunkBuf, 0, n);
+                    char[] cleaned = stripper.chars();
 
-                    for (int i = 0; !reachedEnd && i < cleaned.length(); i++) {
-                        char ch = cleaned.charAt(i);
+                    for (int i = 0; !reachedEnd && i < cleanedLen; i++) {
+                        char ch = cleaned[i];
 
                         if (ch == '\b') {
                             if (lineBuf.length() > 0) lineBuf.deleteCharAt(lineBuf.length() - 1);
@@ -122,7 +110,7 @@ public class TypescriptToLog {
                         if (ch == '\r') { crPendingClear = true; continue; }
                         if (crPendingClear) {
                             if (ch == '\n') {
-                                skipHeader = flushOneLine(lineBuf.toString(), out, relSecAccum, start, zone, tag, skipHeader);
+                                skipHeader = flushOneLine(lineBuf.toString(), out, relNanos, start, stamps, filter, tag, skipHeader);
                                 lineBuf.setLength(0);
                                 crPendingClear = false;
                                 continue;
@@ -145,48 +133,28 @@ public class TypescriptToLog {
                                 break;
                             }
 
-                            skipHeader = flushOneLine(oneLine, out, relSecAccum, start, zone, tag, skipHeader);
+                            skipHeader = flushOneLine(oneLine, out, relNanos, start, stamps, filter, tag, skipHeader);
                         }
                     }
                 }
             }
 
+            // 末尾で途切れたマルチバイト文字は U+FFFD として行に残す
+            if (!reachedEnd) lineBuf.append(stripper.chars(), 0, stripper.finish());
+
             if (!reachedEnd && lineBuf.length() > 0) {
                 String tail = lineBuf.toString();
                 if (!tail.contains("[END TYPESCRIPT]")) {
-                    flushOneLine(tail, out, relSecAccum, start, zone, tag, skipHeader);
+                    flushOneLine(tail, out, relNanos, start, stamps, filter, tag, skipHeader);
                 }
             }
+            filter.flush();
         }
     }
-    // 行単位の厳格フィルタ：ウェルカムメッセージ/Vim/罫線が密集/空白
-    private static boolean shouldDropLineStrict(String s) {
-        if (s == null) return true;
-        // 判定用の一時変数は trim して良いが、実際の出力には影響しない（内容自体は trim しない）
-        String t = s.trim();
-        if (t.isEmpty()) return true;
-
-        if (VIM_MODE.matcher(t).find()) return true;
-        if (VIM_FILE_NEW.matcher(t).find()) return true;
-        if (VIM_FILE_STATS.matcher(t).find()) return true;
-        if (TILDE_LINE.matcher(t).matches()) return true;
-
-        int boxChars = countMatches(BOX_DRAW, t);
-        if (boxChars > 0 && (double) boxChars / Math.max(1, t.length()) > 0.3) return true;
-
-        return false;
-    }
-    private static int countMatches(Pattern p, String s) {
-        int c = 0;
-        Matcher m = p.matcher(s);
-        while (m.find()) c += m.group().length();
-        return c;
-    }
-
     /** 1行を処理し、更新後の skipHeader 状態を返す */
     private static boolean flushOneLine(String oneLine, Writer out,
-                                        BigDecimal relSecAccum, Instant start, ZoneId zone, String tag,
-                                        boolean skipHeader) throws IOException {
+                                        long relNanos, Instant start, TimestampRenderer stamps,
+                                        LineFilter.Matcher filter, String tag, boolean skipHeader) throws IOException {
         String s = oneLine.replace("\r", "").replace("\n", "");
         if (skipHeader) {
             if (s.contains("Last login:")) {
@@ -197,34 +165,44 @@ public class TypescriptToLog {
 
         String cleaned = s.strip();
         if (!cleaned.isEmpty()) {
-            long relNanos = relSecAccum.multiply(BD_1E9).setScale(0, BigDecimal.ROUND_HALF_UP).longValue();
             Instant absInstant = start.plusNanos(relNanos);
-            emit(out, relNanos, absInstant, zone, tag, cleaned);
+            emit(out, relNanos, absInstant, stamps, filter, tag, cleaned);
         }
         return false;
     }
 
-    private static int indexOfNewline(byte[] b, int off) {
-        for (int i = off; i < b.length; i++) {
-            if (b[i] == '\n') return i + 1;
-            if (b[i] == '\r') return (i + 1 < b.length && b[i + 1] == '\n') ? i + 2 : i + 1;
+    private static long indexOfNewline(MappedTypescript b, long off) {
+        long len = b.size();
+        for (long i = off; i < len; i++) {
+            byte c = b.get(i);
+            if (c == '\n') return i + 1;
+            if (c == '\r') return (i + 1 < len && b.get(i + 1) == '\n') ? i + 2 : i + 1;
         }
-        return b.length;
+        return len;
     }
 
-    private static int lastIndexOfNewline(byte[] b, int end) {
-        for (int i = end - 1; i >= 0; i--) {
-            if (b[i] == '\n' || b[i] == '\r') return i + 1;
+    private static long lastIndexOfNewline(MappedTypescript b, long end) {
+        for (long i = end - 1; i >= 0; i--) {
+            byte c = b.get(i);
+            if (c == '\n' || c == '\r') return i + 1;
         }
         return -1;
     }
 
-    private static String decodeTrim(byte[] b, int from, int to) {
+    /**
+     * [from, to) の CR/LF を除き trim した結果が mark と一致するか。
+     * trim 対象（<= 0x20）も mark も ASCII なので、デコードせずにバイトのまま比較できる。
+     */
+    private static boolean trimmedEquals(MappedTypescript b, long from, long to, byte[] mark) {
         if (from < 0) from = 0;
-        if (to > b.length) to = b.length;
-        if (from >= to) return "";
-        return new String(b, from, to - from, StandardCharsets.UTF_8)
-                .replace("\r", "").replace("\n", "").trim();
+        if (to > b.size()) to = b.size();
+        while (from < to && (b.get(from) & 0xFF) <= 0x20) from++;
+        while (to > from && (b.get(to - 1) & 0xFF) <= 0x20) to--;
+        if (to - from != mark.length) return false;
+        for (int i = 0; i < mark.length; i++) {
+            if (b.get(from + i) != mark[i]) return false;
+        }
+        return true;
     }
 
     private static boolean isLinePrintable(char ch) {
@@ -233,45 +211,70 @@ public class TypescriptToLog {
         return "~!@#$%^&*()_+`-={}[]|\\:;\"'<>,.?/".indexOf(ch) >= 0;
     }
 
-    private static void emit(Writer out, long relNanos, Instant absInstant, ZoneId zone,
-                             String tag, String content) throws IOException {
-    	if (shouldDropLineStrict(content)) return;
+    private static void emit(Writer out, long relNanos, Instant absInstant, TimestampRenderer stamps,
+                             LineFilter.Matcher filter, String tag, String content) throws IOException {
+    	if (filter.drop(content)) return;
     	long relSec = relNanos / 1_000_000_000L;
     	String rel;
         if (relSec == lastRelSec) {
             rel = "        "; // 8 個の空白で代替
         } else {
-            rel = formatRel(relNanos);
+            rel = stamps.rel(relNanos);
             lastRelSec = relSec;
         }
-        String abs = ABS_FMT.format(ZonedDateTime.ofInstant(absInstant, zone));
+        String abs = stamps.abs(absInstant);
         out.write(rel); out.write(','); out.write(abs); out.write(','); out.write(tag); out.write(','); out.write(content);
         out.write(System.lineSeparator());
     }
 
-    private static String formatRel(long relNanos) {
-        long totalSec = relNanos / 1_000_000_000L;
-        long h = totalSec / 3600;
-        long m = (totalSec % 3600) / 60;
-        long s = (totalSec % 60);
-        return String.format(Locale.ROOT, "%02d:%02d:%02d", h, m, s);
-    }
-
     /**
      * ブロックをまたぐ制御シーケンス除去器：CSI/OSC/DCS/PM/APC/DEC プライベートモード
+     * 読み込んだバイト列に直接適用し、残った本文だけを UTF-8 デコードする。
+     * - デコーダは変換全体で1つ。読み込み境界で割れたマルチバイト文字は pending に持ち越す
+     * - ASCII の連続部分はデコーダを通さず、そのまま出力バッファへコピー
      */
     private static class AnsiStripper {
-        private enum State { NORMAL, ESC, CSI, OSC, DCS, PM, APC, OSC_ESC, DCS_ESC, PM_ESC, APC_ESC }
+        private enum State { NORMAL, ESC, ESC_SKIP, CSI, OSC, DCS, PM, APC, OSC_ESC, DCS_ESC, PM_ESC, APC_ESC }
         private State state = State.NORMAL;
-
-        String process(String s) {
-            StringBuilder out = new StringBuilder(s.length());
-            for (int i = 0; i < s.length(); i++) {
-                char ch = s.charAt(i);
+        private final boolean strip;
+        private int skip; // ESC の直後に来たマルチバイト文字の残りバイト数
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer pending = ByteBuffer.allocate(8); // 未完成のマルチバイト文字
+        private ByteBuffer wrapped;                                 // 呼び出し側の読み込みバッファ
+        private CharBuffer out = CharBuffer.allocate(64 * 1024 + 16);
+
+        AnsiStripper(boolean strip) { this.strip = strip; }
+
+        /** 直近の process/finish の結果（先頭から戻り値の長さまで有効） */
+        char[] chars() { return out.array(); }
+
+        /** b[off, off+len) を処理し、出力文字数を返す */
+        int process(byte[] b, int off, int len) {
+            if (out.capacity() < len + 16) out = CharBuffer.allocate(len + 16);
+            out.clear();
+            if (wrapped == null || wrapped.array() != b) wrapped = ByteBuffer.wrap(b);
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (state == State.NORMAL) {
+                    int runEnd = i;
+                    if (strip) { while (runEnd < end && b[runEnd] != 0x1B) runEnd++; }
+                    else runEnd = end;
+                    text(b, i, runEnd);
+                    i = runEnd;
+                    if (i < end) {
+                        // シーケンスに割り込まれた未完成の文字は不正バイトとして確定させる
+                        if (pending.position() > 0) flushPending();
+                        state = State.ESC;
+                        i++;
+                    }
+                    continue;
+                }
+                int ch = b[i++] & 0xFF;
                 switch (state) {
-                    case NORMAL:
-                        if (ch == 0x1B) state = State.ESC; else out.append(ch);
-                        break;
                     case ESC:
                         switch (ch) {
                             case '[': state = State.CSI; break;
@@ -279,10 +282,17 @@ public class TypescriptToLog {
                             case 'P': state = State.DCS; break;
                             case '^': state = State.PM;  break;
                             case '_': state = State.APC; break;
-                            case '\\': state = State.NORMAL; break;
-                            default: state = State.NORMAL; break;
+                            default:
+                                // ESC + 1文字：マルチバイト文字なら残りのバイトも読み飛ばす
+                                skip = ch >= 0xF0 ? 3 : ch >= 0xE0 ? 2 : ch >= 0xC0 ? 1 : 0;
+                                state = skip > 0 ? State.ESC_SKIP : State.NORMAL;
+                                break;
                         }
                         break;
+                    case ESC_SKIP:
+                        if ((ch & 0xC0) != 0x80) { i--; state = State.NORMAL; break; } // 不正な続きは本文として扱う
+                        if (--skip == 0) state = State.NORMAL;
+                        break;
                     case CSI:
                         if (ch >= 0x40 && ch <= 0x7E) state = State.NORMAL; // 最終バイトまで読み飛ばす
                         break;
@@ -311,9 +321,152 @@ public class TypescriptToLog {
                     case APC_ESC:
                         state = (ch == '\\') ? State.NORMAL : State.APC;
                         break;
+                    default:
+                        break;
+                }
+            }
+            return out.position();
+        }
+
+        /** ストリーム終端：持ち越し中の未完成な文字を U+FFFD にして出力文字数を返す */
+        int finish() {
+            out.clear();
+            flushPending();
+            return out.position();
+        }
+
+        // 本文 b[from, to) を出力へ
+        private void text(byte[] b, int from, int to) {
+            char[] dst = out.array();
+            while (from < to) {
+                if (pending.position() == 0) {
+                    int o = out.position();
+                    while (from < to && b[from] >= 0) dst[o++] = (char) b[from++]; // ASCII はそのままコピー
+                    out.position(o);
+                    if (from == to) return;
                 }
+                // 非 ASCII の連続部分（ASCII バイトはマルチバイト文字の途中には現れない）
+                int k = from;
+                while (k < to && b[k] < 0) k++;
+                if (pending.position() > 0) from = completePending(b, from, k);
+                if (from < k) {
+                    wrapped.limit(k).position(from);
+                    decoder.decode(wrapped, out, false);
+                    while (wrapped.hasRemaining()) pending.put(wrapped.get()); // 末尾の未完成分は持ち越し
+                }
+                from = k;
+                if (from < to && pending.position() > 0) flushPending(); // 未完成のまま ASCII が来た
             }
-            return out.toString();
+        }
+
+        // 前回から持ち越した文字を b[from, k) の先頭で完成させ、消費後の位置を返す
+        private int completePending(byte[] b, int from, int k) {
+            int c = Math.min(k - from, 4);
+            pending.put(b, from, c);
+            pending.flip();
+            decoder.decode(pending, out, false);
+            int r = pending.remaining();
+            if (r <= c) {
+                pending.clear();   // 残りは b 側から改めてデコードする
+                return from + c - r;
+            }
+            pending.compact();     // まだ未完成（b が短い）
+            return from + c;
+        }
+
+        private void flushPending() {
+            if (pending.position() == 0) return;
+            pending.flip();
+            decoder.decode(pending, out, true);
+            decoder.flush(out);
+            decoder.reset();
+            pending.clear();
+        }
+    }
+
+    /**
+     * typescript を読み取り専用でメモリマップしたもの。
+     * MappedByteBuffer は 1 本あたり 2GB 未満の制約があるため、大きなファイルは WINDOW 単位に分割してマップする。
+     */
+    private static final class MappedTypescript implements Closeable {
+        private static final long WINDOW = 1L << 30; // 1GB
+
+        private final FileChannel ch;
+        private final long size;
+        private final MappedByteBuffer[] windows;
+
+        private MappedTypescript(FileChannel ch) throws IOException {
+            this.ch = ch;
+            this.size = ch.size();
+            int n = (int) ((size + WINDOW - 1) / WINDOW);
+            this.windows = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long pos = i * WINDOW;
+                windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+            }
+        }
+
+        static MappedTypescript open(Path p) throws IOException {
+            FileChannel ch = FileChannel.open(p, StandardOpenOption.READ);
+            try {
+                return new MappedTypescript(ch);
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        }
+
+        long size() { return size; }
+
+        byte get(long pos) {
+            return windows[(int) (pos / WINDOW)].get((int) (pos % WINDOW));
+        }
+
+        /** [from, to) 内で pat が最初に現れる位置。なければ -1 */
+        long indexOf(byte[] pat, long from, long to) {
+            if (pat.length == 0) return from;
+            byte first = pat[0];
+            long last = to - pat.length;
+            outer:
+            for (long i = from; i <= last; i++) {
+                if (get(i) != first) continue;
+                for (int k = 1; k < pat.length; k++) {
+                    if (get(i + k) != pat[k]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /** [from, to) をマップから直接読む InputStream（コピーはしない） */
+        InputStream stream(long from, long to) {
+            return new InputStream() {
+                private long pos = from;
+
+                @Override
+                public int read() {
+                    return pos < to ? (get(pos++) & 0xFF) : -1;
+                }
+
+                @Override
+                public int read(byte[] dst, int off, int len) {
+                    if (len == 0) return 0;
+                    if (pos >= to) return -1;
+                    int w = (int) (pos / WINDOW);
+                    int inWin = (int) (pos % WINDOW);
+                    MappedByteBuffer buf = windows[w];
+                    // ウィンドウ境界をまたぐ場合は境界までで返す
+                    int n = (int) Math.min(Math.min(len, to - pos), buf.limit() - inWin);
+                    buf.get(inWin, dst, off, n);
+                    pos += n;
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
         }
     }
 }